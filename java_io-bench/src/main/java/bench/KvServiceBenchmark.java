@@ -0,0 +1,106 @@
+package bench;
+
+import nio.test2.KvHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioServer键值服务的压测，和{@link NioServerEchoBenchmark}同样的连接数、value大小和pipelining深度组合，
+ * 对比回显之外多了一次堆外存储的读写：op=get时每轮读取setUp阶段写入的depth个key，全部命中；op=set时每轮覆盖这些key。
+ * 所有连接发送同样的depth个key，depth=1时全部请求落在同一个分段上，是分段锁竞争最重的情况。
+ * 一次操作是一轮，messages计数器见{@link NioServerEchoBenchmark.Messages}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-bench.properties")
+public class KvServiceBenchmark {
+    //4字节帧长度 + 1字节状态
+    private static final int STATUS_RESPONSE_LENGTH = 5;
+
+    @Param({"1", "100", "1000"})
+    public int connections;
+
+    @Param({"16", "1024", "65536"})
+    public int valueSize;
+
+    @Param({"1", "16"})
+    public int depth;
+
+    @Param({"get", "set"})
+    public String op;
+
+    private LoopbackDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ServerType server = ServerType.NIO_TEST2_KV;
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.port);
+        ByteBuffer sets = buildRequest(KvHandler.SET, valueSize, depth);
+        //先用一个连接写入全部key，get全部命中
+        try (LoopbackDriver loader = new LoopbackDriver(server, address, 1, sets, depth,
+                (long) STATUS_RESPONSE_LENGTH * depth)) {
+            loader.round();
+        }
+        if ("get".equals(op)) {
+            driver = new LoopbackDriver(server, address, connections, buildRequest(KvHandler.GET, 0, depth), depth,
+                    (long) (STATUS_RESPONSE_LENGTH + valueSize) * depth);
+        } else {
+            driver = new LoopbackDriver(server, address, connections, sets, depth,
+                    (long) STATUS_RESPONSE_LENGTH * depth);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        driver.close();
+        ServerType.NIO_TEST2_KV.stop();
+    }
+
+    @Benchmark
+    public void request(NioServerEchoBenchmark.Messages messages) throws IOException {
+        messages.messages += driver.round();
+    }
+
+    /**
+     * depth个请求，第i个请求的key为"key-i"，请求帧格式见{@link KvHandler}
+     */
+    private static ByteBuffer buildRequest(byte op, int valueSize, int depth) {
+        ByteBuffer request = ByteBuffer.allocate(depth * (4 + 3 + 16 + valueSize));
+        for (int i = 0; i < depth; i++) {
+            byte[] key = ("key-" + i).getBytes(StandardCharsets.US_ASCII);
+            request.putInt(3 + key.length + valueSize);
+            request.put(op);
+            request.putShort((short) key.length);
+            request.put(key);
+            for (int j = 0; j < valueSize; j++) {
+                request.put((byte) 'v');
+            }
+        }
+        request.flip();
+        ByteBuffer direct = ByteBuffer.allocateDirect(request.remaining());
+        direct.put(request);
+        direct.flip();
+        return direct;
+    }
+}
@@ -0,0 +1,237 @@
+package bench;
+
+import transport.SocketAddresses;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * 压测用的回环负载生成器，一个Selector驱动多个非阻塞连接。
+ * 每调用一次{@link #round()}，每个连接发送depth个请求并等待全部响应返回；
+ * 响应长度是确定的，所以只统计收到的字节数，不解析响应内容
+ */
+final class LoopbackDriver implements Closeable {
+    private final ServerType serverType;
+
+    //回环TCP地址或者unix domain socket地址
+    private final SocketAddress address;
+
+    private final int depth;
+
+    private final Selector selector;
+
+    private final Connection[] connections;
+
+    //一轮要发送的请求（depth个请求连在一起），每个连接每轮复制一个视图
+    private final ByteBuffer request;
+
+    //每个连接每轮应收到的响应字节数
+    private final long expectedBytes;
+
+    //响应内容不关心，所有连接共用一个接收buffer
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(256 * 1024);
+
+    LoopbackDriver(ServerType serverType, int connections, int messageSize, int depth) throws IOException {
+        this(serverType, new InetSocketAddress("127.0.0.1", serverType.port), connections, messageSize, depth);
+    }
+
+    LoopbackDriver(ServerType serverType, SocketAddress address, int connections, int messageSize, int depth)
+            throws IOException {
+        this(serverType, address, connections, buildRequest(serverType, messageSize, depth), depth,
+                (long) serverType.responseLength(messageSize) * depth);
+    }
+
+    /**
+     * 发送自定义的请求，例如键值服务的请求内容取决于操作
+     *
+     * @param request       一轮要发送的depth个请求，连在一起
+     * @param expectedBytes 每个连接每轮应收到的响应字节数
+     */
+    LoopbackDriver(ServerType serverType, SocketAddress address, int connections, ByteBuffer request, int depth,
+                   long expectedBytes) throws IOException {
+        if (depth > 1 && !serverType.pipelining) {
+            throw new IllegalArgumentException(serverType + " does not support pipelining");
+        }
+        this.serverType = serverType;
+        this.address = address;
+        this.depth = depth;
+        this.selector = Selector.open();
+        this.connections = new Connection[connections];
+        this.request = request.asReadOnlyBuffer();
+        this.expectedBytes = expectedBytes;
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection();
+            if (serverType.persistent) {
+                this.connections[i].open();
+            }
+        }
+    }
+
+    private static ByteBuffer buildRequest(ServerType serverType, int messageSize, int depth) {
+        if (serverType != ServerType.NIO_TEST2 && messageSize > 1024) {
+            //其余服务端只用一个1024字节的buffer读一次，更大的请求会被拆成多个响应或者被截断
+            throw new IllegalArgumentException(serverType + " only supports messages up to 1024 bytes");
+        }
+        boolean framed = serverType == ServerType.NIO_TEST2;
+        ByteBuffer request = ByteBuffer.allocateDirect((framed ? 4 + messageSize : messageSize) * depth);
+        for (int i = 0; i < depth; i++) {
+            if (framed) {
+                request.putInt(messageSize);
+            }
+            //NioServer按UTF-8解码请求，只能用单字节字符，保证响应长度可以预先算出；
+            //NIOServer按换行符切分消息，没有长度字段时最后一个字节为'\n'
+            for (int j = 0; j < messageSize; j++) {
+                request.put(!framed && j == messageSize - 1 ? (byte) '\n' : (byte) 'x');
+            }
+        }
+        request.flip();
+        return request.asReadOnlyBuffer();
+    }
+
+    /**
+     * 执行一轮请求
+     *
+     * @return 本轮完成的请求个数
+     */
+    int round() throws IOException {
+        int pending = connections.length;
+        for (Connection connection : connections) {
+            connection.begin();
+        }
+        while (pending > 0) {
+            selector.select();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (((Connection) key.attachment()).handle(key)) {
+                    pending--;
+                }
+            }
+        }
+        return connections.length * depth;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        selector.close();
+    }
+
+    private final class Connection {
+        private SocketChannel channel;
+
+        private SelectionKey key;
+
+        private ByteBuffer out;
+
+        private long received;
+
+        void open() throws IOException {
+            channel = openChannel();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                key = channel.register(selector, 0, this);
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                //建连阶段不计入压测结果，这里直接等待连接完成
+                while (!channel.finishConnect()) {
+                    Thread.yield();
+                }
+                key.interestOps(0);
+            }
+        }
+
+        void begin() throws IOException {
+            out = request.duplicate();
+            received = 0;
+            if (serverType.persistent) {
+                startWrite();
+            } else {
+                //一次性连接：每个请求都新建连接，建连也计入这一轮的耗时
+                channel = openChannel();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    key = channel.register(selector, 0, this);
+                    startWrite();
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            }
+        }
+
+        private SocketChannel openChannel() throws IOException {
+            SocketChannel channel = SocketAddresses.openSocketChannel(address);
+            //unix domain socket没有TCP选项
+            if (!SocketAddresses.isUnix(address)) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            return channel;
+        }
+
+        private void startWrite() throws IOException {
+            channel.write(out);
+            key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * 处理就绪事件
+         *
+         * @return 本轮的响应是否已经全部收到
+         */
+        boolean handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                startWrite();
+                return false;
+            }
+            if (key.isWritable()) {
+                channel.write(out);
+                if (!out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if (key.isReadable()) {
+                int n;
+                while ((n = channel.read(clearScratch())) > 0) {
+                    received += n;
+                }
+                if (n < 0 && received < expectedBytes) {
+                    throw new EOFException(serverType + " closed connection after " + received + " of " + expectedBytes + " bytes");
+                }
+                if (received >= expectedBytes) {
+                    if (serverType.persistent) {
+                        key.interestOps(0);
+                    } else {
+                        close();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private ByteBuffer clearScratch() {
+            scratch.clear();
+            return scratch;
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
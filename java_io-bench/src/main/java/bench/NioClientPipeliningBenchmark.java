@@ -0,0 +1,59 @@
+package bench;
+
+import nio.test2.NioClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个连接上小消息的吞吐随pipelining深度的变化，客户端是{@link NioClient}，服务端是{@link ServerType#NIO_TEST2}。
+ * depth=1时每个请求一次write、一次read和一个往返；depth更大时客户端一次gathering write发出一批请求，
+ * 服务端一次读事件解出多个帧，响应先进发送队列，读事件结束时只flush一次，系统调用次数按批摊薄。
+ * 一次调用发送{@link #REQUESTS}个请求，结果按请求数归一化，建连也计入但被摊薄到可以忽略
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-bench.properties")
+public class NioClientPipeliningBenchmark {
+    private static final int REQUESTS = 10000;
+
+    @Param({"1", "16", "128"})
+    public int depth;
+
+    private NioClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ServerType.NIO_TEST2.start();
+        client = new NioClient("127.0.0.1", ServerType.NIO_TEST2.port);
+        client.setPipelineDepth(depth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerType.NIO_TEST2.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long requests() throws IOException {
+        return client.run(REQUESTS);
+    }
+}
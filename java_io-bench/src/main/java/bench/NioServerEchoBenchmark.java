@@ -0,0 +1,85 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import transport.SocketAddresses;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * nio.test2.NioServer的回显压测，覆盖连接数、消息大小和pipelining深度的组合。
+ * 一次操作是一轮：每个连接发送depth个请求并收齐响应。
+ * Throughput模式下messages计数器给出每秒完成的请求数，SampleTime模式给出一轮的p50/p99/p999耗时，
+ * connections=1、depth=1时即单个请求的往返延迟。
+ * transport=unix时通过unix domain socket连接（需要JDK 16+），和tcp（回环地址）对比同一台机器上两种传输层的吞吐和延迟
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-bench.properties")
+public class NioServerEchoBenchmark {
+    @Param({"1", "100", "1000", "10000"})
+    public int connections;
+
+    @Param({"16", "1024", "65536", "1048576"})
+    public int messageSize;
+
+    @Param({"1", "16"})
+    public int depth;
+
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    private LoopbackDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ServerType.NIO_TEST2.start();
+        SocketAddress address = "unix".equals(transport) ? SocketAddresses.unix(ServerType.NIO_TEST2_UNIX_SOCKET)
+                : new InetSocketAddress("127.0.0.1", ServerType.NIO_TEST2.port);
+        driver = new LoopbackDriver(ServerType.NIO_TEST2, address, connections, messageSize, depth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        driver.close();
+        ServerType.NIO_TEST2.stop();
+    }
+
+    @Benchmark
+    public void echo(Messages messages) throws IOException {
+        messages.messages += driver.round();
+    }
+
+    /**
+     * 每轮完成的请求个数，JMH按时间归一化后即每秒请求数
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Messages {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 四种服务端在相同负载下的对比：每个连接一轮一个请求，消息不超过1024字节。
+ * 四种服务端都是长连接，建连不计入结果；
+ * 更大的消息和pipelining只有NioServer支持，见{@link NioServerEchoBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-bench.properties")
+public class ServerComparisonBenchmark {
+    @Param({"BIO", "NIO_TEST1", "NIO_TEST2", "AIO"})
+    public ServerType server;
+
+    @Param({"1", "100", "1000", "10000"})
+    public int connections;
+
+    @Param({"16", "512"})
+    public int messageSize;
+
+    private LoopbackDriver driver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server.start();
+        driver = new LoopbackDriver(server, connections, messageSize, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        driver.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public void requestResponse(NioServerEchoBenchmark.Messages messages) throws IOException {
+        messages.messages += driver.round();
+    }
+}
@@ -0,0 +1,178 @@
+package bench;
+
+import aio.AIOServer;
+import bio.BioServer;
+import kv.OffHeapStore;
+import lifecycle.Lifecycle;
+import nio.test1.NIOServer;
+import nio.test2.KvHandler;
+import nio.test2.NioServer;
+import nio.test2.NioServerConfig;
+import transport.SocketAddresses;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 被测的四种服务端（NioServer另有键值服务一种处理器），以及各自的协议特点。
+ * 同一个JVM中只能启动一个服务端（BIO、NIO test1、AIO都固定监听9000端口），所以压测必须fork
+ */
+public enum ServerType {
+    /**
+     * bio.BioServer：长连接，每个连接一个线程，每次读到数据回一次"HelloClient"
+     */
+    BIO(9000, true, false) {
+        @Override
+        void doStart() {
+            startMain(() -> BioServer.main(new String[0]));
+        }
+    },
+    /**
+     * nio.test1.NIOServer：长连接，每个读事件回一次"HelloClient"
+     */
+    NIO_TEST1(9000, true, false) {
+        @Override
+        void doStart() {
+            startMain(() -> NIOServer.main(new String[0]));
+        }
+    },
+    /**
+     * nio.test2.NioServer：长连接，长度字段帧格式，每个请求帧回一个响应帧，支持pipelining；
+     * JDK 16+上同时监听{@link #NIO_TEST2_UNIX_SOCKET}，用于对比回环TCP和unix domain socket
+     */
+    NIO_TEST2(8888, true, true) {
+        @Override
+        void doStart() throws IOException {
+            NioServerConfig config = new NioServerConfig(port);
+            config.setSubReactorCount(Runtime.getRuntime().availableProcessors());
+            List<SocketAddress> bindAddresses = new ArrayList<>();
+            bindAddresses.add(new InetSocketAddress(port));
+            if (SocketAddresses.isUnixSupported()) {
+                bindAddresses.add(SocketAddresses.unix(NIO_TEST2_UNIX_SOCKET));
+            }
+            config.setBindAddresses(bindAddresses);
+            NioServer nioServer = new NioServer(config);
+            nioServer.start();
+            lifecycle = nioServer;
+        }
+    },
+    /**
+     * nio.test2.NioServer换成{@link KvHandler}：帧格式和{@link #NIO_TEST2}相同，请求和响应的内容取决于操作，
+     * 由{@link KvServiceBenchmark}自己构造；所有连接共享一个64MB、64个分段的{@link OffHeapStore}
+     */
+    NIO_TEST2_KV(8888, true, true) {
+        @Override
+        void doStart() throws IOException {
+            NioServerConfig config = new NioServerConfig(port);
+            config.setSubReactorCount(Runtime.getRuntime().availableProcessors());
+            KvHandler handler = new KvHandler(new OffHeapStore(64 * 1024 * 1024, 64));
+            config.setPipelineInitializer(pipeline -> pipeline.addLast("kv", handler));
+            NioServer nioServer = new NioServer(config);
+            nioServer.start();
+            lifecycle = nioServer;
+        }
+    },
+    /**
+     * aio.AIOServer：长连接，每个连接循环读取，每次读到数据回一次"HelloClient"
+     */
+    AIO(9000, true, false) {
+        @Override
+        void doStart() {
+            startMain(() -> AIOServer.main(new String[0]));
+        }
+    };
+
+    //固定响应"HelloClient"的长度
+    static final int FIXED_REPLY_LENGTH = 11;
+
+    //NioServer在请求内容后追加的":nio server response"的长度
+    static final int NIO_TEST2_SUFFIX_LENGTH = 20;
+
+    //NioServer的unix domain socket路径，上次压测遗留的文件在启动时删除
+    static final String NIO_TEST2_UNIX_SOCKET = Paths.get(System.getProperty("java.io.tmpdir"), "nio-bench.sock")
+            .toString();
+
+    final int port;
+
+    //是否支持一个连接上发送多个请求
+    final boolean persistent;
+
+    //是否支持在收到响应前连续发送多个请求
+    final boolean pipelining;
+
+    //doStart()中启动的可以关闭的服务端，它的线程不是守护线程，压测结束时需要关闭，否则fork的JVM等到JMH超时才退出
+    volatile Lifecycle lifecycle;
+
+    ServerType(int port, boolean persistent, boolean pipelining) {
+        this.port = port;
+        this.persistent = persistent;
+        this.pipelining = pipelining;
+    }
+
+    abstract void doStart() throws Exception;
+
+    /**
+     * 启动服务端并等待端口可以连接
+     */
+    void start() throws Exception {
+        doStart();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException(this + " not listening on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * 关闭start()启动的服务端，以守护线程运行的服务端随JVM退出
+     */
+    void stop() {
+        Lifecycle lifecycle = this.lifecycle;
+        if (lifecycle != null) {
+            this.lifecycle = null;
+            lifecycle.stop(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 回显类服务端一个请求对应的响应字节数
+     */
+    int responseLength(int messageSize) {
+        if (this == NIO_TEST2_KV) {
+            throw new IllegalArgumentException(this + " responses depend on the operation");
+        }
+        return this == NIO_TEST2 ? 4 + messageSize + NIO_TEST2_SUFFIX_LENGTH : FIXED_REPLY_LENGTH;
+    }
+
+    private interface MainMethod {
+        void run() throws Exception;
+    }
+
+    private static void startMain(MainMethod main) {
+        startDaemon(() -> {
+            try {
+                main.run();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "bench-server-main");
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
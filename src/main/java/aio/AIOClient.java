@@ -1,11 +1,14 @@
 package aio;
 
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @author bitao
@@ -23,11 +26,17 @@ public class AIOClient {
         logger.info("客户端连接服务端成功。。。");
         //异步向服务端发送数据
         socketChannel.write(ByteBuffer.wrap("HelloServer".getBytes()));
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        //异步读取服务端发送的消息，get()方法会阻塞等待
-        Integer len = socketChannel.read(buffer).get();
-        if (len != -1) {
-            logger.info("客户端收到信息：" + new String(buffer.array(), 0, len));
+        PooledByteBuffer pooled = ByteBufferPool.DEFAULT.acquire(512);
+        try {
+            ByteBuffer buffer = pooled.buffer();
+            //异步读取服务端发送的消息，get()方法会阻塞等待
+            Integer len = socketChannel.read(buffer).get();
+            if (len != -1) {
+                buffer.flip();
+                logger.info("客户端收到信息：" + StandardCharsets.UTF_8.decode(buffer));
+            }
+        } finally {
+            pooled.release();
         }
     }
 }
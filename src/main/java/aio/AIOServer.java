@@ -1,76 +1,178 @@
 package aio;
 
+import lifecycle.Lifecycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author bitao
  * @date 2021/11/6 下午2:10
+ * <p>
+ * 使用独立的AsynchronousChannelGroup（-Daio.threads指定线程数），每个连接由{@link AioConnection}循环读取请求、
+ * 串行写出响应，-Daio.readIdleTimeout、-Daio.writeTimeout指定读空闲和写超时的毫秒数。
+ * 进程退出时优雅关闭，-Daio.shutdownTimeout指定等待连接写完响应的最长毫秒数
  */
 
-public class AIOServer {
+public class AIOServer implements Lifecycle {
 
     private static final Logger logger = LoggerFactory.getLogger(AIOServer.class);
 
+    //响应内容固定，放在直接内存中，每次发送只复制一个视图
+    private static final ByteBuffer HELLO_CLIENT;
+
+    static {
+        byte[] bytes = "HelloClient".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        HELLO_CLIENT = buffer.asReadOnlyBuffer();
+    }
+
+    //连接的SO_RCVBUF和SO_SNDBUF，为0时使用系统默认值
+    private static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("aio.rcvbuf", 0);
+
+    private static final int SEND_BUFFER_SIZE = Integer.getInteger("aio.sndbuf", 0);
+
+    private final int port;
+
+    private final int threads;
+
+    //读空闲和写超时，单位毫秒，为0时不超时
+    private final long readIdleTimeout;
+
+    private final long writeTimeout;
+
+    private final Set<AioConnection> connections = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    private AsynchronousChannelGroup group;
+
+    private AsynchronousServerSocketChannel serverChannel;
+
+    public AIOServer(int port, int threads, long readIdleTimeout, long writeTimeout) {
+        this.port = port;
+        this.threads = threads;
+        this.readIdleTimeout = readIdleTimeout;
+        this.writeTimeout = writeTimeout;
+    }
+
     public static void main(String[] args) throws Exception {
-        //启动服务端
-        final AsynchronousServerSocketChannel serverChannel =
-                AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(9000));
-        logger.info("服务端启动成功...");
+        //独立的channel group，线程数默认和CPU核数一致，不使用JVM默认的system group
+        AIOServer server = new AIOServer(9000, Integer.getInteger("aio.threads", Runtime.getRuntime().availableProcessors()),
+                Long.getLong("aio.readIdleTimeout", 5 * 60 * 1000), Long.getLong("aio.writeTimeout", 60 * 1000));
+        long shutdownTimeout = Long.getLong("aio.shutdownTimeout", 30 * 1000);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(shutdownTimeout, TimeUnit.MILLISECONDS);
+            try {
+                server.awaitTermination(shutdownTimeout + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "aio-shutdown"));
+        server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void start() throws IOException {
+        AtomicInteger threadIndex = new AtomicInteger();
+        group = AsynchronousChannelGroup.withFixedThreadPool(threads,
+                r -> new Thread(r, "aio-group-" + threadIndex.getAndIncrement()));
+        //启动服务端，接收缓冲区超过64KB时必须在bind之前设置
+        serverChannel = AsynchronousServerSocketChannel.open(group);
+        if (RECEIVE_BUFFER_SIZE > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        }
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        logger.info("服务端启动成功... group threads:{}", threads);
         //等待接收客户端连接
         serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
             //客户端与服务端连接建立后的回调函数，通知服务端，并由服务端调用
             @Override
             public void completed(final AsynchronousSocketChannel socketChannel, Object attachment) {
+                // 在此接收客户端连接，如果不写这行代码后面的客户端连接连不上服务端
+                serverChannel.accept(attachment, this);
                 try {
-                    // 在此接收客户端连接，如果不写这行代码后面的客户端连接连不上服务端
-                    serverChannel.accept(attachment, this);
-                    logger.info("客户端地址:{}",socketChannel.getRemoteAddress());
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
-                    //读取客户端发送的数据，若客户端关闭，AIO下的服务端不会接收到读事件
-                    socketChannel.read(buffer, buffer, new CompletionHandler<Integer, ByteBuffer>() {
-                        //读取数据完成后的回调函数，通知服务端，并由服务端调用
-                        @Override
-                        public void completed(Integer result, ByteBuffer buffer) {
-                            if (result == -1) {
-                                logger.warn("客户端已断开。。。");
-                                try {
-                                    socketChannel.close();
-                                } catch (IOException e) {
-                                    logger.error("关闭服务端的客户端连接失败");
-                                }
-                            }
-                            //buffer缓冲区置为读模式
-                            buffer.flip();
-                            logger.info(new String(buffer.array(), 0, result));
-                            //服务端向客户端发送消息
-                            socketChannel.write(ByteBuffer.wrap("HelloClient".getBytes()));
-                        }
-
-                        @Override
-                        public void failed(Throwable exc, ByteBuffer buffer) {
-                            exc.printStackTrace();
-                        }
-                    });
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if (RECEIVE_BUFFER_SIZE > 0) {
+                        socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                    }
+                    if (SEND_BUFFER_SIZE > 0) {
+                        socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+                    }
+                    logger.debug("客户端地址:{}", socketChannel.getRemoteAddress());
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    logger.error("setup connection fail:", e);
+                }
+                //每个连接循环读取请求，每个请求回复一次
+                AioConnection connection = new AioConnection(socketChannel, HELLO_CLIENT, connections,
+                        readIdleTimeout, writeTimeout);
+                connection.start();
+                //和stop()并发时stop可能没有看到这个连接
+                if (stopped.get()) {
+                    connection.drain();
                 }
             }
 
             @Override
             public void failed(Throwable exc, Object attachment) {
-                exc.printStackTrace();
+                if (serverChannel.isOpen()) {
+                    logger.error("accept fail:", exc);
+                    serverChannel.accept(attachment, this);
+                }
             }
         });
+    }
 
-        Thread.sleep(Integer.MAX_VALUE);
+    /**
+     * 关闭监听socket，全部连接写完已有的响应后关闭；channel group在全部channel关闭后终止，超时后强制关闭
+     */
+    @Override
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("close server channel fail:", e);
+        }
+        group.shutdown();
+        for (AioConnection connection : connections) {
+            connection.drain();
+        }
+        new Thread(() -> {
+            try {
+                if (!group.awaitTermination(timeout, unit)) {
+                    logger.warn("{} connections not drained in {} {}, force close", connections.size(), timeout, unit);
+                    group.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                logger.error("shutdown channel group fail:", e);
+            }
+        }, "aio-drain").start();
     }
-}
 
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return group.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,305 @@
+package aio;
+
+import buffer.AdaptiveRecvSizer;
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AIO服务端的一个连接。
+ * <p>
+ * 读：连接整个生命周期使用同一个池化的buffer，每次读完成后处理数据并重新发起读，同一时刻最多一个读操作；
+ * 写：AsynchronousSocketChannel同一时刻只允许一个写操作，否则抛出WritePendingException，
+ * 所以响应先放入发送队列，上一个写完成后再写下一个。发送队列积压过多时暂停读，等写出后再恢复。
+ * <p>
+ * 读写回调可能在channel group的不同线程中执行，连接状态用this加锁保护。
+ * <p>
+ * 读写都带超时：读超时即读空闲，写超时说明对端长时间不读，超时后channel状态不确定，直接关闭连接。
+ * 超时由AsynchronousChannelGroup内部的定时器实现，不需要额外的定时任务。
+ * <p>
+ * 优雅关闭时shutdownInput使未完成的读返回-1，不再发起新的读，发送队列写完后关闭连接
+ */
+final class AioConnection {
+    private static final Logger logger = LoggerFactory.getLogger(AioConnection.class);
+
+    //发送队列超过该长度时暂停读
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private final AsynchronousSocketChannel channel;
+
+    private final ByteBuffer response;
+
+    //服务端的连接集合，关闭时从中移除
+    private final Set<AioConnection> connections;
+
+    //为0时不超时
+    private final long readIdleTimeoutMillis;
+
+    private final long writeTimeoutMillis;
+
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+
+    private final ReadHandler readHandler = new ReadHandler();
+
+    private final WriteHandler writeHandler = new WriteHandler();
+
+    private PooledByteBuffer readBuffer;
+
+    //按最近的读取量调整读buffer的大小，AIO每次读完成只有一次读，大小变化后下一次读换一个buffer
+    private final AdaptiveRecvSizer recvSizer = new AdaptiveRecvSizer(512, 1024, 64 * 1024);
+
+    //是否有未完成的读操作，有的话读buffer要等读回调中再归还
+    private boolean reading;
+
+    //是否有未完成的写操作
+    private boolean writing;
+
+    //发送队列积压导致读被暂停
+    private boolean readSuspended;
+
+    private boolean closed;
+
+    //服务端正在优雅关闭，不再读取新请求
+    private boolean draining;
+
+    /**
+     * @param response    每个请求回复的内容，每次发送复制一个视图
+     * @param connections 服务端的连接集合，start时加入，关闭时移除
+     */
+    AioConnection(AsynchronousSocketChannel channel, ByteBuffer response, Set<AioConnection> connections,
+                  long readIdleTimeoutMillis, long writeTimeoutMillis) {
+        this.channel = channel;
+        this.response = response;
+        this.connections = connections;
+        this.readIdleTimeoutMillis = readIdleTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    void start() {
+        connections.add(this);
+        synchronized (this) {
+            readBuffer = ByteBufferPool.DEFAULT.acquire(recvSizer.guess());
+        }
+        read();
+    }
+
+    /**
+     * 优雅关闭：停止读取新请求，发送队列写完后关闭，可以重复调用
+     */
+    void drain() {
+        synchronized (this) {
+            if (closed || draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            //未完成的读返回-1，在读回调中判断是否可以关闭
+            channel.shutdownInput();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        closeIfDrained();
+    }
+
+    private synchronized boolean draining() {
+        return draining;
+    }
+
+    /**
+     * 优雅关闭期间没有未完成的读写时关闭
+     */
+    private void closeIfDrained() {
+        synchronized (this) {
+            if (!draining || reading || writing) {
+                return;
+            }
+        }
+        close();
+    }
+
+    private void read() {
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (closed) {
+                releaseReadBuffer();
+                return;
+            }
+            if (!draining) {
+                reading = true;
+                if (readBuffer.buffer().capacity() != recvSizer.guess()) {
+                    readBuffer.release();
+                    readBuffer = ByteBufferPool.DEFAULT.acquire(recvSizer.guess());
+                }
+                buffer = readBuffer.buffer();
+                buffer.clear();
+            }
+        }
+        if (buffer == null) {
+            //优雅关闭期间不再读，读回调中写出的响应可能已经写完
+            closeIfDrained();
+            return;
+        }
+        channel.read(buffer, readIdleTimeoutMillis, TimeUnit.MILLISECONDS, null, readHandler);
+    }
+
+    /**
+     * 把数据放入发送队列，没有正在进行的写操作时立即开始写
+     */
+    private void write(ByteBuffer buffer) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pendingWrites.add(buffer);
+            if (writing) {
+                return;
+            }
+            writing = true;
+        }
+        channel.write(buffer, writeTimeoutMillis, TimeUnit.MILLISECONDS, null, writeHandler);
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingWrites.clear();
+            //有未完成的读时，关闭channel会使读失败，在读回调中归还buffer
+            if (!reading) {
+                releaseReadBuffer();
+            }
+        }
+        connections.remove(this);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("关闭服务端的客户端连接失败", e);
+        }
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    private final class ReadHandler implements CompletionHandler<Integer, Void> {
+        @Override
+        public void completed(Integer result, Void attachment) {
+            synchronized (AioConnection.this) {
+                reading = false;
+                if (closed) {
+                    releaseReadBuffer();
+                    return;
+                }
+                if (result > 0) {
+                    recvSizer.lastBytesRead(readBuffer.buffer().capacity(), result);
+                    recvSizer.readComplete(result);
+                }
+                if (result != -1 && logger.isDebugEnabled()) {
+                    ByteBuffer buffer = readBuffer.buffer();
+                    //buffer缓冲区置为读模式
+                    buffer.flip();
+                    logger.debug(StandardCharsets.UTF_8.decode(buffer).toString());
+                }
+            }
+            if (result == -1) {
+                logger.debug("客户端已断开。。。");
+                //优雅关闭时shutdownInput也会使读返回-1，等发送队列写完再关闭
+                if (draining()) {
+                    closeIfDrained();
+                } else {
+                    close();
+                }
+                return;
+            }
+            //服务端向客户端发送消息
+            write(response.duplicate());
+            synchronized (AioConnection.this) {
+                if (pendingWrites.size() >= MAX_PENDING_WRITES) {
+                    readSuspended = true;
+                    return;
+                }
+            }
+            read();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            synchronized (AioConnection.this) {
+                reading = false;
+            }
+            if (exc instanceof InterruptedByTimeoutException) {
+                logger.debug("read idle timeout, close connection");
+            } else if (!(exc instanceof AsynchronousCloseException)) {
+                logger.error("read fail:", exc);
+            }
+            close();
+            synchronized (AioConnection.this) {
+                releaseReadBuffer();
+            }
+        }
+    }
+
+    private final class WriteHandler implements CompletionHandler<Integer, Void> {
+        @Override
+        public void completed(Integer result, Void attachment) {
+            ByteBuffer next;
+            boolean resumeRead = false;
+            synchronized (AioConnection.this) {
+                if (closed) {
+                    return;
+                }
+                ByteBuffer head = pendingWrites.peek();
+                if (head != null && !head.hasRemaining()) {
+                    pendingWrites.poll();
+                }
+                //没写完的继续写，写完的取下一个
+                next = pendingWrites.peek();
+                if (next == null) {
+                    writing = false;
+                }
+                if (readSuspended && pendingWrites.size() < MAX_PENDING_WRITES / 2) {
+                    readSuspended = false;
+                    resumeRead = true;
+                }
+            }
+            if (next != null) {
+                channel.write(next, writeTimeoutMillis, TimeUnit.MILLISECONDS, null, this);
+            } else {
+                closeIfDrained();
+            }
+            if (resumeRead) {
+                read();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (exc instanceof InterruptedByTimeoutException) {
+                logger.debug("write timeout, close connection");
+            } else if (!(exc instanceof AsynchronousCloseException)) {
+                logger.error("write fail:", exc);
+            }
+            close();
+        }
+    }
+}
@@ -5,6 +5,8 @@ package bio;
  * @date 2021/11/2 下午3:43
  */
 
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,11 +22,17 @@ public class BioClient {
         socket.getOutputStream().write("HelloServer".getBytes());
         socket.getOutputStream().flush();
         logger.info("客户端向服务端发送数据结束");
-        byte[] bytes = new byte[1024];
-        //接收服务端回传的数据
-        int read = socket.getInputStream().read(bytes);
-        if (read != -1) {
-            logger.info("服务端接收到服务端的数据：" + new String(bytes, 0, read));
+        //BIO的流只能读写byte[]，从堆内存池中申请，用完归还
+        PooledByteBuffer pooled = ByteBufferPool.HEAP.acquire(1024);
+        try {
+            byte[] bytes = pooled.buffer().array();
+            //接收服务端回传的数据
+            int read = socket.getInputStream().read(bytes);
+            if (read != -1) {
+                logger.info("服务端接收到服务端的数据：" + new String(bytes, 0, read));
+            }
+        } finally {
+            pooled.release();
         }
         //关闭客户端
         socket.close();
@@ -5,56 +5,361 @@ package bio;
  * @date 2021/11/2 下午3:35
  */
 
+import buffer.AdaptiveRecvSizer;
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
+import limit.ConnectionLimiter;
+import limit.TokenBucket;
+import lifecycle.Lifecycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class BioServer {
+/**
+ * 每个连接一个线程的阻塞式服务端，每个连接上循环处理多个请求，每次读到数据都回复"HelloClient"。
+ * <p>
+ * 通过-Dbio.mode=virtual选择用虚拟线程（需要JDK 21+）执行连接处理，默认platform即每个连接一个平台线程；
+ * 虚拟线程阻塞在socket读写上时会让出载体线程，所以同样的阻塞代码可以支撑远多于平台线程的连接数。
+ * 通过-Dbio.maxConnections限制同时处理的连接数，-Dbio.maxConnectionsPerIp限制每个来源IP的连接数，超过的连接直接关闭；
+ * 通过-Dbio.maxMessagesPerSecond、-Dbio.maxBytesPerSecond限制单个连接的读取速率，超过后处理线程暂停读取，由TCP流控让对端减速；
+ * 通过-Dbio.readIdleTimeout指定读空闲超时的毫秒数，阻塞读超时后关闭连接，为0时不超时；
+ * 进程退出时优雅关闭，-Dbio.shutdownTimeout指定等待连接处理完的最长毫秒数，默认30000
+ */
+public class BioServer implements Lifecycle, Runnable {
     private static Logger logger = LoggerFactory.getLogger(BioServer.class);
 
+    private static final byte[] HELLO_CLIENT = "HelloClient".getBytes();
+
+    public enum Mode {
+        /**
+         * 每个连接一个平台线程
+         */
+        PLATFORM,
+        /**
+         * 每个连接一个虚拟线程，需要JDK 21+
+         */
+        VIRTUAL
+    }
+
+    private final int port;
+
+    private final int maxConnections;
+
+    private final ThreadFactory threadFactory;
+
+    private final int readIdleTimeoutMillis = Integer.getInteger("bio.readIdleTimeout", 5 * 60 * 1000);
+
+    //连接的SO_RCVBUF和SO_SNDBUF，为0时使用系统默认值
+    private final int receiveBufferSize = Integer.getInteger("bio.rcvbuf", 0);
+
+    private final int sendBufferSize = Integer.getInteger("bio.sndbuf", 0);
+
+    private final int backlog = Integer.getInteger("bio.backlog", 1024);
+
+    //单个连接每秒最多处理的请求数和读取的字节数，为0时不限制
+    private final long maxMessagesPerSecond = Long.getLong("bio.maxMessagesPerSecond", 0);
+
+    private final long maxBytesPerSecond = Long.getLong("bio.maxBytesPerSecond", 0);
+
+    //每个来源IP的连接数限制，总连接数由connectionPermits限制；未配置时为null
+    private final ConnectionLimiter addressLimiter;
+
+    //每个连接占用一个许可，关闭时等待全部许可归还即表示所有连接已处理完
+    private final Semaphore connectionPermits;
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile boolean running = true;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    //全部连接处理完或者被强制关闭后计数
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    //是否在超时前处理完所有连接
+    private volatile boolean drained;
+
+    public BioServer(int port, Mode mode, int maxConnections) {
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.threadFactory = mode == Mode.VIRTUAL ? virtualThreadFactory() : platformThreadFactory();
+        this.connectionPermits = new Semaphore(maxConnections);
+        int maxConnectionsPerIp = Integer.getInteger("bio.maxConnectionsPerIp", 0);
+        this.addressLimiter = maxConnectionsPerIp > 0 ? new ConnectionLimiter(0, maxConnectionsPerIp) : null;
+    }
+
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(9000);
-        while (true) {
-            logger.info("等待客户端连接.....");
-            //阻塞方法
-            final Socket socket = serverSocket.accept();
-            logger.info("有客户端连接了.....");
-            //有一个客户端连接就启动一个线程处理该客户端的IO事件
-            new Thread(() -> {
-                try {
-                    handle(socket);
-                } catch (IOException e) {
-                    e.printStackTrace();
+        Mode mode = Mode.valueOf(System.getProperty("bio.mode", "platform").toUpperCase());
+        int maxConnections = Integer.getInteger("bio.maxConnections", 10000);
+        BioServer bioServer = new BioServer(9000, mode, maxConnections);
+        long shutdownTimeout = Long.getLong("bio.shutdownTimeout", 30 * 1000);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> bioServer.shutdown(shutdownTimeout, TimeUnit.MILLISECONDS),
+                "bio-shutdown"));
+        logger.info("bio server mode:{} maxConnections:{}", mode, maxConnections);
+        bioServer.start();
+    }
+
+    public void bind() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        //accept的连接继承监听socket的接收缓冲区，超过64KB时必须在bind之前设置
+        if (receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+        serverSocket.bind(new InetSocketAddress(port), backlog);
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * 绑定端口，在单独的线程中accept
+     */
+    @Override
+    public void start() throws IOException {
+        bind();
+        new Thread(this, "bio-acceptor").start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            final Socket socket;
+            try {
+                //阻塞方法
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("accept fail:", e);
+                    continue;
                 }
-            }).start();
+                //关闭serverSocket使accept抛出异常，退出循环
+                break;
+            }
+            if (!connectionPermits.tryAcquire()) {
+                logger.warn("connections exceed {}, reject {}", maxConnections, socket.getRemoteSocketAddress());
+                closeQuietly(socket);
+                continue;
+            }
+            InetAddress address = socket.getInetAddress();
+            if (addressLimiter != null && !addressLimiter.tryAcquire(address)) {
+                logger.warn("connections from {} exceed limit, reject {}", address, socket.getRemoteSocketAddress());
+                connectionPermits.release();
+                closeQuietly(socket);
+                continue;
+            }
+            sockets.add(socket);
+            //有一个客户端连接就启动一个线程处理该客户端的IO事件
+            try {
+                threadFactory.newThread(() -> {
+                    try {
+                        handle(socket);
+                    } catch (IOException e) {
+                        if (running) {
+                            logger.error("handle {} fail:", socket.getRemoteSocketAddress(), e);
+                        }
+                    } finally {
+                        closeQuietly(socket);
+                        sockets.remove(socket);
+                        release(address);
+                    }
+                }).start();
+            } catch (Throwable e) {
+                //平台线程数超过系统限制时创建线程会抛出OutOfMemoryError
+                logger.error("start handler thread fail:", e);
+                closeQuietly(socket);
+                sockets.remove(socket);
+                release(address);
+            }
+        }
+    }
+
+    private void release(InetAddress address) {
+        if (addressLimiter != null) {
+            addressLimiter.release(address);
         }
+        connectionPermits.release();
     }
 
     /**
-     * 服务端处理客户端端IO事件
+     * 服务端处理客户端端IO事件，循环读取请求直到客户端关闭或者服务端关闭
+     *
      * @param socket
      * @throws IOException
      */
-    private static void handle(Socket socket) throws IOException {
-        logger.info("thread id = " + Thread.currentThread().getId());
-        byte[] bytes = new byte[1024];
-        logger.info("服务端准备读取客户端数据");
-        //接收客户端的数据，阻塞方法，没有数据可读时就阻塞
-        int read = socket.getInputStream().read(bytes);
-        logger.info("服务端读取客户端数据完毕");
-        if (read != -1) {
-            logger.info("服务端接收到客户端的数据：" + new String(bytes, 0, read));
-            logger.info("thread id = " + Thread.currentThread().getId());
-        } else {
-            //客户端关闭时也会发送一个IO读事件
-            logger.warn("客户端关闭");
-        }
-        logger.info("服务端发送数据至客户端");
-        socket.getOutputStream().write("HelloClient".getBytes());
-        socket.getOutputStream().flush();
+    private void handle(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        //阻塞读超过该时间没有数据时抛出SocketTimeoutException
+        socket.setSoTimeout(readIdleTimeoutMillis);
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        //BIO的流只能读写byte[]，从堆内存池中申请，大小按最近的读取量自适应调整，连接关闭时归还
+        AdaptiveRecvSizer recvSizer = new AdaptiveRecvSizer(512, 1024, 64 * 1024);
+        PooledByteBuffer pooled = ByteBufferPool.HEAP.acquire(recvSizer.guess());
+        TokenBucket messageBucket = maxMessagesPerSecond > 0
+                ? new TokenBucket(maxMessagesPerSecond, maxMessagesPerSecond) : null;
+        TokenBucket byteBucket = maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond, maxBytesPerSecond) : null;
+        try {
+            while (running) {
+                if (pooled.buffer().capacity() != recvSizer.guess()) {
+                    pooled.release();
+                    pooled = ByteBufferPool.HEAP.acquire(recvSizer.guess());
+                }
+                byte[] bytes = pooled.buffer().array();
+                //接收客户端的数据，阻塞方法，没有数据可读时就阻塞
+                int read = in.read(bytes, 0, bytes.length);
+                if (read == -1) {
+                    //客户端关闭，或者服务端关闭时shutdownInput
+                    break;
+                }
+                recvSizer.lastBytesRead(bytes.length, read);
+                recvSizer.readComplete(read);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("服务端接收到客户端的数据：" + new String(bytes, 0, read));
+                }
+                out.write(HELLO_CLIENT);
+                out.flush();
+                //超过限速时不读下一个请求，数据留在接收缓冲区里，对端被TCP流控减速
+                long pause = throttle(messageBucket, byteBucket, read);
+                if (pause > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SocketTimeoutException e) {
+            logger.debug("read idle timeout, close {}", socket.getRemoteSocketAddress());
+        } catch (SocketException e) {
+            //关闭时强制关闭的socket会抛出SocketException
+            if (running) {
+                throw e;
+            }
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * 按本次读到的一个请求记账，返回需要暂停读取的纳秒数
+     */
+    private static long throttle(TokenBucket messageBucket, TokenBucket byteBucket, int bytes) {
+        long now = System.nanoTime();
+        long pause = 0;
+        if (messageBucket != null) {
+            messageBucket.consume(1, now);
+            pause = messageBucket.delayNanos(now);
+        }
+        if (byteBucket != null) {
+            byteBucket.consume(bytes, now);
+            pause = Math.max(pause, byteBucket.delayNanos(now));
+        }
+        return pause;
+    }
+
+    /**
+     * 优雅关闭并等待完成
+     *
+     * @return 是否在超时前处理完所有连接
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        stop(timeout, unit);
+        try {
+            awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return drained;
+    }
+
+    /**
+     * 优雅关闭：停止接收新连接，正在阻塞读的连接在当前请求处理完后退出，超时后强制关闭剩余连接。
+     * 等待连接处理完的过程在单独的线程中执行，不阻塞调用方
+     */
+    @Override
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        running = false;
+        closeQuietly(serverSocket);
+        for (Socket socket : sockets) {
+            try {
+                //阻塞的read返回-1，正在写的响应不受影响
+                socket.shutdownInput();
+            } catch (IOException ignored) {
+                //连接已经关闭
+            }
+        }
+        new Thread(() -> {
+            try {
+                drained = connectionPermits.tryAcquire(maxConnections, timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!drained) {
+                logger.warn("{} connections not finished in {} {}, force close", sockets.size(), timeout, unit);
+                for (Socket socket : sockets) {
+                    closeQuietly(socket);
+                }
+            }
+            logger.info("bio server shutdown");
+            terminated.countDown();
+        }, "bio-drain").start();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
     }
-}
 
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            logger.error("close fail:", e);
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        AtomicInteger index = new AtomicInteger();
+        return r -> new Thread(r, "bio-handler-" + index.getAndIncrement());
+    }
+
+    /**
+     * Thread.ofVirtual().name("bio-virtual-", 0).factory()，源码级别是Java 8，通过反射调用
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            Method name = ofVirtual.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "bio-virtual-", 0L);
+            return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21+, current:" + System.getProperty("java.version"), e);
+        }
+    }
+}
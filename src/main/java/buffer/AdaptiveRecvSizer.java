@@ -0,0 +1,124 @@
+package buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按连接最近的读取量自适应调整读buffer的大小，和Netty的AdaptiveRecvByteBufAllocator一样：
+ * 一次读就读满了buffer，或者一次读事件的总读取量达到当前大小时，立即放大4级；
+ * 连续两次读事件的读取量都不超过缩小一级后的大小时才缩小1级。放大快、缩小慢，大小不会来回抖动。
+ * <p>
+ * 规格表512字节以下按16字节递增，以上按2倍递增，和{@link ByteBufferPool}的规格对齐。
+ * 每个连接一个实例，只能由一个线程使用
+ */
+public final class AdaptiveRecvSizer {
+    private static final int INDEX_INCREMENT = 4;
+
+    private static final int INDEX_DECREMENT = 1;
+
+    private static final int[] SIZE_TABLE;
+
+    static {
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 16; i < 512; i += 16) {
+            sizes.add(i);
+        }
+        for (int i = 512; i > 0; i <<= 1) {
+            sizes.add(i);
+        }
+        SIZE_TABLE = new int[sizes.size()];
+        for (int i = 0; i < SIZE_TABLE.length; i++) {
+            SIZE_TABLE[i] = sizes.get(i);
+        }
+    }
+
+    private final int minIndex;
+
+    private final int maxIndex;
+
+    private int index;
+
+    private int nextReceiveBufferSize;
+
+    //上一次读事件的读取量已经偏小，这一次仍然偏小时缩小
+    private boolean decreaseNow;
+
+    /**
+     * @param minimum 最小的读buffer大小
+     * @param initial 初始的读buffer大小
+     * @param maximum 最大的读buffer大小
+     */
+    public AdaptiveRecvSizer(int minimum, int initial, int maximum) {
+        if (minimum <= 0 || initial < minimum || maximum < initial) {
+            throw new IllegalArgumentException("minimum: " + minimum + ", initial: " + initial + ", maximum: " + maximum);
+        }
+        int min = sizeTableIndex(minimum);
+        this.minIndex = SIZE_TABLE[min] < minimum ? min + 1 : min;
+        int max = sizeTableIndex(maximum);
+        this.maxIndex = SIZE_TABLE[max] > maximum ? max - 1 : max;
+        this.index = Math.min(Math.max(sizeTableIndex(initial), minIndex), maxIndex);
+        this.nextReceiveBufferSize = SIZE_TABLE[index];
+    }
+
+    /**
+     * 下一次读使用的buffer大小
+     */
+    public int guess() {
+        return nextReceiveBufferSize;
+    }
+
+    /**
+     * 每次读之后调用，读满了buffer说明还有更多数据，不等读事件结束立即放大
+     *
+     * @param attempted 本次读的buffer剩余空间
+     * @param bytes     本次读到的字节数
+     */
+    public void lastBytesRead(int attempted, int bytes) {
+        if (bytes > 0 && bytes == attempted) {
+            record(bytes);
+        }
+    }
+
+    /**
+     * 一次读事件结束时调用，按总读取量调整
+     */
+    public void readComplete(int totalBytes) {
+        record(totalBytes);
+    }
+
+    private void record(int actualReadBytes) {
+        if (actualReadBytes <= SIZE_TABLE[Math.max(0, index - INDEX_DECREMENT)]) {
+            if (decreaseNow) {
+                index = Math.max(index - INDEX_DECREMENT, minIndex);
+                nextReceiveBufferSize = SIZE_TABLE[index];
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else if (actualReadBytes >= nextReceiveBufferSize) {
+            index = Math.min(index + INDEX_INCREMENT, maxIndex);
+            nextReceiveBufferSize = SIZE_TABLE[index];
+            decreaseNow = false;
+        }
+    }
+
+    /**
+     * 不小于size的最小规格的下标，超过最大规格时返回最后一个
+     */
+    private static int sizeTableIndex(int size) {
+        for (int low = 0, high = SIZE_TABLE.length - 1; ; ) {
+            if (high < low) {
+                return Math.min(low, SIZE_TABLE.length - 1);
+            }
+            int mid = (low + high) >>> 1;
+            int a = SIZE_TABLE[mid];
+            if (size > a) {
+                low = mid + 1;
+            } else if (size < a) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package buffer;
+
+/**
+ * 持有一块buffer内存的带引用计数的对象，{@link CompositeBuffer}的组件通过它管理内存的生命周期，
+ * 除了{@link PooledByteBuffer}，其他传输层自己的buffer（例如Netty的ByteBuf）也可以适配成组件的所有者
+ */
+public interface BufferOwner {
+
+    /**
+     * 引用计数加1
+     */
+    BufferOwner retain();
+
+    /**
+     * 引用计数减1，降为0时释放内存
+     *
+     * @return 是否已经释放
+     */
+    boolean release();
+}
@@ -0,0 +1,253 @@
+package buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按规格分级的ByteBuffer池，BIO、NIO、AIO的服务端和客户端共用，避免每次读写都分配新的buffer。
+ * <p>
+ * 规格从512字节到1MB按2的幂分级，申请时向上取整到最近的规格，超过1MB的申请不做池化。
+ * 每个线程先从自己的线程本地缓存中取，取不到再去所有线程共享的arena中取，都没有才真正分配；
+ * 归还时先放回当前线程的缓存，缓存满了再放回arena，arena也满了就直接丢弃交给GC回收。
+ * 线程本地缓存除了每种规格的个数上限，还有总字节数上限（-Dbuffer.threadCacheBytes，默认4MB），
+ * 大规格的buffer不会在每个长期运行的线程上各自囤积几十MB一直不释放的直接内存。
+ * 池中缓存的是{@link PooledByteBuffer}对象本身，所以申请和归还都不会产生新的对象。
+ * <p>
+ * 直接内存buffer在socket读写时不需要JDK再拷贝到临时的直接内存中，所以NIO/AIO默认使用{@link #DEFAULT}；
+ * BIO的流只能读写byte[]，使用堆内存的{@link #HEAP}。
+ * <p>
+ * 通过-Dbuffer.leakDetection=true开启泄漏检测，被GC回收但没有release的buffer会打印申请时的调用栈。
+ * <p>
+ * 虚拟线程（JDK 21+）生命周期短、数量多，线程本地缓存无法复用，虚拟线程直接使用arena
+ */
+public final class ByteBufferPool {
+    private static final Logger logger = LoggerFactory.getLogger(ByteBufferPool.class);
+
+    private static final int MIN_SIZE_SHIFT = 9;
+
+    private static final int MAX_SIZE_SHIFT = 20;
+
+    private static final int SIZE_CLASS_COUNT = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+
+    //每个线程每种规格最多缓存的个数
+    private static final int THREAD_CACHE_SIZE = 64;
+
+    //每个线程缓存的buffer总字节数上限，超过后归还的buffer放回arena
+    private static final long THREAD_CACHE_BYTES = Long.getLong("buffer.threadCacheBytes", 4L * 1024 * 1024);
+
+    //arena每种规格最多缓存的个数
+    private static final int ARENA_SIZE = 512;
+
+    //Thread.isVirtual()，JDK 21以下为null
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private static volatile boolean leakDetection = Boolean.getBoolean("buffer.leakDetection");
+
+    public static final ByteBufferPool DEFAULT = new ByteBufferPool(true);
+
+    public static final ByteBufferPool HEAP = new ByteBufferPool(false);
+
+    private final boolean direct;
+
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ConcurrentLinkedQueue<PooledByteBuffer>[] arena = new ConcurrentLinkedQueue[SIZE_CLASS_COUNT];
+
+    private final AtomicInteger[] arenaCount = new AtomicInteger[SIZE_CLASS_COUNT];
+
+    private final ReferenceQueue<PooledByteBuffer> leakQueue = new ReferenceQueue<>();
+
+    private final Set<LeakTracker> liveTrackers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+
+    public ByteBufferPool(boolean direct) {
+        this.direct = direct;
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            arena[i] = new ConcurrentLinkedQueue<>();
+            arenaCount[i] = new AtomicInteger();
+        }
+    }
+
+    public static void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+    }
+
+    public static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * 申请一个容量不小于capacity的buffer，处于写模式，用完后必须调用{@link PooledByteBuffer#release()}
+     *
+     * @param capacity 需要的最小容量
+     */
+    public PooledByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        PooledByteBuffer buf;
+        if (sizeClass < 0) {
+            buf = new PooledByteBuffer(this, -1, allocate(capacity));
+        } else {
+            buf = isVirtualThread() ? null : threadCache.get().poll(sizeClass);
+            if (buf == null) {
+                buf = arena[sizeClass].poll();
+                if (buf != null) {
+                    arenaCount[sizeClass].decrementAndGet();
+                } else {
+                    buf = new PooledByteBuffer(this, sizeClass, allocate(1 << (sizeClass + MIN_SIZE_SHIFT)));
+                }
+            }
+        }
+        buf.reset();
+        if (leakDetection) {
+            reportLeaks();
+            buf.leakTracker = new LeakTracker(buf, leakQueue, liveTrackers);
+        }
+        return buf;
+    }
+
+    /**
+     * 引用计数降为0时由{@link PooledByteBuffer#release()}调用
+     */
+    void recycle(PooledByteBuffer buf) {
+        LeakTracker tracker = buf.leakTracker;
+        if (tracker != null) {
+            buf.leakTracker = null;
+            tracker.close();
+        }
+        int sizeClass = buf.sizeClass();
+        if (sizeClass < 0) {
+            return;
+        }
+        if (!isVirtualThread() && threadCache.get().offer(sizeClass, buf)) {
+            return;
+        }
+        if (arenaCount[sizeClass].incrementAndGet() <= ARENA_SIZE) {
+            arena[sizeClass].offer(buf);
+        } else {
+            arenaCount[sizeClass].decrementAndGet();
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 计算capacity对应的规格下标，超过最大规格返回-1
+     */
+    static int sizeClass(int capacity) {
+        if (capacity > 1 << MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        if (capacity <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        //向上取整到2的幂
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (liveTrackers.remove(tracker)) {
+                logger.error("LEAK: PooledByteBuffer was garbage collected before release(), allocated at:", tracker.allocation);
+            }
+        }
+    }
+
+    /**
+     * 线程本地缓存，只被所属线程访问，不需要同步
+     */
+    private static final class ThreadCache {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayDeque<PooledByteBuffer>[] caches = new ArrayDeque[SIZE_CLASS_COUNT];
+
+        //当前缓存的buffer总字节数
+        private long bytes;
+
+        PooledByteBuffer poll(int sizeClass) {
+            ArrayDeque<PooledByteBuffer> cache = caches[sizeClass];
+            PooledByteBuffer buf = cache == null ? null : cache.pollLast();
+            if (buf != null) {
+                bytes -= buf.buffer().capacity();
+            }
+            return buf;
+        }
+
+        boolean offer(int sizeClass, PooledByteBuffer buf) {
+            ArrayDeque<PooledByteBuffer> cache = caches[sizeClass];
+            if (cache == null) {
+                cache = caches[sizeClass] = new ArrayDeque<>();
+            }
+            int capacity = buf.buffer().capacity();
+            if (cache.size() >= THREAD_CACHE_SIZE || bytes + capacity > THREAD_CACHE_BYTES) {
+                return false;
+            }
+            cache.offerLast(buf);
+            bytes += capacity;
+            return true;
+        }
+    }
+
+    /**
+     * 泄漏追踪，buffer被GC回收时如果追踪还没有关闭，说明申请者忘记了release
+     */
+    static final class LeakTracker extends PhantomReference<PooledByteBuffer> {
+        private final Throwable allocation = new Throwable("allocation");
+
+        private final Set<LeakTracker> liveTrackers;
+
+        LeakTracker(PooledByteBuffer referent, ReferenceQueue<PooledByteBuffer> queue, Set<LeakTracker> liveTrackers) {
+            super(referent, queue);
+            this.liveTrackers = liveTrackers;
+            liveTrackers.add(this);
+        }
+
+        void close() {
+            liveTrackers.remove(this);
+            clear();
+        }
+    }
+}
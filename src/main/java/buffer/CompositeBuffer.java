@@ -0,0 +1,324 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 由多个ByteBuffer视图拼成的逻辑上连续的buffer，切片和拼接都只复制视图、不复制数据。
+ * <p>
+ * 每个组件是一个处于读模式的ByteBuffer视图，可以带一个{@link BufferOwner}（通常是{@link PooledByteBuffer}）作为所有者：
+ * 加入时转移一个引用，{@link #slice(int, int)}出的新buffer对所有者各自retain一次，
+ * 组件被{@link #skipBytes(int)}跳过或者{@link #release()}时release一次，
+ * 所以同一块池化内存可以同时被累积buffer和多个帧引用，最后一个持有者释放后才归还给池。
+ * 不带所有者的组件（例如常量、堆内存）不需要释放。
+ * <p>
+ * 下标都是相对于当前可读数据开头的偏移；不是线程安全的，只能由一个线程使用
+ */
+public final class CompositeBuffer {
+    private static final ByteBuffer[] EMPTY_BUFFERS = new ByteBuffer[0];
+
+    private final List<ByteBuffer> components;
+
+    //和components一一对应，不带所有者的组件为null
+    private final List<BufferOwner> owners;
+
+    public CompositeBuffer() {
+        this(4);
+    }
+
+    public CompositeBuffer(int initialComponents) {
+        components = new ArrayList<>(initialComponents);
+        owners = new ArrayList<>(initialComponents);
+    }
+
+    /**
+     * 包装一个不需要释放的buffer，共享其内容
+     */
+    public static CompositeBuffer wrap(ByteBuffer buffer) {
+        CompositeBuffer composite = new CompositeBuffer(1);
+        composite.addComponent(buffer.slice());
+        return composite;
+    }
+
+    public static CompositeBuffer wrap(byte[] bytes) {
+        return wrap(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 在末尾追加一个不需要释放的组件，buffer被直接引用，之后不能再修改其position和limit
+     *
+     * @param buffer 处于读模式
+     */
+    public CompositeBuffer addComponent(ByteBuffer buffer) {
+        return addComponent(buffer, null);
+    }
+
+    /**
+     * 在末尾追加一个组件，owner的一个引用转移给本buffer
+     *
+     * @param buffer 处于读模式，通常是owner.buffer()的一个视图
+     * @param owner  组件内存的所有者，可以为null
+     */
+    public CompositeBuffer addComponent(ByteBuffer buffer, BufferOwner owner) {
+        if (!buffer.hasRemaining()) {
+            if (owner != null) {
+                owner.release();
+            }
+            return this;
+        }
+        components.add(buffer);
+        owners.add(owner);
+        return this;
+    }
+
+    /**
+     * 把other的全部组件按顺序移到本buffer的末尾，other变为空，不复制数据也不改变引用计数
+     */
+    public CompositeBuffer addComponents(CompositeBuffer other) {
+        components.addAll(other.components);
+        owners.addAll(other.owners);
+        other.components.clear();
+        other.owners.clear();
+        return this;
+    }
+
+    public int componentCount() {
+        return components.size();
+    }
+
+    /**
+     * 可读的字节数，组件可能被gathering write直接消费，所以每次重新计算
+     */
+    public int readableBytes() {
+        int bytes = 0;
+        for (int i = 0, size = components.size(); i < size; i++) {
+            bytes += components.get(i).remaining();
+        }
+        return bytes;
+    }
+
+    public boolean isReadable() {
+        for (int i = 0, size = components.size(); i < size; i++) {
+            if (components.get(i).hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public byte getByte(int index) {
+        checkIndex(index, 1);
+        for (int i = 0, size = components.size(); i < size; i++) {
+            ByteBuffer component = components.get(i);
+            int remaining = component.remaining();
+            if (index < remaining) {
+                return component.get(component.position() + index);
+            }
+            index -= remaining;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * 读取大端的int，跨组件时逐字节拼接
+     */
+    public int getInt(int index) {
+        checkIndex(index, 4);
+        int offset = index;
+        for (int i = 0, size = components.size(); i < size; i++) {
+            ByteBuffer component = components.get(i);
+            int remaining = component.remaining();
+            if (offset < remaining) {
+                if (remaining - offset >= 4) {
+                    return component.order() == ByteOrder.BIG_ENDIAN
+                            ? component.getInt(component.position() + offset)
+                            : Integer.reverseBytes(component.getInt(component.position() + offset));
+                }
+                break;
+            }
+            offset -= remaining;
+        }
+        return (getByte(index) & 0xff) << 24 | (getByte(index + 1) & 0xff) << 16
+                | (getByte(index + 2) & 0xff) << 8 | getByte(index + 3) & 0xff;
+    }
+
+    /**
+     * 从fromIndex开始查找pattern第一次出现的下标，找不到返回-1
+     */
+    public int indexOf(byte[] pattern, int fromIndex) {
+        int readable = readableBytes();
+        int last = readable - pattern.length;
+        if (pattern.length == 0 || fromIndex > last) {
+            return -1;
+        }
+        //先定位到fromIndex所在的组件，之后顺序扫描，避免每个字节都从头查找组件
+        int componentIndex = 0;
+        int offset = Math.max(0, fromIndex);
+        while (offset >= components.get(componentIndex).remaining()) {
+            offset -= components.get(componentIndex).remaining();
+            componentIndex++;
+        }
+        for (int i = Math.max(0, fromIndex); i <= last; i++) {
+            ByteBuffer component = components.get(componentIndex);
+            if (component.get(component.position() + offset) == pattern[0]
+                    && (pattern.length == 1 || matches(pattern, i))) {
+                return i;
+            }
+            if (++offset == component.remaining()) {
+                offset = 0;
+                //跳过空组件
+                do {
+                    componentIndex++;
+                } while (componentIndex < components.size() && !components.get(componentIndex).hasRemaining());
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(byte[] pattern, int index) {
+        for (int j = 1; j < pattern.length; j++) {
+            if (getByte(index + j) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 零拷贝切片，返回的buffer共享数据并持有所有者的引用，用完后需要{@link #release()}
+     */
+    public CompositeBuffer slice(int index, int length) {
+        checkIndex(index, length);
+        CompositeBuffer slice = new CompositeBuffer(Math.min(components.size(), 4));
+        for (int i = 0, size = components.size(); i < size && length > 0; i++) {
+            ByteBuffer component = components.get(i);
+            int remaining = component.remaining();
+            if (index >= remaining) {
+                index -= remaining;
+                continue;
+            }
+            int sliceLength = Math.min(remaining - index, length);
+            ByteBuffer view = component.duplicate();
+            view.position(component.position() + index);
+            view.limit(component.position() + index + sliceLength);
+            BufferOwner owner = owners.get(i);
+            if (owner != null) {
+                owner.retain();
+            }
+            slice.addComponent(view, owner);
+            index = 0;
+            length -= sliceLength;
+        }
+        return slice;
+    }
+
+    /**
+     * 切出开头的length个字节并跳过它们
+     */
+    public CompositeBuffer readSlice(int length) {
+        CompositeBuffer slice = slice(0, length);
+        skipBytes(length);
+        return slice;
+    }
+
+    /**
+     * 跳过开头的length个字节，完全跳过的组件被移除并释放
+     */
+    public void skipBytes(int length) {
+        checkIndex(0, length);
+        int removed = 0;
+        for (int i = 0, size = components.size(); i < size; i++) {
+            ByteBuffer component = components.get(i);
+            int remaining = component.remaining();
+            if (length < remaining) {
+                component.position(component.position() + length);
+                break;
+            }
+            length -= remaining;
+            removed++;
+        }
+        removeComponents(removed);
+    }
+
+    /**
+     * 移除并释放开头已经没有可读数据的组件，gathering write写出后调用
+     */
+    public void discardReadComponents() {
+        int removed = 0;
+        while (removed < components.size() && !components.get(removed).hasRemaining()) {
+            removed++;
+        }
+        removeComponents(removed);
+    }
+
+    private void removeComponents(int count) {
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            BufferOwner owner = owners.get(i);
+            if (owner != null) {
+                owner.release();
+            }
+        }
+        components.subList(0, count).clear();
+        owners.subList(0, count).clear();
+    }
+
+    /**
+     * 组件视图本身，可以直接用于gathering write，写出的字节会推进组件的position
+     */
+    public ByteBuffer[] nioBuffers() {
+        return components.toArray(EMPTY_BUFFERS);
+    }
+
+    /**
+     * 第i个组件的视图，用于不分配数组地遍历组件
+     */
+    public ByteBuffer component(int i) {
+        return components.get(i);
+    }
+
+    /**
+     * 把全部可读数据复制到dst，不改变本buffer
+     */
+    public void getBytes(ByteBuffer dst) {
+        for (int i = 0, size = components.size(); i < size; i++) {
+            dst.put(components.get(i).duplicate());
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[readableBytes()];
+        getBytes(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    public String toString(Charset charset) {
+        if (components.size() == 1) {
+            return charset.decode(components.get(0).duplicate()).toString();
+        }
+        return new String(toByteArray(), charset);
+    }
+
+    /**
+     * 释放全部组件的所有者，之后本buffer为空
+     */
+    public void release() {
+        removeComponents(components.size());
+    }
+
+    private void checkIndex(int index, int length) {
+        if (index < 0 || length < 0 || index + length > readableBytes()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + length + ", readable: " + readableBytes());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeBuffer(components: " + components.size() + ", readable: " + readableBytes() + ")";
+    }
+}
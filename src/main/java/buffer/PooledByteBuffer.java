@@ -0,0 +1,93 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 从{@link ByteBufferPool}中申请的带引用计数的buffer。
+ * 申请时引用计数为1，每个额外的持有者先{@link #retain()}，用完后各自{@link #release()}，
+ * 引用计数降为0时buffer归还给所属的池，之后不能再访问{@link #buffer()}
+ */
+public final class PooledByteBuffer implements BufferOwner {
+    private static final AtomicIntegerFieldUpdater<PooledByteBuffer> REF_CNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(PooledByteBuffer.class, "refCnt");
+
+    private final ByteBufferPool pool;
+
+    //所属的规格下标，-1表示超过最大规格、不参与池化
+    private final int sizeClass;
+
+    private final ByteBuffer buffer;
+
+    private volatile int refCnt;
+
+    //仅在开启泄漏检测时不为null
+    ByteBufferPool.LeakTracker leakTracker;
+
+    PooledByteBuffer(ByteBufferPool pool, int sizeClass, ByteBuffer buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    int sizeClass() {
+        return sizeClass;
+    }
+
+    /**
+     * 底层的ByteBuffer，容量不小于申请的大小
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCnt() {
+        return refCnt;
+    }
+
+    /**
+     * 重新从池中取出时调用，重置引用计数和读写位置
+     */
+    void reset() {
+        refCnt = 1;
+        buffer.clear();
+    }
+
+    /**
+     * 引用计数加1
+     */
+    @Override
+    public PooledByteBuffer retain() {
+        for (; ; ) {
+            int cnt = refCnt;
+            if (cnt <= 0) {
+                throw new IllegalStateException("refCnt: " + cnt);
+            }
+            if (REF_CNT_UPDATER.compareAndSet(this, cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减1，降为0时归还给池
+     *
+     * @return 是否已经归还给池
+     */
+    @Override
+    public boolean release() {
+        for (; ; ) {
+            int cnt = refCnt;
+            if (cnt <= 0) {
+                throw new IllegalStateException("refCnt: " + cnt);
+            }
+            if (REF_CNT_UPDATER.compareAndSet(this, cnt, cnt - 1)) {
+                if (cnt == 1) {
+                    pool.recycle(this);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+}
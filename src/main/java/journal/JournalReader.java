@@ -0,0 +1,95 @@
+package journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 顺序读取{@link MappedJournal}的一个段文件，整个文件只读映射，返回的记录是映射内存的视图，不复制数据。
+ * <p>
+ * 遇到还没有写入的位置、段结束标记或者CRC不匹配的记录（写入过程中掉电）时认为段结束。
+ * 不是线程安全的
+ */
+public final class JournalReader implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(JournalReader.class);
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final CRC32 crc = new CRC32();
+
+    //下一条记录在段内的偏移
+    private int offset;
+
+    //上一条返回的记录在段内的偏移
+    private int recordOffset = -1;
+
+    public JournalReader(Path segment) throws IOException {
+        this.path = segment;
+        this.channel = FileChannel.open(segment, StandardOpenOption.READ);
+        try {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 读取下一条记录
+     *
+     * @return 记录内容的只读视图，段结束时返回null
+     */
+    public ByteBuffer next() {
+        if (buffer.capacity() - offset < JournalSegment.RECORD_HEADER_LENGTH) {
+            return null;
+        }
+        int recordLength = buffer.getInt(offset);
+        if (recordLength == 0 || recordLength == JournalSegment.END_OF_SEGMENT) {
+            return null;
+        }
+        if (recordLength < JournalSegment.RECORD_HEADER_LENGTH || recordLength > buffer.capacity() - offset) {
+            logger.warn("corrupted record length {} at {} of {}", recordLength, offset, path);
+            return null;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + JournalSegment.RECORD_HEADER_LENGTH);
+        record.limit(offset + recordLength);
+        crc.reset();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            logger.warn("crc mismatch at {} of {}", offset, path);
+            return null;
+        }
+        recordOffset = offset;
+        offset += recordLength;
+        return record.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 上一条返回的记录在段内的偏移
+     */
+    public int recordOffset() {
+        return recordOffset;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
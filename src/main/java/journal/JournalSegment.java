@@ -0,0 +1,150 @@
+package journal;
+
+import buffer.CompositeBuffer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * 日志的一个段文件，创建时按固定大小整体映射到内存。
+ * <p>
+ * 写入方先用{@link #reserve(int)}原子地预留一段位置，再各自向预留的位置复制数据，多个线程同时写入不需要加锁；
+ * 记录的格式为4字节记录总长度 + 4字节内容的CRC32 + 内容，长度字段最后写入，为0表示还没有写入，
+ * 为{@link #END_OF_SEGMENT}表示段的剩余部分放不下下一条记录
+ */
+final class JournalSegment {
+    static final int RECORD_HEADER_LENGTH = 8;
+
+    static final int END_OF_SEGMENT = -1;
+
+    //同一个段会被多个Reactor线程同时写入，CRC32有状态，每个线程复用一个
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+
+    private final Path path;
+
+    //段的第一个字节在整个日志中的位置，也是文件名
+    private final long basePosition;
+
+    private final int capacity;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    //已预留的字节数，超过capacity说明段已写满
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    //已写完的字节数，等于capacity时段上不会再有写入
+    private final AtomicInteger written = new AtomicInteger();
+
+    //上次force时已写完的字节数，只在刷盘线程访问
+    private int flushed;
+
+    JournalSegment(Path path, long basePosition, int capacity) throws IOException {
+        this.path = path;
+        this.basePosition = basePosition;
+        this.capacity = capacity;
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            //稀疏文件，页在第一次写入时才分配
+            file.setLength(capacity);
+            this.channel = file.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long basePosition() {
+        return basePosition;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 预留size个字节
+     *
+     * @return 预留位置在段内的偏移，加上size超过capacity时预留失败
+     */
+    int reserve(int size) {
+        return reserved.getAndAdd(size);
+    }
+
+    /**
+     * 向预留的位置写入一条记录
+     */
+    void write(int offset, CompositeBuffer content) {
+        int length = content.readableBytes();
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + RECORD_HEADER_LENGTH);
+        content.getBytes(view);
+        view.flip();
+        view.position(offset + RECORD_HEADER_LENGTH);
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(view);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, RECORD_HEADER_LENGTH + length);
+        written.addAndGet(RECORD_HEADER_LENGTH + length);
+    }
+
+    /**
+     * 预留失败时调用：跨过段末尾的那次预留负责写入段结束标记并补齐剩余字节数，之后的预留什么都不做
+     */
+    void overflow(int offset) {
+        if (offset >= capacity) {
+            return;
+        }
+        if (capacity - offset >= 4) {
+            buffer.putInt(offset, END_OF_SEGMENT);
+        }
+        written.addAndGet(capacity - offset);
+    }
+
+    /**
+     * 段已写满并且全部写入都已完成
+     */
+    boolean isComplete() {
+        return written.get() == capacity;
+    }
+
+    /**
+     * 有新写完的数据时把脏页写到磁盘，只在刷盘线程调用
+     */
+    void force() {
+        int current = written.get();
+        if (current != flushed) {
+            buffer.force();
+            flushed = current;
+        }
+    }
+
+    boolean isFlushed() {
+        return flushed == written.get();
+    }
+
+    /**
+     * 关闭文件，映射在buffer被回收时才解除
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
@@ -0,0 +1,264 @@
+package journal;
+
+import buffer.CompositeBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 只追加的日志，由固定大小的内存映射段文件组成，用于记录服务端收到的每个帧以便审计和回放。
+ * <p>
+ * {@link #append(CompositeBuffer)}可以被多个Reactor线程同时调用：在当前段上原子地预留位置后直接复制到映射内存，
+ * 不加锁、没有系统调用，返回时数据只在页缓存中；后台刷盘线程按固定间隔对有新数据的段调用force()（组提交），
+ * 进程崩溃不丢数据，机器掉电最多丢失一个刷盘间隔内的记录。
+ * <p>
+ * 段写满时切换到刷盘线程预先创建好的下一个段（只有切换时加锁），段文件名是段的起始位置，
+ * 文件总数超过上限时删除最旧的段。启动时不续写已有的段，总是从最后一个段之后新建，
+ * 已有的段可以用{@link JournalReader}读取
+ */
+public final class MappedJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MappedJournal.class);
+
+    private static final String SUFFIX = ".journal";
+
+    //段大小的上限，段内偏移用int表示，预留时可能超过段大小
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final Path dir;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final ScheduledExecutorService flusher;
+
+    private volatile JournalSegment current;
+
+    private volatile boolean closed;
+
+    //以下由本对象的锁保护
+
+    //刷盘线程预先创建的下一个段
+    private JournalSegment next;
+
+    //已写满、还没有刷盘完成并关闭的段
+    private final List<JournalSegment> retired = new ArrayList<>();
+
+    //目录中全部段文件，按起始位置从旧到新排列
+    private final Deque<Path> files = new ArrayDeque<>();
+
+    /**
+     * @param dir                 日志目录，不存在时创建
+     * @param segmentSize         每个段文件的字节数
+     * @param flushIntervalMillis 组提交的间隔
+     * @param maxSegments         最多保留的段文件个数，包括正在写入的段，不包括刷盘线程预先创建的下一个段，
+     *                            所以目录中最多有maxSegments + 1个文件
+     */
+    public MappedJournal(Path dir, int segmentSize, long flushIntervalMillis, int maxSegments) throws IOException {
+        if (segmentSize <= JournalSegment.RECORD_HEADER_LENGTH || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("maxSegments: " + maxSegments + " (expected: >= 2)");
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(dir);
+        files.addAll(segments(dir));
+        long basePosition = 0;
+        if (!files.isEmpty()) {
+            basePosition = basePosition(files.getLast()) + Files.size(files.getLast());
+        }
+        this.current = createSegment(basePosition);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("open journal {}, segment size {}, start position {}", dir, segmentSize, basePosition);
+    }
+
+    /**
+     * 目录中的全部段文件，按起始位置从旧到新排列
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        //文件名是定长的起始位置，按名字排序就是按位置排序
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long basePosition(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * 追加一条记录，可以在任意线程调用，不阻塞（段写满而下一个段还没有预先创建好时除外）
+     *
+     * @param content 记录内容，不改变其读位置
+     * @return 记录在整个日志中的位置
+     */
+    public long append(CompositeBuffer content) {
+        int size = JournalSegment.RECORD_HEADER_LENGTH + content.readableBytes();
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("record size " + size + " exceeds segment size " + segmentSize);
+        }
+        for (; ; ) {
+            if (closed) {
+                throw new IllegalStateException("journal closed");
+            }
+            JournalSegment segment = current;
+            int offset = segment.reserve(size);
+            if (offset <= segmentSize - size) {
+                segment.write(offset, content);
+                return segment.basePosition() + offset;
+            }
+            segment.overflow(offset);
+            roll(segment);
+        }
+    }
+
+    /**
+     * 当前段写满后切换到下一个段，多个写入方同时发现段写满时只切换一次
+     */
+    private synchronized void roll(JournalSegment full) {
+        if (current != full || closed) {
+            return;
+        }
+        long basePosition = full.basePosition() + segmentSize;
+        JournalSegment segment = next;
+        next = null;
+        try {
+            if (segment == null) {
+                //刷盘线程还没来得及预先创建
+                segment = createSegment(basePosition);
+            }
+        } catch (IOException e) {
+            //保留写满的段，之后的写入方会再次尝试
+            logger.error("create journal segment at {} fail:", basePosition, e);
+            throw new IllegalStateException("create journal segment fail", e);
+        }
+        retired.add(full);
+        current = segment;
+    }
+
+    private JournalSegment createSegment(long basePosition) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", basePosition, SUFFIX));
+        JournalSegment segment = new JournalSegment(path, basePosition, segmentSize);
+        synchronized (this) {
+            files.addLast(path);
+        }
+        return segment;
+    }
+
+    /**
+     * 刷盘线程定时执行：force有新数据的段，关闭已经刷完的旧段，按保留个数删除旧文件，预先创建下一个段
+     */
+    private void flush() {
+        try {
+            List<JournalSegment> segments;
+            synchronized (this) {
+                segments = new ArrayList<>(retired);
+            }
+            for (JournalSegment segment : segments) {
+                segment.force();
+            }
+            current.force();
+            synchronized (this) {
+                Iterator<JournalSegment> iterator = retired.iterator();
+                while (iterator.hasNext()) {
+                    JournalSegment segment = iterator.next();
+                    if (segment.isComplete() && segment.isFlushed()) {
+                        segment.close();
+                        iterator.remove();
+                    }
+                }
+                deleteExpiredSegments();
+                if (next == null && !closed) {
+                    next = createSegment(current.basePosition() + segmentSize);
+                }
+            }
+        } catch (Throwable t) {
+            logger.error("flush journal {} fail:", dir, t);
+        }
+    }
+
+    /**
+     * 文件数超过上限时删除最旧的段，不删除还在写入或者等待刷盘的段；预先创建的下一个段还没有数据，不计入个数
+     */
+    private void deleteExpiredSegments() throws IOException {
+        while (files.size() - (next != null ? 1 : 0) > maxSegments) {
+            Path oldest = files.peekFirst();
+            if (oldest.equals(current.path()) || (!retired.isEmpty() && oldest.equals(retired.get(0).path()))) {
+                return;
+            }
+            files.pollFirst();
+            Files.deleteIfExists(oldest);
+            logger.info("delete expired journal segment {}", oldest);
+        }
+    }
+
+    /**
+     * 停止刷盘线程，把全部数据写到磁盘后关闭段文件，之后的append抛出IllegalStateException
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            List<JournalSegment> segments = new ArrayList<>(retired);
+            segments.add(current);
+            for (JournalSegment segment : segments) {
+                try {
+                    segment.force();
+                    segment.close();
+                } catch (IOException e) {
+                    logger.error("close journal segment {} fail:", segment, e);
+                }
+            }
+            retired.clear();
+            if (next != null) {
+                //没有用到的预创建段
+                try {
+                    next.close();
+                    files.remove(next.path());
+                    Files.deleteIfExists(next.path());
+                } catch (IOException e) {
+                    logger.error("delete unused journal segment {} fail:", next, e);
+                }
+                next = null;
+            }
+        }
+        logger.info("close journal {}", dir);
+    }
+}
@@ -0,0 +1,272 @@
+package kv;
+
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 堆外的键值存储，key和value都放在直接内存里，GC只看到几个大的ByteBuffer对象，不随数据量增加停顿时间。
+ * <p>
+ * 按key的hash高位分成多个{@link StoreSegment}，每个分段一把锁，不同Reactor线程访问不同分段时互不阻塞；
+ * 内存预算平均分给各个分段，分段写满后按CLOCK（第二次机会）淘汰，见{@link StoreSegment}。
+ * <p>
+ * 可以把全部数据写成内存映射的快照文件，重启时加载，省去冷启动时的大量回源。
+ * 快照格式：16字节文件头（魔数 | 版本 | 分段个数 | 0），之后每个分段一个区域：
+ * 16字节区域头（区域长度long | entry个数 | 0）+ 若干条（keyLength | valueLength | key | value）；
+ * 先写临时文件再原子重命名，写到一半的快照不会覆盖上一个完整的快照。
+ * <p>
+ * 线程安全
+ */
+public final class OffHeapStore {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapStore.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x4b565331;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final int SNAPSHOT_HEADER_LENGTH = 16;
+
+    private final StoreSegment[] segments;
+
+    //hash右移这么多位得到分段下标
+    private final int segmentShift;
+
+    private final long memoryBudget;
+
+    /**
+     * @param memoryBudget 数据区的总字节数，索引另外占用约每个entry 10字节
+     * @param segmentCount 分段个数，向上取整为2的幂，通常取Reactor线程数的几倍
+     */
+    public OffHeapStore(long memoryBudget, int segmentCount) {
+        int count = 1;
+        while (count < segmentCount) {
+            count <<= 1;
+        }
+        long segmentCapacity = memoryBudget / count;
+        if (segmentCapacity > Integer.MAX_VALUE || segmentCapacity < 1024) {
+            throw new IllegalArgumentException("memoryBudget: " + memoryBudget + ", segmentCount: " + count
+                    + ", each segment should be 1KB to 2GB");
+        }
+        this.segments = new StoreSegment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new StoreSegment((int) segmentCapacity);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * 查询key，把value复制到从pool申请的buffer
+     *
+     * @param key 处于读模式，position不变
+     * @return 处于读模式的value，调用方负责释放；不存在时返回null
+     */
+    public PooledByteBuffer get(ByteBuffer key, ByteBufferPool pool) {
+        int hash = hash(key);
+        StoreSegment segment = segmentFor(hash);
+        //value的长度要查到之后才知道，先按猜测的大小申请，不够时换一个再复制一次
+        PooledByteBuffer value = pool.acquire(256);
+        for (; ; ) {
+            int length;
+            synchronized (segment) {
+                length = segment.get(key, hash, value.buffer());
+            }
+            if (length < 0) {
+                value.release();
+                return null;
+            }
+            if (value.buffer().position() == length) {
+                value.buffer().flip();
+                return value;
+            }
+            //空间不够，没有复制；期间可能被覆盖，所以重新查询
+            value.release();
+            value = pool.acquire(length);
+        }
+    }
+
+    /**
+     * 写入或覆盖
+     *
+     * @return entry超过单个分段的容量时返回false，不写入
+     */
+    public boolean put(ByteBuffer key, ByteBuffer value) {
+        if (StoreSegment.entryLength(key.remaining(), value.remaining()) > segments[0].capacity()) {
+            return false;
+        }
+        int hash = hash(key);
+        StoreSegment segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.put(key, hash, value);
+        }
+        return true;
+    }
+
+    /**
+     * @return key是否存在
+     */
+    public boolean remove(ByteBuffer key) {
+        int hash = hash(key);
+        StoreSegment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.remove(key, hash);
+        }
+    }
+
+    private StoreSegment segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /**
+     * 31倍乘法hash再经过murmur3的fmix32打散，高位用于选分段，低位用于索引
+     */
+    private static int hash(ByteBuffer key) {
+        int h = 0;
+        for (int i = key.position(), limit = key.limit(); i < limit; i++) {
+            h = 31 * h + key.get(i);
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 把全部数据写到快照文件，写每个分段时只锁这个分段，其他分段照常读写
+     *
+     * @return 写出的entry个数
+     */
+    public long snapshot(Path file) throws IOException {
+        long start = System.nanoTime();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, SNAPSHOT_HEADER_LENGTH);
+            header.putInt(SNAPSHOT_MAGIC);
+            header.putInt(SNAPSHOT_VERSION);
+            header.putInt(segments.length);
+            header.force();
+            long position = SNAPSHOT_HEADER_LENGTH;
+            for (StoreSegment segment : segments) {
+                synchronized (segment) {
+                    long length = segment.snapshotLength();
+                    int count = segment.writeSnapshot(channel, position + SNAPSHOT_HEADER_LENGTH, length);
+                    MappedByteBuffer regionHeader = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                            SNAPSHOT_HEADER_LENGTH);
+                    regionHeader.putLong(length);
+                    regionHeader.putInt(count);
+                    regionHeader.force();
+                    position += SNAPSHOT_HEADER_LENGTH + length;
+                    total += count;
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("snapshot {} entries to {} in {}ms", total, file, (System.nanoTime() - start) / 1000000);
+        return total;
+    }
+
+    /**
+     * 加载快照，文件不存在时什么都不做；分段个数和写快照时不同也可以加载
+     *
+     * @return 加载的entry个数
+     */
+    public long load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER_LENGTH);
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("not a snapshot file: " + file);
+            }
+            int regions = header.getInt();
+            long position = SNAPSHOT_HEADER_LENGTH;
+            for (int i = 0; i < regions; i++) {
+                MappedByteBuffer regionHeader = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        SNAPSHOT_HEADER_LENGTH);
+                long length = regionHeader.getLong();
+                int count = regionHeader.getInt();
+                position += SNAPSHOT_HEADER_LENGTH;
+                if (position + length > size) {
+                    throw new IOException("truncated snapshot file: " + file);
+                }
+                if (length > 0) {
+                    total += loadRegion(channel.map(FileChannel.MapMode.READ_ONLY, position, length), count);
+                }
+                position += length;
+            }
+        }
+        logger.info("load {} entries from {} in {}ms", total, file, (System.nanoTime() - start) / 1000000);
+        return total;
+    }
+
+    private long loadRegion(MappedByteBuffer region, int count) {
+        ByteBuffer key = region.duplicate();
+        ByteBuffer value = region.duplicate();
+        long loaded = 0;
+        for (int i = 0; i < count; i++) {
+            int keyLength = region.getInt();
+            int valueLength = region.getInt();
+            key.limit(region.position() + keyLength);
+            key.position(region.position());
+            value.limit(key.limit() + valueLength);
+            value.position(key.limit());
+            region.position(value.limit());
+            //当前的内存预算装不下时后写入的淘汰先写入的
+            if (put(key, value)) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 当前的entry个数，逐个分段加锁统计
+     */
+    public long size() {
+        long size = 0;
+        for (StoreSegment segment : segments) {
+            synchronized (segment) {
+                size += segment.count();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        long entries = 0;
+        long used = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (StoreSegment segment : segments) {
+            synchronized (segment) {
+                entries += segment.count();
+                used += segment.usedBytes();
+                hits += segment.hits();
+                misses += segment.misses();
+                evictions += segment.evictions();
+            }
+        }
+        return "OffHeapStore(segments: " + segments.length + ", budget: " + memoryBudget + ", entries: " + entries
+                + ", used: " + used + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ")";
+    }
+}
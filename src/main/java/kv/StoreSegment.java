@@ -0,0 +1,388 @@
+package kv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link OffHeapStore}的一个分段，有自己的锁、数据区和索引，不同分段之间互不影响。
+ * <p>
+ * 数据区是一块直接内存组成的环形日志：新写入的entry追加在head，空间不够时从tail淘汰最老的entry。
+ * 覆盖和删除只修改索引，旧entry成为垃圾，tail经过时直接跳过；淘汰到一个仍然有效且被读过的entry时
+ * 清除其访问位并搬到head（CLOCK的第二次机会），没被读过的才真正淘汰，所以热点数据不会因为写得早而被淘汰。
+ * entry的格式为16字节头（size，最高位为访问位 | hash | keyLength | valueLength）+ key + value，按16字节对齐；
+ * 数据区末尾放不下一个entry时写一个keyLength为-1的填充块，从头开始写。
+ * <p>
+ * 索引是直接内存中的开放寻址（线性探测）哈希表，每个槽位一个long：高32位是hash，低32位是entry在数据区的偏移+1，0为空槽；
+ * 删除时向前移动后续的槽位，不留墓碑。所有方法都要在持有本分段的锁时调用
+ */
+final class StoreSegment {
+    static final int HEADER_LENGTH = 16;
+
+    private static final int ALIGNMENT = 16;
+
+    private static final int REFERENCED = 0x80000000;
+
+    private static final int PADDING = -1;
+
+    private static final int MIN_INDEX_SLOTS = 64;
+
+    private final ByteBuffer data;
+
+    //用于批量复制的视图，只在持有锁时修改position和limit
+    private final ByteBuffer view;
+
+    private final int capacity;
+
+    //逻辑偏移，只增不减，对capacity取模得到数据区中的位置，head - tail为已使用的字节数
+    private long head;
+
+    private long tail;
+
+    private LongBuffer index;
+
+    private int mask;
+
+    private int count;
+
+    //第二次机会搬移entry时的临时空间，源和目的可能重叠
+    private byte[] scratch = new byte[256];
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    StoreSegment(int capacity) {
+        this.capacity = capacity - capacity % ALIGNMENT;
+        this.data = ByteBuffer.allocateDirect(this.capacity);
+        this.view = data.duplicate();
+        int slots = MIN_INDEX_SLOTS;
+        //按平均256字节一个entry预估，之后按需扩容
+        while (slots < this.capacity / 256) {
+            slots <<= 1;
+        }
+        this.index = newIndex(slots);
+        this.mask = slots - 1;
+    }
+
+    static int entryLength(int keyLength, int valueLength) {
+        int length = HEADER_LENGTH + keyLength + valueLength;
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 把key对应的value复制到dst，同时设置访问位
+     *
+     * @return value的长度，不存在时返回-1，dst空间不够时不复制
+     */
+    int get(ByteBuffer key, int hash, ByteBuffer dst) {
+        int slot = find(key, hash);
+        if (slot < 0) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        int offset = offsetOf(index.get(slot));
+        data.putInt(offset, data.getInt(offset) | REFERENCED);
+        int valueLength = data.getInt(offset + 12);
+        if (dst != null && dst.remaining() >= valueLength) {
+            int valueOffset = offset + HEADER_LENGTH + data.getInt(offset + 8);
+            select(valueOffset, valueLength);
+            dst.put(view);
+        }
+        return valueLength;
+    }
+
+    /**
+     * 写入或覆盖，空间不够时淘汰最老的entry；调用方保证entry的长度不超过分段容量
+     */
+    void put(ByteBuffer key, int hash, ByteBuffer value) {
+        int keyLength = key.remaining();
+        int valueLength = value.remaining();
+        int length = entryLength(keyLength, valueLength);
+        //先分配，分配时的淘汰可能移动索引的槽位
+        int offset = allocate(length);
+        data.putInt(offset, length);
+        data.putInt(offset + 4, hash);
+        data.putInt(offset + 8, keyLength);
+        data.putInt(offset + 12, valueLength);
+        copyIn(key, offset + HEADER_LENGTH);
+        copyIn(value, offset + HEADER_LENGTH + keyLength);
+        //新entry还不在索引中，查到的是旧entry
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            index.put(slot, slotValue(hash, offset));
+            return;
+        }
+        if ((count + 1) * 4L > (mask + 1) * 3L) {
+            resize();
+        }
+        insert(slotValue(hash, offset));
+        count++;
+    }
+
+    boolean remove(ByteBuffer key, int hash) {
+        int slot = find(key, hash);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        count--;
+        return true;
+    }
+
+    /**
+     * 在head分配length字节，不够时从tail淘汰；返回数据区中的位置
+     */
+    private int allocate(int length) {
+        for (; ; ) {
+            int position = (int) (head % capacity);
+            if (head == tail && position != 0) {
+                //数据区为空，直接从头开始，避免为了填充块去淘汰不存在的entry
+                head += capacity - position;
+                tail = head;
+                continue;
+            }
+            int padding = capacity - position < length ? capacity - position : 0;
+            if (capacity - (head - tail) >= padding + length) {
+                if (padding > 0) {
+                    data.putInt(position, padding);
+                    data.putInt(position + 8, PADDING);
+                    head += padding;
+                    position = 0;
+                }
+                head += length;
+                return position;
+            }
+            evictTail();
+        }
+    }
+
+    /**
+     * 释放tail处的一个entry：填充块和垃圾直接跳过；被读过的有效entry清除访问位后搬到head，放不下时才淘汰
+     */
+    private void evictTail() {
+        int position = (int) (tail % capacity);
+        int header = data.getInt(position);
+        int length = header & ~REFERENCED;
+        tail += length;
+        if (data.getInt(position + 8) == PADDING) {
+            return;
+        }
+        int hash = data.getInt(position + 4);
+        int slot = findExact(slotValue(hash, position));
+        if (slot < 0) {
+            return;
+        }
+        if ((header & REFERENCED) != 0) {
+            int headPosition = (int) (head % capacity);
+            int padding = capacity - headPosition < length ? capacity - headPosition : 0;
+            if (capacity - (head - tail) >= padding + length) {
+                if (scratch.length < length) {
+                    scratch = new byte[Integer.highestOneBit(length) << 1];
+                }
+                select(position, length);
+                view.get(scratch, 0, length);
+                if (padding > 0) {
+                    data.putInt(headPosition, padding);
+                    data.putInt(headPosition + 8, PADDING);
+                    head += padding;
+                    headPosition = 0;
+                }
+                select(headPosition, length);
+                view.put(scratch, 0, length);
+                data.putInt(headPosition, length);
+                head += length;
+                index.put(slot, slotValue(hash, headPosition));
+                return;
+            }
+        }
+        removeSlot(slot);
+        count--;
+        evictions++;
+    }
+
+    private int find(ByteBuffer key, int hash) {
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long value = index.get(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if ((int) (value >>> 32) == hash && keyEquals(offsetOf(value), key)) {
+                return slot;
+            }
+        }
+    }
+
+    private int findExact(long target) {
+        for (int slot = (int) (target >>> 32) & mask; ; slot = (slot + 1) & mask) {
+            long value = index.get(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if (value == target) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(long value) {
+        int slot = (int) (value >>> 32) & mask;
+        while (index.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index.put(slot, value);
+    }
+
+    /**
+     * 线性探测的删除：后续槽位中理想位置不在(slot, next]区间的向前移动填补空位
+     */
+    private void removeSlot(int slot) {
+        int next = slot;
+        for (; ; ) {
+            next = (next + 1) & mask;
+            long value = index.get(next);
+            if (value == 0) {
+                break;
+            }
+            int ideal = (int) (value >>> 32) & mask;
+            boolean stay = slot <= next ? slot < ideal && ideal <= next : slot < ideal || ideal <= next;
+            if (!stay) {
+                index.put(slot, value);
+                slot = next;
+            }
+        }
+        index.put(slot, 0);
+    }
+
+    private void resize() {
+        LongBuffer old = index;
+        int oldSlots = mask + 1;
+        index = newIndex(oldSlots << 1);
+        mask = (oldSlots << 1) - 1;
+        for (int i = 0; i < oldSlots; i++) {
+            long value = old.get(i);
+            if (value != 0) {
+                insert(value);
+            }
+        }
+    }
+
+    private boolean keyEquals(int offset, ByteBuffer key) {
+        int keyLength = key.remaining();
+        if (data.getInt(offset + 8) != keyLength) {
+            return false;
+        }
+        int keyOffset = offset + HEADER_LENGTH;
+        int start = key.position();
+        for (int i = 0; i < keyLength; i++) {
+            if (data.get(keyOffset + i) != key.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 让视图指向数据区的[offset, offset + length)
+     */
+    private void select(int offset, int length) {
+        view.limit(offset + length);
+        view.position(offset);
+    }
+
+    /**
+     * 把src的剩余内容复制到数据区的offset处，不改变src的position
+     */
+    private void copyIn(ByteBuffer src, int offset) {
+        int start = src.position();
+        select(offset, src.remaining());
+        view.put(src);
+        src.position(start);
+    }
+
+    /**
+     * 全部有效entry按快照记录格式（keyLength | valueLength | key | value）占用的字节数
+     */
+    long snapshotLength() {
+        long length = 0;
+        for (int i = 0; i <= mask; i++) {
+            long value = index.get(i);
+            if (value != 0) {
+                int offset = offsetOf(value);
+                length += 8 + data.getInt(offset + 8) + data.getInt(offset + 12);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 把全部有效entry写到文件的position处，数据直接从数据区复制到映射内存
+     *
+     * @param length {@link #snapshotLength()}
+     * @return 写出的entry个数
+     */
+    int writeSnapshot(FileChannel channel, long position, long length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+        int written = 0;
+        for (int i = 0; i <= mask; i++) {
+            long value = index.get(i);
+            if (value == 0) {
+                continue;
+            }
+            int offset = offsetOf(value);
+            int keyLength = data.getInt(offset + 8);
+            int valueLength = data.getInt(offset + 12);
+            out.putInt(keyLength);
+            out.putInt(valueLength);
+            select(offset + HEADER_LENGTH, keyLength + valueLength);
+            out.put(view);
+            written++;
+        }
+        out.force();
+        return written;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long usedBytes() {
+        return head - tail;
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    long evictions() {
+        return evictions;
+    }
+
+    private static long slotValue(int hash, int offset) {
+        return (long) hash << 32 | (offset + 1L);
+    }
+
+    private static int offsetOf(long slotValue) {
+        return (int) slotValue - 1;
+    }
+
+    private static LongBuffer newIndex(int slots) {
+        return ByteBuffer.allocateDirect(slots * 8).asLongBuffer();
+    }
+}
@@ -0,0 +1,28 @@
+package lifecycle;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务端的生命周期：启动、优雅关闭和等待关闭完成，部署时先stop再awaitTermination，不丢失已经收到的请求的响应
+ */
+public interface Lifecycle {
+
+    /**
+     * 绑定端口并开始接收连接，不阻塞
+     */
+    void start() throws IOException;
+
+    /**
+     * 优雅关闭，不阻塞：立即停止接收新连接并关闭空闲的连接，其余连接不再读取新请求，
+     * 写完已经产生的响应后关闭，超过timeout仍未写完的连接强制关闭。重复调用无效
+     */
+    void stop(long timeout, TimeUnit unit);
+
+    /**
+     * 等待stop完成
+     *
+     * @return 是否在timeout内完成
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,132 @@
+package limit;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接准入控制：限制总连接数和每个来源IP的连接数，在accept之后、注册到Reactor之前调用，超过限制的连接直接关闭。
+ * <p>
+ * 无锁：总数是一个CAS的计数器；每个IP一个计数器放在ConcurrentHashMap中，命中时只有一次无锁的get和CAS，
+ * 只有某个IP的第一个连接建立和最后一个连接关闭时才会锁住ConcurrentHashMap的一个桶，10万连接时也不会互相竞争。
+ * 计数器减到0时标记为-1再从表中移除，并发获取到这个计数器的线程看到-1就重新查表，不会把连接计到已经移除的计数器上。
+ * <p>
+ * 线程安全，accept线程获取，连接关闭的线程释放
+ */
+public final class ConnectionLimiter {
+    //计数器已经从表中移除
+    private static final int REMOVED = -1;
+
+    //为0时不限制
+    private final int maxConnections;
+
+    //为0时不限制，也不记录每个IP的连接数
+    private final int maxConnectionsPerAddress;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> connectionsPerAddress = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+
+    public ConnectionLimiter(int maxConnections, int maxConnectionsPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * 是否有任何限制，没有时不需要调用本类
+     */
+    public boolean isEnabled() {
+        return maxConnections > 0 || maxConnectionsPerAddress > 0;
+    }
+
+    /**
+     * 为来自address的新连接占用一个名额，成功后连接关闭时必须调用{@link #release(InetAddress)}
+     *
+     * @return 超过总连接数或者该IP的连接数限制时返回false
+     */
+    public boolean tryAcquire(InetAddress address) {
+        if (!acquireTotal()) {
+            rejected.increment();
+            return false;
+        }
+        if (maxConnectionsPerAddress > 0 && !acquireAddress(address)) {
+            connections.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean acquireTotal() {
+        if (maxConnections <= 0) {
+            connections.incrementAndGet();
+            return true;
+        }
+        for (; ; ) {
+            int current = connections.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean acquireAddress(InetAddress address) {
+        for (; ; ) {
+            AtomicInteger counter = connectionsPerAddress.get(address);
+            if (counter == null) {
+                AtomicInteger created = new AtomicInteger();
+                counter = connectionsPerAddress.putIfAbsent(address, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            int current = counter.get();
+            if (current == REMOVED) {
+                //释放的线程正要移除这个计数器，帮它移除后重新查表
+                connectionsPerAddress.remove(address, counter);
+                continue;
+            }
+            if (current >= maxConnectionsPerAddress) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 连接关闭，归还{@link #tryAcquire(InetAddress)}占用的名额
+     */
+    public void release(InetAddress address) {
+        connections.decrementAndGet();
+        if (maxConnectionsPerAddress <= 0) {
+            return;
+        }
+        AtomicInteger counter = connectionsPerAddress.get(address);
+        //减到0之后如果没有新连接抢先占用，标记后移除，避免表随着来源IP无限增长
+        if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, REMOVED)) {
+            connectionsPerAddress.remove(address, counter);
+        }
+    }
+
+    /**
+     * 当前的连接数
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * 因超过限制被拒绝的连接数
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,60 @@
+package limit;
+
+/**
+ * 令牌桶：按固定速率补充令牌，最多积攒burst个，用于限制单个连接每秒的消息数或者字节数。
+ * <p>
+ * 允许透支：数据读到之后才知道消耗了多少令牌，先扣除，令牌为负时由调用方暂停读取，
+ * 等{@link #delayNanos(long)}之后令牌补回到0再继续，长期的平均速率不超过rate，瞬时最多超出一次读取的量。
+ * 每个连接一个实例，只能由一个线程使用
+ */
+public final class TokenBucket {
+    private final double tokensPerNano;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long lastRefillTime;
+
+    /**
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param burst         最多积攒的令牌数，即空闲之后允许的突发量
+     */
+    public TokenBucket(long ratePerSecond, long burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("ratePerSecond: " + ratePerSecond + ", burst: " + burst);
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * 扣除permits个令牌，令牌不足时透支
+     *
+     * @param now System.nanoTime()
+     */
+    public void consume(long permits, long now) {
+        refill(now);
+        tokens -= permits;
+    }
+
+    /**
+     * 透支的令牌补回所需的纳秒数，没有透支时返回0
+     *
+     * @param now System.nanoTime()
+     */
+    public long delayNanos(long now) {
+        refill(now);
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillTime;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            lastRefillTime = now;
+        }
+    }
+}
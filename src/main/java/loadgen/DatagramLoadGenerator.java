@@ -0,0 +1,164 @@
+package loadgen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDP压测客户端，模拟指标上报：只发送不等待回复，每个线程用阻塞的DatagramChannel尽快或者按速率发送。
+ * 数据报是否被收到、在哪里丢弃看服务端的指标（nio_reactor_datagrams_total和nio_datagram_kernel_drops_total）。
+ * <p>
+ * 参数格式为--key=value：
+ * <pre>
+ * --host=127.0.0.1   服务端地址
+ * --port=8125        服务端端口
+ * --threads=1        发送线程数
+ * --sources=1        每个线程的socket个数，来源端口不同，服务端开启SO_REUSEPORT时按来源分散到各个socket
+ * --rate=0           每秒发送的数据报个数，0表示不限速
+ * --size=64          数据报字节数
+ * --duration=10      压测秒数
+ * </pre>
+ */
+public class DatagramLoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(DatagramLoadGenerator.class);
+
+    static final class Options {
+        String host = "127.0.0.1";
+
+        int port = 8125;
+
+        int threads = 1;
+
+        int sources = 1;
+
+        double rate;
+
+        int size = 64;
+
+        int duration = 10;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = parse(args);
+        InetSocketAddress address = new InetSocketAddress(options.host, options.port);
+        LongAdder sent = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.duration);
+        Thread[] threads = new Thread[options.threads];
+        for (int i = 0; i < threads.length; i++) {
+            double rate = options.rate / options.threads;
+            threads[i] = new Thread(() -> send(options, address, rate, deadline, sent, errors), "udp-loadgen-" + i);
+            threads[i].start();
+        }
+        logger.info("load udp {}:{} threads:{} sources:{} rate:{} size:{} duration:{}s", options.host, options.port,
+                options.threads, options.sources, options.rate > 0 ? options.rate : "unlimited", options.size,
+                options.duration);
+        long last = 0;
+        for (int second = 1; second <= options.duration; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            long total = sent.sum();
+            logger.info("{}s sent:{} ({}/s)", second, total, total - last);
+            last = total;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        logger.info("sent:{} errors:{} throughput:{}/s", sent.sum(), errors.sum(), sent.sum() / options.duration);
+    }
+
+    /**
+     * 轮流从各个socket发送，限速时按计划发送时间补发落后的数据报，不限速时每个数据报一次send系统调用
+     */
+    private static void send(Options options, InetSocketAddress address, double rate, long deadline,
+                             LongAdder sent, LongAdder errors) {
+        DatagramChannel[] channels = new DatagramChannel[options.sources];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = DatagramChannel.open();
+                //connect后send不需要每次查路由和检查目的地址
+                channels[i].connect(address);
+            }
+            ByteBuffer datagram = ByteBuffer.allocateDirect(options.size);
+            long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            long next = System.nanoTime();
+            int index = 0;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                if (intervalNanos > 0 && now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                datagram.clear();
+                try {
+                    channels[index].write(datagram);
+                    sent.increment();
+                } catch (IOException e) {
+                    //服务端没有启动时收到ICMP端口不可达，下一次write抛出PortUnreachableException
+                    errors.increment();
+                }
+                index = (index + 1) % channels.length;
+                next += intervalNanos;
+            }
+        } catch (IOException e) {
+            logger.error("open datagram channel to {} fail:", address, e);
+        } finally {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        logger.error("close datagram channel fail:", e);
+                    }
+                }
+            }
+        }
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("expect --key=value but got:" + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "host":
+                    options.host = value;
+                    break;
+                case "port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "sources":
+                    options.sources = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    options.rate = Double.parseDouble(value);
+                    break;
+                case "size":
+                    options.size = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    options.duration = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option:" + key);
+            }
+        }
+        if (options.threads < 1 || options.sources < 1 || options.size < 0 || options.duration < 1) {
+            throw new IllegalArgumentException("threads, sources and duration must be positive");
+        }
+        return options;
+    }
+}
@@ -0,0 +1,213 @@
+package loadgen;
+
+import metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 高并发压测客户端，少量线程各用一个Selector驱动大量非阻塞连接，可以压测仓库中的四种服务端。
+ * <p>
+ * 参数格式为--key=value：
+ * <pre>
+ * --server=nio2|kv|nio1|bio|aio  被测服务端，决定默认端口和协议，默认nio2；kv为nio2的键值服务
+ * --host=127.0.0.1            服务端地址
+ * --port=8888                 服务端端口，默认按server取8888或9000
+ * --address=unix:/tmp/nio.sock 服务端地址，指定时忽略host和port，unix:路径 为unix domain socket，用于和TCP回环对比
+ * --connections=100           连接数，一次性连接协议下为并发请求数
+ * --threads=1                 压测线程数，每个线程一个Selector
+ * --rate=0                    每秒请求数，0表示闭环模式（收到响应立即发下一个）
+ * --depth=1                   每个连接的最大在途请求数，大于1需要服务端支持pipelining
+ * --size=16                   请求内容字节数
+ * --duration=10               压测秒数
+ * --shortConnection=false     每个请求新建连接，只对nio1、bio、aio有效
+ * --keys=10000                kv的key个数
+ * --writePercent=10           kv中SET请求的百分比，其余为GET，SET的value为size字节
+ * </pre>
+ * 开环模式下延迟从请求的计划发送时间开始计算，见{@link LoadWorker}
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    static final class Options {
+        Protocol protocol = Protocol.LENGTH_PREFIXED;
+
+        String host = "127.0.0.1";
+
+        int port = 8888;
+
+        //为null时按host和port连接
+        SocketAddress address;
+
+        int connections = 100;
+
+        int threads = 1;
+
+        double rate;
+
+        int depth = 1;
+
+        int size = 16;
+
+        int duration = 10;
+
+        int keys = 10000;
+
+        int writePercent = 10;
+
+        SocketAddress address() {
+            return address != null ? address : new InetSocketAddress(host, port);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = parse(args);
+        int threads = Math.min(options.threads, options.connections);
+        LongAdder completed = new LongAdder();
+        LoadWorker[] workers = new LoadWorker[threads];
+        Thread[] workerThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            //连接数和请求速率平均分给各个线程
+            int connections = options.connections / threads + (i < options.connections % threads ? 1 : 0);
+            workers[i] = new LoadWorker(options, connections, options.rate / threads, completed);
+            workerThreads[i] = new Thread(workers[i], "loadgen-" + i);
+            workerThreads[i].start();
+        }
+        logger.info("load {} protocol:{} connections:{} threads:{} rate:{} depth:{} size:{} duration:{}s",
+                SocketAddresses.format(options.address()), options.protocol, options.connections, threads,
+                options.rate > 0 ? options.rate : "closed-loop", options.depth, options.size, options.duration);
+
+        long last = 0;
+        for (int second = 1; second <= options.duration; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            long total = completed.sum();
+            logger.info("{}s completed:{} ({}/s)", second, total, total - last);
+            last = total;
+        }
+        Histogram histogram = new Histogram();
+        long sent = 0;
+        long errors = 0;
+        for (int i = 0; i < threads; i++) {
+            workerThreads[i].join();
+            histogram.add(workers[i].histogram());
+            sent += workers[i].sent();
+            errors += workers[i].errors();
+        }
+        report(options, histogram, sent, errors);
+    }
+
+    private static void report(Options options, Histogram histogram, long sent, long errors) {
+        logger.info("sent:{} completed:{} errors:{} throughput:{}/s",
+                sent, histogram.totalCount(), errors, histogram.totalCount() / options.duration);
+        logger.info("latency(us) min:{} mean:{} p50:{} p90:{} p99:{} p99.9:{} p99.99:{} max:{}",
+                micros(histogram.min()), micros((long) histogram.mean()),
+                micros(histogram.percentile(50)), micros(histogram.percentile(90)),
+                micros(histogram.percentile(99)), micros(histogram.percentile(99.9)),
+                micros(histogram.percentile(99.99)), micros(histogram.max()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        Integer port = null;
+        boolean shortConnection = false;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("expect --key=value but got:" + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "server":
+                    options.protocol = protocolOf(value);
+                    options.port = "nio2".equals(value) || "kv".equals(value) ? 8888 : 9000;
+                    break;
+                case "host":
+                    options.host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "address":
+                    options.address = SocketAddresses.parse(value);
+                    break;
+                case "connections":
+                    options.connections = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    options.rate = Double.parseDouble(value);
+                    break;
+                case "depth":
+                    options.depth = Integer.parseInt(value);
+                    break;
+                case "size":
+                    options.size = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    options.duration = Integer.parseInt(value);
+                    break;
+                case "keys":
+                    options.keys = Integer.parseInt(value);
+                    break;
+                case "writePercent":
+                    options.writePercent = Integer.parseInt(value);
+                    break;
+                case "shortConnection":
+                    shortConnection = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option:" + key);
+            }
+        }
+        if (port != null) {
+            options.port = port;
+        }
+        if (shortConnection) {
+            if (options.protocol != Protocol.FIXED_REPLY) {
+                throw new IllegalArgumentException("shortConnection only supports nio1, bio and aio");
+            }
+            options.protocol = Protocol.ONE_SHOT;
+        }
+        if (options.connections < 1 || options.threads < 1 || options.depth < 1 || options.size < 0 || options.duration < 1) {
+            throw new IllegalArgumentException("connections, threads, depth and duration must be positive");
+        }
+        if (options.depth > 1 && !options.protocol.pipelining) {
+            throw new IllegalArgumentException(options.protocol + " does not support pipelining");
+        }
+        if (options.protocol == Protocol.KV && (options.keys < 1 || options.writePercent < 0 || options.writePercent > 100)) {
+            throw new IllegalArgumentException("keys must be positive and writePercent in [0, 100]");
+        }
+        if (options.protocol != Protocol.LENGTH_PREFIXED && options.protocol != Protocol.KV && options.size > 1024) {
+            //其余服务端只用一个1024字节的buffer读一次，更大的请求会被拆成多个响应或者被截断
+            throw new IllegalArgumentException(options.protocol + " only supports requests up to 1024 bytes");
+        }
+        return options;
+    }
+
+    private static Protocol protocolOf(String server) {
+        switch (server) {
+            case "nio2":
+                return Protocol.LENGTH_PREFIXED;
+            case "kv":
+                return Protocol.KV;
+            case "nio1":
+            case "bio":
+            case "aio":
+                return Protocol.FIXED_REPLY;
+            default:
+                throw new IllegalArgumentException("unknown server:" + server + ", expect nio2|kv|nio1|bio|aio");
+        }
+    }
+}
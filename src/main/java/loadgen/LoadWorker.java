@@ -0,0 +1,377 @@
+package loadgen;
+
+import metrics.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个压测线程，用一个Selector驱动一组非阻塞连接。
+ * <p>
+ * 开环模式（rate大于0）下按固定间隔产生请求，每个请求记下计划发送时间，延迟从计划发送时间算起：
+ * 连接的在途请求达到pipelining深度、或者服务端变慢时，后续请求在本地排队，排队时间也计入延迟，
+ * 避免coordinated omission导致延迟被低估。闭环模式（rate为0）下每个连接保持depth个在途请求，收到响应立即补发
+ */
+final class LoadWorker implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(LoadWorker.class);
+
+    private final LoadGenerator.Options options;
+
+    private final Protocol protocol;
+
+    private final SocketAddress address;
+
+    private final Connection[] connections;
+
+    //两次请求的间隔，闭环模式为0
+    private final long intervalNanos;
+
+    //循环发送的请求，大多数协议只有一个
+    private final ByteBuffer[] requests;
+
+    private final int maxRequestLength;
+
+    private int nextRequest;
+
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+
+    //有请求待发送的连接，避免每次循环都遍历全部连接
+    private final ArrayDeque<Connection> dirty = new ArrayDeque<>();
+
+    private final Histogram histogram = new Histogram();
+
+    private final LongAdder completedCounter;
+
+    private Selector selector;
+
+    private long sent;
+
+    private long errors;
+
+    LoadWorker(LoadGenerator.Options options, int connectionCount, double rate, LongAdder completedCounter) {
+        this.options = options;
+        this.protocol = options.protocol;
+        this.address = options.address();
+        this.connections = new Connection[connectionCount];
+        this.intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        this.requests = protocol.requests(options);
+        int maxRequestLength = 0;
+        for (ByteBuffer request : requests) {
+            maxRequestLength = Math.max(maxRequestLength, request.remaining());
+        }
+        this.maxRequestLength = maxRequestLength;
+        this.completedCounter = completedCounter;
+    }
+
+    Histogram histogram() {
+        return histogram;
+    }
+
+    long sent() {
+        return sent;
+    }
+
+    long errors() {
+        return errors;
+    }
+
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = new Connection();
+                if (protocol.persistent) {
+                    connections[i].open();
+                }
+            }
+            loop();
+        } catch (Exception e) {
+            logger.error("load worker fail:", e);
+        } finally {
+            for (Connection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            try {
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException e) {
+                logger.error("close selector fail:", e);
+            }
+        }
+    }
+
+    private void loop() throws IOException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(options.duration);
+        long nextSend = start;
+        int next = 0;
+        if (intervalNanos == 0) {
+            for (Connection connection : connections) {
+                for (int i = 0; i < options.depth; i++) {
+                    connection.submit(start);
+                }
+            }
+        }
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (intervalNanos > 0) {
+                //补齐截至当前时刻应该发出的全部请求，轮流分配给各个连接
+                while (nextSend <= now) {
+                    connections[next].submit(nextSend);
+                    next = next + 1 == connections.length ? 0 : next + 1;
+                    nextSend += intervalNanos;
+                }
+            }
+            Connection connection;
+            while ((connection = dirty.poll()) != null) {
+                connection.dispatch();
+            }
+            long waitNanos = intervalNanos > 0 ? nextSend - System.nanoTime() : TimeUnit.MILLISECONDS.toNanos(100);
+            if (waitNanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+                selector.selectNow();
+            } else {
+                selector.select(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection ready = (Connection) key.attachment();
+                try {
+                    ready.handle(key);
+                } catch (IOException e) {
+                    ready.fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 单个压测连接，一次性连接协议下每个请求都重新建连
+     */
+    private final class Connection {
+        private SocketChannel channel;
+
+        private SelectionKey key;
+
+        //已产生但还没发出的请求的计划发送时间
+        private final LongQueue pending = new LongQueue();
+
+        //已发出还没收到响应的请求的计划发送时间，响应按顺序返回
+        private final LongQueue inflight = new LongQueue();
+
+        private final ByteBuffer out = ByteBuffer.allocateDirect(maxRequestLength * options.depth);
+
+        private final Protocol.ResponseParser parser = protocol.newParser();
+
+        private boolean connected;
+
+        private boolean queuedDirty;
+
+        void open() throws IOException {
+            channel = SocketAddresses.openSocketChannel(address);
+            if (!SocketAddresses.isUnix(address)) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            channel.configureBlocking(false);
+            connected = channel.connect(address);
+            key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+            out.clear();
+            parser.reset();
+        }
+
+        void submit(long intendedTime) {
+            pending.add(intendedTime);
+            markDirty();
+        }
+
+        private void markDirty() {
+            if (!queuedDirty) {
+                queuedDirty = true;
+                dirty.add(this);
+            }
+        }
+
+        /**
+         * 在pipelining深度允许的范围内发出排队的请求
+         */
+        void dispatch() {
+            queuedDirty = false;
+            try {
+                if (!protocol.persistent && channel == null && !pending.isEmpty()) {
+                    open();
+                }
+                if (channel == null || !connected) {
+                    return;
+                }
+                while (!pending.isEmpty() && inflight.size() < options.depth
+                        && out.remaining() >= requests[nextRequest].remaining()) {
+                    inflight.add(pending.poll());
+                    out.put(requests[nextRequest].duplicate());
+                    nextRequest = (nextRequest + 1) % requests.length;
+                    sent++;
+                }
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean remaining = out.hasRemaining();
+            out.compact();
+            key.interestOps(remaining ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                markDirty();
+                return;
+            }
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isReadable()) {
+                read();
+            }
+        }
+
+        private void read() throws IOException {
+            long now = System.nanoTime();
+            int n;
+            while (channel != null && (n = channel.read(clearScratch())) != 0) {
+                if (n < 0) {
+                    if (protocol.persistent || !inflight.isEmpty()) {
+                        throw new IOException("connection closed by server");
+                    }
+                    close();
+                    return;
+                }
+                scratch.flip();
+                int responses = parser.parse(scratch);
+                for (int i = 0; i < responses && !inflight.isEmpty(); i++) {
+                    histogram.record(now - inflight.poll());
+                    completedCounter.increment();
+                    if (intervalNanos == 0) {
+                        //闭环模式收到响应立即补发一个请求
+                        pending.add(now);
+                    }
+                }
+                if (!protocol.persistent && inflight.isEmpty()) {
+                    //一次性连接收到响应后关闭，下一个请求重新建连
+                    close();
+                }
+            }
+            if (!pending.isEmpty()) {
+                markDirty();
+            }
+        }
+
+        private ByteBuffer clearScratch() {
+            scratch.clear();
+            return scratch;
+        }
+
+        /**
+         * 连接出错，在途请求计为失败，持久连接协议下重新建连
+         */
+        void fail(IOException e) {
+            errors += inflight.size();
+            inflight.clear();
+            if (errors < 10) {
+                logger.warn("connection to {} fail:{}", address, e.toString());
+            }
+            close();
+            if (protocol.persistent) {
+                try {
+                    open();
+                } catch (IOException e1) {
+                    logger.error("reconnect to {} fail:", address, e1);
+                }
+            }
+            if (!pending.isEmpty()) {
+                markDirty();
+            }
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    //压测连接关闭失败不影响结果
+                }
+                channel = null;
+                key = null;
+                connected = false;
+            }
+        }
+    }
+
+    /**
+     * 可扩容的long环形队列，避免装箱
+     */
+    static final class LongQueue {
+        private long[] elements = new long[16];
+
+        private int head;
+
+        private int size;
+
+        void add(long value) {
+            if (size == elements.length) {
+                long[] grown = new long[elements.length << 1];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = elements[(head + i) & (elements.length - 1)];
+                }
+                elements = grown;
+                head = 0;
+            }
+            elements[(head + size) & (elements.length - 1)] = value;
+            size++;
+        }
+
+        long poll() {
+            long value = elements[head];
+            head = (head + 1) & (elements.length - 1);
+            size--;
+            return value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            Arrays.fill(elements, 0);
+            head = 0;
+            size = 0;
+        }
+    }
+}
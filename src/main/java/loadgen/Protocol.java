@@ -0,0 +1,171 @@
+package loadgen;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 各服务端的请求/响应格式
+ */
+public enum Protocol {
+    /**
+     * nio.test2.NioServer：4字节长度字段帧，每个请求帧对应一个响应帧，可以pipelining
+     */
+    LENGTH_PREFIXED(true, true),
+    /**
+     * nio.test1.NIOServer、bio.BioServer、aio.AIOServer：长连接，固定回复"HelloClient"，请求不能超过服务端1024字节的读buffer；
+     * 请求以'\n'结尾，NIOServer按行切分消息，BioServer和AIOServer每次读到数据回复一次
+     */
+    FIXED_REPLY(true, false),
+    /**
+     * 和FIXED_REPLY相同的请求/响应，但每个请求都新建连接，用于测量建连的开销
+     */
+    ONE_SHOT(false, false),
+    /**
+     * nio.test2.NioServer的键值服务（-Dnio.kv=true）：长度字段帧，请求为随机key上的GET和SET，见nio.test2.KvHandler
+     */
+    KV(true, true);
+
+    //KV预先生成的请求个数按key个数取，限制在这个范围内，各连接循环使用
+    private static final int KV_MIN_REQUESTS = 4096;
+
+    private static final int KV_MAX_REQUESTS = 65536;
+
+    static final int FIXED_REPLY_LENGTH = "HelloClient".length();
+
+    //是否在一个连接上发送多个请求
+    final boolean persistent;
+
+    //是否可以在收到响应前连续发送多个请求
+    final boolean pipelining;
+
+    Protocol(boolean persistent, boolean pipelining) {
+        this.persistent = persistent;
+        this.pipelining = pipelining;
+    }
+
+    /**
+     * 构造一个请求，内容为size个'x'；没有长度字段的协议最后一个字节换成'\n'
+     */
+    ByteBuffer request(int size) {
+        ByteBuffer request = ByteBuffer.allocateDirect(this == LENGTH_PREFIXED ? 4 + size : size);
+        if (this == LENGTH_PREFIXED) {
+            request.putInt(size);
+        }
+        for (int i = 0; i < size; i++) {
+            request.put(this != LENGTH_PREFIXED && i == size - 1 ? (byte) '\n' : (byte) 'x');
+        }
+        request.flip();
+        return request.asReadOnlyBuffer();
+    }
+
+    /**
+     * 压测线程循环发送的请求：KV为按keys和writePercent随机生成的一组GET/SET，其余协议只有一个请求
+     */
+    ByteBuffer[] requests(LoadGenerator.Options options) {
+        if (this != KV) {
+            return new ByteBuffer[]{request(options.size)};
+        }
+        //固定种子，每次压测的请求序列相同
+        Random random = new Random(42);
+        ByteBuffer[] requests = new ByteBuffer[Math.min(Math.max(options.keys, KV_MIN_REQUESTS), KV_MAX_REQUESTS)];
+        for (int i = 0; i < requests.length; i++) {
+            byte[] key = ("key:" + random.nextInt(options.keys)).getBytes();
+            boolean set = random.nextInt(100) < options.writePercent;
+            int length = 3 + key.length + (set ? options.size : 0);
+            ByteBuffer request = ByteBuffer.allocateDirect(4 + length);
+            request.putInt(length);
+            request.put((byte) (set ? 2 : 1));
+            request.putShort((short) key.length);
+            request.put(key);
+            for (int j = 0; set && j < options.size; j++) {
+                request.put((byte) 'x');
+            }
+            request.flip();
+            requests[i] = request.asReadOnlyBuffer();
+        }
+        return requests;
+    }
+
+    /**
+     * 每个连接的响应解析状态，统计in中包含了多少个完整的响应
+     */
+    ResponseParser newParser() {
+        return this == LENGTH_PREFIXED || this == KV ? new LengthPrefixedParser() : new FixedLengthParser(FIXED_REPLY_LENGTH);
+    }
+
+    interface ResponseParser {
+        /**
+         * 消费in中的全部数据
+         *
+         * @return 其中完整响应的个数
+         */
+        int parse(ByteBuffer in);
+
+        void reset();
+    }
+
+    static final class LengthPrefixedParser implements ResponseParser {
+        //帧头已读取的字节数和拼出的长度
+        private int headerRead;
+
+        private int length;
+
+        //当前帧剩余未读的内容字节数
+        private int bodyRemaining = -1;
+
+        @Override
+        public int parse(ByteBuffer in) {
+            int responses = 0;
+            while (in.hasRemaining()) {
+                if (bodyRemaining < 0) {
+                    length = (length << 8) | (in.get() & 0xff);
+                    if (++headerRead == 4) {
+                        bodyRemaining = length;
+                        headerRead = 0;
+                        length = 0;
+                    } else {
+                        continue;
+                    }
+                }
+                int skip = Math.min(bodyRemaining, in.remaining());
+                in.position(in.position() + skip);
+                bodyRemaining -= skip;
+                if (bodyRemaining == 0) {
+                    bodyRemaining = -1;
+                    responses++;
+                }
+            }
+            return responses;
+        }
+
+        @Override
+        public void reset() {
+            headerRead = 0;
+            length = 0;
+            bodyRemaining = -1;
+        }
+    }
+
+    static final class FixedLengthParser implements ResponseParser {
+        private final int responseLength;
+
+        private int partial;
+
+        FixedLengthParser(int responseLength) {
+            this.responseLength = responseLength;
+        }
+
+        @Override
+        public int parse(ByteBuffer in) {
+            int total = partial + in.remaining();
+            in.position(in.limit());
+            partial = total % responseLength;
+            return total / responseLength;
+        }
+
+        @Override
+        public void reset() {
+            partial = 0;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package metrics;
+
+import java.util.Arrays;
+
+/**
+ * HdrHistogram风格的定长直方图，记录非负long值（通常是纳秒）。
+ * 小于2048的值精确记录，更大的值按2的幂分段，每段再等分为1024个桶，相对误差不超过0.1%；
+ * 桶数组在构造时一次分配好，record不分配内存。非线程安全，每个线程各自记录，汇总时用{@link #add(Histogram)}合并
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 10;
+
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT << 1;
+
+    //可记录的最大值约为2^40纳秒（约18分钟），更大的值按最大值记录
+    private static final int MAX_VALUE_MAGNITUDE = 40;
+
+    public static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_MAGNITUDE) - 1;
+
+    private final long[] counts = new long[countsIndex(MAX_TRACKABLE_VALUE) + 1];
+
+    private long totalCount;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    private double sum;
+
+    /**
+     * 记录一个值，负数按0记录
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        counts[countsIndex(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * 把other的记录合并到当前直方图
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * 复制当前的全部记录
+     */
+    public Histogram copy() {
+        Histogram copy = new Histogram();
+        copy.add(this);
+        return copy;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long totalCount() {
+        return totalCount;
+    }
+
+    public long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * 百分位值，返回所在桶的上界
+     *
+     * @param percentile 0到100之间
+     */
+    public long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long accumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            accumulated += counts[i];
+            if (accumulated >= target) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int countsIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        //value最高位所在的段，段内再按高11位定位到桶
+        int bucket = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+        int subBucket = (int) (value >>> bucket);
+        return (bucket << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + subBucket;
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+        long subBucket = index - ((long) bucket << SUB_BUCKET_HALF_COUNT_MAGNITUDE);
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,70 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+/**
+ * 拉取指标的HTTP端点，GET /metrics 返回所有已注册来源的文本格式指标。
+ * 使用JDK自带的HttpServer，单独一个守护线程处理请求，不占用Reactor线程
+ */
+public class MetricsHttpServer {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+    private final HttpServer httpServer;
+
+    public MetricsHttpServer(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", this::handle);
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void register(MetricsSource source) {
+        sources.add(source);
+    }
+
+    public void start() {
+        httpServer.start();
+        logger.info("metrics endpoint started, http://{}:{}/metrics",
+                httpServer.getAddress().getHostString(), httpServer.getAddress().getPort());
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder out = new StringBuilder(4096);
+            for (MetricsSource source : sources) {
+                source.writeMetrics(out);
+            }
+            byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } catch (Exception e) {
+            logger.error("write metrics fail:", e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package metrics;
+
+/**
+ * 可以被{@link MetricsHttpServer}拉取的指标来源
+ */
+public interface MetricsSource {
+    /**
+     * 以文本格式输出当前指标，每行一个"名称{标签} 值"
+     *
+     * @param out 输出目标
+     */
+    void writeMetrics(StringBuilder out);
+}
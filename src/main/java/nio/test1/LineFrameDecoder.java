@@ -0,0 +1,62 @@
+package nio.test1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * 按'\n'切分消息，每个连接一个实例，只在selector线程上使用。
+ * TCP是字节流，一条消息可能分在多次读中，一次读也可能包含多条消息：完整的行交给回调，半行留在累积数组中等下一次读。
+ * 交出的消息不包含换行符，行尾的'\r'一并去掉
+ */
+final class LineFrameDecoder {
+    //累积数组的初始容量
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxLineLength;
+
+    //还没有遇到换行符的数据
+    private byte[] cumulation = new byte[INITIAL_CAPACITY];
+
+    private int length;
+
+    /**
+     * @param maxLineLength 一行最多的字节数，超过后还没有换行符说明对端不是按行发送，连接需要关闭
+     */
+    LineFrameDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * 追加in中的全部数据，解出其中所有完整的行
+     *
+     * @param in  读模式的buffer，返回后被读完
+     * @param out 每个完整的行调用一次，数组归回调所有
+     * @throws IOException 累积的半行超过maxLineLength
+     */
+    void decode(ByteBuffer in, Consumer<byte[]> out) throws IOException {
+        int readable = in.remaining();
+        if (length + readable > cumulation.length) {
+            cumulation = Arrays.copyOf(cumulation, Math.max(length + readable, cumulation.length * 2));
+        }
+        in.get(cumulation, length, readable);
+        int end = length + readable;
+        int start = 0;
+        for (int i = length; i < end; i++) {
+            if (cumulation[i] == '\n') {
+                int lineEnd = i > start && cumulation[i - 1] == '\r' ? i - 1 : i;
+                out.accept(Arrays.copyOfRange(cumulation, start, lineEnd));
+                start = i + 1;
+            }
+        }
+        //剩下的半行移到数组开头
+        length = end - start;
+        if (start > 0 && length > 0) {
+            System.arraycopy(cumulation, start, cumulation, 0, length);
+        }
+        if (length > maxLineLength) {
+            throw new IOException("line exceeds " + maxLineLength + " bytes without a line feed");
+        }
+    }
+}
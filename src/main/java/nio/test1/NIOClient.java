@@ -1,15 +1,20 @@
 package nio.test1;
 
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import selector.OptimizedSelector;
+import transport.SocketAddresses;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
 
 /**
  * @author bitao
@@ -18,17 +23,20 @@ import java.util.Iterator;
 
 public class NIOClient {
     private static final Logger logger = LoggerFactory.getLogger(NIOClient.class);
-    //通道管理器，NIO选择器
-    private Selector selector;
+    //通道管理器，NIO选择器，就绪key用数组遍历，select空转时自动重建
+    private OptimizedSelector selector;
+
+    private final Consumer<SelectionKey> keyHandler = this::handle;
 
     /**
-     * 启动客户端测试
+     * 启动客户端测试，通过-Dnio.address=unix:路径 连接本机监听unix domain socket的NIOServer
      *
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
         NIOClient client = new NIOClient();
-        client.initClient("localhost", 9000);
+        String address = System.getProperty("nio.address");
+        client.initClient(address != null ? SocketAddresses.parse(address) : new InetSocketAddress("localhost", 9000));
         client.connect();
     }
 
@@ -40,20 +48,32 @@ public class NIOClient {
      * @throws IOException
      */
     public void initClient(String ip, int port) throws IOException {
-        // 获得一个客户端Socket通道
-        SocketChannel channel = SocketChannel.open();
+        initClient(new InetSocketAddress(ip, port));
+    }
+
+    /**
+     * @param address 服务器的TCP地址或者unix domain socket地址
+     * @throws IOException
+     */
+    public void initClient(SocketAddress address) throws IOException {
+        // 获得一个客户端Socket通道，协议族和服务器地址一致
+        SocketChannel channel = SocketAddresses.openSocketChannel(address);
         // 设置通道为非阻塞
         channel.configureBlocking(false);
         // 初始化一个通道管理器
-        this.selector = Selector.open();
+        this.selector = new OptimizedSelector("nio-client", null);
         //客户端连接服务端,其实方法执行并没有实现连接，需要在listen（）方法中调
         //用channel.finishConnect() 才能完成连接
-        channel.connect(new InetSocketAddress(ip, port));
+        //unix domain socket通常立即连接成功，不会再触发CONNECT事件
+        if (channel.connect(address)) {
+            connected(channel);
+            return;
+        }
         //也可以直接调用SocketChannel的open()方法与服务端进行连接
 //        SocketChannel channel1 = SocketChannel.open(new InetSocketAddress(ip, port));
         //将通道管理器和该通道绑定，并为该通道注册SelectionKey.OP_CONNECT事件，向选择器注册Channel，并监听该Channel上的Connect事件
         //注意，CONNECT事件只会在客户端的SocketChannel上发送，而ACCEPT事件只会在服务端的SocketChannel上发生
-        channel.register(selector, SelectionKey.OP_CONNECT);
+        selector.register(channel, SelectionKey.OP_CONNECT, null);
     }
 
     /**
@@ -64,36 +84,56 @@ public class NIOClient {
     public void connect() throws IOException {
         // 轮询selector，选择注册Channel上的感兴趣事件
         while (true) {
-            selector.select();
-            // 获得selector中选中的项的迭代器
-            Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next();
-                // 删除已选的key,以防下一次轮询重复处理
-                it.remove();
-                // 连接事件发生
-                if (key.isConnectable()) {
-                    SocketChannel channel = (SocketChannel) key.channel();
-                    // 如果正在连接，则完成连接
-                    if (channel.isConnectionPending()) {
-                        channel.finishConnect();
-                    } else {
-                        logger.info("客户端连接服务端成功");
-                    }
-                    // 设置成非阻塞，之前貌似已经设置为非阻塞了
-                    channel.configureBlocking(false);
-                    //客户端给服务端发送信息，此时服务端就可以读取到数据了
-                    ByteBuffer buffer = ByteBuffer.wrap("HelloServer".getBytes());
-                    channel.write(buffer);
-                    //为了可以接收到服务端给客户端发送的信息，需要给客户端的SocketChannel通道设置读事件。
-                    channel.register(this.selector, SelectionKey.OP_READ);
-                } else if (key.isReadable()) {
-                    read(key);
+            selector.select(0);
+            // 遍历selector中选中的项，遍历后清空，以防下一次轮询重复处理
+            selector.processSelectedKeys(keyHandler);
+        }
+    }
+
+    /**
+     * 处理单个就绪的key，连接失败或者读失败时关闭该连接
+     *
+     * @param key
+     */
+    private void handle(SelectionKey key) {
+        try {
+            // 连接事件发生
+            if (key.isConnectable()) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                // 如果正在连接，则完成连接
+                if (channel.isConnectionPending()) {
+                    channel.finishConnect();
+                } else {
+                    logger.info("客户端连接服务端成功");
                 }
+                connected(channel);
+            } else if (key.isReadable()) {
+                read(key);
+            }
+        } catch (IOException e) {
+            logger.error("handle fail:", e);
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e1) {
+                logger.error("close channel fail:", e1);
             }
         }
     }
 
+    /**
+     * 连接建立后发送消息并关注读事件
+     */
+    private void connected(SocketChannel channel) throws IOException {
+        // 设置成非阻塞，之前貌似已经设置为非阻塞了
+        channel.configureBlocking(false);
+        //客户端给服务端发送信息，此时服务端就可以读取到数据了；服务端按换行符切分消息
+        ByteBuffer buffer = ByteBuffer.wrap("HelloServer\n".getBytes());
+        channel.write(buffer);
+        //为了可以接收到服务端给客户端发送的信息，需要给客户端的SocketChannel通道设置读事件。
+        selector.register(channel, SelectionKey.OP_READ, null);
+    }
+
     /**
      * 处理读取服务端发来的信息 的事件
      *
@@ -104,11 +144,17 @@ public class NIOClient {
         //和服务端的read方法一样
         // 服务器可读取消息:得到事件发生的Socket通道
         SocketChannel channel = (SocketChannel) key.channel();
-        // 创建读取的缓冲区
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        int len = channel.read(buffer);
-        if (len != -1) {
-            logger.info("客户端收到信息：" + new String(buffer.array(), 0, len));
+        // 从池中申请读取的缓冲区，读完归还
+        PooledByteBuffer pooled = ByteBufferPool.DEFAULT.acquire(1024);
+        try {
+            ByteBuffer buffer = pooled.buffer();
+            int len = channel.read(buffer);
+            if (len != -1) {
+                buffer.flip();
+                logger.info("客户端收到信息：" + StandardCharsets.UTF_8.decode(buffer));
+            }
+        } finally {
+            pooled.release();
         }
     }
 }
@@ -1,60 +1,329 @@
 package nio.test1;
 
+import buffer.AdaptiveRecvSizer;
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
+import lifecycle.Lifecycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import selector.OptimizedSelector;
+import timer.HashedWheelTimer;
+import transport.SocketAddresses;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * @author bitao
  * @date 2021/11/5 下午1:53
+ * <p>
+ * selector线程只做IO和分帧：读到的数据按'\n'切分成消息（{@link LineFrameDecoder}），一条请求分在多个TCP段中
+ * 也只处理一次；完整的消息交给工作线程池处理，同一连接的消息经{@link SerialExecutor}按顺序执行；
+ * 工作线程把响应放入无锁的响应队列并唤醒selector，由selector线程写出。
+ * 工作线程池通过-Dnio.worker=fixed|forkjoin|virtual选择，默认fixed，virtual需要JDK 21+。
+ * 连接超过-Dnio.readIdleTimeout毫秒没有读到数据时关闭，由selector线程的时间轮检查，为0时不检查。
+ * Selector由{@link OptimizedSelector}包装，就绪key用数组遍历，select空转时自动重建。
+ * 监听地址通过-Dnio.address指定，可以是unix:路径（unix domain socket，需要JDK 16+），见{@link SocketAddresses}。
+ * 进程退出时优雅关闭：停止accept，不再读取新消息，已经交给工作线程的消息的响应写出后再关闭连接，
+ * 超过-Dnio.shutdownTimeout毫秒后强制关闭
  */
 
-public class NIOServer {
+public class NIOServer implements Lifecycle, Runnable {
     private static final Logger logger = LoggerFactory.getLogger(NIOServer.class);
 
-    //可以使用线程池来处理实际的IO请求操作，主线程可以继续进行其他Channel就绪事件的处理
-    public static ExecutorService pool = Executors.newFixedThreadPool(10);
+    //单个连接最多有多少条消息在工作线程中排队，超过后暂停读，防止处理慢时消息无限堆积
+    private static final int MAX_PENDING_MESSAGES = 64;
+
+    private static final long READ_IDLE_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("nio.readIdleTimeout", 5 * 60 * 1000));
+
+    //一次读事件中最多读几次、最多读多少字节，避免一个连接占住selector线程
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private static final int MAX_READ_BYTES_PER_EVENT = 64 * 1024;
+
+    //一条消息最多的字节数，超过后还没有换行符时关闭连接
+    private static final int MAX_MESSAGE_LENGTH = Integer.getInteger("nio.maxMessageLength", 64 * 1024);
+
+    //连接的SO_RCVBUF和SO_SNDBUF，为0时使用系统默认值
+    private static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("nio.rcvbuf", 0);
+
+    private static final int SEND_BUFFER_SIZE = Integer.getInteger("nio.sndbuf", 0);
+
+    //优雅关闭期间检查连接是否写完的间隔
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 10;
+
+    //响应内容固定，放在直接内存中，每次发送只复制一个视图
+    private static final ByteBuffer HELLO_CLIENT = directBuffer("HelloClient");
+
+    //TCP或者unix domain socket的监听地址
+    private final SocketAddress address;
+
+    //使用线程池来处理读到的消息，selector线程可以继续进行其他Channel就绪事件的处理
+    private final ExecutorService pool;
+
+    //wakeup()在一轮select中只唤醒一次，多个响应只需要唤醒一次
+    private OptimizedSelector selector;
+
+    private ServerSocketChannel ssc;
+
+    //工作线程产生的响应，多个工作线程写、selector线程读
+    private final Queue<Response> responses = new ConcurrentLinkedQueue<>();
+
+    //处理单个就绪key，每轮复用同一个实例
+    private final Consumer<SelectionKey> keyHandler = this::processKey;
+
+    //读空闲检查用的时间轮，只在selector线程访问
+    private final HashedWheelTimer timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    //调用stop()后为true，selector线程在连接全部关闭后退出
+    private volatile boolean draining;
+
+    //优雅关闭的截止时间，System.nanoTime()
+    private volatile long drainDeadline;
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    public NIOServer(int port, ExecutorService pool) {
+        this(new InetSocketAddress(port), pool);
+    }
+
+    public NIOServer(SocketAddress address, ExecutorService pool) {
+        this.address = address;
+        this.pool = pool;
+    }
 
     public static void main(String[] args) throws IOException {
+        String address = System.getProperty("nio.address");
+        NIOServer server = new NIOServer(address != null ? SocketAddresses.parse(address) : new InetSocketAddress(9000),
+                workerPool(System.getProperty("nio.worker", "fixed")));
+        server.start();
+        long shutdownTimeout = Long.getLong("nio.shutdownTimeout", 30 * 1000);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(shutdownTimeout, TimeUnit.MILLISECONDS);
+            try {
+                server.awaitTermination(shutdownTimeout + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "nio-shutdown"));
+    }
+
+    @Override
+    public void start() throws IOException {
         //创建一个在本地端口进行监听的服务Socket通道，并设置为非阻塞方式，即服务端的Channel
-        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc = SocketAddresses.openServerSocketChannel(address);
         //必须配置为非阻塞模式才能往selector上注册该Channel，否则会报错，因为selector模式本身就是非阻塞模式
         ssc.configureBlocking(false);
-        //服务端启动
-        ssc.socket().bind(new InetSocketAddress(9000));
-        logger.info("服务端启动成功");
+        //accept的连接继承监听socket的接收缓冲区，超过64KB时必须在bind之前设置才能协商窗口扩大因子
+        if (RECEIVE_BUFFER_SIZE > 0) {
+            ssc.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        }
+        //服务端启动，先删除上次异常退出遗留的socket文件；unix domain socket不支持ssc.socket()
+        SocketAddresses.deleteStaleSocketFile(address);
+        ssc.bind(address);
+        logger.info("服务端启动成功：{}", SocketAddresses.format(address));
         //实例化一个选择器Selector
-        Selector selector = Selector.open();
+        selector = new OptimizedSelector("nio-selector", this::onKeyMigrated);
         //把ServerSocketChannel注册到selector上，并且使得selector对ServerSocketChannel的接受连接事件感兴趣，即对客户端accept连接操作感兴趣
-        ssc.register(selector, SelectionKey.OP_ACCEPT);
+        selector.register(ssc, SelectionKey.OP_ACCEPT, null);
+        new Thread(this, "nio-selector").start();
+    }
+
+    /**
+     * 停止accept并暂停全部连接的读，由selector线程在连接写完后逐个关闭
+     */
+    @Override
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+        draining = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public void run() {
+        try {
+            eventLoop();
+        } finally {
+            closeAll();
+            pool.shutdown();
+            terminated.countDown();
+            logger.info("服务端已关闭");
+        }
+    }
+
+    private void eventLoop() {
         /**
          * 服务端一直轮询选择器，若注册的某个Channel上有该channel感兴趣的事件，那么选择器就会把该Channel筛选出来以供
          * 后续的IO事件处理器进行处理
          */
         while (true) {
-            logger.info("等待事件发生。。");
-            // 轮询监听channel里的key，select是阻塞的，accept()也是阻塞的
-            int select = selector.select();
-            logger.info("当前有{}个Channel发生就绪事件", select);
-            // 有客户端请求，被轮询监听到，处理各个就绪事件
-            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                //每个向Selector注册的Channel都会对应一个特定的SelectionKey，从该SelectionKey中可以获取对应的Channel
-                SelectionKey key = it.next();
-                //删除本次处理的SelectionKey，防止下次select重复处理
-                it.remove();
-                //处理对应SelectionKey上的就绪事件
-                handle(key);
+            try {
+                if (draining && drain()) {
+                    return;
+                }
+                logger.debug("等待事件发生。。");
+                //先清除唤醒标记再检查响应队列，之后到达的响应一定会调用wakeup
+                selector.resetWakeup();
+                // 轮询监听channel里的key，select是阻塞的，accept()也是阻塞的；有待写出的响应时不阻塞，
+                // 有等待中的超时检查时最多阻塞到时间轮的下一个tick，优雅关闭期间定期检查连接是否已经写完
+                int select;
+                if (!responses.isEmpty()) {
+                    select = selector.selectNow();
+                } else if (timer.pendingTimeouts() > 0 || draining) {
+                    long timeoutMillis = timer.pendingTimeouts() > 0
+                            ? timer.millisUntilNextTick(System.nanoTime()) : DRAIN_CHECK_INTERVAL_MILLIS;
+                    if (draining) {
+                        timeoutMillis = Math.min(timeoutMillis, DRAIN_CHECK_INTERVAL_MILLIS);
+                    }
+                    select = timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.selectNow();
+                } else {
+                    select = selector.select(0);
+                }
+                logger.debug("当前有{}个Channel发生就绪事件", select);
+                // 有客户端请求，被轮询监听到，处理各个就绪事件
+                selector.processSelectedKeys(keyHandler);
+                //写出工作线程产生的响应
+                processResponses();
+                //关闭读空闲的连接
+                timer.expireTimeouts(System.nanoTime());
+            } catch (IOException | RuntimeException e) {
+                //单轮循环的异常不能结束selector线程，否则全部连接都会被关闭
+                logger.error("select fail:", e);
+            }
+        }
+    }
+
+    /**
+     * 优雅关闭期间的一轮检查：关闭监听socket，没有在处理中的消息和待发送数据的连接直接关闭，其余连接停止读
+     *
+     * @return 已经没有连接
+     */
+    private boolean drain() throws IOException {
+        closeListener();
+        boolean expired = System.nanoTime() - drainDeadline >= 0;
+        int remaining = 0;
+        for (SelectionKey key : selector.unwrap().keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Connection)) {
+                continue;
+            }
+            Connection connection = connection(key);
+            if (connection.pendingMessages == 0 && connection.pendingWrites.isEmpty()) {
+                close(key);
+            } else if (expired) {
+                remaining++;
+                close(key);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                remaining++;
+            }
+        }
+        if (expired && remaining > 0) {
+            logger.warn("{} connections not drained before deadline, force close", remaining);
+            return true;
+        }
+        return remaining == 0;
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.unwrap().keys()) {
+            close(key);
+        }
+        try {
+            closeListener();
+            selector.close();
+        } catch (IOException e) {
+            logger.error("close selector fail:", e);
+        }
+    }
+
+    /**
+     * 关闭监听socket，unix domain socket的文件在关闭后仍然存在，需要删除
+     */
+    private void closeListener() throws IOException {
+        if (!ssc.isOpen()) {
+            return;
+        }
+        ssc.close();
+        SocketAddresses.deleteSocketFile(address);
+    }
+
+    /**
+     * 处理对应SelectionKey上的就绪事件，每个向Selector注册的Channel都会对应一个特定的SelectionKey，从该SelectionKey中可以获取对应的Channel
+     */
+    private void processKey(SelectionKey key) {
+        try {
+            handle(key);
+        } catch (IOException | RuntimeException e) {
+            //例如key已经被取消、工作线程池拒绝任务，只关闭这一个连接
+            logger.error("handle fail:", e);
+            close(key);
+        }
+    }
+
+    /**
+     * 接收一个新连接并注册到Selector，失败时只关闭这个连接，不能像其他key一样关闭监听socket
+     */
+    private void accept(ServerSocketChannel ssc) {
+        SocketChannel sc = null;
+        try {
+            //NIO非阻塞体现：发生了连接事件时accept会马上返回；客户端在此之前已经重置连接时返回null
+            sc = ssc.accept();
+            if (sc == null) {
+                return;
+            }
+            //设置非阻塞模式并向Selector选择器进行注册
+            sc.configureBlocking(false);
+            if (RECEIVE_BUFFER_SIZE > 0) {
+                sc.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            }
+            if (SEND_BUFFER_SIZE > 0) {
+                sc.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+            }
+            //通过Selector监听服务端的SocketChannel时对读事件感兴趣，attachment为该连接的状态
+            Connection connection = new Connection(pool);
+            connection.key = selector.register(sc, SelectionKey.OP_READ, connection);
+            connection.onMessage = message -> dispatch(connection.key, message);
+            if (READ_IDLE_TIMEOUT_NANOS > 0) {
+                connection.idleTimeout = timer.newTimeout(() -> checkIdle(connection),
+                        READ_IDLE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            //例如文件描述符用尽
+            logger.error("accept fail:", e);
+            if (sc != null) {
+                try {
+                    sc.close();
+                } catch (IOException e1) {
+                    logger.error("close channel fail:", e1);
+                }
             }
         }
     }
@@ -65,46 +334,270 @@ public class NIOServer {
      * @param key
      * @throws IOException
      */
-    private static void handle(SelectionKey key) throws IOException {
+    private void handle(SelectionKey key) throws IOException {
         //处理客户端连接事件
         if (key.isAcceptable()) {
-            logger.info("有客户端连接事件发生了。。");
-            ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
-            //NIO非阻塞体现：此处accept方法是阻塞的，但是这里因为是发生了连接事件，即一定会有新的客户端连接请求，所以这个方法会马上执行完，不会阻塞
-            //处理完连接请求不会继续等待客户端的数据发送，此处得到客户端对应的SocketChannel
-            SocketChannel sc = ssc.accept();
-            //设置非阻塞模式并向Selector选择器进行注册
-            sc.configureBlocking(false);
-            //通过Selector监听服务端的SocketChannel时对读事件感兴趣
-            sc.register(key.selector(), SelectionKey.OP_READ);
+            logger.debug("有客户端连接事件发生了。。");
+            accept((ServerSocketChannel) key.channel());
         } else if (key.isReadable()) {//处理客户端可读数据事件
-            logger.info("有客户端数据可读事件发生了。。");
+            logger.debug("有客户端数据可读事件发生了。。");
             SocketChannel sc = (SocketChannel) key.channel();
-            ByteBuffer buffer = ByteBuffer.allocate(1024);
-            //NIO非阻塞体现:首先read方法不会阻塞，其次这种事件响应模型，当调用到read方法时肯定是发生了客户端发送数据的事件
-            //因此一定可以从客户端的SocketChannel中读取到数据
-            int len = sc.read(buffer);
-            if (len != -1) {
-                logger.info("读取到客户端发送的数据：" + new String(buffer.array(), 0, len));
-            } else {
-                logger.warn("客户端连接关闭。。。");
-                //当客户端断开时，需要关闭服务端的SocketChannel
-                sc.close();
-                key.cancel();
+            Connection connection = connection(key);
+            //读满了buffer时继续读，直到读空socket或者用完读取预算；每次读到的数据立即分帧，完整的消息交给工作线程
+            int totalBytes = 0;
+            for (int reads = 0; reads < MAX_READS_PER_EVENT && totalBytes < MAX_READ_BYTES_PER_EVENT; reads++) {
+                //从池中申请buffer，大小按该连接最近的读取量自适应调整，处理完立即归还
+                PooledByteBuffer pooled = ByteBufferPool.DEFAULT.acquire(connection.recvSizer.guess());
+                int attempted;
+                int len;
+                try {
+                    ByteBuffer buffer = pooled.buffer();
+                    attempted = buffer.remaining();
+                    //NIO非阻塞体现:首先read方法不会阻塞，其次这种事件响应模型，当调用到read方法时肯定是发生了客户端发送数据的事件
+                    //因此一定可以从客户端的SocketChannel中读取到数据
+                    len = sc.read(buffer);
+                    if (len > 0) {
+                        //pooled在这里就归还，分帧时消息被拷贝出来
+                        buffer.flip();
+                        connection.decoder.decode(buffer, connection.onMessage);
+                        totalBytes += len;
+                    }
+                } finally {
+                    pooled.release();
+                }
+                if (len == -1 && totalBytes == 0) {
+                    logger.warn("客户端连接关闭。。。");
+                    //当客户端断开时，需要关闭服务端的SocketChannel
+                    close(key);
+                    return;
+                }
+                connection.recvSizer.lastBytesRead(attempted, len);
+                if (len < attempted) {
+                    break;
+                }
+            }
+            if (totalBytes == 0) {
                 return;
             }
-            //服务端发送数据给客户端
-            ByteBuffer bufferToWrite = ByteBuffer.wrap("HelloClient".getBytes());
-            sc.write(bufferToWrite);
-            //对客户端的SocketChannel监听读数据和写数据事件，只有注册了写事件，才会监听channel上的写就绪事件
-            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            connection.recvSizer.readComplete(totalBytes);
+            connection.lastReadTime = System.nanoTime();
         } else if (key.isWritable()) {
-            SocketChannel sc = (SocketChannel) key.channel();
-            logger.info("write事件");
-            // NIO事件触发是水平触发
-            // 使用Java的NIO编程的时候，在没有数据可以往外写的时候要取消写事件，在有数据往外写的时候再注册写事件
-            //取消监听写事件，重新只对读事件感兴趣
-            key.interestOps(SelectionKey.OP_READ);
+            logger.debug("write事件");
+            //socket重新可写，继续写出上次没写完的数据
+            flush(key);
+        }
+    }
+
+    /**
+     * 把消息交给该连接的串行执行器，在工作线程中处理
+     */
+    private void dispatch(SelectionKey key, byte[] message) {
+        Connection connection = connection(key);
+        if (++connection.pendingMessages >= MAX_PENDING_MESSAGES) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        connection.executor.execute(() -> {
+            ByteBuffer response = process(message);
+            //Selector重建后key会变化，响应关联到连接上
+            responses.offer(new Response(connection, response));
+            //多个响应只唤醒一次selector，selector每轮select前清除标记
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * 业务处理，在工作线程中执行
+     *
+     * @param message 客户端发送的数据
+     * @return 响应
+     */
+    private static ByteBuffer process(byte[] message) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("读取到客户端发送的数据：" + new String(message, StandardCharsets.UTF_8));
+        }
+        return HELLO_CLIENT.duplicate();
+    }
+
+    /**
+     * 在selector线程中把工作线程产生的响应放入各连接的发送队列并写出
+     */
+    private void processResponses() {
+        Response response;
+        while ((response = responses.poll()) != null) {
+            Connection connection = response.connection;
+            SelectionKey key = connection.key;
+            //处理期间连接可能已经关闭
+            if (!key.isValid()) {
+                continue;
+            }
+            pendingWrites(key).add(response.buffer);
+            try {
+                flush(key);
+                if (connection.pendingMessages-- == MAX_PENDING_MESSAGES && !draining) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                logger.error("write response fail:", e);
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * 读空闲检查到期，超时则关闭连接，否则按最近一次读的时间重新调度
+     */
+    private void checkIdle(Connection connection) {
+        SelectionKey key = connection.key;
+        if (!key.isValid()) {
+            return;
+        }
+        long idle = System.nanoTime() - connection.lastReadTime;
+        if (idle >= READ_IDLE_TIMEOUT_NANOS) {
+            logger.debug("read idle timeout, close {}", key.channel());
+            close(key);
+        } else {
+            timer.schedule(connection.idleTimeout, READ_IDLE_TIMEOUT_NANOS - idle, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Selector重建时更新连接的key，迁移失败时channel已经关闭，取消读空闲检查
+     */
+    private void onKeyMigrated(SelectionKey oldKey, SelectionKey newKey) {
+        if (newKey != null) {
+            if (newKey.attachment() instanceof Connection) {
+                connection(newKey).key = newKey;
+            }
+        } else {
+            close(oldKey);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && connection(key).idleTimeout != null) {
+            connection(key).idleTimeout.cancel();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.error("close channel fail:", e);
+        }
+    }
+
+    /**
+     * 按名字创建工作线程池
+     */
+    static ExecutorService workerPool(String type) {
+        switch (type) {
+            case "fixed":
+                return Executors.newFixedThreadPool(10);
+            case "forkjoin":
+                //asyncMode为true时任务按FIFO执行，更适合事件处理
+                return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            case "virtual":
+                try {
+                    //Executors.newVirtualThreadPerTaskExecutor()，源码级别是Java 8，通过反射调用
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new UnsupportedOperationException("virtual threads require JDK 21+, current:" + System.getProperty("java.version"), e);
+                }
+            default:
+                throw new IllegalArgumentException("unknown worker pool:" + type + ", expect fixed|forkjoin|virtual");
+        }
+    }
+
+    private static ByteBuffer directBuffer(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static Connection connection(SelectionKey key) {
+        return (Connection) key.attachment();
+    }
+
+    private static Queue<ByteBuffer> pendingWrites(SelectionKey key) {
+        return connection(key).pendingWrites;
+    }
+
+    /**
+     * 把发送队列中的数据尽量写到socket，write不保证一次写完，socket发送缓冲区满时返回的字节数会小于剩余字节数，
+     * 剩下的数据必须留在队列中等待下一次写就绪事件
+     *
+     * @param key
+     * @throws IOException
+     */
+    private void flush(SelectionKey key) throws IOException {
+        SocketChannel sc = (SocketChannel) key.channel();
+        Queue<ByteBuffer> queue = pendingWrites(key);
+        ByteBuffer buffer;
+        while ((buffer = queue.peek()) != null) {
+            sc.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            queue.poll();
+        }
+        // NIO事件触发是水平触发
+        // 使用Java的NIO编程的时候，在没有数据可以往外写的时候要取消写事件，在有数据往外写的时候再注册写事件
+        if (queue.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            //对客户端的SocketChannel监听写数据事件，只有注册了写事件，才会监听channel上的写就绪事件
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * 连接状态，作为SelectionKey的attachment，除executor外只在selector线程访问
+     */
+    private static final class Connection {
+        //待发送数据的队列
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+
+        //Selector重建后更新
+        private SelectionKey key;
+
+        //保证同一连接的消息按顺序处理
+        private final SerialExecutor executor;
+
+        //已交给工作线程、还没有写回响应的消息数
+        private int pendingMessages;
+
+        private long lastReadTime = System.nanoTime();
+
+        //读空闲检查任务，关闭读空闲检查时为null
+        private HashedWheelTimer.Timeout idleTimeout;
+
+        //按最近的读取量调整读buffer的大小
+        private final AdaptiveRecvSizer recvSizer = new AdaptiveRecvSizer(512, 1024, 64 * 1024);
+
+        //把读到的数据按行切分成消息
+        private final LineFrameDecoder decoder = new LineFrameDecoder(MAX_MESSAGE_LENGTH);
+
+        //解出一条完整的消息后交给工作线程
+        private Consumer<byte[]> onMessage;
+
+        Connection(ExecutorService pool) {
+            this.executor = new SerialExecutor(pool);
+        }
+    }
+
+    /**
+     * 工作线程产生的响应
+     */
+    private static final class Response {
+        private final Connection connection;
+
+        private final ByteBuffer buffer;
+
+        Response(Connection connection, ByteBuffer buffer) {
+            this.connection = connection;
+            this.buffer = buffer;
         }
     }
 }
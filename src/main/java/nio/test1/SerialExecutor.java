@@ -0,0 +1,69 @@
+package nio.test1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 串行执行器，提交的任务按提交顺序在底层线程池中逐个执行，同一时刻最多占用一个工作线程。
+ * 每个连接一个，保证同一连接的消息按顺序处理，不同连接之间仍然并行
+ */
+final class SerialExecutor implements Executor {
+    private static final Logger logger = LoggerFactory.getLogger(SerialExecutor.class);
+
+    //一次最多连续执行的任务数，执行完后重新提交，避免一个繁忙的连接长期占住工作线程
+    private static final int MAX_BATCH = 16;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Executor executor;
+
+    private final Runnable drainTask = this::drain;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            for (int i = 0; i < MAX_BATCH && (task = tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.error("serial task fail:", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            //释放标记后再检查一次，防止和execute并发时漏掉刚提交的任务
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
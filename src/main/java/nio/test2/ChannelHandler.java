@@ -0,0 +1,9 @@
+package nio.test2;
+
+/**
+ * 处理器链{@link Pipeline}中的处理器，实现{@link InboundHandler}处理读到的消息，
+ * 实现{@link OutboundHandler}处理写出的消息，编解码器可以同时实现两者。
+ * 无状态的处理器可以被所有连接共享，有状态的处理器需要在{@link PipelineInitializer}中为每个连接创建
+ */
+public interface ChannelHandler {
+}
@@ -0,0 +1,67 @@
+package nio.test2;
+
+import limit.ConnectionLimiter;
+import transport.SocketAddresses;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 连接关闭时把accept时占用的名额归还给{@link ConnectionLimiter}。
+ * 每个连接一个实例，记下来源IP（unix domain socket的连接记为回环地址），关闭时不再依赖channel的状态；
+ * 连接没能注册到Reactor时处理器收不到channelInactive，由注册失败的回调调用{@link #release()}
+ */
+public class ConnectionLimitHandler implements InboundHandler {
+    private final ConnectionLimiter limiter;
+
+    private final InetAddress address;
+
+    //连接关闭和注册失败可能都会归还，只归还一次
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public ConnectionLimitHandler(ConnectionLimiter limiter, InetAddress address) {
+        this.limiter = limiter;
+        this.address = address;
+    }
+
+    /**
+     * 在初始化器加入的处理器之前加入归还名额的处理器，连接必须已经在accept时占用了名额
+     */
+    static PipelineInitializer limited(ConnectionLimiter limiter, PipelineInitializer initializer) {
+        return pipeline -> {
+            InetAddress address = SocketAddresses.hostAddress(pipeline.session().remoteAddress());
+            pipeline.addLast("connectionLimit", new ConnectionLimitHandler(limiter, address));
+            initializer.initPipeline(pipeline);
+        };
+    }
+
+    /**
+     * 在初始化器加入的处理器之前加入本处理器，用于accept时已经为该连接创建好处理器的场景
+     */
+    PipelineInitializer limited(PipelineInitializer initializer) {
+        return pipeline -> {
+            pipeline.addLast("connectionLimit", this);
+            initializer.initPipeline(pipeline);
+        };
+    }
+
+    /**
+     * 归还名额，只有第一次调用生效
+     */
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            limiter.release(address);
+        }
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(HandlerContext ctx) throws Exception {
+        release();
+        ctx.fireChannelInactive();
+    }
+}
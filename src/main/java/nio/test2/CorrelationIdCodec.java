@@ -0,0 +1,80 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 服务端的请求ID编解码器，配合{@link NioClientPool}在一个连接上同时处理多个请求。
+ * 请求帧的内容为4字节大端请求ID + 请求内容，入站时去掉请求ID交给后面的处理器，
+ * 出站时把同一个请求ID加在响应前面，客户端据此把响应和请求对应起来。
+ * <p>
+ * 请求ID按收到的顺序暂存，所以后面的处理器必须对每个请求按顺序回复且只回复一次；
+ * 有状态，每个连接需要一个新的实例，应该紧挨着帧编解码器放在处理器链的最前面
+ */
+public class CorrelationIdCodec implements InboundHandler, OutboundHandler {
+    public static final int CORRELATION_ID_LENGTH = 4;
+
+    //还没有回复的请求ID，环形队列
+    private int[] ids = new int[16];
+
+    private int head;
+
+    private int size;
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        CompositeBuffer frame = (CompositeBuffer) msg;
+        if (frame.readableBytes() < CORRELATION_ID_LENGTH) {
+            frame.release();
+            throw new IOException("frame without correlation id from " + ctx.session().remoteAddress());
+        }
+        offer(frame.getInt(0));
+        frame.skipBytes(CORRELATION_ID_LENGTH);
+        ctx.fireChannelRead(frame);
+    }
+
+    @Override
+    public void write(HandlerContext ctx, Object msg) throws Exception {
+        CompositeBuffer payload;
+        if (msg instanceof CompositeBuffer) {
+            payload = (CompositeBuffer) msg;
+        } else if (msg instanceof ByteBuffer) {
+            payload = CompositeBuffer.wrap((ByteBuffer) msg);
+        } else {
+            throw new IllegalArgumentException("unsupported outbound msg type: " + msg.getClass().getName());
+        }
+        if (size == 0) {
+            payload.release();
+            throw new IllegalStateException("response without pending request");
+        }
+        PooledByteBuffer header = ctx.alloc().acquire(CORRELATION_ID_LENGTH);
+        header.buffer().putInt(poll());
+        header.buffer().flip();
+        CompositeBuffer response = new CompositeBuffer(payload.componentCount() + 1);
+        response.addComponent(header.buffer(), header);
+        ctx.write(response.addComponents(payload));
+    }
+
+    private void offer(int id) {
+        if (size == ids.length) {
+            int[] newIds = new int[ids.length << 1];
+            for (int i = 0; i < size; i++) {
+                newIds[i] = ids[(head + i) & (ids.length - 1)];
+            }
+            ids = newIds;
+            head = 0;
+        }
+        ids[(head + size) & (ids.length - 1)] = id;
+        size++;
+    }
+
+    private int poll() {
+        int id = ids[head];
+        head = (head + 1) & (ids.length - 1);
+        size--;
+        return id;
+    }
+}
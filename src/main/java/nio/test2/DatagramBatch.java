@@ -0,0 +1,139 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * 一批收到的数据报，内容在一组预先分配、循环复用的buffer中，接收时不分配内存也不复制。
+ * 所有buffer平分从池中申请的同一块内存，池按2的幂向上取整多出来的部分也分给各个buffer，而不是闲置在末尾。
+ * 只在所属的Reactor线程上使用，处理器返回后内容失效
+ */
+public final class DatagramBatch {
+    private final DatagramChannel channel;
+
+    private final ReactorMetrics metrics;
+
+    //所有slot共用的内存
+    private final PooledByteBuffer region;
+
+    private final ByteBuffer[] slots;
+
+    private final SocketAddress[] senders;
+
+    private int size;
+
+    /**
+     * @param capacity 每批最多的数据报个数
+     * @param minSlotSize 每个buffer的最小容量，比最大数据报多一个字节，读到的数据超过最大数据报时说明可能被截断了
+     */
+    DatagramBatch(DatagramChannel channel, ReactorMetrics metrics, ByteBufferPool bufferPool, int capacity,
+                  int minSlotSize) {
+        this.channel = channel;
+        this.metrics = metrics;
+        this.region = bufferPool.acquire(capacity * minSlotSize);
+        this.slots = new ByteBuffer[capacity];
+        this.senders = new SocketAddress[capacity];
+        ByteBuffer memory = region.buffer();
+        //默认64 * 8193字节刚超过512KB，池给的是1MB，平分后每个buffer 16KB
+        int slotSize = memory.capacity() / capacity;
+        for (int i = 0; i < capacity; i++) {
+            memory.limit((i + 1) * slotSize);
+            memory.position(i * slotSize);
+            slots[i] = memory.slice();
+        }
+    }
+
+    /**
+     * 本批的数据报个数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 第index个数据报的内容，position到limit之间为数据；可以修改position读取，不影响下一批
+     */
+    public ByteBuffer content(int index) {
+        checkIndex(index);
+        return slots[index];
+    }
+
+    /**
+     * 第index个数据报的发送方地址
+     */
+    public SocketAddress sender(int index) {
+        checkIndex(index);
+        return senders[index];
+    }
+
+    /**
+     * 向第index个数据报的发送方回复一个数据报，不阻塞；发送缓冲区满时直接丢弃，和UDP本身的语义一致
+     *
+     * @return 是否已经交给内核发送
+     */
+    public boolean reply(int index, ByteBuffer response) throws IOException {
+        return send(response, sender(index));
+    }
+
+    /**
+     * 从接收的socket向任意地址发送一个数据报，不阻塞；发送缓冲区满时直接丢弃
+     *
+     * @return 是否已经交给内核发送
+     */
+    public boolean send(ByteBuffer datagram, SocketAddress target) throws IOException {
+        int bytes = channel.send(datagram, target);
+        metrics.onWrite(bytes);
+        if (bytes == 0) {
+            metrics.onDatagramSendDropped();
+            return false;
+        }
+        return true;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+    boolean isFull() {
+        return size == slots.length;
+    }
+
+    /**
+     * 下一个空闲的buffer，清空为写模式，最多写入limit个字节
+     */
+    ByteBuffer nextSlot() {
+        ByteBuffer slot = slots[size];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * nextSlot()已经写入一个完整的数据报，切换为读模式加入本批
+     */
+    void add(SocketAddress sender) {
+        slots[size].flip();
+        senders[size++] = sender;
+    }
+
+    /**
+     * 开始下一批，buffer原地复用，发送方地址置空以免持有已经处理过的对象
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            senders[i] = null;
+        }
+        size = 0;
+    }
+
+    void release() {
+        clear();
+        region.release();
+    }
+}
@@ -0,0 +1,119 @@
+package nio.test2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * 注册在Reactor上的一个UDP socket，作为SelectionKey的attachment，可读时由Reactor回调{@link #read()}。
+ * <p>
+ * JDK没有recvmmsg，每个数据报仍然是一次receive系统调用；批量体现在一次读事件中连续receive直到读空socket，
+ * 数据报放进预先分配的buffer，攒满一批或者读空后才调用一次处理器，select、事件分发和处理器调用的开销由整批分摊
+ */
+final class DatagramEndpoint {
+    private static final Logger logger = LoggerFactory.getLogger(DatagramEndpoint.class);
+
+    private final DatagramChannel channel;
+
+    private final DatagramHandler handler;
+
+    private final ReactorMetrics metrics;
+
+    private final DatagramBatch batch;
+
+    private final int maxDatagramSize;
+
+    //一次读事件中最多交给处理器的批数，socket一直有数据时让出Reactor线程执行任务和定时器
+    private final int maxBatchesPerEvent;
+
+    DatagramEndpoint(DatagramChannel channel, DatagramHandler handler, NioReactor reactor, NioServerConfig config) {
+        this.channel = channel;
+        this.handler = handler;
+        this.metrics = reactor.metrics();
+        this.maxDatagramSize = config.getMaxDatagramSize();
+        this.maxBatchesPerEvent = Math.max(1, config.getMaxReadsPerEvent());
+        this.batch = new DatagramBatch(channel, metrics, config.getBufferPool(), config.getDatagramBatchSize(),
+                maxDatagramSize + 1);
+    }
+
+    DatagramChannel channel() {
+        return channel;
+    }
+
+    /**
+     * 读事件：读空socket或者用完本次的批数预算，每满一批交给处理器一次
+     */
+    void read() {
+        int batches = 0;
+        boolean more;
+        do {
+            more = receive();
+            if (batch.size() > 0) {
+                deliver();
+            }
+        } while (more && ++batches < maxBatchesPerEvent);
+    }
+
+    /**
+     * 把数据报收进本批，直到批满或者socket读空
+     *
+     * @return 批满时返回true，socket中可能还有数据
+     */
+    private boolean receive() {
+        batch.clear();
+        while (!batch.isFull()) {
+            ByteBuffer slot = batch.nextSlot();
+            SocketAddress sender;
+            try {
+                sender = channel.receive(slot);
+            } catch (IOException e) {
+                //UDP socket上的错误只影响这一个数据报，socket继续使用
+                logger.error("receive datagram on {} fail:", channel, e);
+                return false;
+            }
+            if (sender == null) {
+                metrics.onRead(0);
+                return false;
+            }
+            int length = slot.position();
+            metrics.onRead(length);
+            //slot至少比最大数据报多一个字节，超过maxDatagramSize的数据报丢弃，写满slot时内核已经丢弃了多出的部分
+            if (length > maxDatagramSize) {
+                metrics.onDatagramTruncated();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("datagram from {} exceeds {} bytes, drop it", sender, maxDatagramSize);
+                }
+                continue;
+            }
+            batch.add(sender);
+        }
+        return true;
+    }
+
+    private void deliver() {
+        long start = System.nanoTime();
+        try {
+            handler.datagramsReceived(batch);
+        } catch (Exception e) {
+            metrics.onDatagramsDropped(batch.size());
+            logger.error("handle {} datagrams on {} fail:", batch.size(), channel, e);
+        }
+        metrics.onDatagramBatch(batch.size(), System.nanoTime() - start);
+    }
+
+    /**
+     * 在Reactor线程上调用，关闭socket并归还buffer
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("close datagram channel:{} fail:", channel, e);
+        }
+        batch.release();
+    }
+}
@@ -0,0 +1,15 @@
+package nio.test2;
+
+/**
+ * UDP数据报的处理器，在socket所属的Reactor线程上调用，每次收到一批数据报。
+ * 批中的buffer在方法返回后立即被下一批复用，需要保留的内容要在返回前复制出去；
+ * 抛出异常时整批计为丢弃，socket继续接收
+ */
+@FunctionalInterface
+public interface DatagramHandler {
+
+    /**
+     * @param batch 本次读事件收到的一批数据报，至少一个
+     */
+    void datagramsReceived(DatagramBatch batch) throws Exception;
+}
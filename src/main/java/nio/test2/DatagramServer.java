@@ -0,0 +1,305 @@
+package nio.test2;
+
+import lifecycle.Lifecycle;
+import metrics.MetricsHttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * UDP服务端，适合指标、日志这类发出即不管的上报：DatagramChannel注册在{@link NioReactor}上，可读时一次读空socket，
+ * 数据报分批交给{@link DatagramHandler}，见{@link DatagramEndpoint}。没有连接和会话，也没有帧编解码，一个数据报就是一个消息。
+ * <p>
+ * 默认所有数据报都由一个socket、一个Reactor线程接收。开启reusePort时为每个从Reactor打开一个设置了SO_REUSEPORT的socket
+ * 绑定同一个端口，内核按来源地址的哈希把数据报分散到各个socket，每个socket有自己的接收缓冲区和Reactor线程，
+ * 同一个来源的数据报总是落到同一个socket上，顺序不变。SO_REUSEPORT需要JDK 9+和Linux 3.9+，不支持时退回一个socket。
+ * <p>
+ * 丢包发生在三个地方，分别计数：内核接收缓冲区满（/proc/net/udp的drops列，nio_datagram_kernel_drops_total）、
+ * 超过maxDatagramSize被截断、处理器抛出异常，后两个见{@link ReactorMetrics}
+ */
+public class DatagramServer implements Lifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(DatagramServer.class);
+
+    //JDK 9+的StandardSocketOptions.SO_REUSEPORT，源码级别是Java 8，通过反射获取；JDK 8为null
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private static final String[] PROC_NET_UDP = {"/proc/net/udp", "/proc/net/udp6"};
+
+    private final NioServerConfig config;
+
+    private final DatagramHandler handler;
+
+    //每个socket一个Reactor，没有主从之分
+    private final NioReactor[] reactors;
+
+    //start()后不再修改，只在stop()时读取
+    private final List<DatagramEndpoint> endpoints = new ArrayList<>();
+
+    //未配置metricsPort时为null
+    private MetricsHttpServer metricsHttpServer;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    public DatagramServer(int port, DatagramHandler handler) {
+        this(new NioServerConfig(port), handler);
+    }
+
+    public DatagramServer(NioServerConfig config, DatagramHandler handler) {
+        if (config.getMaxDatagramSize() <= 0 || config.getMaxDatagramSize() > 65507) {
+            throw new IllegalArgumentException("maxDatagramSize: " + config.getMaxDatagramSize());
+        }
+        if (config.getDatagramBatchSize() < 1) {
+            throw new IllegalArgumentException("datagramBatchSize: " + config.getDatagramBatchSize());
+        }
+        this.config = config;
+        this.handler = handler;
+        int reactorCount = 1;
+        if (config.isReusePort()) {
+            if (isReusePortSupported()) {
+                reactorCount = Math.max(1, config.getSubReactorCount());
+            } else {
+                logger.warn("SO_REUSEPORT is not supported on {} {} with JDK {}, use one socket",
+                        System.getProperty("os.name"), System.getProperty("os.version"),
+                        System.getProperty("java.version"));
+            }
+        }
+        this.reactors = new NioReactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new NioReactor("udp-" + i, config);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 当前JDK和操作系统是否支持SO_REUSEPORT
+     */
+    public static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 每个监听地址绑定reactors.length个socket，第i个socket注册到第i个Reactor，然后为每个Reactor启动一个线程
+     */
+    @Override
+    public void start() throws IOException {
+        List<SocketAddress> bindAddresses = config.getBindAddresses();
+        try {
+            for (SocketAddress address : bindAddresses) {
+                if (!(address instanceof InetSocketAddress)) {
+                    throw new IllegalArgumentException("DatagramServer only supports UDP address, but bind "
+                            + SocketAddresses.format(address));
+                }
+                for (NioReactor reactor : reactors) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    endpoints.add(new DatagramEndpoint(channel, handler, reactor, config));
+                    if (reactors.length > 1) {
+                        channel.setOption(SO_REUSEPORT, true);
+                    }
+                    //突发流量先堆积在接收缓冲区，处理不过来时内核丢弃，Linux上受net.core.rmem_max限制
+                    if (config.getReceiveBufferSize() > 0) {
+                        channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+                    }
+                    if (config.getSendBufferSize() > 0) {
+                        channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+                    }
+                    channel.bind(address);
+                    channel.configureBlocking(false);
+                    //Reactor线程还没有启动，直接注册，不需要投递任务
+                    channel.register(reactor.selector(), SelectionKey.OP_READ, endpoints.get(endpoints.size() - 1));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (DatagramEndpoint endpoint : endpoints) {
+                endpoint.close();
+            }
+            throw e;
+        }
+        registerMetrics();
+        for (NioReactor reactor : reactors) {
+            new Thread(reactor, reactor.name()).start();
+        }
+        logger.info("success start DatagramServer,address is {},sockets per address is {},receive buffer is {}",
+                format(bindAddresses), reactors.length, endpoints.get(0).channel()
+                        .getOption(StandardSocketOptions.SO_RCVBUF));
+    }
+
+    /**
+     * 关闭socket，正在处理的一批数据报处理完后Reactor退出；UDP没有需要等待写完的连接，timeout不起作用
+     */
+    @Override
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        //socket关闭后/proc/net/udp中就没有它了
+        long kernelDrops = kernelDrops();
+        for (int i = 0; i < reactors.length; i++) {
+            NioReactor reactor = reactors[i];
+            //同一个Reactor上每个监听地址各有一个socket
+            for (int j = i; j < endpoints.size(); j += reactors.length) {
+                reactor.execute(endpoints.get(j)::close);
+            }
+            reactor.shutdown();
+        }
+        if (metricsHttpServer != null) {
+            metricsHttpServer.stop();
+        }
+        logger.info("stop DatagramServer,address is {},kernel drops is {}", format(config.getBindAddresses()),
+                kernelDrops);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (NioReactor reactor : reactors) {
+            if (!reactor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 接收数据报的Reactor，开启reusePort时每个socket一个
+     */
+    public NioReactor[] reactors() {
+        return reactors;
+    }
+
+    /**
+     * 内核因接收缓冲区满而丢弃的、发往本服务端socket的数据报个数：按/proc/self/fd中socket的inode
+     * 在/proc/net/udp和/proc/net/udp6中查找drops列。socket关闭后不再计入，不是Linux时返回-1
+     */
+    public long kernelDrops() {
+        Set<String> inodes = socketInodes();
+        if (inodes == null) {
+            return -1;
+        }
+        long drops = 0;
+        for (String table : PROC_NET_UDP) {
+            Path path = Paths.get(table);
+            if (!Files.isReadable(path)) {
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+                //第一行是表头，最后一列是drops，第10列是inode
+                reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.trim().split("\\s+");
+                    if (columns.length > 12 && inodes.contains(columns[9])) {
+                        drops += Long.parseLong(columns[columns.length - 1]);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.warn("read {} fail:", table, e);
+                return -1;
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * 本进程打开的全部socket的inode，/proc/self/fd/N链接到socket:[inode]；不是Linux时返回null
+     */
+    private static Set<String> socketInodes() {
+        Path fdDir = Paths.get("/proc/self/fd");
+        if (!Files.isDirectory(fdDir)) {
+            return null;
+        }
+        Set<String> inodes = new HashSet<>();
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(fdDir)) {
+            for (Path fd : fds) {
+                String target;
+                try {
+                    target = Files.readSymbolicLink(fd).toString();
+                } catch (IOException e) {
+                    //遍历期间关闭的fd
+                    continue;
+                }
+                if (target.startsWith("socket:[")) {
+                    inodes.add(target.substring("socket:[".length(), target.length() - 1));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("list {} fail:", fdDir, e);
+            return null;
+        }
+        return inodes;
+    }
+
+    /**
+     * 把每个Reactor的指标注册到JMX，配置了metricsPort时再通过HTTP暴露，另外输出内核丢弃的数据报个数
+     */
+    private void registerMetrics() {
+        int port = ((InetSocketAddress) config.getBindAddresses().get(0)).getPort();
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (NioReactor reactor : reactors) {
+            try {
+                mBeanServer.registerMBean(reactor.metrics(), new ObjectName("nio.test2:type=Reactor,udpPort=" + port
+                        + ",name=" + reactor.name()));
+            } catch (Exception e) {
+                logger.warn("register metrics mbean of {} fail:", reactor.name(), e);
+            }
+        }
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsHttpServer = new MetricsHttpServer(config.getMetricsPort());
+                for (NioReactor reactor : reactors) {
+                    metricsHttpServer.register(reactor.metrics());
+                }
+                metricsHttpServer.register(out -> out.append("nio_datagram_kernel_drops_total{port=\"").append(port)
+                        .append("\"} ").append(kernelDrops()).append('\n'));
+                metricsHttpServer.start();
+            } catch (IOException e) {
+                logger.error("start metrics endpoint on port:{} fail:", config.getMetricsPort(), e);
+            }
+        }
+    }
+
+    private static List<String> format(List<SocketAddress> addresses) {
+        List<String> formatted = new ArrayList<>(addresses.size());
+        for (SocketAddress address : addresses) {
+            formatted.add(SocketAddresses.format(address));
+        }
+        return formatted;
+    }
+}
@@ -0,0 +1,66 @@
+package nio.test2;
+
+import lifecycle.Lifecycle;
+import transport.SocketAddresses;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动UDP服务端，默认只接收数据报、不回复，收到和丢弃的个数看指标；-Dnio.udpEcho=true 时把每个数据报原样回复给发送方
+ */
+public class DatagramServerStart {
+    //statsd的默认端口
+    private static final int port = 8125;
+
+    //开启reusePort时的socket个数，默认和CPU核数一致
+    private static final int subReactorCount = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        NioServerConfig config = new NioServerConfig(Integer.getInteger("nio.port", port));
+        config.setSubReactorCount(Integer.getInteger("nio.subReactorCount", subReactorCount));
+        //通过-Dnio.address=0.0.0.0:8125,[::1]:8125 指定监听地址，多个地址用逗号分隔
+        String address = System.getProperty("nio.address");
+        if (address != null) {
+            List<SocketAddress> bindAddresses = new ArrayList<>();
+            for (String bindAddress : address.split(",")) {
+                bindAddresses.add(SocketAddresses.parse(bindAddress.trim()));
+            }
+            config.setBindAddresses(bindAddresses);
+        }
+        //通过-Dnio.reusePort=true 为每个核打开一个SO_REUSEPORT的socket
+        config.setReusePort(Boolean.getBoolean("nio.reusePort"));
+        //最大数据报字节数和每批的数据报个数
+        config.setMaxDatagramSize(Integer.getInteger("nio.maxDatagramSize", config.getMaxDatagramSize()));
+        config.setDatagramBatchSize(Integer.getInteger("nio.datagramBatchSize", config.getDatagramBatchSize()));
+        //一次读事件中最多交给处理器的批数，socket一直有数据时让出线程执行任务
+        config.setMaxReadsPerEvent(Integer.getInteger("nio.maxReadsPerEvent", config.getMaxReadsPerEvent()));
+        //socket的SO_RCVBUF字节数，突发流量堆积在这里，不设置时使用系统默认值
+        config.setReceiveBufferSize(Integer.getInteger("nio.rcvbuf", 0));
+        config.setSendBufferSize(Integer.getInteger("nio.sndbuf", 0));
+        //通过-Dnio.metricsPort=端口 开启HTTP指标端点，GET /metrics
+        config.setMetricsPort(Integer.getInteger("nio.metricsPort", 0));
+        DatagramHandler handler = Boolean.getBoolean("nio.udpEcho") ? DatagramServerStart::echo : batch -> {
+        };
+        Lifecycle server = new DatagramServer(config, handler);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+            try {
+                server.awaitTermination(config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "udp-shutdown"));
+        server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private static void echo(DatagramBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            batch.reply(i, batch.content(i));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 分隔符帧编解码器，帧格式为：消息内容 + 分隔符，例如按行分隔的文本协议。
+ * 记录每个连接已经查找过的位置，数据分多次到达时只查找新到的部分，不会每次都从累积buffer的开头扫描，
+ * 所以每个连接使用{@link #forConnection()}创建的实例
+ */
+public class DelimiterFrameCodec implements FrameCodec {
+    private final byte[] delimiter;
+
+    //编码时追加的分隔符，所有帧共享同一份只读内容
+    private final ByteBuffer delimiterBuffer;
+
+    private final int maxFrameLength;
+
+    //累积buffer中已经确认不含分隔符的字节数，只在连接所在的线程上访问
+    private int scanned;
+
+    public DelimiterFrameCodec(byte[] delimiter, int maxFrameLength) {
+        if (delimiter.length == 0) {
+            throw new IllegalArgumentException("empty delimiter");
+        }
+        this.delimiter = delimiter.clone();
+        this.delimiterBuffer = ByteBuffer.wrap(this.delimiter).asReadOnlyBuffer();
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 复制一个查找位置为0的实例，子类需要覆盖
+     */
+    @Override
+    public FrameCodec forConnection() {
+        return new DelimiterFrameCodec(delimiter, maxFrameLength);
+    }
+
+    @Override
+    public CompositeBuffer decode(CompositeBuffer in) throws IOException {
+        //分隔符可能跨越上次查找的末尾，往回退delimiter.length - 1个字节
+        int index = in.indexOf(delimiter, Math.max(0, scanned - delimiter.length + 1));
+        if (index < 0) {
+            if (in.readableBytes() > maxFrameLength + delimiter.length) {
+                throw new IOException("frame length exceeds max frame length " + maxFrameLength);
+            }
+            scanned = in.readableBytes();
+            return null;
+        }
+        scanned = 0;
+        if (index > maxFrameLength) {
+            throw new IOException("frame length " + index + " exceeds max frame length " + maxFrameLength);
+        }
+        CompositeBuffer frame = in.readSlice(frameLength(in, index));
+        in.skipBytes(index - frame.readableBytes() + delimiter.length);
+        return frame;
+    }
+
+    protected int maxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * 帧内容的长度，子类可以去掉分隔符前的附加字符
+     *
+     * @param in    累积buffer
+     * @param index 分隔符的下标
+     */
+    protected int frameLength(CompositeBuffer in, int index) {
+        return index;
+    }
+
+    @Override
+    public void encode(CompositeBuffer payload, CompositeBuffer out, ByteBufferPool pool) {
+        out.addComponents(payload);
+        out.addComponent(delimiterBuffer.duplicate());
+    }
+}
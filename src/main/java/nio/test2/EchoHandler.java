@@ -0,0 +1,41 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 默认的业务处理器，响应内容为请求内容 + ":nio server response"。
+ * 响应直接由请求帧的切片和共享的后缀拼接而成，请求不会被解码成字符串，也不会被复制；无状态，所有连接共享一个实例
+ */
+public class EchoHandler implements InboundHandler {
+    private static final Logger logger = LoggerFactory.getLogger(EchoHandler.class);
+
+    //直接内存，gathering write时不需要再复制到临时的直接内存
+    private static final ByteBuffer SUFFIX;
+
+    static {
+        byte[] suffix = ":nio server response".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(suffix.length);
+        buffer.put(suffix);
+        buffer.flip();
+        SUFFIX = buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CompositeBuffer)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CompositeBuffer request = (CompositeBuffer) msg;
+        if (logger.isDebugEnabled()) {
+            logger.debug("receive NioClient msg:{}", request.toString(StandardCharsets.UTF_8));
+        }
+        //请求的组件连同其引用一起成为响应的一部分，发送完成后释放
+        ctx.write(request.addComponent(SUFFIX.duplicate()));
+    }
+}
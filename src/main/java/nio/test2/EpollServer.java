@@ -0,0 +1,268 @@
+package nio.test2;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.unix.Socket;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import limit.ConnectionLimiter;
+import lifecycle.Lifecycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于Netty native epoll的服务端传输层，和{@link NioServer}使用同一套配置、帧格式和处理器，
+ * 通过{@link NioServerConfig#setTransport}切换，方便在Linux上对比两种传输层。
+ * <p>
+ * 每个IO线程有自己的EventLoop和监听socket，所有监听socket以SO_REUSEPORT绑定同一个端口，
+ * 由内核把新连接分散到各个监听socket，连接的接收和读写都在同一个线程上，没有单个主Reactor接收连接的瓶颈；
+ * 连接使用边缘触发和TCP_NODELAY，监听socket开启TCP_FASTOPEN（还需要内核net.ipv4.tcp_fastopen开启服务端支持）。
+ * Netty 4.1.6在JDK 9+上需要--add-opens java.base/java.nio=ALL-UNNAMED才能加载native库。
+ * <p>
+ * 和{@link NioServer}一样支持通过{@link ListenerHandover}热重启，两种传输层的进程之间也可以互相交接；
+ * 从NioServer接手时只有一个不带SO_REUSEPORT的监听socket，其余IO线程只处理这个监听socket分来的连接。
+ * <p>
+ * 只监听一个TCP地址，unix domain socket需要使用NIO传输层
+ */
+public class EpollServer implements Lifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(EpollServer.class);
+
+    private final NioServerConfig config;
+
+    private final PipelineInitializer pipelineInitializer;
+
+    //连接准入控制，未配置连接数限制时为null
+    private final ConnectionLimiter connectionLimiter;
+
+    //每个IO线程一个EventLoopGroup，各自绑定一个监听socket
+    private final EpollEventLoopGroup[] groups;
+
+    private final ChannelGroup listeners = new DefaultChannelGroup("epoll-listeners", GlobalEventExecutor.INSTANCE);
+
+    //全部连接，关闭时逐个优雅关闭
+    private final ChannelGroup channels = new DefaultChannelGroup("epoll-channels", GlobalEventExecutor.INSTANCE);
+
+    //等待下一个进程接手监听socket，未配置handoverPath时为null
+    private volatile ListenerHandover handover;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    public EpollServer(NioServerConfig config) {
+        if (!Epoll.isAvailable()) {
+            throw new IllegalStateException("native epoll transport unavailable", Epoll.unavailabilityCause());
+        }
+        this.config = config;
+        PipelineInitializer initializer = config.getPipelineInitializer();
+        if (initializer == null) {
+            initializer = NioServer.defaultPipelineInitializer(config);
+        }
+        if (config.getJournal() != null) {
+            initializer = JournalHandler.journaled(config.getJournal(), initializer);
+        }
+        this.connectionLimiter = NioServer.newConnectionLimiter(config);
+        if (connectionLimiter != null) {
+            initializer = ConnectionLimitHandler.limited(connectionLimiter, initializer);
+        }
+        this.pipelineInitializer = initializer;
+        this.groups = new EpollEventLoopGroup[Math.max(1, config.getSubReactorCount())];
+        for (int i = 0; i < groups.length; i++) {
+            String name = "epoll-worker-" + i;
+            groups[i] = new EpollEventLoopGroup(1, (ThreadFactory) r -> new Thread(r, name));
+        }
+    }
+
+    /**
+     * 在每个IO线程上绑定一个监听socket，配置了handoverPath时先从旧进程接手监听socket
+     */
+    @Override
+    public void start() throws IOException {
+        List<SocketAddress> bindAddresses = config.getBindAddresses();
+        if (bindAddresses.size() != 1 || SocketAddresses.isUnix(bindAddresses.get(0))) {
+            throw new IllegalArgumentException("EpollServer only binds one TCP address, but got " + bindAddresses
+                    + ", use the nio transport for unix domain sockets");
+        }
+        SocketAddress address = bindAddresses.get(0);
+        int[] inherited = config.getHandoverPath() == null ? new int[0]
+                : ListenerHandover.receive(config.getHandoverPath(), config.getShutdownTimeoutMillis());
+        try {
+            //接手的监听socket按轮询分配到各个IO线程，旧进程已经bind和listen，直接以active状态注册
+            for (int i = 0; i < inherited.length; i++) {
+                int fd = inherited[i];
+                listeners.add(newBootstrap(groups[i % groups.length])
+                        .channelFactory((ChannelFactory<EpollServerSocketChannel>) () ->
+                                new EpollServerSocketChannel(new Socket(fd), true))
+                        .register().sync().channel());
+            }
+            for (int i = inherited.length; i < groups.length; i++) {
+                ServerBootstrap bootstrap = newBootstrap(groups[i]).channel(EpollServerSocketChannel.class);
+                if (inherited.length == 0) {
+                    listeners.add(bootstrap.bind(address).sync().channel());
+                    continue;
+                }
+                try {
+                    listeners.add(bootstrap.bind(address).sync().channel());
+                } catch (Exception e) {
+                    //接手的监听socket没有开启SO_REUSEPORT
+                    logger.warn("bind another listener on {} beside inherited ones fail:{}",
+                            SocketAddresses.format(address), e.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listeners.close();
+            throw new IOException("start EpollServer interrupted", e);
+        }
+        logger.info("success start EpollServer,address is {},listeners is {},inherited listeners is {}",
+                SocketAddresses.format(address), listeners.size(), inherited.length);
+        if (config.getHandoverPath() != null) {
+            if (inherited.length > 0) {
+                //已经开始accept，旧进程可以关闭了
+                ListenerHandover.acknowledge(config.getHandoverPath(), config.getShutdownTimeoutMillis());
+            }
+            handover = ListenerHandover.listen(config.getHandoverPath(), this::listenerFds,
+                    () -> stop(config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private ServerBootstrap newBootstrap(EpollEventLoopGroup group) {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(group)
+                .option(ChannelOption.SO_BACKLOG, config.getAcceptBacklog())
+                .option(EpollChannelOption.SO_REUSEPORT, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()))
+                //Netty自带的自适应读buffer，和NioSession使用同样的大小范围和每次读事件的读取次数
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator(
+                        config.getMinReadBufferSize(), config.getReadBufferSize(), config.getMaxReadBufferSize())
+                        .maxMessagesPerRead(config.getMaxReadsPerEvent()))
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        if (connectionLimiter != null && !admit(channel)) {
+                            return;
+                        }
+                        //连接在监听socket的EventLoop上注册，关闭监听socket之后不会再有新连接加入
+                        channels.add(channel);
+                        if (config.getReadIdleTimeoutMillis() > 0) {
+                            channel.pipeline().addLast(new IdleStateHandler(
+                                    config.getReadIdleTimeoutMillis(), 0, 0, TimeUnit.MILLISECONDS));
+                        }
+                        if (config.getSslContext() != null) {
+                            SSLEngine engine = config.getSslContext().createSSLEngine();
+                            engine.setUseClientMode(false);
+                            channel.pipeline().addLast(newSslHandler(engine, config.getSslTaskExecutor()));
+                            channel.pipeline().addLast(new ChunkedWriteHandler());
+                        }
+                        channel.pipeline().addLast(new EpollSession(channel, config, pipelineInitializer));
+                    }
+                });
+        if (config.getTcpFastOpen() > 0) {
+            bootstrap.option(EpollChannelOption.TCP_FASTOPEN, config.getTcpFastOpen());
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize())
+                    .childOption(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        return bootstrap;
+    }
+
+    /**
+     * Netty的SslHandler，委托任务同样交给配置的任务线程池，为null时在EventLoop上执行。
+     * Netty 4.1.6中只有已废弃的SslHandler(SSLEngine, Executor)能指定委托任务的线程池，不带线程池的构造方法在EventLoop上
+     * 同步执行证书校验和密钥交换，握手多时会拖慢同一线程上的其他连接；升级Netty后改用不废弃的重载
+     */
+    @SuppressWarnings("deprecation")
+    private static SslHandler newSslHandler(SSLEngine engine, Executor taskExecutor) {
+        return taskExecutor != null ? new SslHandler(engine, taskExecutor) : new SslHandler(engine);
+    }
+
+    /**
+     * 占用一个连接名额，超过限制时直接关闭连接，名额在EpollSession的处理器链收到channelInactive时归还
+     */
+    private boolean admit(Channel channel) {
+        if (connectionLimiter.tryAcquire(SocketAddresses.hostAddress(channel.remoteAddress()))) {
+            return true;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("connections exceed limit, reject {}, current connections is {}", channel,
+                    connectionLimiter.connections());
+        }
+        channel.close();
+        return false;
+    }
+
+    private int[] listenerFds() {
+        return listeners.stream().mapToInt(listener -> ((EpollServerSocketChannel) listener).fd().intValue()).toArray();
+    }
+
+    /**
+     * 关闭监听socket，全部连接写完已有的响应后关闭，之后停止IO线程
+     */
+    @Override
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        ListenerHandover handover = this.handover;
+        if (handover != null) {
+            handover.close();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        listeners.close().addListener(future -> {
+            for (Channel channel : channels) {
+                EpollSession session = channel.pipeline().get(EpollSession.class);
+                if (session != null) {
+                    channel.eventLoop().execute(() -> session.drain(deadline));
+                } else {
+                    channel.close();
+                }
+            }
+            channels.newCloseFuture().addListener(closed -> {
+                for (EpollEventLoopGroup group : groups) {
+                    group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+                }
+            });
+        });
+        logger.info("stop EpollServer,port is {},timeout is {}ms", config.getPort(), unit.toMillis(timeout));
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (EpollEventLoopGroup group : groups) {
+            if (!group.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,361 @@
+package nio.test2;
+
+import buffer.BufferOwner;
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * native epoll传输层上的一个连接，是Netty ChannelPipeline中的最后一个handler，把Netty的读写事件桥接到本项目的{@link Pipeline}。
+ * <p>
+ * Netty读到的ByteBuf不复制，直接作为组件追加到{@link CompositeBuffer}累积buffer，ByteBuf的引用计数作为组件的所有者，
+ * 再用同一个{@link FrameCodec}解帧、交给同一套处理器；写出的帧包装成ByteBuf放入Netty的发送队列，发送完成后释放，
+ * 一次读事件中产生的全部响应在channelReadComplete时一起flush。
+ * 发送队列超过高水位时关闭autoRead，降到低水位后恢复，和{@link NioSession}暂停OP_READ的效果一样；
+ * 超过读取限速时同样关闭autoRead，剩余的完整帧留在累积buffer里，由EventLoop的定时任务在令牌补回后继续处理并恢复读取。
+ * 读空闲由Netty的IdleStateHandler检查，写停滞、请求帧超时和最长存活时间只在JDK Selector传输层上支持
+ */
+public class EpollSession extends ChannelInboundHandlerAdapter implements Session {
+    private static final Logger logger = LoggerFactory.getLogger(EpollSession.class);
+
+    //优雅关闭期间检查连接是否写完的间隔
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 10;
+
+    private final Channel channel;
+
+    private final FrameCodec frameCodec;
+
+    private final ByteBufferPool bufferPool;
+
+    //累积buffer的上限，需要能容纳一个最大帧加上帧头
+    private final int maxBufferSize;
+
+    private final CompositeBuffer cumulation = new CompositeBuffer();
+
+    private final Pipeline pipeline = new Pipeline(this);
+
+    //是否在channelRead和channelReadComplete之间，期间写出的数据等到channelReadComplete时一起flush
+    private boolean reading;
+
+    //服务端正在优雅关闭，读完当前的帧后不再读取新请求
+    private boolean draining;
+
+    //处理器链前面有SslHandler，文件不能用sendfile发送
+    private final boolean tls;
+
+    //读取限速，未配置时为null
+    private final ReadThrottle throttle;
+
+    //是否因为超过读取限速而关闭了autoRead
+    private boolean throttled;
+
+    public EpollSession(Channel channel, NioServerConfig config, PipelineInitializer initializer) {
+        this.channel = channel;
+        this.frameCodec = config.getFrameCodec().forConnection();
+        this.bufferPool = config.getBufferPool();
+        this.maxBufferSize = config.getMaxFrameLength() + 64;
+        this.throttle = ReadThrottle.create(config);
+        this.tls = config.getSslContext() != null;
+        initializer.initPipeline(pipeline);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        ByteBuf buf = (ByteBuf) msg;
+        if (throttle != null) {
+            throttle.onBytes(buf.readableBytes(), System.nanoTime());
+        }
+        append(buf);
+        if (cumulation.readableBytes() > maxBufferSize) {
+            throw new IOException("inbound buffer exceeds max size " + maxBufferSize);
+        }
+        decodeFrames();
+    }
+
+    /**
+     * 解出累积buffer中的完整帧交给处理器链，超过读取限速时剩余的帧留到限速结束后处理
+     */
+    private void decodeFrames() throws Exception {
+        CompositeBuffer frame;
+        while (!throttled && (frame = frameCodec.decode(cumulation)) != null) {
+            pipeline.fireChannelRead(frame);
+            if (throttle != null) {
+                long now = System.nanoTime();
+                throttle.onMessage(now);
+                throttleIfNeeded(now);
+            }
+        }
+        if (throttle != null) {
+            //只读到半包时按字节数限速
+            throttleIfNeeded(System.nanoTime());
+        }
+    }
+
+    /**
+     * 把ByteBuf的可读部分追加到累积buffer，每个组件持有ByteBuf的一个引用
+     */
+    private void append(ByteBuf buf) {
+        int count = buf.nioBufferCount();
+        if (count < 0) {
+            //没有底层的NIO buffer，只能复制
+            PooledByteBuffer copy = bufferPool.acquire(buf.readableBytes());
+            buf.readBytes(copy.buffer());
+            buf.release();
+            copy.buffer().flip();
+            cumulation.addComponent(copy.buffer(), copy);
+            return;
+        }
+        ByteBufOwner owner = new ByteBufOwner(buf);
+        if (count == 1) {
+            cumulation.addComponent(buf.nioBuffer(), owner);
+            return;
+        }
+        ByteBuffer[] buffers = buf.nioBuffers();
+        if (buffers.length == 0) {
+            buf.release();
+            return;
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            if (i > 0) {
+                owner.retain();
+            }
+            cumulation.addComponent(buffers[i], owner);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        reading = false;
+        //一次读事件中产生的所有响应合并成一次写
+        ctx.flush();
+    }
+
+    /**
+     * 超过读取限速时关闭autoRead，令牌补回后继续
+     */
+    private void throttleIfNeeded(long now) {
+        if (throttled) {
+            return;
+        }
+        long pause = throttle.pauseNanos(now);
+        if (pause <= 0) {
+            return;
+        }
+        throttled = true;
+        channel.config().setAutoRead(false);
+        channel.eventLoop().schedule(this::resumeThrottled, pause, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 限速结束：先处理暂停期间留下的完整帧，没有再次超过限速时恢复读取
+     */
+    private void resumeThrottled() {
+        throttled = false;
+        if (!channel.isActive()) {
+            return;
+        }
+        //和一次读事件一样，处理期间产生的响应最后一起flush
+        reading = true;
+        try {
+            decodeFrames();
+        } catch (Exception e) {
+            logger.error("resume throttled channel:{} fail", channel, e);
+            channel.close();
+            return;
+        } finally {
+            reading = false;
+        }
+        channel.flush();
+        if (!throttled) {
+            channel.config().setAutoRead(channel.isWritable() && (!draining || cumulation.isReadable()));
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        //对端读得太慢，停止读取该连接的新请求，避免发送队列无限增长
+        channel.config().setAutoRead(channel.isWritable() && !throttled && (!draining || cumulation.isReadable()));
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * 优雅关闭，只能在本连接的EventLoop上调用：有半包数据时继续读完这个帧，否则停止读取新请求，
+     * 待发送的数据全部写出后关闭，超过deadline强制关闭
+     *
+     * @param deadline System.nanoTime()
+     */
+    void drain(long deadline) {
+        draining = true;
+        if (!channel.isActive()) {
+            return;
+        }
+        ChannelOutboundBuffer outbound = channel.unsafe().outboundBuffer();
+        boolean idle = !cumulation.isReadable() && (outbound == null || outbound.totalPendingWriteBytes() == 0);
+        if (idle) {
+            channel.close();
+            return;
+        }
+        if (System.nanoTime() - deadline >= 0) {
+            logger.warn("force close {} not drained before deadline", channel);
+            channel.close();
+            return;
+        }
+        channel.config().setAutoRead(channel.isWritable() && !throttled && cumulation.isReadable());
+        channel.eventLoop().schedule(() -> drain(deadline), DRAIN_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("close {} on read idle", channel);
+            }
+            ctx.close();
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        try {
+            pipeline.fireChannelInactive();
+        } finally {
+            cumulation.release();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.error("read data from channel:{} fail", channel, cause);
+        ctx.close();
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+        return channel.remoteAddress();
+    }
+
+    @Override
+    public ByteBufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public FrameCodec frameCodec() {
+        return frameCodec;
+    }
+
+    @Override
+    public Pipeline pipeline() {
+        return pipeline;
+    }
+
+    @Override
+    public void writeFrame(CompositeBuffer payload) {
+        CompositeBuffer frame = new CompositeBuffer(payload.componentCount() + 2);
+        frameCodec.encode(payload, frame, bufferPool);
+        enqueue(frame);
+    }
+
+    /**
+     * 包装成Netty的消息放入发送队列，数据不复制，Netty发送完成或者失败后释放
+     */
+    @Override
+    public void enqueue(Object msg) {
+        Object out;
+        ChannelFutureListener release = null;
+        if (msg instanceof CompositeBuffer) {
+            CompositeBuffer buffer = (CompositeBuffer) msg;
+            out = Unpooled.wrappedBuffer(buffer.nioBuffers());
+            release = future -> buffer.release();
+        } else if (msg instanceof PooledByteBuffer) {
+            PooledByteBuffer buffer = (PooledByteBuffer) msg;
+            out = Unpooled.wrappedBuffer(buffer.buffer());
+            release = future -> buffer.release();
+        } else if (msg instanceof ByteBuffer) {
+            out = Unpooled.wrappedBuffer((ByteBuffer) msg);
+        } else if (msg instanceof FileRegion) {
+            //Netty的DefaultFileRegion同样用sendfile发送，释放时关闭文件；
+            //TLS连接由ChunkedWriteHandler分块读出交给SslHandler加密，发送完后关闭文件
+            FileRegion region = (FileRegion) msg;
+            if (tls) {
+                try {
+                    out = new ChunkedNioFile(region.fileChannel(), region.position() + region.transferred(),
+                            region.remaining(), 16 * 1024);
+                } catch (IOException e) {
+                    logger.error("send file to {} fail:", channel, e);
+                    region.release();
+                    channel.close();
+                    return;
+                }
+            } else {
+                out = new DefaultFileRegion(region.fileChannel(), region.position() + region.transferred(), region.remaining());
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported outbound msg type: " + msg.getClass().getName());
+        }
+        //只放入Netty的发送队列，由flush或者读事件结束时写出
+        ChannelFuture future = channel.write(out);
+        if (release != null) {
+            future.addListener(release);
+        }
+    }
+
+    /**
+     * 处理请求期间调用时什么都不做，由channelReadComplete统一flush
+     */
+    @Override
+    public void flush() {
+        if (!reading) {
+            channel.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        channel.close();
+    }
+
+    /**
+     * 把ByteBuf的引用计数适配为组件的所有者
+     */
+    private static final class ByteBufOwner implements BufferOwner {
+        private final ByteBuf buf;
+
+        ByteBufOwner(ByteBuf buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public BufferOwner retain() {
+            buf.retain();
+            return this;
+        }
+
+        @Override
+        public boolean release() {
+            return buf.release();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package nio.test2;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 文件的一个区间，放入发送队列后通过{@link FileChannel#transferTo}直接从page cache发送到socket
+ * （Linux上即sendfile），数据不经过JVM堆。socket发送缓冲区满时只发送一部分，剩余部分等下一次可写事件继续发送
+ */
+public class FileRegion {
+    private final FileChannel fileChannel;
+
+    private final long position;
+
+    private final long count;
+
+    //已经发送的字节数
+    private long transferred;
+
+    public FileRegion(FileChannel fileChannel, long position, long count) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.count = count;
+    }
+
+    public FileChannel fileChannel() {
+        return fileChannel;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long transferred() {
+        return transferred;
+    }
+
+    /**
+     * 剩余未发送的字节数
+     */
+    public long remaining() {
+        return count - transferred;
+    }
+
+    public boolean isDone() {
+        return transferred >= count;
+    }
+
+    /**
+     * 尽量发送剩余的数据，不保证一次发送完
+     *
+     * @param target 目标socket
+     * @return 本次发送的字节数
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = fileChannel.transferTo(position + transferred, count - transferred, target);
+        if (written == 0 && position + transferred >= fileChannel.size()) {
+            //发送过程中文件被截断，剩余数据永远发不完
+            throw new IOException("file truncated during transfer, expected " + count + " bytes but only " + transferred + " transferred");
+        }
+        transferred += written;
+        return written;
+    }
+
+    /**
+     * 发送完成或者连接关闭时关闭文件
+     */
+    public void release() {
+        try {
+            fileChannel.close();
+        } catch (IOException ignored) {
+            //只读打开的文件关闭失败不影响数据
+        }
+    }
+}
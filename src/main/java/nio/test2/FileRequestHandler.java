@@ -0,0 +1,138 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * 静态文件请求处理器，作为入站处理器放在业务处理器之前，不是文件请求的帧原样交给下一个处理器。
+ * 请求帧的内容为"GET 相对路径"，响应帧的内容为1字节状态码 + 文件内容（或错误信息），
+ * 只支持长度字段帧格式，因为文件内容是在帧头之后直接发送的，不会经过出站处理器和编码器。
+ * <p>
+ * 小文件从{@link MappedFileCache}取内存映射的视图发送，大文件用{@link FileRegion}通过transferTo发送，
+ * 两种方式文件内容都不会拷贝到JVM堆中
+ */
+public class FileRequestHandler implements InboundHandler {
+    private static final Logger logger = LoggerFactory.getLogger(FileRequestHandler.class);
+
+    private static final byte[] GET = "GET ".getBytes(StandardCharsets.US_ASCII);
+
+    public static final byte STATUS_OK = 0;
+
+    public static final byte STATUS_ERROR = 1;
+
+    //帧头：4字节长度 + 1字节状态码
+    private static final int HEADER_LENGTH = LengthFieldFrameCodec.LENGTH_FIELD_LENGTH + 1;
+
+    private final Path root;
+
+    private final MappedFileCache mappedFileCache;
+
+    public FileRequestHandler(NioServerConfig config) {
+        this.root = Paths.get(config.getFileRoot()).toAbsolutePath().normalize();
+        this.mappedFileCache = new MappedFileCache(config.getMappedFileMaxSize(), config.getMappedFileCacheSize());
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CompositeBuffer) || !isFileRequest((CompositeBuffer) msg)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CompositeBuffer frame = (CompositeBuffer) msg;
+        try {
+            handle(ctx.session(), frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 帧是否是文件请求
+     *
+     * @param frame 帧的内容，不改变其读取位置
+     */
+    public boolean isFileRequest(CompositeBuffer frame) {
+        if (frame.readableBytes() <= GET.length) {
+            return false;
+        }
+        for (int i = 0; i < GET.length; i++) {
+            if (frame.getByte(i) != GET[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 处理文件请求，把响应放入session的发送队列
+     *
+     * @param session 请求所属的连接
+     * @param frame   请求帧的内容
+     */
+    public void handle(Session session, CompositeBuffer frame) {
+        frame.skipBytes(GET.length);
+        String path = frame.toString(StandardCharsets.UTF_8).trim();
+        //去掉开头的/，保证按root的相对路径解析
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        Path file = root.resolve(path).normalize();
+        //不允许通过../访问root以外的文件
+        if (!file.startsWith(root)) {
+            writeError(session, "forbidden: " + path);
+            return;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long length = attributes.size();
+            if (!attributes.isRegularFile() || length > Integer.MAX_VALUE - 1) {
+                writeError(session, "not a regular file: " + path);
+                return;
+            }
+            if (mappedFileCache.isCacheable(length)) {
+                ByteBuffer content = mappedFileCache.get(file, length, attributes.lastModifiedTime().toMillis());
+                session.enqueue(header(session, length));
+                session.enqueue(content);
+            } else {
+                FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+                session.enqueue(header(session, length));
+                session.enqueue(new FileRegion(fileChannel, 0, length));
+            }
+        } catch (NoSuchFileException e) {
+            writeError(session, "not found: " + path);
+        } catch (IOException e) {
+            logger.error("serve file:{} fail:", file, e);
+            writeError(session, "read fail: " + path);
+        }
+    }
+
+    private PooledByteBuffer header(Session session, long length) {
+        PooledByteBuffer header = session.bufferPool().acquire(HEADER_LENGTH);
+        header.buffer().putInt((int) length + 1);
+        header.buffer().put(STATUS_OK);
+        header.buffer().flip();
+        return header;
+    }
+
+    private void writeError(Session session, String msg) {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + bytes.length);
+        payload.put(STATUS_ERROR);
+        payload.put(bytes);
+        payload.flip();
+        session.write(payload);
+    }
+}
@@ -0,0 +1,44 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 定长帧编解码器，每个帧固定为frameLength字节，编码时不足的部分补0
+ */
+public class FixedLengthFrameCodec implements FrameCodec {
+    private final int frameLength;
+
+    //补齐用的全0内容，所有帧共享，按需切出一段
+    private final ByteBuffer padding;
+
+    public FixedLengthFrameCodec(int frameLength) {
+        if (frameLength <= 0) {
+            throw new IllegalArgumentException("frameLength must be positive: " + frameLength);
+        }
+        this.frameLength = frameLength;
+        this.padding = ByteBuffer.allocate(frameLength).asReadOnlyBuffer();
+    }
+
+    @Override
+    public CompositeBuffer decode(CompositeBuffer in) {
+        if (in.readableBytes() < frameLength) {
+            return null;
+        }
+        return in.readSlice(frameLength);
+    }
+
+    @Override
+    public void encode(CompositeBuffer payload, CompositeBuffer out, ByteBufferPool pool) {
+        int paddingLength = frameLength - payload.readableBytes();
+        if (paddingLength < 0) {
+            throw new IllegalArgumentException("payload length " + payload.readableBytes() + " exceeds frame length " + frameLength);
+        }
+        out.addComponents(payload);
+        ByteBuffer zeros = padding.duplicate();
+        zeros.limit(paddingLength);
+        out.addComponent(zeros);
+    }
+}
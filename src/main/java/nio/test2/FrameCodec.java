@@ -0,0 +1,42 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+
+import java.io.IOException;
+
+/**
+ * 帧编解码器，解决TCP拆包/粘包问题：一次read可能只读到半个消息，也可能读到多个消息。
+ * 每个连接的未解码数据保存在各自的{@link Session}中，实现类通常是无状态的，所有连接共享一个实例；
+ * 需要在两次decode之间记住解码进度的实现通过{@link #forConnection()}为每个连接创建自己的实例。
+ * <p>
+ * 解码出的帧是累积buffer的零拷贝切片，编码只在消息前后追加帧头/分隔符组件，消息内容本身都不会被复制
+ */
+public interface FrameCodec {
+
+    /**
+     * 从累积buffer的开头解出一个完整的帧，解出后in跳过该帧（包括帧头/分隔符）
+     *
+     * @param in 累积buffer
+     * @return 帧的内容（不含帧头/分隔符），是in的零拷贝切片，由调用方负责{@link CompositeBuffer#release()}；
+     * 数据不足一帧时返回null，且不改变in
+     * @throws IOException 帧格式错误或者帧长度超过上限
+     */
+    CompositeBuffer decode(CompositeBuffer in) throws IOException;
+
+    /**
+     * 连接建立时调用，返回该连接使用的实例；无状态的实现返回自己
+     */
+    default FrameCodec forConnection() {
+        return this;
+    }
+
+    /**
+     * 把消息内容编码为一个完整的帧追加到out，payload的组件按顺序移到out中，之后payload为空
+     *
+     * @param payload 消息内容
+     * @param out     目标buffer
+     * @param pool    帧头等需要新写入的数据从这里申请
+     */
+    void encode(CompositeBuffer payload, CompositeBuffer out, ByteBufferPool pool);
+}
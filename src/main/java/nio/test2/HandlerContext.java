@@ -0,0 +1,79 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+
+/**
+ * 处理器在处理器链中的位置，处理器通过它把消息传给相邻的处理器
+ */
+public final class HandlerContext {
+    private final Pipeline pipeline;
+
+    private final String name;
+
+    private final ChannelHandler handler;
+
+    //在处理器链中的下标
+    private final int index;
+
+    HandlerContext(Pipeline pipeline, String name, ChannelHandler handler, int index) {
+        this.pipeline = pipeline;
+        this.name = name;
+        this.handler = handler;
+        this.index = index;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public ChannelHandler handler() {
+        return handler;
+    }
+
+    public Session session() {
+        return pipeline.session();
+    }
+
+    /**
+     * 申请编码用的buffer
+     */
+    public ByteBufferPool alloc() {
+        return pipeline.session().bufferPool();
+    }
+
+    /**
+     * 把消息交给后面的下一个入站处理器
+     */
+    public void fireChannelRead(Object msg) throws Exception {
+        pipeline.invokeChannelRead(index + 1, msg);
+    }
+
+    /**
+     * 把连接关闭事件交给后面的下一个入站处理器
+     */
+    public void fireChannelInactive() throws Exception {
+        pipeline.invokeChannelInactive(index + 1);
+    }
+
+    /**
+     * 把消息交给前面的下一个出站处理器，前面没有出站处理器时编码成帧放入发送队列
+     */
+    public void write(Object msg) throws Exception {
+        pipeline.invokeWrite(index - 1, msg);
+    }
+
+    /**
+     * 把连接发送队列中的数据写到socket，处理请求期间调用时推迟到本次读事件结束，见{@link Session#flush()}
+     */
+    public void flush() throws Exception {
+        pipeline.flush();
+    }
+
+    /**
+     * 写出消息并flush，用于定时任务等读事件之外的写出
+     */
+    public void writeAndFlush(Object msg) throws Exception {
+        write(msg);
+        flush();
+    }
+}
@@ -0,0 +1,22 @@
+package nio.test2;
+
+/**
+ * 入站处理器，按加入的顺序从前往后依次处理解码出的帧。
+ * 第一个入站处理器收到的是帧内容的{@link buffer.CompositeBuffer}，处理器接管消息后要么
+ * 通过{@link HandlerContext#fireChannelRead(Object)}交给下一个处理器，要么自己处理完并释放
+ */
+public interface InboundHandler extends ChannelHandler {
+
+    /**
+     * @param ctx 本处理器在处理器链中的上下文
+     * @param msg 上一个处理器传下来的消息
+     */
+    void channelRead(HandlerContext ctx, Object msg) throws Exception;
+
+    /**
+     * 连接关闭时调用，之后不会再收到消息；默认交给下一个入站处理器
+     */
+    default void channelInactive(HandlerContext ctx) throws Exception {
+        ctx.fireChannelInactive();
+    }
+}
@@ -0,0 +1,41 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import journal.MappedJournal;
+
+/**
+ * 把每个入站帧原样追加到{@link MappedJournal}后继续向后传递，用于审计和回放。
+ * 无状态，所有连接共享一个实例，放在处理器链的最前面，记录的是帧编解码器解出的完整帧内容；
+ * 日志写入失败时不处理该帧，异常按读失败关闭连接
+ */
+public class JournalHandler implements InboundHandler {
+    private final MappedJournal journal;
+
+    public JournalHandler(MappedJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * 在初始化器加入的处理器之前加入日志处理器
+     */
+    static PipelineInitializer journaled(MappedJournal journal, PipelineInitializer initializer) {
+        JournalHandler journalHandler = new JournalHandler(journal);
+        return pipeline -> {
+            pipeline.addLast("journal", journalHandler);
+            initializer.initPipeline(pipeline);
+        };
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof CompositeBuffer) {
+            try {
+                journal.append((CompositeBuffer) msg);
+            } catch (RuntimeException e) {
+                ((CompositeBuffer) msg).release();
+                throw e;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
@@ -0,0 +1,126 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+import journal.JournalReader;
+import journal.MappedJournal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * 把{@link MappedJournal}记录的帧按顺序交给和服务端相同的处理器链，不经过网络，用于压测处理器本身。
+ * 记录直接是段文件映射内存的视图，读取速度只受磁盘（或页缓存）限制；处理器写出的响应只计数后释放。
+ * <p>
+ * 用法：java nio.test2.JournalReplay [日志目录]，目录默认取-Dnio.journalDir；
+ * 服务端以-Dnio.correlationId=true启动时记录的帧带请求ID，回放时也要加上同样的参数
+ */
+public class JournalReplay {
+    private static final Logger logger = LoggerFactory.getLogger(JournalReplay.class);
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : System.getProperty("nio.journalDir", "journal"));
+        NioServerConfig config = new NioServerConfig();
+        config.setFileRoot(System.getProperty("nio.fileRoot"));
+        PipelineInitializer initializer;
+        if (Boolean.getBoolean("nio.correlationId")) {
+            EchoHandler echoHandler = new EchoHandler();
+            initializer = pipeline -> pipeline
+                    .addLast("correlationId", new CorrelationIdCodec())
+                    .addLast("echo", echoHandler);
+        } else {
+            initializer = NioServer.defaultPipelineInitializer(config);
+        }
+        ReplaySession session = new ReplaySession(config);
+        initializer.initPipeline(session.pipeline());
+
+        List<Path> segments = MappedJournal.segments(dir);
+        long records = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (Path segment : segments) {
+            try (JournalReader reader = new JournalReader(segment)) {
+                ByteBuffer record;
+                while ((record = reader.next()) != null) {
+                    records++;
+                    bytes += record.remaining();
+                    session.pipeline().fireChannelRead(CompositeBuffer.wrap(record));
+                }
+            }
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        logger.info("replay {} segments, records:{} bytes:{} responses:{} time:{}ms throughput:{}/s {}MB/s",
+                segments.size(), records, bytes, session.responses, nanos / 1000000,
+                records * 1000000000L / nanos, bytes * 1000000000L / nanos / (1024 * 1024));
+    }
+
+    /**
+     * 回放用的连接，写出的数据只计数不发送
+     */
+    private static final class ReplaySession implements Session {
+        private static final SocketAddress REMOTE_ADDRESS = InetSocketAddress.createUnresolved("journal", 0);
+
+        private final NioServerConfig config;
+
+        private final Pipeline pipeline = new Pipeline(this);
+
+        private long responses;
+
+        ReplaySession(NioServerConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return REMOTE_ADDRESS;
+        }
+
+        @Override
+        public ByteBufferPool bufferPool() {
+            return config.getBufferPool();
+        }
+
+        @Override
+        public FrameCodec frameCodec() {
+            return config.getFrameCodec();
+        }
+
+        @Override
+        public Pipeline pipeline() {
+            return pipeline;
+        }
+
+        @Override
+        public void writeFrame(CompositeBuffer payload) {
+            responses++;
+            payload.release();
+        }
+
+        @Override
+        public void enqueue(Object msg) {
+            responses++;
+            if (msg instanceof CompositeBuffer) {
+                ((CompositeBuffer) msg).release();
+            } else if (msg instanceof PooledByteBuffer) {
+                ((PooledByteBuffer) msg).release();
+            } else if (msg instanceof FileRegion) {
+                ((FileRegion) msg).release();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
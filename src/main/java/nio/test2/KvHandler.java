@@ -0,0 +1,115 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+import kv.OffHeapStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 键值服务的处理器，直接在Reactor线程上读写{@link OffHeapStore}，每个请求帧对应一个响应帧，可以pipelining。
+ * <p>
+ * 请求帧：1字节操作码（1=GET，2=SET，3=DEL）+ 2字节无符号大端key长度 + key + value（只有SET有，到帧尾为止）；
+ * 响应帧：1字节状态（0=OK，1=NOT_FOUND，2=ERROR）+ value（只有命中的GET有）。
+ * 请求帧只有一个组件时key和value直接取视图，不复制；跨组件的帧先拷贝成一个连续的数组。
+ * 无状态，所有连接共享一个实例；需要请求ID时放在{@link CorrelationIdCodec}之后
+ */
+public class KvHandler implements InboundHandler {
+    private static final Logger logger = LoggerFactory.getLogger(KvHandler.class);
+
+    public static final byte GET = 1;
+
+    public static final byte SET = 2;
+
+    public static final byte DEL = 3;
+
+    public static final byte OK = 0;
+
+    public static final byte NOT_FOUND = 1;
+
+    public static final byte ERROR = 2;
+
+    private static final int HEADER_LENGTH = 3;
+
+    //直接内存，gathering write时不需要再复制到临时的直接内存
+    private static final ByteBuffer[] STATUS = {status(OK), status(NOT_FOUND), status(ERROR)};
+
+    private final OffHeapStore store;
+
+    public KvHandler(OffHeapStore store) {
+        this.store = store;
+    }
+
+    private static ByteBuffer status(byte status) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+        buffer.put(status);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof CompositeBuffer)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        CompositeBuffer request = (CompositeBuffer) msg;
+        CompositeBuffer response;
+        try {
+            response = handle(ctx, request);
+        } finally {
+            request.release();
+        }
+        ctx.write(response);
+    }
+
+    private CompositeBuffer handle(HandlerContext ctx, CompositeBuffer request) {
+        int readable = request.readableBytes();
+        if (readable < HEADER_LENGTH) {
+            return statusOnly(ERROR);
+        }
+        byte op = request.getByte(0);
+        int keyLength = (request.getByte(1) & 0xff) << 8 | request.getByte(2) & 0xff;
+        if (keyLength == 0 || HEADER_LENGTH + keyLength > readable) {
+            return statusOnly(ERROR);
+        }
+        ByteBuffer frame = request.componentCount() == 1 ? request.component(0)
+                : ByteBuffer.wrap(request.toByteArray());
+        int keyStart = frame.position() + HEADER_LENGTH;
+        ByteBuffer key = frame.duplicate();
+        key.limit(keyStart + keyLength);
+        key.position(keyStart);
+        switch (op) {
+            case GET:
+                PooledByteBuffer value = store.get(key, ctx.alloc());
+                if (value == null) {
+                    return statusOnly(NOT_FOUND);
+                }
+                CompositeBuffer response = new CompositeBuffer(2);
+                response.addComponent(STATUS[OK].duplicate());
+                //value的buffer由响应持有，发送完成后释放
+                return response.addComponent(value.buffer(), value);
+            case SET:
+                ByteBuffer newValue = frame.duplicate();
+                newValue.position(keyStart + keyLength);
+                if (!store.put(key, newValue)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("entry of {} bytes exceeds segment capacity from {}", readable,
+                                ctx.session().remoteAddress());
+                    }
+                    return statusOnly(ERROR);
+                }
+                return statusOnly(OK);
+            case DEL:
+                return statusOnly(store.remove(key) ? OK : NOT_FOUND);
+            default:
+                return statusOnly(ERROR);
+        }
+    }
+
+    private static CompositeBuffer statusOnly(byte status) {
+        return new CompositeBuffer(1).addComponent(STATUS[status].duplicate());
+    }
+}
@@ -0,0 +1,82 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 长度字段帧编解码器，帧格式为：4字节大端长度 + 消息内容。
+ * 池的最小规格远大于4字节，帧头不单独申请，而是从每个线程一块的slab中依次切出，
+ * 每个帧头持有slab的一个引用，slab切完后换一块新的，旧的在其中的帧头全部发送完后归还
+ */
+public class LengthFieldFrameCodec implements FrameCodec {
+    public static final int LENGTH_FIELD_LENGTH = 4;
+
+    //一块slab可以切出1024个帧头
+    private static final int HEADER_SLAB_SIZE = 4096;
+
+    private static final ThreadLocal<HeaderSlab> HEADER_SLAB = ThreadLocal.withInitial(HeaderSlab::new);
+
+    private final int maxFrameLength;
+
+    public LengthFieldFrameCodec(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public CompositeBuffer decode(CompositeBuffer in) throws IOException {
+        int readable = in.readableBytes();
+        if (readable < LENGTH_FIELD_LENGTH) {
+            return null;
+        }
+        //只查看长度字段，不跳过
+        int length = in.getInt(0);
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("frame length " + length + " exceeds max frame length " + maxFrameLength);
+        }
+        if (readable < LENGTH_FIELD_LENGTH + length) {
+            return null;
+        }
+        in.skipBytes(LENGTH_FIELD_LENGTH);
+        return in.readSlice(length);
+    }
+
+    @Override
+    public void encode(CompositeBuffer payload, CompositeBuffer out, ByteBufferPool pool) {
+        PooledByteBuffer slab = HEADER_SLAB.get().reserve(pool, LENGTH_FIELD_LENGTH);
+        ByteBuffer memory = slab.buffer();
+        int position = memory.position();
+        ByteBuffer header = memory.duplicate();
+        header.limit(position + LENGTH_FIELD_LENGTH);
+        header.putInt(position, payload.readableBytes());
+        memory.position(position + LENGTH_FIELD_LENGTH);
+        out.addComponent(header, slab);
+        out.addComponents(payload);
+    }
+
+    /**
+     * 当前线程正在切分的slab，线程自己持有一个引用，换新的slab时释放
+     */
+    private static final class HeaderSlab {
+        private ByteBufferPool pool;
+
+        private PooledByteBuffer slab;
+
+        /**
+         * 保证slab中还有length个字节，返回已经为调用方retain过的slab，position处即可写入
+         */
+        PooledByteBuffer reserve(ByteBufferPool pool, int length) {
+            if (slab == null || this.pool != pool || slab.buffer().remaining() < length) {
+                if (slab != null) {
+                    slab.release();
+                }
+                slab = pool.acquire(HEADER_SLAB_SIZE);
+                this.pool = pool;
+            }
+            return slab.retain();
+        }
+    }
+}
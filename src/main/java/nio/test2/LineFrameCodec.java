@@ -0,0 +1,26 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 按行分隔的文本帧编解码器，以"\n"或者"\r\n"结尾，解出的帧不含行尾，编码时追加"\n"
+ */
+public class LineFrameCodec extends DelimiterFrameCodec {
+    private static final byte CR = '\r';
+
+    public LineFrameCodec(int maxFrameLength) {
+        super("\n".getBytes(StandardCharsets.US_ASCII), maxFrameLength);
+    }
+
+    @Override
+    public FrameCodec forConnection() {
+        return new LineFrameCodec(maxFrameLength());
+    }
+
+    @Override
+    protected int frameLength(CompositeBuffer in, int index) {
+        return index > 0 && in.getByte(index - 1) == CR ? index - 1 : index;
+    }
+}
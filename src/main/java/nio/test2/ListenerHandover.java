@@ -0,0 +1,288 @@
+package nio.test2;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.DomainSocketReadMode;
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 热重启时在新旧进程之间交接监听socket，新进程直接在旧进程的监听socket上accept，端口始终有进程在监听，不会拒绝连接。
+ * <p>
+ * 旧进程在一个unix domain socket上等待交接：新进程连上后发送'F'，旧进程用SCM_RIGHTS把每个监听socket的fd发过去，
+ * 然后关闭这个连接；新进程开始accept后再连上来发送'A'，旧进程关闭交接端点并开始优雅关闭。
+ * 在新进程发送'A'之前两个进程同时accept同一个监听队列里的连接，之后只有新进程accept。
+ * <p>
+ * 只支持Linux，依赖Netty native epoll传递fd；把fd包装成JDK的ServerSocketChannel要反射sun.nio.ch的内部类，
+ * JDK 9+上需要--add-opens java.base/sun.nio.ch=ALL-UNNAMED
+ */
+public final class ListenerHandover implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ListenerHandover.class);
+
+    private static final byte FETCH = 'F';
+
+    private static final byte ACKNOWLEDGE = 'A';
+
+    private final EpollEventLoopGroup group;
+
+    private final Channel serverChannel;
+
+    private ListenerHandover(EpollEventLoopGroup group, Channel serverChannel) {
+        this.group = group;
+        this.serverChannel = serverChannel;
+    }
+
+    /**
+     * 在path上等待下一个进程来接手监听socket
+     *
+     * @param listenerFds  每次交接时调用，返回当前全部监听socket的fd
+     * @param onHandedOver 新进程确认已经开始accept后在交接线程上调用，通常是开始优雅关闭
+     */
+    public static ListenerHandover listen(Path path, Supplier<int[]> listenerFds, Runnable onHandedOver)
+            throws IOException {
+        Files.deleteIfExists(path);
+        EpollEventLoopGroup group = newGroup();
+        try {
+            Channel serverChannel = new ServerBootstrap()
+                    .group(group)
+                    .channel(EpollServerDomainSocketChannel.class)
+                    .childHandler(new HandoverHandler(listenerFds, onHandedOver))
+                    .bind(new DomainSocketAddress(path.toFile()))
+                    .sync().channel();
+            logger.info("listen for handover on {}", path);
+            return new ListenerHandover(group, serverChannel);
+        } catch (Exception e) {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+            throw new IOException("listen for handover on " + path + " fail", e);
+        }
+    }
+
+    /**
+     * 从path上等待交接的旧进程接收监听socket
+     *
+     * @return 收到的fd，没有旧进程在等待交接时为空数组
+     */
+    public static int[] receive(Path path, long timeoutMillis) throws IOException {
+        if (!Files.exists(path)) {
+            return new int[0];
+        }
+        List<Integer> fds = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            send(path, FETCH, timeoutMillis, new ChannelInboundHandlerAdapter() {
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    if (msg instanceof FileDescriptor) {
+                        fds.add(((FileDescriptor) msg).intValue());
+                    } else {
+                        ReferenceCountUtil.release(msg);
+                    }
+                }
+
+                @Override
+                public void channelInactive(ChannelHandlerContext ctx) {
+                    done.complete(null);
+                }
+            }, done);
+        } catch (ConnectException e) {
+            //上一个进程没有正常退出，留下了不再监听的socket文件
+            logger.warn("no process listen for handover on {}", path);
+            return new int[0];
+        }
+        int[] result = new int[fds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = fds.get(i);
+        }
+        logger.info("receive {} listeners from {}", result.length, path);
+        return result;
+    }
+
+    /**
+     * 通知旧进程已经开始accept，旧进程收到后开始优雅关闭
+     */
+    public static void acknowledge(Path path, long timeoutMillis) throws IOException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        send(path, ACKNOWLEDGE, timeoutMillis, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                done.complete(null);
+            }
+        }, done);
+    }
+
+    /**
+     * 连接path发送一个命令，等待handler完成done或者超时
+     */
+    private static void send(Path path, byte command, long timeoutMillis, ChannelInboundHandlerAdapter handler,
+                             CompletableFuture<Void> done) throws IOException {
+        EpollEventLoopGroup group = newGroup();
+        try {
+            Channel channel = new Bootstrap()
+                    .group(group)
+                    .channel(EpollDomainSocketChannel.class)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) timeoutMillis)
+                    .option(EpollChannelOption.DOMAIN_SOCKET_READ_MODE, DomainSocketReadMode.FILE_DESCRIPTORS)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(handler);
+                        }
+                    })
+                    .connect(new DomainSocketAddress(path.toFile()))
+                    .sync().channel();
+            channel.writeAndFlush(Unpooled.wrappedBuffer(new byte[]{command}));
+            done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            //Netty的sync()直接抛出连接失败的原因
+            if (e instanceof ConnectException) {
+                throw (ConnectException) e;
+            }
+            throw new IOException("send " + (char) command + " to " + path + " fail", e);
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static EpollEventLoopGroup newGroup() {
+        return new EpollEventLoopGroup(1, (ThreadFactory) r -> {
+            Thread thread = new Thread(r, "nio-handover");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * JDK ServerSocketChannel的fd
+     */
+    static int fdVal(ServerSocketChannel channel) {
+        try {
+            Method getFDVal = Class.forName("sun.nio.ch.SelChImpl").getMethod("getFDVal");
+            getFDVal.setAccessible(true);
+            return (Integer) getFDVal.invoke(channel);
+        } catch (Exception e) {
+            throw new IllegalStateException("get fd of " + channel + " fail", e);
+        }
+    }
+
+    /**
+     * 把继承来的已绑定、已监听的fd包装成JDK的ServerSocketChannel
+     */
+    static ServerSocketChannel serverSocketChannel(int fd) throws IOException {
+        try {
+            Method newFD = Class.forName("sun.nio.ch.IOUtil").getMethod("newFD", int.class);
+            newFD.setAccessible(true);
+            Object fileDescriptor = newFD.invoke(null, fd);
+            Class<?> implClass = Class.forName("sun.nio.ch.ServerSocketChannelImpl");
+            Constructor<?> constructor;
+            Object[] args;
+            try {
+                //JDK 16+多了协议族参数
+                constructor = implClass.getDeclaredConstructor(SelectorProvider.class, java.net.ProtocolFamily.class,
+                        java.io.FileDescriptor.class, boolean.class);
+                Method isIPv6Available = Class.forName("sun.nio.ch.Net").getDeclaredMethod("isIPv6Available");
+                isIPv6Available.setAccessible(true);
+                StandardProtocolFamily family = (Boolean) isIPv6Available.invoke(null)
+                        ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+                args = new Object[]{SelectorProvider.provider(), family, fileDescriptor, true};
+            } catch (NoSuchMethodException e) {
+                constructor = implClass.getDeclaredConstructor(SelectorProvider.class, java.io.FileDescriptor.class,
+                        boolean.class);
+                args = new Object[]{SelectorProvider.provider(), fileDescriptor, true};
+            }
+            constructor.setAccessible(true);
+            return (ServerSocketChannel) constructor.newInstance(args);
+        } catch (Exception e) {
+            throw new IOException("wrap inherited listener fd:" + fd + " fail", e);
+        }
+    }
+
+    /**
+     * 停止等待交接，不影响已经交接出去的监听socket；可能在交接线程上调用，不能等待关闭完成
+     */
+    @Override
+    public void close() {
+        serverChannel.close();
+        group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 旧进程一侧处理交接命令，无状态，所有交接连接共享
+     */
+    @ChannelHandler.Sharable
+    private static final class HandoverHandler extends ChannelInboundHandlerAdapter {
+        private final Supplier<int[]> listenerFds;
+
+        private final Runnable onHandedOver;
+
+        HandoverHandler(Supplier<int[]> listenerFds, Runnable onHandedOver) {
+            this.listenerFds = listenerFds;
+            this.onHandedOver = onHandedOver;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                ByteBuf buf = (ByteBuf) msg;
+                while (buf.isReadable()) {
+                    byte command = buf.readByte();
+                    if (command == FETCH) {
+                        int[] fds = listenerFds.get();
+                        for (int fd : fds) {
+                            ctx.write(new FileDescriptor(fd));
+                        }
+                        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                        logger.info("hand over {} listeners", fds.length);
+                    } else if (command == ACKNOWLEDGE) {
+                        //先关闭监听的domain socket，关闭时会删除socket文件，等删除完成后再关闭交接连接，
+                        //新进程看到连接关闭后才会在同一路径上listen，不会被旧进程删掉刚创建的文件
+                        ctx.channel().parent().close().addListener(future -> {
+                            ctx.close();
+                            onHandedOver.run();
+                        });
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.error("handover connection {} fail:", ctx.channel(), cause);
+            ctx.close();
+        }
+    }
+}
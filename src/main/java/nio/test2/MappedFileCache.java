@@ -0,0 +1,86 @@
+package nio.test2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 热点小文件的只读内存映射缓存，按LRU淘汰。
+ * 映射后的buffer是直接内存，发送时不需要拷贝到JVM堆；被淘汰的映射没有办法主动unmap，由GC回收
+ */
+public class MappedFileCache {
+    //超过该大小的文件不缓存，直接用transferTo发送
+    private final long maxFileSize;
+
+    //所有映射的总字节数上限
+    private final long capacity;
+
+    private long size;
+
+    //accessOrder为true，迭代顺序即LRU顺序
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public MappedFileCache(long maxFileSize, long capacity) {
+        this.maxFileSize = maxFileSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 文件是否适合放入缓存
+     */
+    public boolean isCacheable(long length) {
+        return length <= maxFileSize && length <= capacity;
+    }
+
+    /**
+     * 获取文件内容的只读视图，文件长度或者修改时间变化时重新映射
+     *
+     * @param file         文件路径
+     * @param length       文件当前长度
+     * @param lastModified 文件当前修改时间
+     * @return 处于读模式的只读buffer，每次调用返回一个独立的视图
+     */
+    public synchronized ByteBuffer get(Path file, long length, long lastModified) throws IOException {
+        Entry entry = entries.get(file);
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            return entry.buffer.duplicate();
+        }
+        if (entry != null) {
+            entries.remove(file);
+            size -= entry.length;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        entries.put(file, new Entry(buffer, length, lastModified));
+        size += length;
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.length;
+        }
+        return buffer.duplicate();
+    }
+
+    private static final class Entry {
+        private final MappedByteBuffer buffer;
+
+        private final long length;
+
+        private final long lastModified;
+
+        Entry(MappedByteBuffer buffer, long length, long lastModified) {
+            this.buffer = buffer;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
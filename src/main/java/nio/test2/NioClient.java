@@ -1,83 +1,178 @@
 package nio.test2;
 
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * 单连接的NIO客户端，支持请求pipelining：连接上最多同时有pipelineDepth个请求在途，不等前面的响应就继续发送，
+ * 发送窗口中的新请求编码后用一次gathering write写出，读到的响应全部解出后再一起补满窗口。
+ * 服务端按请求的顺序返回响应，不需要请求ID。pipelineDepth为1时每个请求都要等到响应后才发送下一个，
+ * 每个请求一次write、一次read和一个往返时间，用于和pipelining对比。
+ * 服务端地址可以是unix domain socket，用于和TCP回环对比延迟和吞吐
+ */
 public class NioClient {
     private static final Logger logger = LoggerFactory.getLogger(NioClient.class);
-    //分配buffer
-    private ByteBuffer readBuf = ByteBuffer.allocate(1024);
 
-    private ByteBuffer writeBuf = ByteBuffer.allocate(1024);
+    //读buffer的初始容量，放不下一个完整的响应帧时翻倍，帧长度的上限由frameCodec检查
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
 
-    private String host;
+    private final SocketAddress address;
 
-    private int port;
+    //和NioServer默认使用的帧格式保持一致
+    private FrameCodec frameCodec = new LengthFieldFrameCodec(1024 * 1024);
+
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+
+    //同时在途的请求数
+    private int pipelineDepth = 1;
+
+    //run期间的读buffer，半包留在其中
+    private PooledByteBuffer readBuf;
 
     public NioClient(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this(new InetSocketAddress(host, port));
     }
 
     /**
-     * 启动NioClient，向服务端发送消息，并接收服务端返回的响应
+     * @param address TCP地址或者unix domain socket地址，见{@link SocketAddresses#parse}
      */
-    public void start() {
-        SocketChannel socketChannel = null;
-        try {
-            socketChannel = SocketChannel.open();
-            //设置该SocketChannel为非阻塞模式，没有读到数据会直接返回继续下一次
+    public NioClient(SocketAddress address) {
+        this.address = address;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("pipelineDepth: " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * 向服务端发送requests个请求，收到全部响应后返回
+     *
+     * @return 从发送第一个请求到收到最后一个响应的纳秒数
+     */
+    public long run(int requests) throws IOException {
+        readBuf = bufferPool.acquire(INITIAL_READ_BUFFER_SIZE);
+        CompositeBuffer out = new CompositeBuffer();
+        try (SocketChannel socketChannel = SocketAddresses.openSocketChannel(address);
+             Selector selector = Selector.open()) {
+            socketChannel.connect(address);
+            //unix domain socket没有TCP选项
+            if (!SocketAddresses.isUnix(address)) {
+                socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            //设置为非阻塞模式，窗口很大时写不完也能继续读响应，不会和服务端互相等待
             socketChannel.configureBlocking(false);
-            //连接服务端
-            socketChannel.connect(new InetSocketAddress(host, port));
-            // 判断是否已经连接成功，只有连接成功了才发送数据
-            if (socketChannel.finishConnect()) {
-                int i = 0;
-                while (true) {
-                    String msg = "hello,I'm the " + i++ + " msg from NioClient";
-                    writeBuf.clear();
-                    writeBuf.put(msg.getBytes());
-                    //buffer切换为读模式
-                    writeBuf.flip();
-                    while (writeBuf.hasRemaining()) {
-                        // 发送数据到服务端
-                        socketChannel.write(writeBuf);
-                    }
-                    writeBuf.clear();
-                    Thread.sleep(2000);
-
-                    //TODO 接收服务端返回的响应
-                    int count = socketChannel.read(readBuf);
-                    if (count == -1) {
-                        continue;
-                    } else if (count == 0) {
-                        logger.warn("no data to read...");
-                        continue;
-                    }
-                    byte[] bytes = new byte[count];
-                    //buffer切换为读模式
-                    readBuf.flip();
-                    readBuf.get(bytes);
-                    logger.info("receive NioServer msg:{}", new String(bytes, StandardCharsets.UTF_8));
-                    readBuf.clear();
+            SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_READ);
+            int sent = 0;
+            int received = 0;
+            long start = System.nanoTime();
+            while (received < requests) {
+                //补满发送窗口，新请求合并成一次写
+                while (sent < requests && sent - received < pipelineDepth) {
+                    frameCodec.encode(CompositeBuffer.wrap(message(sent++)), out, bufferPool);
+                }
+                if (out.isReadable()) {
+                    socketChannel.write(out.nioBuffers());
+                    out.discardReadComponents();
+                }
+                //socket发送缓冲区满时等待可写，同时继续读响应
+                selectionKey.interestOps(out.isReadable() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+                selector.select();
+                selector.selectedKeys().clear();
+                int count = read(socketChannel, received == requests - 1);
+                if (count == -1) {
+                    throw new IOException("connection closed by " + SocketAddresses.format(address) + " after "
+                            + received + " responses");
                 }
+                received += count;
             }
-        } catch (Exception e) {
-            logger.error("send or receive msg from NioServer fail:", e);
+            return System.nanoTime() - start;
         } finally {
-            if (socketChannel != null) {
-                try {
-                    socketChannel.close();
-                } catch (IOException e) {
-                    logger.error("close socketChannel fail:", e);
+            out.release();
+            readBuf.release();
+            readBuf = null;
+        }
+    }
+
+    /**
+     * 读出socket中的数据并解出全部完整的响应帧，剩余的半包留在readBuf中；
+     * 半包占满readBuf时换成两倍大小的buffer，否则read一直返回0，select立即返回，陷入空转
+     *
+     * @param logLast 是否打印解出的最后一个响应
+     * @return 解出的响应个数，连接被关闭时返回-1
+     */
+    private int read(SocketChannel socketChannel, boolean logLast) throws IOException {
+        int responses = 0;
+        int count;
+        ByteBuffer buffer;
+        while ((count = socketChannel.read(buffer = readBuf.buffer())) > 0) {
+            //buffer切换为读模式，解出全部完整的响应帧
+            buffer.flip();
+            CompositeBuffer in = CompositeBuffer.wrap(buffer);
+            CompositeBuffer response;
+            while ((response = frameCodec.decode(in)) != null) {
+                responses++;
+                if (logLast && logger.isInfoEnabled()) {
+                    logger.info("receive NioServer msg:{}", response.toString(StandardCharsets.UTF_8));
                 }
+                response.release();
             }
+            //跳过已经解出的帧，半包移到buffer开头
+            buffer.position(buffer.limit() - in.readableBytes());
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                growReadBuf();
+            }
+        }
+        return count == -1 && responses == 0 ? -1 : responses;
+    }
+
+    /**
+     * 换成两倍容量的读buffer，已读到的半包复制过去
+     */
+    private void growReadBuf() {
+        ByteBuffer old = readBuf.buffer();
+        PooledByteBuffer larger = bufferPool.acquire(old.capacity() * 2);
+        old.flip();
+        larger.buffer().put(old);
+        readBuf.release();
+        readBuf = larger;
+    }
+
+    private static byte[] message(int i) {
+        return ("hello,I'm the " + i + " msg from NioClient").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 按配置的pipelineDepth发送requests个请求并打印吞吐，平均延迟按在途请求数乘以总时间除以请求数估算
+     */
+    public void start(int requests) {
+        try {
+            long nanos = run(requests);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+            logger.info("address:{} requests:{} pipelineDepth:{} time:{}ms throughput:{}/s mean latency:{}us",
+                    SocketAddresses.format(address), requests, pipelineDepth, millis, requests * 1000L / millis,
+                    TimeUnit.NANOSECONDS.toMicros(nanos * Math.min(pipelineDepth, requests) / Math.max(1, requests)));
+        } catch (Exception e) {
+            logger.error("send or receive msg from NioServer fail:", e);
         }
     }
 }
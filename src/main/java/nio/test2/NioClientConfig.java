@@ -0,0 +1,96 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * NioClientPool的配置项
+ */
+public class NioClientConfig {
+    //每个服务端地址的长连接个数
+    private int connectionsPerAddress = 4;
+
+    //IO线程个数，每个线程一个Reactor，连接按轮询分配
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private long connectTimeoutMillis = 3000;
+
+    //请求发出后多久没有收到响应就以TimeoutException失败，为0时不超时
+    private long requestTimeoutMillis = 3000;
+
+    //单个连接上已提交但还没有收到响应的请求上限，超过后新请求直接失败，避免服务端变慢时请求无限积压
+    private int maxPendingRequestsPerConnection = 10000;
+
+    //单个响应帧的最大长度
+    private int maxFrameLength = 1024 * 1024;
+
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+
+    //为null时不加密；同一个SSLContext新建的连接按服务端地址复用之前的TLS会话
+    private SSLContext sslContext;
+
+    public int getConnectionsPerAddress() {
+        return connectionsPerAddress;
+    }
+
+    public void setConnectionsPerAddress(int connectionsPerAddress) {
+        this.connectionsPerAddress = connectionsPerAddress;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public int getMaxPendingRequestsPerConnection() {
+        return maxPendingRequestsPerConnection;
+    }
+
+    public void setMaxPendingRequestsPerConnection(int maxPendingRequestsPerConnection) {
+        this.maxPendingRequestsPerConnection = maxPendingRequestsPerConnection;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+}
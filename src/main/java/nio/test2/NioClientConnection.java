@@ -0,0 +1,248 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import timer.HashedWheelTimer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NioClientPool}中的一个长连接，同一个连接上同时有多个请求在途。
+ * <p>
+ * 请求帧的内容为4字节请求ID + 请求内容，服务端用{@link CorrelationIdCodec}把同一个ID带回来，
+ * 收到响应时按ID找到对应的请求完成其CompletableFuture，不依赖响应的顺序。
+ * 调用方线程只把请求放入提交队列，同一时刻最多向Reactor投递一个写出任务，
+ * 任务执行前各线程提交的请求由这一个任务编码后用一次flush写出，多个调用方共享一次系统调用。
+ * <p>
+ * 响应、超时和连接关闭都在Reactor线程上完成future，调用方用thenApply等非async方法注册的回调也在Reactor线程上执行，
+ * 回调中不能有阻塞操作
+ */
+final class NioClientConnection implements InboundHandler {
+    private static final Logger logger = LoggerFactory.getLogger(NioClientConnection.class);
+
+    private final NioReactor reactor;
+
+    private final SocketChannel socketChannel;
+
+    //为0时不超时
+    private final long requestTimeoutNanos;
+
+    private final int maxPendingRequests;
+
+    //调用方线程提交、等待Reactor线程写出的请求
+    private final Queue<PendingCall> submitted = new ConcurrentLinkedQueue<>();
+
+    //是否已经投递了写出任务，任务开始执行前提交的请求都由这个任务写出
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    //已提交但还没有完成的请求数，包括还在提交队列中的
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    //以下只在Reactor线程访问
+
+    private NioSession session;
+
+    //已写出、等待响应的请求，按写出的顺序排列，第一个最先超时
+    private final LinkedHashMap<Integer, PendingCall> inflight = new LinkedHashMap<>();
+
+    private int nextId;
+
+    private HashedWheelTimer.Timeout timeout;
+
+    NioClientConnection(NioReactor reactor, SocketChannel socketChannel, NioClientConfig config) {
+        this.reactor = reactor;
+        this.socketChannel = socketChannel;
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeoutMillis());
+        this.maxPendingRequests = config.getMaxPendingRequestsPerConnection();
+    }
+
+    /**
+     * 把已连接的channel注册到Reactor，之后提交的请求一定在注册完成后才写出
+     */
+    void register() {
+        reactor.register(socketChannel, pipeline -> {
+            //客户端连接总是注册在NioReactor上
+            session = (NioSession) pipeline.session();
+            pipeline.addLast("client", this);
+        });
+    }
+
+    boolean isActive() {
+        return !closed;
+    }
+
+    /**
+     * 提交一个请求，可以在任意线程调用
+     *
+     * @param request 请求内容，写出前不能修改
+     * @return 收到响应时完成，响应内容不含请求ID
+     */
+    CompletableFuture<byte[]> call(byte[] request) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        if (pendingRequests.incrementAndGet() > maxPendingRequests) {
+            pendingRequests.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "pending requests exceed " + maxPendingRequests + " on " + socketChannel));
+            return future;
+        }
+        submitted.offer(new PendingCall(request, future));
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(this::flushSubmitted);
+        }
+        return future;
+    }
+
+    /**
+     * 在Reactor线程上把提交队列中的请求全部编码，再一次性写出
+     */
+    private void flushSubmitted() {
+        //先清除标记，之后提交的请求会投递新的任务，不会被遗漏
+        flushScheduled.set(false);
+        if (closed || session == null || !session.selectionKey().isValid()) {
+            //注册失败时不会调用初始化器，session为null
+            closed = true;
+            failAll(new ClosedChannelException());
+            return;
+        }
+        long deadline = System.nanoTime() + requestTimeoutNanos;
+        PendingCall call;
+        try {
+            while ((call = submitted.poll()) != null) {
+                int id = nextId++;
+                call.deadline = deadline;
+                inflight.put(id, call);
+                PooledByteBuffer header = session.bufferPool().acquire(CorrelationIdCodec.CORRELATION_ID_LENGTH);
+                header.buffer().putInt(id);
+                header.buffer().flip();
+                CompositeBuffer payload = new CompositeBuffer(2);
+                payload.addComponent(header.buffer(), header);
+                payload.addComponent(ByteBuffer.wrap(call.request));
+                session.writeFrame(payload);
+            }
+            session.flush();
+        } catch (IOException e) {
+            logger.error("write requests to {} fail:", socketChannel, e);
+            //关闭时在channelInactive中让全部请求失败
+            session.close();
+            return;
+        }
+        scheduleTimeout();
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        CompositeBuffer frame = (CompositeBuffer) msg;
+        int id;
+        byte[] response;
+        try {
+            if (frame.readableBytes() < CorrelationIdCodec.CORRELATION_ID_LENGTH) {
+                throw new IOException("response without correlation id from " + socketChannel);
+            }
+            id = frame.getInt(0);
+            frame.skipBytes(CorrelationIdCodec.CORRELATION_ID_LENGTH);
+            response = frame.toByteArray();
+        } finally {
+            frame.release();
+        }
+        PendingCall call = inflight.remove(id);
+        if (call == null) {
+            //已经超时的请求
+            if (logger.isDebugEnabled()) {
+                logger.debug("discard response of unknown request id:{} from {}", id, socketChannel);
+            }
+            return;
+        }
+        pendingRequests.decrementAndGet();
+        call.future.complete(response);
+    }
+
+    @Override
+    public void channelInactive(HandlerContext ctx) {
+        closed = true;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        failAll(new ClosedChannelException());
+    }
+
+    private void failAll(Throwable cause) {
+        for (PendingCall call : inflight.values()) {
+            pendingRequests.decrementAndGet();
+            call.future.completeExceptionally(cause);
+        }
+        inflight.clear();
+        PendingCall call;
+        while ((call = submitted.poll()) != null) {
+            pendingRequests.decrementAndGet();
+            call.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 有在途请求时保证超时检查任务在等待中；任务不在等待中说明在途请求都是上次检查之后写出的，按完整的超时时间调度
+     */
+    private void scheduleTimeout() {
+        if (requestTimeoutNanos == 0 || inflight.isEmpty()) {
+            return;
+        }
+        if (timeout == null) {
+            timeout = reactor.timer().newTimeout(this::checkTimeout, requestTimeoutNanos, TimeUnit.NANOSECONDS);
+        } else if (!timeout.isPending()) {
+            reactor.timer().schedule(timeout, requestTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 从最早写出的请求开始让已超时的请求失败，遇到第一个没有超时的请求时按它的截止时间重新调度
+     */
+    private void checkTimeout() {
+        long now = System.nanoTime();
+        Iterator<PendingCall> iterator = inflight.values().iterator();
+        while (iterator.hasNext()) {
+            PendingCall call = iterator.next();
+            long delay = call.deadline - now;
+            if (delay > 0) {
+                reactor.timer().schedule(timeout, delay, TimeUnit.NANOSECONDS);
+                return;
+            }
+            iterator.remove();
+            pendingRequests.decrementAndGet();
+            call.future.completeExceptionally(new TimeoutException("no response from " + socketChannel + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(requestTimeoutNanos) + "ms"));
+        }
+    }
+
+    private static final class PendingCall {
+        private final byte[] request;
+
+        private final CompletableFuture<byte[]> future;
+
+        private long deadline;
+
+        PendingCall(byte[] request, CompletableFuture<byte[]> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+}
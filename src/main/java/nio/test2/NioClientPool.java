@@ -0,0 +1,160 @@
+package nio.test2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * NIO客户端连接池：每个服务端地址固定若干个长连接，每个连接上同时有多个请求在途，
+ * 请求和响应通过请求ID对应（服务端需要在处理器链最前面加入{@link CorrelationIdCodec}），调用立即返回CompletableFuture。
+ * <p>
+ * 连接的读写复用服务端的{@link NioReactor}、{@link NioSession}和帧格式（4字节长度字段），
+ * 每个IO线程一个Reactor，新连接按轮询分配到各个Reactor；同一地址的请求按轮询分配到各个连接，
+ * 连接断开后在下一次分配到它时重新连接。线程安全，整个进程共享一个实例即可
+ */
+public class NioClientPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NioClientPool.class);
+
+    private final NioClientConfig config;
+
+    private final NioReactor[] reactors;
+
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    private final ConcurrentMap<SocketAddress, AddressPool> pools = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    public NioClientPool() {
+        this(new NioClientConfig());
+    }
+
+    public NioClientPool(NioClientConfig config) {
+        this.config = config;
+        NioServerConfig sessionConfig = new NioServerConfig();
+        sessionConfig.setMaxFrameLength(config.getMaxFrameLength());
+        sessionConfig.setFrameCodec(new LengthFieldFrameCodec(config.getMaxFrameLength()));
+        sessionConfig.setBufferPool(config.getBufferPool());
+        sessionConfig.setSslContext(config.getSslContext());
+        sessionConfig.setSslClientMode(true);
+        //长连接空闲时不主动关闭，被服务端关闭后下次分配到时重连
+        sessionConfig.setReadIdleTimeoutMillis(0);
+        //请求的积压由maxPendingRequestsPerConnection限制，不能因为发送队列积压暂停读：
+        //服务端的响应读不出来，服务端也会暂停读，双方互相等待
+        sessionConfig.setWriteBufferHighWaterMark(Integer.MAX_VALUE);
+        this.reactors = new NioReactor[config.getIoThreads()];
+        for (int i = 0; i < reactors.length; i++) {
+            //每个连接注册时指定自己的初始化器
+            reactors[i] = new NioReactor("nio-client-" + i, sessionConfig, pipeline -> {
+            });
+            Thread thread = new Thread(reactors[i], reactors[i].name());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 向服务端发送一个请求，可以在任意线程调用，不会阻塞（需要新建连接时除外）
+     *
+     * @param address 服务端地址，TCP地址或者unix domain socket地址，见{@link SocketAddresses#parse}
+     * @param request 请求内容，写出前不能修改
+     * @return 收到响应时完成；超时、连接断开或者在途请求过多时以异常完成
+     */
+    public CompletableFuture<byte[]> call(SocketAddress address, byte[] request) {
+        if (closed) {
+            return failed(new IllegalStateException("NioClientPool closed"));
+        }
+        try {
+            return pools.computeIfAbsent(address, AddressPool::new).next().call(request);
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * 关闭全部连接并停止IO线程，在途的请求以异常完成
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (NioReactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * 一个服务端地址的连接
+     */
+    private final class AddressPool {
+        private final SocketAddress address;
+
+        private final AtomicReferenceArray<NioClientConnection> connections;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        AddressPool(SocketAddress address) {
+            this.address = address;
+            this.connections = new AtomicReferenceArray<>(config.getConnectionsPerAddress());
+        }
+
+        /**
+         * 轮询选择一个连接，还没有建立或者已经断开时重新连接
+         */
+        NioClientConnection next() throws IOException {
+            int index = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length();
+            NioClientConnection connection = connections.get(index);
+            if (connection != null && connection.isActive()) {
+                return connection;
+            }
+            //同一地址同时只建立一个连接，其他调用方等待，避免重复连接
+            synchronized (this) {
+                connection = connections.get(index);
+                if (connection == null || !connection.isActive()) {
+                    connection = connect();
+                    connections.set(index, connection);
+                }
+                return connection;
+            }
+        }
+
+        private NioClientConnection connect() throws IOException {
+            SocketChannel socketChannel = SocketAddresses.openSocketChannel(address);
+            try {
+                if (SocketAddresses.isUnix(address)) {
+                    //本机的unix domain socket立即连接成功或者失败，不需要超时，也没有TCP选项
+                    socketChannel.connect(address);
+                } else {
+                    //阻塞模式下连接，可以指定超时，连接成功后再切换为非阻塞模式
+                    socketChannel.socket().connect(address, (int) config.getConnectTimeoutMillis());
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                socketChannel.configureBlocking(false);
+            } catch (IOException e) {
+                socketChannel.close();
+                throw e;
+            }
+            NioReactor reactor = reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+            NioClientConnection connection = new NioClientConnection(reactor, socketChannel, config);
+            connection.register();
+            logger.info("connect to {} on {}", SocketAddresses.format(address), reactor.name());
+            return connection;
+        }
+    }
+}
@@ -1,12 +1,73 @@
 package nio.test2;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tls.SslContexts;
+import transport.SocketAddresses;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 默认用{@link NioClientPool}并发发送请求并统计吞吐，服务端需要以-Dnio.correlationId=true启动；
+ * -Dnio.address为服务端地址，默认127.0.0.1:8888，unix:路径 时通过unix domain socket连接本机的服务端；
+ * -Dnio.tls=true时用TLS连接；-Dnio.client=single时运行单连接的{@link NioClient}（不支持TLS），-Dnio.pipeline为同时在途的请求数（默认1，即发一个等一个）
+ */
 public class NioClientStart {
-    private static final String host = "127.0.0.1";
+    private static final Logger logger = LoggerFactory.getLogger(NioClientStart.class);
 
-    private static final int port = 8888;
+    private static final String DEFAULT_ADDRESS = "127.0.0.1:8888";
 
-    public static void main(String[] args) {
-        NioClient nioClient = new NioClient(host, port);
-        nioClient.start();
+    public static void main(String[] args) throws InterruptedException, IOException, GeneralSecurityException {
+        //总请求数和同时在途的请求数
+        int requests = Integer.getInteger("nio.requests", 1000000);
+        SocketAddress address = SocketAddresses.parse(System.getProperty("nio.address", DEFAULT_ADDRESS));
+        if ("single".equals(System.getProperty("nio.client"))) {
+            NioClient nioClient = new NioClient(address);
+            nioClient.setPipelineDepth(Integer.getInteger("nio.pipeline", 1));
+            nioClient.start(requests);
+            return;
+        }
+        int concurrency = Integer.getInteger("nio.concurrency", 1000);
+        Semaphore window = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        LongAdder errors = new LongAdder();
+        NioClientConfig config = new NioClientConfig();
+        //通过-Dnio.tls=true 用TLS连接，默认信任NioServerStart以-Dnio.tlsSelfSigned=true 生成的自签名测试证书
+        if (Boolean.getBoolean("nio.tls")) {
+            char[] password = System.getProperty("nio.tlsTrustStorePassword", SslContexts.TEST_PASSWORD).toCharArray();
+            String trustStore = System.getProperty("nio.tlsTrustStore");
+            config.setSslContext(SslContexts.forClient(trustStore != null ? Paths.get(trustStore)
+                    : SslContexts.selfSigned(SslContexts.TEST_KEY_STORE, password), password));
+        }
+        try (NioClientPool pool = new NioClientPool(config)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                window.acquire();
+                byte[] request = ("hello,I'm the " + i + " msg from NioClient").getBytes(StandardCharsets.UTF_8);
+                boolean last = i == requests - 1;
+                pool.call(address, request).whenComplete((response, e) -> {
+                    if (e != null) {
+                        errors.increment();
+                        logger.error("call NioServer fail:", e);
+                    } else if (last) {
+                        logger.info("receive NioServer msg:{}", new String(response, StandardCharsets.UTF_8));
+                    }
+                    window.release();
+                    done.countDown();
+                });
+            }
+            done.await();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            logger.info("requests:{} errors:{} time:{}ms throughput:{}/s", requests, errors.sum(), millis,
+                    requests * 1000L / Math.max(1, millis));
+        }
     }
 }
@@ -0,0 +1,586 @@
+package nio.test2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import selector.OptimizedSelector;
+import timer.HashedWheelTimer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Reactor事件循环，每个实例独占一个Selector和一个线程。
+ * 主Reactor只关注ServerSocketChannel的连接事件，从Reactor负责已建立连接的读写事件；
+ * 其他线程不能直接向本Selector注册Channel（register会和正在阻塞的select()争抢同一把锁），
+ * 只能通过{@link #execute(Runnable)}把任务投递到任务队列，再由本Reactor线程执行。
+ * 连接的各种超时由本Reactor的时间轮检查，每轮事件循环结束时批量处理到期的超时。
+ * <p>
+ * Selector由{@link OptimizedSelector}包装：就绪key用数组遍历，select空转时自动重建。
+ * 每轮处理完IO事件后按ioRatio分配执行任务的时间，任务太多时留到下一轮，不会让IO事件长时间得不到处理
+ */
+public class NioReactor implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(NioReactor.class);
+
+    private final String name;
+
+    //优雅关闭期间检查连接是否写完的间隔
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 10;
+
+    //每执行多少个任务检查一次是否超过了本轮执行任务的时间，System.nanoTime()本身也有开销
+    private static final int TASK_DEADLINE_CHECK_INTERVAL = 64;
+
+    private OptimizedSelector selector;
+
+    //跨线程投递的任务队列，例如主Reactor投递过来的新连接注册任务
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+    //IO事件处理时间占每轮事件循环的百分比，为100时每轮执行全部任务
+    private final int ioRatio;
+
+    //一次读事件的读取预算，见NioServerConfig
+    private final int maxReadsPerEvent;
+
+    private final int maxReadBytesPerEvent;
+
+    //处理单个就绪key，事件循环每轮复用同一个实例
+    private final Consumer<SelectionKey> keyProcessor = this::processSelectedKey;
+
+    //当前Reactor上注册的连接数，用于最少连接数的负载均衡策略
+    private final AtomicInteger channelCount = new AtomicInteger();
+
+    private volatile Thread thread;
+
+    //事件循环已经退出，之后投递的任务不一定会执行
+    private volatile boolean terminating;
+
+    //调用shutdown()后事件循环在本轮结束时退出
+    private volatile boolean shuttingDown;
+
+    //调用shutdownGracefully()后为true，事件循环在连接全部关闭后退出
+    private volatile boolean draining;
+
+    //优雅关闭的截止时间，System.nanoTime()
+    private volatile long drainDeadline;
+
+    //事件循环退出、全部连接关闭后计数
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private final NioServerConfig config;
+
+    //为每个新连接初始化处理器链
+    private final PipelineInitializer pipelineInitializer;
+
+    private final ReactorMetrics metrics = new ReactorMetrics(this);
+
+    //只在本Reactor线程访问
+    private final HashedWheelTimer timer;
+
+    /**
+     * 使用配置中的处理器链初始化器，未配置时每个连接只有一个{@link EchoHandler}
+     */
+    public NioReactor(String name, NioServerConfig config) {
+        this(name, config, config.getPipelineInitializer() != null ? config.getPipelineInitializer()
+                : pipeline -> pipeline.addLast("echo", new EchoHandler()));
+    }
+
+    public NioReactor(String name, NioServerConfig config, PipelineInitializer pipelineInitializer) {
+        this.name = name;
+        this.config = config;
+        this.pipelineInitializer = pipelineInitializer;
+        this.ioRatio = config.getIoRatio();
+        this.maxReadsPerEvent = config.getMaxReadsPerEvent();
+        this.maxReadBytesPerEvent = config.getMaxReadBytesPerEvent();
+        this.timer = new HashedWheelTimer(config.getTimerTickMillis(), TimeUnit.MILLISECONDS, 512);
+        try {
+            selector = new OptimizedSelector(name, this::onKeyMigrated);
+        } catch (Exception e) {
+            logger.error("init NioReactor:{} fail:", name, e);
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * 当前的Selector，重建后会变化，注册时每次重新获取
+     */
+    Selector selector() {
+        return selector.unwrap();
+    }
+
+    /**
+     * 因select空转重建Selector的次数
+     */
+    public long selectorRebuilds() {
+        return selector.rebuildCount();
+    }
+
+    public int channelCount() {
+        return channelCount.get();
+    }
+
+    public ReactorMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 事件循环是否已经启动
+     */
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * 当前线程是否就是本Reactor的事件循环线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 本Reactor的时间轮，只能在本Reactor线程上使用
+     */
+    HashedWheelTimer timer() {
+        return timer;
+    }
+
+    /**
+     * 投递任务到本Reactor线程执行，必要时唤醒阻塞在select()上的selector
+     *
+     * @param task 任务
+     */
+    public void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 把主Reactor接收到的客户端SocketChannel注册到本Reactor的Selector上，关注读事件
+     *
+     * @param socketChannel 已设置为非阻塞模式的客户端SocketChannel
+     */
+    public void register(final SocketChannel socketChannel) {
+        register(socketChannel, pipelineInitializer);
+    }
+
+    /**
+     * 注册SocketChannel，用指定的初始化器初始化该连接的处理器链，例如客户端连接需要加入自己的响应处理器
+     *
+     * @param socketChannel 已设置为非阻塞模式的SocketChannel
+     * @param initializer   在本Reactor线程上调用
+     */
+    public void register(final SocketChannel socketChannel, final PipelineInitializer initializer) {
+        register(socketChannel, initializer, null);
+    }
+
+    /**
+     * 注册SocketChannel，注册失败或者本Reactor已经退出时关闭SocketChannel并调用onFailure，
+     * 用于归还注册之前为该连接占用的资源，例如连接数名额；创建session之后的失败先按正常流程关闭连接，
+     * 已经加入处理器链的处理器会收到channelInactive
+     *
+     * @param socketChannel 已设置为非阻塞模式的SocketChannel
+     * @param initializer   在本Reactor线程上调用
+     * @param onFailure     最多调用一次，可能在本Reactor线程或者调用方线程上调用，可以为null
+     */
+    public void register(final SocketChannel socketChannel, final PipelineInitializer initializer,
+                         final Runnable onFailure) {
+        channelCount.incrementAndGet();
+        if (inEventLoop()) {
+            doRegister(socketChannel, initializer, onFailure);
+            return;
+        }
+        Runnable task = () -> doRegister(socketChannel, initializer, onFailure);
+        execute(task);
+        //事件循环已经退出，任务不会再执行；和退出前最后一次执行任务的竞争中只有一方能从队列中取到任务
+        if (terminating && taskQueue.remove(task)) {
+            logger.warn("{} is terminated, reject channel:{}", name, socketChannel);
+            registerFailed(socketChannel, onFailure);
+        }
+    }
+
+    private void doRegister(SocketChannel socketChannel, PipelineInitializer initializer, Runnable onFailure) {
+        SelectionKey selectionKey;
+        try {
+            selectionKey = selector.register(socketChannel, SelectionKey.OP_READ, null);
+        } catch (Exception e) {
+            logger.error("register channel:{} to {} fail:", socketChannel, name, e);
+            registerFailed(socketChannel, onFailure);
+            return;
+        }
+        try {
+            //每个连接的状态挂在自己的SelectionKey上，先挂上再初始化，失败时关闭流程能找到session
+            NioSession session = new NioSession(this, selectionKey, config);
+            selectionKey.attach(session);
+            initializer.initPipeline(session.pipeline());
+            //TLS客户端连接立即发出ClientHello，其余连接发送队列为空，什么都不做
+            session.flush();
+            //Selector重建后key会变化，超时任务每次从session取当前的key
+            session.startTimeout(timer, () -> checkTimeout(session.selectionKey()));
+        } catch (Exception e) {
+            logger.error("init channel:{} on {} fail:", socketChannel, name, e);
+            //session已经占用了池化buffer、TLS状态和时间轮任务，走正常的关闭流程归还并通知处理器链；
+            //flush失败时session可能已经自己关闭，close重复调用无效，连接计数只减一次
+            close(selectionKey);
+            //处理器可能还没加入处理器链，收不到channelInactive，由回调释放，回调需要能重复调用
+            if (onFailure != null) {
+                onFailure.run();
+            }
+        }
+    }
+
+    private void registerFailed(SocketChannel socketChannel, Runnable onFailure) {
+        channelCount.decrementAndGet();
+        try {
+            socketChannel.close();
+        } catch (Exception e) {
+            logger.error("close socketChannel fail:", e);
+        }
+        if (onFailure != null) {
+            onFailure.run();
+        }
+    }
+
+    /**
+     * SocketChannel读数据事件就绪的处理逻辑，数据先追加到该连接自己的累积buffer，再解出其中全部完整的帧交给处理器链。
+     * 读满了读buffer时继续读，直到读空socket或者用完本次事件的读取预算，剩下的数据等下一轮select
+     *
+     * @param selectionKey 就绪通道的唯一键
+     */
+    private void read(SelectionKey selectionKey) {
+        NioSession session = (NioSession) selectionKey.attachment();
+        try {
+            int totalBytes = 0;
+            int reads = 0;
+            do {
+                //读取channel数据写入buffer，此方法不会阻塞，count=0是没有数据，count=-1应该是客户端关闭了
+                int count = session.read();
+                //客户端关闭时需要关闭服务端的socketChannel
+                if (count == -1) {
+                    logger.debug("客户端连接关闭。。。");
+                    //客户端断开时，需要关闭服务端的SocketChannel
+                    close(selectionKey);
+                    return;
+                } else if (count == 0) {
+                    break;
+                }
+                totalBytes += count;
+                //每次读完就解帧，累积buffer只保留半包；超过限速时取消OP_READ，下面的条件随即结束本次读事件
+                session.decodeFrames();
+            } while (session.lastReadFilled() && ++reads < maxReadsPerEvent && totalBytes < maxReadBytesPerEvent
+                    && session.readInterested());
+            if (totalBytes == 0) {
+                return;
+            }
+            session.readComplete(totalBytes);
+            //一次读事件中产生的所有响应合并成一次写
+            session.flush();
+        } catch (Exception e) {
+            logger.error("read data from channel:{} fail", selectionKey, e);
+            //注意这里不能在finally中关闭socketChannel，否则这个客户端对应的channel就关闭了，后续就不能使用了
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * socket重新可写，继续写出发送队列中剩余的数据
+     *
+     * @param selectionKey 就绪通道的唯一键
+     */
+    private void write(SelectionKey selectionKey) {
+        NioSession session = (NioSession) selectionKey.attachment();
+        try {
+            session.flush();
+        } catch (Exception e) {
+            logger.error("write response to NioClient:{} fail:", selectionKey, e);
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * TLS委托任务在任务线程池中执行完，继续该连接的握手
+     */
+    void resumeTls(SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        try {
+            ((NioSession) selectionKey.attachment()).resumeTls();
+        } catch (Exception e) {
+            logger.error("resume tls handshake of channel:{} fail", selectionKey, e);
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * 连接的限速暂停到期，处理暂停期间留下的帧并恢复读取
+     */
+    void resumeThrottled(SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        try {
+            ((NioSession) selectionKey.attachment()).resumeThrottled();
+        } catch (Exception e) {
+            logger.error("resume throttled channel:{} fail", selectionKey, e);
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * 连接的超时检查任务到期，超时则关闭连接
+     */
+    private void checkTimeout(SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        NioSession session = (NioSession) selectionKey.attachment();
+        String reason = session.checkTimeout(System.nanoTime());
+        if (reason != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("close {} on {}", session.socketChannel(), reason);
+            }
+            metrics.onTimeoutClose();
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * Selector重建时把连接迁移到新的key，迁移失败时channel已经关闭，在这里清理连接
+     */
+    private void onKeyMigrated(SelectionKey oldKey, SelectionKey newKey) {
+        if (newKey != null) {
+            if (newKey.attachment() instanceof NioSession) {
+                ((NioSession) newKey.attachment()).selectionKey(newKey);
+            }
+        } else if (oldKey.attachment() instanceof NioSession) {
+            closed(oldKey);
+        }
+    }
+
+    /**
+     * 关闭连接，通知处理器链并归还该连接的全部buffer，只能在本Reactor线程上调用，重复调用无效
+     */
+    void close(SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        selectionKey.cancel();
+        closed(selectionKey);
+    }
+
+    private void closed(SelectionKey selectionKey) {
+        if (selectionKey.attachment() instanceof NioSession) {
+            NioSession session = (NioSession) selectionKey.attachment();
+            try {
+                session.pipeline().fireChannelInactive();
+            } catch (Exception e) {
+                logger.error("fire channel inactive of {} fail:", selectionKey.channel(), e);
+            }
+            session.releaseBuffers();
+        }
+        try {
+            selectionKey.channel().close();
+        } catch (IOException e) {
+            logger.error("close socketChannel fail:", e);
+        }
+        channelCount.decrementAndGet();
+    }
+
+    /**
+     * 执行任务，超过本轮的时间预算后把剩余的任务留到下一轮，至少执行一批
+     *
+     * @param timeoutNanos 本轮执行任务的时间预算
+     */
+    private void runTasks(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        Runnable task;
+        int ran = 0;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error("{} run task fail:", name, t);
+            }
+            if (++ran % TASK_DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 执行任务队列中的全部任务
+     */
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error("{} run task fail:", name, t);
+            }
+        }
+    }
+
+    /**
+     * 停止事件循环，退出前执行完已投递的任务并关闭本Reactor上的全部连接
+     */
+    public void shutdown() {
+        shuttingDown = true;
+        selector.wakeup();
+    }
+
+    /**
+     * 优雅关闭：空闲的连接立即关闭，其余连接不再读取新请求，写完已有的响应后关闭，
+     * 超过timeout的连接强制关闭，全部关闭后事件循环退出
+     */
+    public void shutdownGracefully(long timeout, TimeUnit unit) {
+        drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+        draining = true;
+        selector.wakeup();
+    }
+
+    /**
+     * 等待事件循环退出
+     *
+     * @return 是否在timeout内退出
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * 优雅关闭期间的一轮检查，先关闭空闲的连接，其余的连接继续写出
+     *
+     * @return 本Reactor上已经没有连接
+     */
+    private boolean drain() {
+        boolean expired = System.nanoTime() - drainDeadline >= 0;
+        int remaining = 0;
+        for (SelectionKey selectionKey : selector.unwrap().keys()) {
+            if (!selectionKey.isValid() || !(selectionKey.attachment() instanceof NioSession)) {
+                continue;
+            }
+            NioSession session = (NioSession) selectionKey.attachment();
+            if (session.isIdle()) {
+                close(selectionKey);
+            } else if (expired) {
+                remaining++;
+                close(selectionKey);
+            } else {
+                session.drain();
+                remaining++;
+            }
+        }
+        if (expired && remaining > 0) {
+            logger.warn("{} {} connections not drained before deadline, force close", name, remaining);
+            return true;
+        }
+        return remaining == 0 && taskQueue.isEmpty();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            eventLoop();
+        } finally {
+            //先置标记再执行剩余的任务，之后投递的注册任务由投递方自己取回
+            terminating = true;
+            closeAll();
+            terminated.countDown();
+        }
+    }
+
+    private void eventLoop() {
+        while (!shuttingDown) {
+            try {
+                if (draining && drain()) {
+                    return;
+                }
+                //先清除唤醒标记再检查任务队列，之后投递的任务一定会唤醒selector
+                selector.resetWakeup();
+                //有待执行的任务时不能阻塞在select()上
+                int readyKeys;
+                if (!taskQueue.isEmpty()) {
+                    readyKeys = selector.selectNow();
+                } else if (timer.pendingTimeouts() > 0 || draining) {
+                    //有等待中的超时任务时最多阻塞到时间轮的下一个tick，优雅关闭期间定期检查连接是否已经写完
+                    long timeoutMillis = timer.pendingTimeouts() > 0
+                            ? timer.millisUntilNextTick(System.nanoTime()) : DRAIN_CHECK_INTERVAL_MILLIS;
+                    if (draining) {
+                        timeoutMillis = Math.min(timeoutMillis, DRAIN_CHECK_INTERVAL_MILLIS);
+                    }
+                    readyKeys = timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.selectNow();
+                } else {
+                    //此处会阻塞直至有一个客户端Channel有就绪事件，或者被其他线程wakeup
+                    readyKeys = selector.select(0);
+                }
+                metrics.onSelect(readyKeys);
+                long ioStart = System.nanoTime();
+                //对每一个准备就绪的channel进行操作
+                selector.processSelectedKeys(keyProcessor);
+                if (ioRatio >= 100) {
+                    runAllTasks();
+                } else {
+                    //按本轮IO耗时和ioRatio计算执行任务的时间
+                    long ioTime = System.nanoTime() - ioStart;
+                    runTasks(ioTime * (100 - ioRatio) / ioRatio);
+                }
+                //批量处理到期的超时
+                timer.expireTimeouts(System.nanoTime());
+            } catch (Exception e) {
+                logger.error("select ready channel fail:", e);
+            }
+        }
+    }
+
+    private void processSelectedKey(SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        if (selectionKey.isAcceptable()) {
+            ((NioServer) selectionKey.attachment()).accept(selectionKey);
+            return;
+        }
+        //UDP socket只关注读事件，回复数据报不经过发送队列
+        if (selectionKey.attachment() instanceof DatagramEndpoint) {
+            ((DatagramEndpoint) selectionKey.attachment()).read();
+            return;
+        }
+        //先写后读，尽早释放发送队列，写失败关闭连接后key就不再有效
+        if (selectionKey.isWritable()) {
+            write(selectionKey);
+        }
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            read(selectionKey);
+        }
+    }
+
+    private void closeAll() {
+        runAllTasks();
+        for (SelectionKey selectionKey : selector.unwrap().keys()) {
+            if (selectionKey.attachment() instanceof NioSession) {
+                close(selectionKey);
+            } else {
+                selectionKey.cancel();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("close selector of {} fail:", name, e);
+        }
+        logger.info("{} shutdown", name);
+    }
+}
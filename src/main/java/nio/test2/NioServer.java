@@ -1,155 +1,413 @@
 package nio.test2;
 
+import limit.ConnectionLimiter;
+import lifecycle.Lifecycle;
+import metrics.MetricsHttpServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import transport.SocketAddresses;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class NioServer implements Runnable {
+/**
+ * 主从Reactor模式的NIO服务端：主Reactor（boss）只负责接收新连接，接收到的SocketChannel按负载均衡策略
+ * 分配给某个从Reactor（worker），之后该连接的读写都在这个从Reactor线程上完成。
+ * subReactorCount为0时退化为单Reactor模式，连接和读写都在同一个线程上处理。
+ * <p>
+ * 主Reactor在accept之后按总连接数和每个来源IP的连接数做准入控制，超过限制的连接不注册直接关闭，见{@link ConnectionLimiter}。
+ * <p>
+ * 可以同时监听TCP端口和unix domain socket（{@link NioServerConfig#setBindAddresses}），同一台机器上的客户端走unix domain socket
+ * 省去TCP/IP协议栈的开销，两种连接使用同一套Reactor、会话和处理器链。
+ * <p>
+ * 配置了handoverPath时支持热重启：新进程启动时先从旧进程接手监听socket，开始accept后通知旧进程优雅关闭，
+ * 见{@link ListenerHandover}
+ */
+public class NioServer implements Lifecycle {
     private static final Logger logger = LoggerFactory.getLogger(NioServer.class);
-    //每个服务端包含一个Selector对象，用于轮询注册Channel上的就绪事件
-    private Selector selector;
 
-    private ByteBuffer readBuf = ByteBuffer.allocate(1024);
+    /**
+     * 从Reactor的选择策略
+     */
+    public enum ChooserStrategy {
+        //轮询
+        ROUND_ROBIN,
+        //选择当前连接数最少的从Reactor
+        LEAST_LOADED
+    }
+
+    private final NioServerConfig config;
+
+    //主Reactor，持有ServerSocketChannel所注册的Selector
+    private final NioReactor bossReactor;
+
+    private final NioReactor[] subReactors;
+
+    private final ChooserStrategy chooserStrategy;
+
+    //只在主Reactor线程上访问，不需要同步
+    private int nextIndex;
+
+    //连接准入控制，未配置连接数限制时为null
+    private final ConnectionLimiter connectionLimiter;
 
-    private ByteBuffer writeBuf = ByteBuffer.allocate(1024);
+    //每个连接的处理器链初始化器，开启连接数限制时在accept时为每个连接再包一层归还名额的处理器
+    private final PipelineInitializer pipelineInitializer;
+
+    //未配置metricsPort时为null
+    private MetricsHttpServer metricsHttpServer;
+
+    //监听socket，通常只有一个，从Epoll传输层的进程接手时每个IO线程一个
+    private final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<>();
+
+    //等待下一个进程接手监听socket，未配置handoverPath时为null
+    private volatile ListenerHandover handover;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
 
     public NioServer(int port) {
+        this(new NioServerConfig(port));
+    }
+
+    public NioServer(int port, int subReactorCount) {
+        this(port, subReactorCount, ChooserStrategy.ROUND_ROBIN);
+    }
+
+    public NioServer(int port, int subReactorCount, ChooserStrategy chooserStrategy) {
+        this(newConfig(port, subReactorCount, chooserStrategy));
+    }
+
+    public NioServer(NioServerConfig config) {
+        this.config = config;
+        int subReactorCount = config.getSubReactorCount();
+        this.chooserStrategy = config.getChooserStrategy();
+        PipelineInitializer pipelineInitializer = config.getPipelineInitializer();
+        if (pipelineInitializer == null) {
+            pipelineInitializer = defaultPipelineInitializer(config);
+        }
+        if (config.getJournal() != null) {
+            pipelineInitializer = JournalHandler.journaled(config.getJournal(), pipelineInitializer);
+        }
+        this.connectionLimiter = newConnectionLimiter(config);
+        this.pipelineInitializer = pipelineInitializer;
+        this.bossReactor = new NioReactor("nio-boss", config, pipelineInitializer);
+        this.subReactors = new NioReactor[subReactorCount];
+        for (int i = 0; i < subReactorCount; i++) {
+            subReactors[i] = new NioReactor("nio-worker-" + i, config, pipelineInitializer);
+        }
+    }
+
+    /**
+     * 绑定端口（或者从旧进程接手监听socket），为每个Reactor启动一个线程
+     */
+    @Override
+    public void start() throws IOException {
+        List<SocketAddress> bindAddresses = config.getBindAddresses();
+        if (config.getHandoverPath() != null) {
+            for (SocketAddress address : bindAddresses) {
+                if (SocketAddresses.isUnix(address)) {
+                    throw new IllegalArgumentException("listener handover only supports TCP, but bind " + address);
+                }
+            }
+        }
+        int[] inherited = config.getHandoverPath() == null ? new int[0]
+                : ListenerHandover.receive(config.getHandoverPath(), config.getShutdownTimeoutMillis());
         try {
-            //实例化Selector
-            selector = Selector.open();
-            //实例化ServerSocketChannel
-            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-            //ServerSocketChannel设置为非阻塞模式，并向Selector注册，此channel只关注接收客户端连接事件
-            serverSocketChannel.configureBlocking(false);
-            serverSocketChannel.bind(new InetSocketAddress(port));
-            //注册连接事件
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            logger.info("success start NioServer,port is {}", port);
-        } catch (Exception e) {
-            logger.error("init NioServer fail:", e);
+            if (inherited.length == 0) {
+                for (SocketAddress address : bindAddresses) {
+                    //按地址实例化TCP或者unix domain socket的ServerSocketChannel
+                    ServerSocketChannel serverSocketChannel = SocketAddresses.openServerSocketChannel(address);
+                    listeners.add(serverSocketChannel);
+                    //接收缓冲区超过64KB时需要在bind之前设置，accept的连接继承这个值，三次握手时才能协商窗口扩大因子
+                    if (config.getReceiveBufferSize() > 0) {
+                        serverSocketChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+                    }
+                    //上次异常退出遗留的socket文件
+                    SocketAddresses.deleteStaleSocketFile(address);
+                    serverSocketChannel.bind(address, config.getAcceptBacklog());
+                }
+            }
+            for (int fd : inherited) {
+                listeners.add(ListenerHandover.serverSocketChannel(fd));
+            }
+            for (ServerSocketChannel serverSocketChannel : listeners) {
+                //ServerSocketChannel设置为非阻塞模式，并向主Reactor的Selector注册，此channel只关注接收客户端连接事件
+                serverSocketChannel.configureBlocking(false);
+                //注册连接事件，attachment为当前服务端，主Reactor收到连接事件后回调accept
+                serverSocketChannel.register(bossReactor.selector(), SelectionKey.OP_ACCEPT, this);
+            }
+        } catch (IOException e) {
+            closeListeners();
+            throw e;
+        }
+        registerMetrics(config);
+        for (NioReactor subReactor : subReactors) {
+            new Thread(subReactor, subReactor.name()).start();
+        }
+        new Thread(bossReactor, bossReactor.name()).start();
+        logger.info("success start NioServer,address is {},subReactorCount is {},inherited listeners is {}",
+                inherited.length > 0 ? "inherited" : format(bindAddresses), subReactors.length, inherited.length);
+        if (config.getHandoverPath() != null) {
+            if (inherited.length > 0) {
+                //已经开始accept，旧进程可以关闭了
+                ListenerHandover.acknowledge(config.getHandoverPath(), config.getShutdownTimeoutMillis());
+            }
+            handover = ListenerHandover.listen(config.getHandoverPath(), this::listenerFds,
+                    () -> stop(config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS));
         }
     }
 
+    /**
+     * 停止accept，主Reactor随即退出；从Reactor上的连接写完已有的响应后关闭
+     */
+    @Override
+    public void stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        ListenerHandover handover = this.handover;
+        if (handover != null) {
+            handover.close();
+        }
+        if (subReactors.length == 0) {
+            bossReactor.execute(this::closeListeners);
+            bossReactor.shutdownGracefully(timeout, unit);
+        } else {
+            //在主Reactor线程上先关闭监听socket再通知从Reactor，之前接收的连接的注册任务都已经投递到了从Reactor
+            bossReactor.execute(() -> {
+                closeListeners();
+                for (NioReactor subReactor : subReactors) {
+                    subReactor.shutdownGracefully(timeout, unit);
+                }
+            });
+            bossReactor.shutdown();
+        }
+        if (metricsHttpServer != null) {
+            metricsHttpServer.stop();
+        }
+        logger.info("stop NioServer,address is {},timeout is {}ms", format(config.getBindAddresses()),
+                unit.toMillis(timeout));
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!bossReactor.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        for (NioReactor subReactor : subReactors) {
+            if (!subReactor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int[] listenerFds() {
+        int[] fds = new int[listeners.size()];
+        for (int i = 0; i < fds.length; i++) {
+            fds[i] = ListenerHandover.fdVal(listeners.get(i));
+        }
+        return fds;
+    }
+
+    private void closeListeners() {
+        for (ServerSocketChannel serverSocketChannel : listeners) {
+            try {
+                //unix domain socket的文件在关闭后仍然存在，需要删除
+                SocketAddress localAddress = serverSocketChannel.isOpen() ? serverSocketChannel.getLocalAddress() : null;
+                serverSocketChannel.close();
+                if (localAddress != null) {
+                    SocketAddresses.deleteSocketFile(localAddress);
+                }
+            } catch (IOException e) {
+                logger.error("close listener:{} fail:", serverSocketChannel, e);
+            }
+        }
+    }
+
+    private static List<String> format(List<SocketAddress> addresses) {
+        List<String> formatted = new ArrayList<>(addresses.size());
+        for (SocketAddress address : addresses) {
+            formatted.add(SocketAddresses.format(address));
+        }
+        return formatted;
+    }
+
+    /**
+     * 默认的处理器链：配置了静态文件根目录时先处理文件请求，其余请求回显，两个处理器都无状态，所有连接共享
+     */
+    static PipelineInitializer defaultPipelineInitializer(NioServerConfig config) {
+        FileRequestHandler fileRequestHandler = null;
+        if (config.getFileRoot() != null) {
+            //文件内容在帧头之后直接发送，只有长度字段帧格式能描述这种帧
+            if (!(config.getFrameCodec() instanceof LengthFieldFrameCodec)) {
+                throw new IllegalArgumentException("file serving requires LengthFieldFrameCodec");
+            }
+            //所有Reactor共用同一个内存映射缓存
+            fileRequestHandler = new FileRequestHandler(config);
+        }
+        FileRequestHandler fileHandler = fileRequestHandler;
+        EchoHandler echoHandler = new EchoHandler();
+        return pipeline -> {
+            if (fileHandler != null) {
+                pipeline.addLast("file", fileHandler);
+            }
+            pipeline.addLast("echo", echoHandler);
+        };
+    }
+
+    /**
+     * 把每个Reactor的指标注册到JMX，配置了metricsPort时再通过HTTP暴露
+     */
+    private void registerMetrics(NioServerConfig config) {
+        NioReactor[] reactors = new NioReactor[subReactors.length + 1];
+        reactors[0] = bossReactor;
+        System.arraycopy(subReactors, 0, reactors, 1, subReactors.length);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (NioReactor reactor : reactors) {
+            try {
+                mBeanServer.registerMBean(reactor.metrics(), new ObjectName("nio.test2:type=Reactor," + listenKey()
+                        + ",name=" + reactor.name()));
+            } catch (Exception e) {
+                logger.warn("register metrics mbean of {} fail:", reactor.name(), e);
+            }
+        }
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsHttpServer = new MetricsHttpServer(config.getMetricsPort());
+                for (NioReactor reactor : reactors) {
+                    metricsHttpServer.register(reactor.metrics());
+                }
+                metricsHttpServer.start();
+            } catch (IOException e) {
+                logger.error("start metrics endpoint on port:{} fail:", config.getMetricsPort(), e);
+            }
+        }
+    }
+
+    /**
+     * 区分同一进程中多个服务端的JMX属性：第一个监听地址为TCP时用端口，为unix domain socket时用文件路径
+     */
+    private String listenKey() {
+        SocketAddress address = config.getBindAddresses().get(0);
+        if (SocketAddresses.isUnix(address)) {
+            return "path=" + ObjectName.quote(SocketAddresses.unixPath(address).toString());
+        }
+        return "port=" + ((InetSocketAddress) address).getPort();
+    }
+
+    /**
+     * 没有配置连接数限制时返回null，accept时不需要任何额外开销
+     */
+    static ConnectionLimiter newConnectionLimiter(NioServerConfig config) {
+        ConnectionLimiter limiter = new ConnectionLimiter(config.getMaxConnections(),
+                config.getMaxConnectionsPerAddress());
+        return limiter.isEnabled() ? limiter : null;
+    }
+
+    private static NioServerConfig newConfig(int port, int subReactorCount, ChooserStrategy chooserStrategy) {
+        NioServerConfig config = new NioServerConfig(port);
+        config.setSubReactorCount(subReactorCount);
+        config.setChooserStrategy(chooserStrategy);
+        return config;
+    }
+
+    /**
+     * 从Reactor，start()时各自启动一个线程
+     */
+    public NioReactor[] subReactors() {
+        return subReactors;
+    }
+
     /**
      * 接收到客户端新的连接请求时的处理逻辑，即ServerSocketChannel关注的新建连接事件，调用此事件处理器时
      * 服务端一定接收到了新的连接请求，否则不会进入该事件处理器
      *
      * @param selectionKey 就绪通道的唯一键
      */
-    private void accept(SelectionKey selectionKey) {
+    void accept(SelectionKey selectionKey) {
         try {
             ServerSocketChannel serverSocketChannel = (ServerSocketChannel) selectionKey.channel();
-            //由于ServerSocketChannel设置了非阻塞模式，所以这里不阻塞，没有连接则直接返回，而且此处一定有连接
-            //若有则获取客户端的SocketChannel
+            //由于ServerSocketChannel设置了非阻塞模式，所以这里不阻塞，没有连接则直接返回
             SocketChannel socketChannel = serverSocketChannel.accept();
+            if (socketChannel == null) {
+                return;
+            }
             //将客户端的SocketChannel也设为非阻塞模式，客户端那边已经设置过
             socketChannel.configureBlocking(false);
-            //客户端的SocketChannel在注册后先关注该channel的读取事件
-            socketChannel.register(selector, SelectionKey.OP_READ);
+            if (config.getReceiveBufferSize() > 0) {
+                socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, config.getReceiveBufferSize());
+            }
+            if (config.getSendBufferSize() > 0) {
+                socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+            }
+            if (connectionLimiter == null) {
+                //交给选中的Reactor注册，注册后先关注该channel的读取事件
+                nextReactor().register(socketChannel);
+                return;
+            }
+            //最后一步才占用名额，之前的步骤失败时不需要归还；注册失败时由Reactor回调归还
+            ConnectionLimitHandler limitHandler = admit(socketChannel);
+            if (limitHandler != null) {
+                nextReactor().register(socketChannel, limitHandler.limited(pipelineInitializer), limitHandler::release);
+            }
         } catch (Exception e) {
             logger.error("create new client connection:{} fail:", selectionKey, e);
         }
     }
 
     /**
-     * SocketChannel读数据事件就绪的处理逻辑，即SocketChannel关注的事件，需要把channel中的数据写到buffer
-     * 所以buffer是读模式
+     * 占用一个连接名额，超过限制时直接关闭连接，连接不会注册到任何Reactor
      *
-     * @param selectionKey 就绪通道的唯一键
+     * @return 归还该名额的处理器，超过限制时返回null
      */
-    private void read(SelectionKey selectionKey) {
-        readBuf.clear();
-        //获取socketChannel
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        try {
-            //读取channel数据写入buffer，此方法不会阻塞，count=0是没有数据，count=-1应该是客户端关闭了
-            int count = socketChannel.read(readBuf);
-            logger.info("count is {}", count);
-            //客户端关闭时需要关闭服务端的socketChannel
-            if (count == -1) {
-                logger.info("客户端连接关闭。。。");
-                //客户端断开时，需要关闭服务端的SocketChannel
-                socketChannel.close();
-                selectionKey.cancel();
-                return;
-            } else if (count == 0) {
-                logger.warn("no data to read...");
-                return;
-            }
-            String msg = new String(readBuf.array(), StandardCharsets.UTF_8).trim();
-            logger.info("receive NioClient msg:{}", msg);
-            //向客户端返回响应
-            this.write(selectionKey, msg + ":nio server response");
-        } catch (Exception e) {
-            logger.error("read data from channel:{} fail", selectionKey, e);
-            //注意这里不能在finally中关闭socketChannel，否则这个客户端对应的channel就关闭了，后续就不能使用了
-            try {
-                socketChannel.close();
-            } catch (Exception e1) {
-                logger.error("close socketChannel fail:", e1);
-            }
-            selectionKey.cancel();
+    private ConnectionLimitHandler admit(SocketChannel socketChannel) throws IOException {
+        InetAddress address = SocketAddresses.hostAddress(socketChannel.getRemoteAddress());
+        if (connectionLimiter.tryAcquire(address)) {
+            return new ConnectionLimitHandler(connectionLimiter, address);
+        }
+        bossReactor.metrics().onConnectionRejected();
+        if (logger.isDebugEnabled()) {
+            logger.debug("connections exceed limit, reject {}, current connections is {}", socketChannel,
+                    connectionLimiter.connections());
         }
+        socketChannel.close();
+        return null;
     }
 
     /**
-     * 写消息至nio客户端
-     *
-     * @param selectionKey 客户端SocketChannel对应的唯一键
-     * @param msg          消息内容
+     * 按选择策略挑选一个从Reactor，没有从Reactor时由主Reactor自己处理
      */
-    private void write(SelectionKey selectionKey, String msg) {
-        SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-        writeBuf.clear();
-        writeBuf.put(msg.getBytes());
-        //将buffer置为读模式，即从buffer中读取数据写到channel中
-        writeBuf.flip();
-        try {
-            socketChannel.write(writeBuf);
-        } catch (Exception e) {
-            logger.error("write response to NioClient:{} fail:", selectionKey, e);
-            //注意这里不能在finally中关闭socketChannel，否则这个客户端对应的channel就关闭了，后续就不能在使用了
-            try {
-                socketChannel.close();
-            } catch (Exception e1) {
-                logger.error("close socketChannel fail:", e1);
-            }
-            selectionKey.cancel();
+    private NioReactor nextReactor() {
+        if (subReactors.length == 0) {
+            return bossReactor;
         }
-    }
-
-
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                //此处会阻塞直至有一个客户端Channel有就绪事件
-                selector.select();
-                Iterator<SelectionKey> selectionKeyIterator = selector.selectedKeys().iterator();
-                //对每一个准备就绪的channel进行操作
-                while (selectionKeyIterator.hasNext()) {
-                    SelectionKey selectionKey = selectionKeyIterator.next();
-                    //删除此selectionKey，否则后续会一直有此selectionKey
-                    selectionKeyIterator.remove();
-                    if (selectionKey.isValid()) {
-                        if (selectionKey.isAcceptable()) {
-                            accept(selectionKey);
-                        } else if (selectionKey.isReadable()) {
-                            read(selectionKey);
-                        }
-                    }
+        if (chooserStrategy == ChooserStrategy.LEAST_LOADED) {
+            NioReactor chosen = subReactors[0];
+            for (int i = 1; i < subReactors.length; i++) {
+                if (subReactors[i].channelCount() < chosen.channelCount()) {
+                    chosen = subReactors[i];
                 }
-            } catch (Exception e) {
-                logger.error("select ready channel fail:", e);
             }
+            return chosen;
         }
+        NioReactor chosen = subReactors[nextIndex];
+        nextIndex = (nextIndex + 1) % subReactors.length;
+        return chosen;
     }
 }
@@ -0,0 +1,516 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import journal.MappedJournal;
+
+import javax.net.ssl.SSLContext;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * NioServer的配置项
+ */
+public class NioServerConfig {
+    /**
+     * 传输层
+     */
+    public enum Transport {
+        //JDK Selector，跨平台
+        NIO,
+        //Netty native epoll，只支持Linux
+        EPOLL
+    }
+
+    private int port = 8888;
+
+    //监听地址，为空时监听所有网卡的port端口；可以同时监听TCP和unix domain socket（需要JDK 16+），
+    //见transport.SocketAddresses，全部地址由同一个主Reactor接收连接，连接的读写和处理器链不区分传输层
+    private List<SocketAddress> bindAddresses = Collections.emptyList();
+
+    private Transport transport = Transport.NIO;
+
+    //native epoll传输层监听socket的TCP_FASTOPEN队列长度，为0时不开启；JDK Selector不支持该选项
+    private int tcpFastOpen = 256;
+
+    //从Reactor个数，为0时使用单Reactor模式
+    private int subReactorCount;
+
+    private NioServer.ChooserStrategy chooserStrategy = NioServer.ChooserStrategy.ROUND_ROBIN;
+
+    //单个帧的最大长度，超过后关闭连接，避免恶意客户端耗尽内存
+    private int maxFrameLength = 1024 * 1024;
+
+    //读buffer的初始大小，之后每个连接按最近的读取量在min和max之间自适应调整，
+    //半包较大时按半包大小增大，累积的上限由maxFrameLength决定
+    private int readBufferSize = 1024;
+
+    private int minReadBufferSize = 512;
+
+    private int maxReadBufferSize = 64 * 1024;
+
+    //一次读事件中最多读几次，读满了buffer时继续读，直到读空socket或者用完预算，避免一个连接占住Reactor线程
+    private int maxReadsPerEvent = 16;
+
+    //一次读事件中最多读取的字节数
+    private int maxReadBytesPerEvent = 64 * 1024;
+
+    //连接的SO_RCVBUF和SO_SNDBUF，为0时使用系统默认值（Linux上自动调整）
+    private int receiveBufferSize;
+
+    private int sendBufferSize;
+
+    //监听socket的accept队列长度，突发的新连接超过时由内核拒绝或者丢弃SYN
+    private int acceptBacklog = 1024;
+
+    //最大连接数，超过后新连接在accept之后直接关闭，为0时不限制
+    private int maxConnections;
+
+    //每个来源IP的最大连接数，为0时不限制
+    private int maxConnectionsPerAddress;
+
+    //单个连接每秒最多处理的消息数和读取的字节数，超过后暂停读取该连接，为0时不限制；允许一秒的突发量
+    private long maxMessagesPerSecond;
+
+    private long maxBytesPerSecond;
+
+    //为null时不加密；会话复用由SSLContext的会话缓存完成（getServerSessionContext().setSessionCacheSize/setSessionTimeout）
+    private SSLContext sslContext;
+
+    //NioClientPool用同一套会话实现，客户端连接为true
+    private boolean sslClientMode;
+
+    //执行SSLEngine委托任务的线程池，为null时使用共享的守护线程池，任务不在Reactor线程上执行
+    private Executor sslTaskExecutor;
+
+    private FrameCodec frameCodec;
+
+    //每个新连接的处理器链初始化器，为null时使用默认的回显处理器，配置了fileRoot时前面再加文件请求处理器
+    private PipelineInitializer pipelineInitializer;
+
+    //单个连接发送队列积压超过高水位时暂停读取该连接，降到低水位以下后恢复
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    private int writeBufferLowWaterMark = 32 * 1024;
+
+    //累积buffer和发送buffer的来源，默认使用直接内存池
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+
+    //静态文件根目录，为null时不处理文件请求
+    private String fileRoot;
+
+    //不超过该大小的文件放入内存映射缓存
+    private long mappedFileMaxSize = 64 * 1024;
+
+    //内存映射缓存的总大小
+    private long mappedFileCacheSize = 16 * 1024 * 1024;
+
+    //HTTP指标端点的端口，为0时不开启，JMX指标总是注册
+    private int metricsPort;
+
+    //超时检查用的时间轮的精度
+    private long timerTickMillis = 100;
+
+    //记录每个入站帧的日志，为null时不记录，由创建方负责关闭
+    private MappedJournal journal;
+
+    //Reactor每轮事件循环中IO事件处理时间所占的百分比，其余时间执行投递的任务，为100时每轮执行全部任务
+    private int ioRatio = 50;
+
+    //连接多久没有读到数据就关闭，为0时不检查
+    private long readIdleTimeoutMillis = 5 * 60 * 1000;
+
+    //发送队列中有数据但多久没有写出任何字节就关闭，对端不读或者已经断开但没有收到FIN，为0时不检查
+    private long writeIdleTimeoutMillis = 60 * 1000;
+
+    //连接的最长存活时间，为0时不限制
+    private long maxConnectionAgeMillis;
+
+    //优雅关闭时等待连接写完响应的最长时间，超过后强制关闭
+    private long shutdownTimeoutMillis = 30 * 1000;
+
+    //热重启时交接监听socket的unix domain socket路径，为null时不交接
+    private Path handoverPath;
+
+    //一个请求帧从收到第一个字节开始多久内必须收完整，为0时不检查
+    private long requestTimeoutMillis = 30 * 1000;
+
+    //DatagramServer接收的最大数据报字节数，更大的数据报被截断，计数后丢弃
+    private int maxDatagramSize = 8 * 1024;
+
+    //DatagramServer每批最多交给处理器的数据报个数，也是每个socket预先分配的接收buffer个数
+    private int datagramBatchSize = 64;
+
+    //DatagramServer为每个从Reactor打开一个设置了SO_REUSEPORT的socket绑定同一个端口，由内核按四元组分散数据报
+    private boolean reusePort;
+
+    public NioServerConfig() {
+    }
+
+    public NioServerConfig(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * 实际监听的地址，没有设置bindAddresses时为所有网卡的port端口
+     */
+    public List<SocketAddress> getBindAddresses() {
+        if (bindAddresses.isEmpty()) {
+            return Collections.singletonList(new InetSocketAddress(port));
+        }
+        return bindAddresses;
+    }
+
+    public void setBindAddresses(List<SocketAddress> bindAddresses) {
+        this.bindAddresses = new ArrayList<>(bindAddresses);
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int getTcpFastOpen() {
+        return tcpFastOpen;
+    }
+
+    public void setTcpFastOpen(int tcpFastOpen) {
+        this.tcpFastOpen = tcpFastOpen;
+    }
+
+    public int getSubReactorCount() {
+        return subReactorCount;
+    }
+
+    public void setSubReactorCount(int subReactorCount) {
+        this.subReactorCount = subReactorCount;
+    }
+
+    public NioServer.ChooserStrategy getChooserStrategy() {
+        return chooserStrategy;
+    }
+
+    public void setChooserStrategy(NioServer.ChooserStrategy chooserStrategy) {
+        this.chooserStrategy = chooserStrategy;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public void setReadBufferSize(int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+    }
+
+    public int getMinReadBufferSize() {
+        return minReadBufferSize;
+    }
+
+    public void setMinReadBufferSize(int minReadBufferSize) {
+        this.minReadBufferSize = minReadBufferSize;
+    }
+
+    public int getMaxReadBufferSize() {
+        return maxReadBufferSize;
+    }
+
+    public void setMaxReadBufferSize(int maxReadBufferSize) {
+        this.maxReadBufferSize = maxReadBufferSize;
+    }
+
+    public int getMaxReadsPerEvent() {
+        return maxReadsPerEvent;
+    }
+
+    public void setMaxReadsPerEvent(int maxReadsPerEvent) {
+        this.maxReadsPerEvent = maxReadsPerEvent;
+    }
+
+    public int getMaxReadBytesPerEvent() {
+        return maxReadBytesPerEvent;
+    }
+
+    public void setMaxReadBytesPerEvent(int maxReadBytesPerEvent) {
+        this.maxReadBytesPerEvent = maxReadBytesPerEvent;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * 帧编解码器，未设置时默认使用4字节长度字段的编解码器
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    public long getMaxMessagesPerSecond() {
+        return maxMessagesPerSecond;
+    }
+
+    public void setMaxMessagesPerSecond(long maxMessagesPerSecond) {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public boolean isSslClientMode() {
+        return sslClientMode;
+    }
+
+    public void setSslClientMode(boolean sslClientMode) {
+        this.sslClientMode = sslClientMode;
+    }
+
+    public Executor getSslTaskExecutor() {
+        return sslTaskExecutor;
+    }
+
+    public void setSslTaskExecutor(Executor sslTaskExecutor) {
+        this.sslTaskExecutor = sslTaskExecutor;
+    }
+
+    public FrameCodec getFrameCodec() {
+        if (frameCodec == null) {
+            frameCodec = new LengthFieldFrameCodec(maxFrameLength);
+        }
+        return frameCodec;
+    }
+
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public PipelineInitializer getPipelineInitializer() {
+        return pipelineInitializer;
+    }
+
+    public void setPipelineInitializer(PipelineInitializer pipelineInitializer) {
+        this.pipelineInitializer = pipelineInitializer;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public String getFileRoot() {
+        return fileRoot;
+    }
+
+    public void setFileRoot(String fileRoot) {
+        this.fileRoot = fileRoot;
+    }
+
+    public long getMappedFileMaxSize() {
+        return mappedFileMaxSize;
+    }
+
+    public void setMappedFileMaxSize(long mappedFileMaxSize) {
+        this.mappedFileMaxSize = mappedFileMaxSize;
+    }
+
+    public long getMappedFileCacheSize() {
+        return mappedFileCacheSize;
+    }
+
+    public void setMappedFileCacheSize(long mappedFileCacheSize) {
+        this.mappedFileCacheSize = mappedFileCacheSize;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public long getTimerTickMillis() {
+        return timerTickMillis;
+    }
+
+    public void setTimerTickMillis(long timerTickMillis) {
+        this.timerTickMillis = timerTickMillis;
+    }
+
+    public MappedJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(MappedJournal journal) {
+        this.journal = journal;
+    }
+
+    public int getIoRatio() {
+        return ioRatio;
+    }
+
+    public void setIoRatio(int ioRatio) {
+        if (ioRatio <= 0 || ioRatio > 100) {
+            throw new IllegalArgumentException("ioRatio: " + ioRatio + " (expected: 0 < ioRatio <= 100)");
+        }
+        this.ioRatio = ioRatio;
+    }
+
+    public long getReadIdleTimeoutMillis() {
+        return readIdleTimeoutMillis;
+    }
+
+    public void setReadIdleTimeoutMillis(long readIdleTimeoutMillis) {
+        this.readIdleTimeoutMillis = readIdleTimeoutMillis;
+    }
+
+    public long getWriteIdleTimeoutMillis() {
+        return writeIdleTimeoutMillis;
+    }
+
+    public void setWriteIdleTimeoutMillis(long writeIdleTimeoutMillis) {
+        this.writeIdleTimeoutMillis = writeIdleTimeoutMillis;
+    }
+
+    public long getMaxConnectionAgeMillis() {
+        return maxConnectionAgeMillis;
+    }
+
+    public void setMaxConnectionAgeMillis(long maxConnectionAgeMillis) {
+        this.maxConnectionAgeMillis = maxConnectionAgeMillis;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public long getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    public Path getHandoverPath() {
+        return handoverPath;
+    }
+
+    public void setHandoverPath(Path handoverPath) {
+        this.handoverPath = handoverPath;
+    }
+
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    public int getDatagramBatchSize() {
+        return datagramBatchSize;
+    }
+
+    public void setDatagramBatchSize(int datagramBatchSize) {
+        this.datagramBatchSize = datagramBatchSize;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+}
@@ -1,15 +1,166 @@
 package nio.test2;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import journal.MappedJournal;
+import kv.OffHeapStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import lifecycle.Lifecycle;
+import tls.SslContexts;
+import transport.SocketAddresses;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class NioServerStart {
+    private static final Logger logger = LoggerFactory.getLogger(NioServerStart.class);
+
     private static final int port = 8888;
 
-    private static final ExecutorService threadPool = Executors.newFixedThreadPool(5);
+    //从Reactor个数，默认和CPU核数一致
+    private static final int subReactorCount = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws InterruptedException, IOException, GeneralSecurityException {
+        NioServerConfig config = new NioServerConfig(port);
+        config.setSubReactorCount(subReactorCount);
+        //通过-Dnio.address=tcp://0.0.0.0:8888,unix:/tmp/nio.sock 指定监听地址，多个地址用逗号分隔，
+        //本机的客户端连接unix domain socket（需要JDK 16+，只支持nio传输层），不指定时监听8888端口
+        String address = System.getProperty("nio.address");
+        if (address != null) {
+            List<SocketAddress> bindAddresses = new ArrayList<>();
+            for (String bindAddress : address.split(",")) {
+                bindAddresses.add(SocketAddresses.parse(bindAddress.trim()));
+            }
+            config.setBindAddresses(bindAddresses);
+        }
+        //通过-Dnio.fileRoot=目录 开启静态文件服务
+        config.setFileRoot(System.getProperty("nio.fileRoot"));
+        //通过-Dnio.metricsPort=端口 开启HTTP指标端点，GET /metrics
+        config.setMetricsPort(Integer.getInteger("nio.metricsPort", 0));
+        //读空闲和请求帧超时的毫秒数，为0时不检查
+        config.setReadIdleTimeoutMillis(Long.getLong("nio.readIdleTimeout", config.getReadIdleTimeoutMillis()));
+        config.setRequestTimeoutMillis(Long.getLong("nio.requestTimeout", config.getRequestTimeoutMillis()));
+        //读buffer的初始和最大大小，每个连接在最小和最大之间自适应调整
+        config.setReadBufferSize(Integer.getInteger("nio.readBufferSize", config.getReadBufferSize()));
+        config.setMaxReadBufferSize(Integer.getInteger("nio.maxReadBufferSize", config.getMaxReadBufferSize()));
+        //socket的SO_RCVBUF、SO_SNDBUF字节数，不设置时使用系统默认值
+        config.setReceiveBufferSize(Integer.getInteger("nio.rcvbuf", 0));
+        config.setSendBufferSize(Integer.getInteger("nio.sndbuf", 0));
+        //accept队列长度、最大连接数和每个来源IP的最大连接数，连接数为0时不限制
+        config.setAcceptBacklog(Integer.getInteger("nio.backlog", config.getAcceptBacklog()));
+        config.setMaxConnections(Integer.getInteger("nio.maxConnections", 0));
+        config.setMaxConnectionsPerAddress(Integer.getInteger("nio.maxConnectionsPerIp", 0));
+        //单个连接每秒最多处理的消息数和读取的字节数，超过后暂停读取，为0时不限制
+        config.setMaxMessagesPerSecond(Long.getLong("nio.maxMessagesPerSecond", 0));
+        config.setMaxBytesPerSecond(Long.getLong("nio.maxBytesPerSecond", 0));
+        //通过-Dnio.tls=true 开启TLS，-Dnio.tlsKeyStore为PKCS12 keystore，必须指定；本机测试时可以改为
+        //-Dnio.tlsSelfSigned=true 使用临时目录中生成的自签名测试证书。
+        //会话缓存的个数和有效秒数决定能复用多少会话，复用会话的握手省去证书校验和密钥交换
+        if (Boolean.getBoolean("nio.tls")) {
+            String keyStore = System.getProperty("nio.tlsKeyStore");
+            char[] password = System.getProperty("nio.tlsKeyStorePassword", SslContexts.TEST_PASSWORD).toCharArray();
+            Path keyStorePath;
+            if (keyStore != null) {
+                keyStorePath = Paths.get(keyStore);
+            } else if (Boolean.getBoolean("nio.tlsSelfSigned")) {
+                keyStorePath = SslContexts.selfSigned(SslContexts.TEST_KEY_STORE, password);
+                logger.warn("TLS uses self-signed test certificate {}, clients must trust it explicitly", keyStorePath);
+            } else {
+                throw new IllegalArgumentException("-Dnio.tls=true requires -Dnio.tlsKeyStore=<PKCS12 keystore>, "
+                        + "or -Dnio.tlsSelfSigned=true to use a self-signed test certificate");
+            }
+            SSLContext sslContext = SslContexts.forServer(keyStorePath, password);
+            sslContext.getServerSessionContext().setSessionCacheSize(Integer.getInteger("nio.tlsSessionCacheSize", 20480));
+            sslContext.getServerSessionContext().setSessionTimeout(Integer.getInteger("nio.tlsSessionTimeout", 86400));
+            config.setSslContext(sslContext);
+        }
+        //每轮事件循环中IO事件处理时间所占的百分比
+        config.setIoRatio(Integer.getInteger("nio.ioRatio", config.getIoRatio()));
+        //通过-Dnio.frame=length|line|varint 选择帧格式，默认4字节长度字段
+        config.setFrameCodec(frameCodec(System.getProperty("nio.frame", "length"), config.getMaxFrameLength()));
+        //通过-Dnio.kv=true 把回显换成堆外的键值服务，-Dnio.kvMemory为数据区的总字节数（计入-XX:MaxDirectMemorySize），
+        //-Dnio.kvSnapshot=文件 启动时加载快照，关闭时写快照
+        OffHeapStore store = null;
+        Path snapshot = null;
+        if (Boolean.getBoolean("nio.kv")) {
+            store = new OffHeapStore(Long.getLong("nio.kvMemory", 64 * 1024 * 1024),
+                    Integer.getInteger("nio.kvSegments", 64));
+            String snapshotFile = System.getProperty("nio.kvSnapshot");
+            if (snapshotFile != null) {
+                snapshot = Paths.get(snapshotFile);
+                store.load(snapshot);
+            }
+        }
+        InboundHandler handler = store != null ? new KvHandler(store) : new EchoHandler();
+        String handlerName = store != null ? "kv" : "echo";
+        //通过-Dnio.correlationId=true 在每个请求前加请求ID，供NioClientPool在一个连接上同时发送多个请求
+        if (Boolean.getBoolean("nio.correlationId")) {
+            config.setPipelineInitializer(pipeline -> pipeline
+                    .addLast("correlationId", new CorrelationIdCodec())
+                    .addLast(handlerName, handler));
+        } else if (store != null) {
+            config.setPipelineInitializer(pipeline -> pipeline.addLast(handlerName, handler));
+        }
+        //通过-Dnio.journalDir=目录 把每个入站帧记录到内存映射日志，可以用JournalReplay回放
+        String journalDir = System.getProperty("nio.journalDir");
+        if (journalDir != null) {
+            config.setJournal(new MappedJournal(Paths.get(journalDir),
+                    Integer.getInteger("nio.journalSegmentSize", 64 * 1024 * 1024),
+                    Long.getLong("nio.journalFlushInterval", 10),
+                    Integer.getInteger("nio.journalMaxSegments", 16)));
+        }
+        //收到SIGTERM后等待连接写完响应的最长毫秒数
+        config.setShutdownTimeoutMillis(Long.getLong("nio.shutdownTimeout", config.getShutdownTimeoutMillis()));
+        //通过-Dnio.handoverPath=unix socket路径 开启热重启：用同样的参数启动新进程，新进程接手监听socket后旧进程优雅关闭
+        String handoverPath = System.getProperty("nio.handoverPath");
+        if (handoverPath != null) {
+            config.setHandoverPath(Paths.get(handoverPath));
+        }
+        //通过-Dnio.transport=epoll 改用Netty native epoll传输层，只支持Linux
+        config.setTransport(NioServerConfig.Transport.valueOf(System.getProperty("nio.transport", "nio").toUpperCase()));
+        Lifecycle server = config.getTransport() == NioServerConfig.Transport.EPOLL
+                ? new EpollServer(config) : new NioServer(config);
+        server.start();
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(config.getShutdownTimeoutMillis(), TimeUnit.MILLISECONDS);
+            //主线程等到全部连接关闭后关闭日志，JVM在钩子返回后就退出
+            try {
+                mainThread.join(config.getShutdownTimeoutMillis() + 10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "nio-shutdown"));
+        //收到SIGTERM或者热重启时被下一个进程接手后开始关闭
+        server.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (config.getJournal() != null) {
+            //全部连接关闭后不会再有新的记录，把页缓存中的记录写到磁盘
+            config.getJournal().close();
+        }
+        if (store != null) {
+            logger.info("stop {}", store);
+            if (snapshot != null) {
+                store.snapshot(snapshot);
+            }
+        }
+    }
 
-    public static void main(String[] args) {
-        NioServer nioServer = new NioServer(port);
-        threadPool.execute(nioServer);
+    private static FrameCodec frameCodec(String name, int maxFrameLength) {
+        switch (name) {
+            case "length":
+                return new LengthFieldFrameCodec(maxFrameLength);
+            case "line":
+                return new LineFrameCodec(maxFrameLength);
+            case "varint":
+                return new VarintFrameCodec(maxFrameLength);
+            default:
+                throw new IllegalArgumentException("unknown frame codec: " + name);
+        }
     }
 }
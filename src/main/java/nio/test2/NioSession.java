@@ -0,0 +1,693 @@
+package nio.test2;
+
+import buffer.AdaptiveRecvSizer;
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+import timer.HashedWheelTimer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个客户端连接的状态，作为attachment挂在该连接的SelectionKey上。
+ * 每次读到的数据作为一个组件追加到该连接的{@link CompositeBuffer}累积buffer，未凑够一帧的数据留到下一次读事件，
+ * 半包跨越多次读取时不需要扩容复制；一次读到的多个帧也会在同一次读事件中依次解出，
+ * 每个帧都是累积buffer的零拷贝切片，交给该连接的{@link Pipeline}处理。
+ * 响应先进入该连接的发送队列，由{@link #flush()}用一次gathering write尽量写出，处理器在处理请求期间调用flush时推迟到读事件结束，
+ * 一次读事件中解出的全部请求（客户端pipelining发来的多个请求）的响应合并成一次写；
+ * 写不完时才关注OP_WRITE，等socket可写后继续写，队列积压超过高水位时暂停读取该连接。
+ * 读buffer和帧头都从{@link ByteBufferPool}申请，读buffer在没有半包数据时立即归还（已解出的帧各自持有引用），
+ * 空闲连接不占用buffer。
+ * 读空闲、写停滞、存活时间和请求帧超时共用一个时间轮定时任务，到期时检查全部条件，没有超时就按最近的截止时间重新调度。
+ * 配置了读取限速时超过限速也暂停读取，已经读到的完整帧留在累积buffer里暂不处理，由时间轮在令牌补回后继续，见{@link ReadThrottle}。
+ * 配置了SSLContext时读写经过{@link TlsConnection}，累积buffer和发送队列中都是明文，处理器不感知TLS
+ */
+public class NioSession implements Session {
+    private static final int MAX_GATHERING = 64;
+
+    private final NioReactor reactor;
+
+    //Selector重建后由Reactor更新
+    private SelectionKey selectionKey;
+
+    private final SocketChannel socketChannel;
+
+    //建立连接时记下，关闭后仍然可以用于日志；unix domain socket不支持socketChannel.socket()
+    private final SocketAddress remoteAddress;
+
+    //TLS层，未配置SSLContext时为null
+    private final TlsConnection tls;
+
+    //flush写出的目标，TLS连接为加密层，否则为socket
+    private final GatheringByteChannel out;
+
+    private final FrameCodec frameCodec;
+
+    //累积buffer的上限，需要能容纳一个最大帧加上帧头
+    private final int maxBufferSize;
+
+    private final ByteBufferPool bufferPool;
+
+    //按最近的读取量调整读buffer的大小
+    private final AdaptiveRecvSizer recvSizer;
+
+    //上一次读是否读满了读buffer，读满时socket中可能还有数据
+    private boolean lastReadFilled;
+
+    //当前的读buffer，读到的数据追加到累积buffer后，剩余空间留给下一次读；没有半包数据时为null
+    private PooledByteBuffer readChunk;
+
+    //累积buffer，由各次读到的数据组成
+    private final CompositeBuffer cumulation = new CompositeBuffer();
+
+    private final Pipeline pipeline;
+
+    //是否正在把解出的帧交给处理器链，期间的flush推迟到读事件结束
+    private boolean reading;
+
+    //待发送的数据，见{@link #enqueue(Object)}
+    private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+
+    //gathering write一次最多写出的帧个数，数组复用避免每次flush都分配
+    private final ByteBuffer[] gathering = new ByteBuffer[MAX_GATHERING];
+
+    //发送队列中尚未写出的字节数
+    private long pendingBytes;
+
+    private final int writeBufferHighWaterMark;
+
+    private final int writeBufferLowWaterMark;
+
+    //是否因为发送队列超过高水位而暂停了读
+    private boolean readPaused;
+
+    //所在Reactor正在优雅关闭，读完当前的帧后不再读取新请求
+    private boolean draining;
+
+    //读取限速，未配置时为null
+    private final ReadThrottle throttle;
+
+    //是否因为超过读取限速而暂停了读
+    private boolean throttled;
+
+    //限速暂停后恢复读取的定时任务，第一次暂停时创建，之后复用
+    private HashedWheelTimer.Timeout throttleTimeout;
+
+    //所在Reactor的指标，只在Reactor线程记录
+    private final ReactorMetrics metrics;
+
+    private final long readIdleTimeoutNanos;
+
+    private final long writeIdleTimeoutNanos;
+
+    private final long maxConnectionAgeNanos;
+
+    private final long requestTimeoutNanos;
+
+    private final long createTime = System.nanoTime();
+
+    //最近一次读到数据的时间
+    private long lastReadTime = createTime;
+
+    //最近一次写出数据的时间，发送队列从空变为非空时也会更新
+    private long lastWriteTime = createTime;
+
+    //当前未收完整的帧收到第一个字节的时间，没有半包数据时为0
+    private long partialFrameSince;
+
+    //超时检查任务，所有超时都关闭时为null
+    private HashedWheelTimer.Timeout timeout;
+
+    public NioSession(NioReactor reactor, SelectionKey selectionKey, NioServerConfig config) throws IOException {
+        this.reactor = reactor;
+        this.selectionKey = selectionKey;
+        this.metrics = reactor.metrics();
+        this.socketChannel = (SocketChannel) selectionKey.channel();
+        this.remoteAddress = socketChannel.getRemoteAddress();
+        this.frameCodec = config.getFrameCodec().forConnection();
+        this.maxBufferSize = config.getMaxFrameLength() + 64;
+        this.bufferPool = config.getBufferPool();
+        int maxReadBufferSize = Math.min(config.getMaxReadBufferSize(), maxBufferSize);
+        int minReadBufferSize = Math.min(config.getMinReadBufferSize(), maxReadBufferSize);
+        this.recvSizer = new AdaptiveRecvSizer(minReadBufferSize,
+                Math.min(Math.max(config.getReadBufferSize(), minReadBufferSize), maxReadBufferSize), maxReadBufferSize);
+        this.writeBufferHighWaterMark = config.getWriteBufferHighWaterMark();
+        this.writeBufferLowWaterMark = config.getWriteBufferLowWaterMark();
+        this.readIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getReadIdleTimeoutMillis());
+        this.writeIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteIdleTimeoutMillis());
+        this.maxConnectionAgeNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxConnectionAgeMillis());
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeoutMillis());
+        this.throttle = ReadThrottle.create(config);
+        this.pipeline = new Pipeline(this);
+        this.tls = config.getSslContext() == null ? null : newTlsConnection(config);
+        this.out = tls != null ? tls : socketChannel;
+    }
+
+    private TlsConnection newTlsConnection(NioServerConfig config) throws IOException {
+        SSLContext sslContext = config.getSslContext();
+        SSLEngine engine;
+        if (config.isSslClientMode() && remoteAddress instanceof InetSocketAddress) {
+            //客户端按服务端地址查找可以复用的会话，并校验证书中的主机名
+            InetSocketAddress remote = (InetSocketAddress) remoteAddress;
+            engine = sslContext.createSSLEngine(remote.getHostString(), remote.getPort());
+            engine.setUseClientMode(true);
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        } else {
+            //unix domain socket的客户端没有主机名可以校验，会话也不按地址复用
+            engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(config.isSslClientMode());
+        }
+        //委托任务完成后回到Reactor线程，Selector重建后key会变化，每次从session取当前的key
+        TlsConnection tls = new TlsConnection(engine, socketChannel, bufferPool, config.getSslTaskExecutor(), metrics,
+                () -> reactor.execute(() -> reactor.resumeTls(selectionKey)));
+        tls.beginHandshake();
+        return tls;
+    }
+
+    public SelectionKey selectionKey() {
+        return selectionKey;
+    }
+
+    void selectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public SocketChannel socketChannel() {
+        return socketChannel;
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public FrameCodec frameCodec() {
+        return frameCodec;
+    }
+
+    @Override
+    public Pipeline pipeline() {
+        return pipeline;
+    }
+
+    /**
+     * 从channel读取数据，作为一个组件追加到累积buffer
+     *
+     * @return 本次读取的字节数，-1表示客户端已关闭
+     */
+    public int read() throws IOException {
+        if (tls != null) {
+            return readTls();
+        }
+        if (readChunk == null || !readChunk.buffer().hasRemaining()) {
+            releaseReadChunk();
+            readChunk = bufferPool.acquire(nextReadChunkSize());
+        }
+        ByteBuffer buffer = readChunk.buffer();
+        int start = buffer.position();
+        int attempted = buffer.remaining();
+        int count = socketChannel.read(buffer);
+        metrics.onRead(count);
+        recvSizer.lastBytesRead(attempted, count);
+        lastReadFilled = count == attempted;
+        if (count > 0) {
+            lastReadTime = System.nanoTime();
+            if (throttle != null) {
+                throttle.onBytes(count, lastReadTime);
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.limit(start + count);
+            view.position(start);
+            //累积buffer持有读buffer的一个引用
+            cumulation.addComponent(view, readChunk.retain());
+            if (cumulation.readableBytes() > maxBufferSize) {
+                throw new IOException("inbound buffer exceeds max size " + maxBufferSize);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 读取密文并解密，明文追加到累积buffer；需要执行委托任务时暂停读取
+     */
+    private int readTls() throws IOException {
+        int count = tls.read();
+        metrics.onRead(count);
+        lastReadFilled = tls.lastReadFilled();
+        if (count > 0) {
+            lastReadTime = System.nanoTime();
+            if (throttle != null) {
+                throttle.onBytes(count, lastReadTime);
+            }
+            if (tls.unwrap(cumulation)) {
+                //对端发送了close_notify
+                return -1;
+            }
+            if (tls.isTaskPending()) {
+                removeInterestOps(SelectionKey.OP_READ);
+            }
+            if (cumulation.readableBytes() > maxBufferSize) {
+                throw new IOException("inbound buffer exceeds max size " + maxBufferSize);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 委托任务执行完：继续握手，处理期间解密出的帧，写出握手消息和响应，再恢复读取
+     */
+    void resumeTls() throws Exception {
+        tls.taskDone();
+        if (tls.unwrap(cumulation)) {
+            close();
+            return;
+        }
+        decodeFrames();
+        flush();
+        if (tls.isTaskPending()) {
+            removeInterestOps(SelectionKey.OP_READ);
+        } else {
+            resumeReading();
+        }
+    }
+
+    /**
+     * 上一次读是否读满了读buffer，读满时socket中可能还有数据，可以在本次读事件中继续读
+     */
+    boolean lastReadFilled() {
+        return lastReadFilled;
+    }
+
+    /**
+     * 一次读事件结束，按本次事件的总读取量调整下一次读buffer的大小
+     */
+    void readComplete(int totalBytes) {
+        recvSizer.readComplete(totalBytes);
+    }
+
+    /**
+     * 是否还关注读事件，发送队列超过高水位或者优雅关闭时不再读
+     */
+    boolean readInterested() {
+        return selectionKey.isValid() && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    /**
+     * 下一个读buffer的大小：通常按自适应的大小，半包越大读buffer越大，和按2倍扩容一样，大帧只由少数几个组件组成
+     */
+    private int nextReadChunkSize() {
+        return Math.min(Math.max(recvSizer.guess(), cumulation.readableBytes()), maxBufferSize);
+    }
+
+    /**
+     * 从累积buffer中解出全部完整帧，依次交给处理器链处理，剩余的半包数据保留到下一次读事件；
+     * 超过读取限速时暂停读取，剩余的完整帧也留到限速结束后再处理
+     */
+    public void decodeFrames() throws Exception {
+        boolean decoded = false;
+        reading = true;
+        try {
+            CompositeBuffer frame;
+            while (!throttled && (frame = frameCodec.decode(cumulation)) != null) {
+                decoded = true;
+                long start = System.nanoTime();
+                pipeline.fireChannelRead(frame);
+                long end = System.nanoTime();
+                metrics.onMessage(end - start);
+                if (throttle != null) {
+                    throttle.onMessage(end);
+                    throttleIfNeeded(end);
+                }
+            }
+            if (throttle != null) {
+                //只读到半包时按字节数限速
+                throttleIfNeeded(System.nanoTime());
+            }
+        } finally {
+            reading = false;
+            if (cumulation.isReadable()) {
+                //剩余的半包是新的帧时，从本次读开始计算请求超时
+                if (decoded || partialFrameSince == 0) {
+                    partialFrameSince = lastReadTime;
+                }
+            } else {
+                //没有半包数据，归还读buffer，还没发送完的帧各自持有引用
+                releaseReadChunk();
+                partialFrameSince = 0;
+            }
+        }
+    }
+
+    /**
+     * 超过读取限速时暂停读取，令牌补回后由时间轮调用Reactor恢复
+     */
+    private void throttleIfNeeded(long now) {
+        if (throttled) {
+            return;
+        }
+        long pause = throttle.pauseNanos(now);
+        if (pause <= 0) {
+            return;
+        }
+        throttled = true;
+        metrics.onThrottle();
+        removeInterestOps(SelectionKey.OP_READ);
+        if (throttleTimeout == null) {
+            //Selector重建后key会变化，每次从session取当前的key
+            throttleTimeout = reactor.timer().newTimeout(() -> reactor.resumeThrottled(selectionKey), pause,
+                    TimeUnit.NANOSECONDS);
+        } else {
+            reactor.timer().schedule(throttleTimeout, pause, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 限速结束：先处理暂停期间留下的完整帧，没有再次超过限速时恢复读取
+     */
+    void resumeThrottled() throws Exception {
+        throttled = false;
+        decodeFrames();
+        flush();
+        resumeReading();
+    }
+
+    /**
+     * 没有任何暂停读取的原因时恢复关注OP_READ
+     */
+    private void resumeReading() {
+        if (!throttled && !readPaused && (tls == null || !tls.isTaskPending()) && (!draining || cumulation.isReadable())) {
+            //暂停读的时间不算读空闲
+            lastReadTime = System.nanoTime();
+            addInterestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void releaseReadChunk() {
+        if (readChunk != null) {
+            readChunk.release();
+            readChunk = null;
+        }
+        if (tls != null) {
+            tls.releaseAppChunk();
+        }
+    }
+
+    public long pendingBytes() {
+        return pendingBytes;
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * 没有待发送的数据，也没有收到一半的帧，可以直接关闭
+     */
+    boolean isIdle() {
+        return outbound.isEmpty() && !cumulation.isReadable();
+    }
+
+    /**
+     * 优雅关闭时每轮检查调用：有半包数据时继续读完这个帧，否则停止读取新请求，只写出剩余的响应
+     */
+    void drain() {
+        draining = true;
+        if (!cumulation.isReadable()) {
+            removeInterestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public ByteBufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 编码消息并放入发送队列，payload的组件转移到帧中，真正写到socket由{@link #flush()}完成
+     */
+    @Override
+    public void writeFrame(CompositeBuffer payload) {
+        CompositeBuffer frame = new CompositeBuffer(payload.componentCount() + 2);
+        frameCodec.encode(payload, frame, bufferPool);
+        enqueue(frame);
+    }
+
+    @Override
+    public void enqueue(Object msg) {
+        if (outbound.isEmpty()) {
+            //写停滞从有数据待发送时开始计算
+            lastWriteTime = System.nanoTime();
+        }
+        outbound.add(msg);
+        pendingBytes += readableBytes(msg);
+        //对端读得太慢，停止读取该连接的新请求，避免发送队列无限增长
+        if (!readPaused && pendingBytes > writeBufferHighWaterMark) {
+            readPaused = true;
+            removeInterestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 把发送队列中的数据尽量写到socket，连续的buffer用一次gathering write写出，文件区间用transferTo发送；
+     * socket发送缓冲区满时保留剩余数据并关注OP_WRITE，全部写完后取消OP_WRITE。
+     * 处理器在处理请求期间调用时什么都不做，读事件结束时由Reactor统一flush
+     */
+    @Override
+    public void flush() throws IOException {
+        if (reading) {
+            return;
+        }
+        if (!outbound.isEmpty()) {
+            metrics.onFlush(outbound.size());
+        }
+        //TLS先写出上次没有写完的密文和待发送的握手消息，写不完时不再加密新的数据
+        boolean writable = tls == null || tls.flushOutput();
+        while (writable && !outbound.isEmpty()) {
+            Object head = outbound.peek();
+            if (head instanceof FileRegion) {
+                FileRegion region = (FileRegion) head;
+                long transferred = region.transferTo(out);
+                metrics.onWrite(transferred);
+                if (transferred > 0) {
+                    lastWriteTime = System.nanoTime();
+                }
+                pendingBytes -= transferred;
+                //文件没有发送完，说明socket发送缓冲区已满，等待OP_WRITE
+                if (!region.isDone()) {
+                    break;
+                }
+                outbound.poll();
+                region.release();
+                continue;
+            }
+            int count = 0;
+            long batchBytes = 0;
+            for (Object msg : outbound) {
+                if (msg instanceof FileRegion || count == MAX_GATHERING) {
+                    break;
+                }
+                if (msg instanceof CompositeBuffer) {
+                    //帧的每个组件各占一个位置，已经写完的组件跳过
+                    CompositeBuffer composite = (CompositeBuffer) msg;
+                    for (int i = 0, size = composite.componentCount(); i < size && count < MAX_GATHERING; i++) {
+                        ByteBuffer buffer = composite.component(i);
+                        if (buffer.hasRemaining()) {
+                            gathering[count++] = buffer;
+                            batchBytes += buffer.remaining();
+                        }
+                    }
+                    continue;
+                }
+                ByteBuffer buffer = bufferOf(msg);
+                gathering[count++] = buffer;
+                batchBytes += buffer.remaining();
+            }
+            long written;
+            try {
+                written = out.write(gathering, 0, count);
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    gathering[i] = null;
+                }
+            }
+            metrics.onWrite(written);
+            if (written > 0) {
+                lastWriteTime = System.nanoTime();
+            }
+            pendingBytes -= written;
+            //移除已经完整写出的buffer
+            while (!outbound.isEmpty() && !(outbound.peek() instanceof FileRegion)
+                    && readableBytes(outbound.peek()) == 0) {
+                release(outbound.poll());
+            }
+            //本批没有写完，说明socket发送缓冲区已满（TLS连接也可能是握手还没有完成），等待OP_WRITE
+            if (written < batchBytes) {
+                break;
+            }
+        }
+        //TLS握手没有完成时明文留在发送队列，握手完成后由读事件的flush写出，不需要关注OP_WRITE
+        if (tls == null ? outbound.isEmpty() : !tls.hasPendingOutput()) {
+            removeInterestOps(SelectionKey.OP_WRITE);
+        } else {
+            addInterestOps(SelectionKey.OP_WRITE);
+        }
+        if (readPaused && pendingBytes <= writeBufferLowWaterMark) {
+            readPaused = false;
+            resumeReading();
+        }
+    }
+
+    private static ByteBuffer bufferOf(Object msg) {
+        return msg instanceof PooledByteBuffer ? ((PooledByteBuffer) msg).buffer() : (ByteBuffer) msg;
+    }
+
+    private static long readableBytes(Object msg) {
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).remaining();
+        }
+        if (msg instanceof CompositeBuffer) {
+            return ((CompositeBuffer) msg).readableBytes();
+        }
+        return bufferOf(msg).remaining();
+    }
+
+    private static void release(Object msg) {
+        if (msg instanceof CompositeBuffer) {
+            ((CompositeBuffer) msg).release();
+        } else if (msg instanceof PooledByteBuffer) {
+            ((PooledByteBuffer) msg).release();
+        } else if (msg instanceof FileRegion) {
+            ((FileRegion) msg).release();
+        }
+    }
+
+    /**
+     * 开始超时检查，全部超时都关闭时不调度
+     *
+     * @param timer     所在Reactor的时间轮
+     * @param onTimeout 检查任务，到期时由Reactor调用{@link #checkTimeout(long)}
+     */
+    void startTimeout(HashedWheelTimer timer, Runnable onTimeout) {
+        long delay = nextCheckDelay(createTime);
+        if (delay > 0) {
+            timeout = timer.newTimeout(onTimeout, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 检查是否超时，没有超时时按最近的截止时间重新调度
+     *
+     * @param now System.nanoTime()
+     * @return 超时的原因，没有超时返回null
+     */
+    String checkTimeout(long now) {
+        if (maxConnectionAgeNanos > 0 && now - createTime >= maxConnectionAgeNanos) {
+            return "max connection age";
+        }
+        if (readIdleTimeoutNanos > 0 && !readPaused && !throttled && now - lastReadTime >= readIdleTimeoutNanos) {
+            return "read idle";
+        }
+        if (writeIdleTimeoutNanos > 0 && !outbound.isEmpty() && now - lastWriteTime >= writeIdleTimeoutNanos) {
+            return "write idle";
+        }
+        if (requestTimeoutNanos > 0 && partialFrameSince != 0 && !throttled
+                && now - partialFrameSince >= requestTimeoutNanos) {
+            return "request timeout";
+        }
+        timeout.timer().schedule(timeout, nextCheckDelay(now), TimeUnit.NANOSECONDS);
+        return null;
+    }
+
+    /**
+     * 距离最近一个截止时间的纳秒数，当前没有生效的截止时间时取最短的超时配置，全部关闭时返回0
+     */
+    private long nextCheckDelay(long now) {
+        long next = Long.MAX_VALUE;
+        long shortest = Long.MAX_VALUE;
+        if (maxConnectionAgeNanos > 0) {
+            next = Math.min(next, createTime + maxConnectionAgeNanos - now);
+            shortest = Math.min(shortest, maxConnectionAgeNanos);
+        }
+        if (readIdleTimeoutNanos > 0) {
+            if (!readPaused && !throttled) {
+                next = Math.min(next, lastReadTime + readIdleTimeoutNanos - now);
+            }
+            shortest = Math.min(shortest, readIdleTimeoutNanos);
+        }
+        if (writeIdleTimeoutNanos > 0) {
+            if (!outbound.isEmpty()) {
+                next = Math.min(next, lastWriteTime + writeIdleTimeoutNanos - now);
+            }
+            shortest = Math.min(shortest, writeIdleTimeoutNanos);
+        }
+        if (requestTimeoutNanos > 0) {
+            if (partialFrameSince != 0 && !throttled) {
+                next = Math.min(next, partialFrameSince + requestTimeoutNanos - now);
+            }
+            shortest = Math.min(shortest, requestTimeoutNanos);
+        }
+        if (shortest == Long.MAX_VALUE) {
+            return 0;
+        }
+        //截止时间之后才产生的条件（例如之后才有数据待发送）在下一次检查时发现，最多晚一个最短超时
+        return Math.max(1, Math.min(next, shortest));
+    }
+
+    /**
+     * 连接关闭时归还读buffer、累积buffer和发送队列中的全部buffer，并取消超时检查
+     */
+    public void releaseBuffers() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        if (throttleTimeout != null) {
+            throttleTimeout.cancel();
+            throttleTimeout = null;
+        }
+        if (tls != null) {
+            //尽量发送close_notify，要在socket关闭之前
+            tls.close();
+        }
+        releaseReadChunk();
+        cumulation.release();
+        Object msg;
+        while ((msg = outbound.poll()) != null) {
+            release(msg);
+        }
+        pendingBytes = 0;
+    }
+
+    @Override
+    public void close() {
+        reactor.close(selectionKey);
+    }
+
+    private void addInterestOps(int ops) {
+        int interestOps = selectionKey.interestOps();
+        if ((interestOps & ops) != ops) {
+            selectionKey.interestOps(interestOps | ops);
+        }
+    }
+
+    private void removeInterestOps(int ops) {
+        int interestOps = selectionKey.interestOps();
+        if ((interestOps & ops) != 0) {
+            selectionKey.interestOps(interestOps & ~ops);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package nio.test2;
+
+/**
+ * 出站处理器，按加入的顺序从后往前依次处理写出的消息，处理完通过{@link HandlerContext#write(Object)}
+ * 交给前一个出站处理器；最前面的出站处理器写出的必须是{@link buffer.CompositeBuffer}或者
+ * {@link java.nio.ByteBuffer}，由连接的{@link FrameCodec}编码成帧后放入发送队列
+ */
+public interface OutboundHandler extends ChannelHandler {
+
+    /**
+     * @param ctx 本处理器在处理器链中的上下文
+     * @param msg 后一个处理器写出的消息
+     */
+    void write(HandlerContext ctx, Object msg) throws Exception;
+}
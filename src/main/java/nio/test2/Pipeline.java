@@ -0,0 +1,126 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单个连接的处理器链，位于帧编解码之上：{@link Session}解出的每个帧从前往后经过入站处理器，
+ * 处理器写出的消息从后往前经过出站处理器，最后由{@link FrameCodec}编码成帧放入发送队列。
+ * <p>
+ * 帧和响应都以{@link CompositeBuffer}传递，解码器可以切片、业务处理器可以把请求的切片和其他buffer拼接成响应，
+ * 整个过程都不复制数据。消息的所有权随调用传递：收到CompositeBuffer的处理器要么继续传递，要么负责释放。
+ * 只在所属的Reactor线程上使用
+ */
+public final class Pipeline {
+    private static final Logger logger = LoggerFactory.getLogger(Pipeline.class);
+
+    private final Session session;
+
+    private final List<HandlerContext> contexts = new ArrayList<>();
+
+    Pipeline(Session session) {
+        this.session = session;
+    }
+
+    public Session session() {
+        return session;
+    }
+
+    /**
+     * 在末尾加入一个处理器
+     */
+    public Pipeline addLast(String name, ChannelHandler handler) {
+        contexts.add(new HandlerContext(this, name, handler, contexts.size()));
+        return this;
+    }
+
+    /**
+     * 按名字查找处理器，找不到返回null
+     */
+    public ChannelHandler get(String name) {
+        for (HandlerContext context : contexts) {
+            if (context.name().equals(name)) {
+                return context.handler();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把解出的帧交给第一个入站处理器
+     */
+    public void fireChannelRead(Object msg) throws Exception {
+        invokeChannelRead(0, msg);
+    }
+
+    /**
+     * 连接关闭时由Reactor调用，通知入站处理器释放各自的状态
+     */
+    public void fireChannelInactive() throws Exception {
+        invokeChannelInactive(0);
+    }
+
+    /**
+     * 从最后一个出站处理器开始写出消息
+     */
+    public void write(Object msg) throws Exception {
+        invokeWrite(contexts.size() - 1, msg);
+    }
+
+    /**
+     * 把连接发送队列中的数据写到socket，见{@link Session#flush()}
+     */
+    public void flush() throws Exception {
+        session.flush();
+    }
+
+    void invokeChannelRead(int from, Object msg) throws Exception {
+        for (int i = from; i < contexts.size(); i++) {
+            HandlerContext context = contexts.get(i);
+            if (context.handler() instanceof InboundHandler) {
+                ((InboundHandler) context.handler()).channelRead(context, msg);
+                return;
+            }
+        }
+        //走到末尾还没有处理器处理，丢弃并释放
+        if (logger.isDebugEnabled()) {
+            logger.debug("discard unhandled inbound msg:{} from {}", msg, session.remoteAddress());
+        }
+        if (msg instanceof CompositeBuffer) {
+            ((CompositeBuffer) msg).release();
+        }
+    }
+
+    void invokeChannelInactive(int from) throws Exception {
+        for (int i = from; i < contexts.size(); i++) {
+            HandlerContext context = contexts.get(i);
+            if (context.handler() instanceof InboundHandler) {
+                ((InboundHandler) context.handler()).channelInactive(context);
+                return;
+            }
+        }
+    }
+
+    void invokeWrite(int from, Object msg) throws Exception {
+        for (int i = from; i >= 0; i--) {
+            HandlerContext context = contexts.get(i);
+            if (context.handler() instanceof OutboundHandler) {
+                ((OutboundHandler) context.handler()).write(context, msg);
+                return;
+            }
+        }
+        if (msg instanceof CompositeBuffer) {
+            session.writeFrame((CompositeBuffer) msg);
+        } else if (msg instanceof ByteBuffer) {
+            session.write((ByteBuffer) msg);
+        } else {
+            throw new IllegalArgumentException("unsupported outbound msg type: " + msg.getClass().getName()
+                    + ", add an encoder to the pipeline");
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package nio.test2;
+
+/**
+ * 新连接注册到Reactor时调用，向该连接的处理器链中加入处理器
+ */
+@FunctionalInterface
+public interface PipelineInitializer {
+
+    void initPipeline(Pipeline pipeline);
+}
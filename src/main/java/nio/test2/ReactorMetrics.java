@@ -0,0 +1,354 @@
+package nio.test2;
+
+import metrics.Histogram;
+import metrics.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 单个Reactor的运行指标。
+ * <p>
+ * 记录方法只在Reactor线程调用：计数器用LongAdder，其他线程随时可以读取；直方图预先分配、记录时不分配内存，
+ * 但不是线程安全的，其他线程读取时通过{@link NioReactor#execute(Runnable)}在Reactor线程上复制一份快照
+ */
+public class ReactorMetrics implements ReactorMetricsMBean, MetricsSource {
+    private static final Logger logger = LoggerFactory.getLogger(ReactorMetrics.class);
+
+    //等待Reactor线程复制快照的最长时间，Reactor卡住时直接读取，结果可能不精确
+    private static final long SNAPSHOT_TIMEOUT_MILLIS = 1000;
+
+    //HTTP端点输出的百分位
+    private static final double[] QUANTILES = {50, 90, 99, 99.9};
+
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final NioReactor reactor;
+
+    private final LongAdder selectWakeups = new LongAdder();
+
+    private final LongAdder readyKeys = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAdder readCalls = new LongAdder();
+
+    private final LongAdder writeCalls = new LongAdder();
+
+    private final LongAdder messages = new LongAdder();
+
+    private final LongAdder timeoutCloses = new LongAdder();
+
+    private final LongAdder throttles = new LongAdder();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder tlsHandshakes = new LongAdder();
+
+    private final LongAdder tlsResumedHandshakes = new LongAdder();
+
+    private final LongAdder datagrams = new LongAdder();
+
+    private final LongAdder datagramBatches = new LongAdder();
+
+    private final LongAdder truncatedDatagrams = new LongAdder();
+
+    private final LongAdder droppedDatagrams = new LongAdder();
+
+    private final LongAdder datagramSendDrops = new LongAdder();
+
+    //每个帧的处理耗时，纳秒
+    private final Histogram handlerNanos = new Histogram();
+
+    //每次flush时发送队列中的元素个数
+    private final Histogram outboundQueueDepth = new Histogram();
+
+    ReactorMetrics(NioReactor reactor) {
+        this.reactor = reactor;
+    }
+
+    void onSelect(int readyKeyCount) {
+        selectWakeups.increment();
+        if (readyKeyCount > 0) {
+            readyKeys.add(readyKeyCount);
+        }
+    }
+
+    void onRead(int bytes) {
+        readCalls.increment();
+        if (bytes > 0) {
+            bytesRead.add(bytes);
+        }
+    }
+
+    void onWrite(long bytes) {
+        writeCalls.increment();
+        if (bytes > 0) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    void onMessage(long nanos) {
+        messages.increment();
+        handlerNanos.record(nanos);
+    }
+
+    void onTimeoutClose() {
+        timeoutCloses.increment();
+    }
+
+    void onThrottle() {
+        throttles.increment();
+    }
+
+    void onConnectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void onTlsHandshake(boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumedHandshakes.increment();
+        }
+    }
+
+    /**
+     * 一批数据报交给处理器，处理耗时平摊到每个数据报
+     */
+    void onDatagramBatch(int size, long nanos) {
+        datagramBatches.increment();
+        datagrams.add(size);
+        messages.add(size);
+        handlerNanos.record(nanos / size);
+    }
+
+    void onDatagramTruncated() {
+        truncatedDatagrams.increment();
+    }
+
+    void onDatagramsDropped(int count) {
+        droppedDatagrams.add(count);
+    }
+
+    void onDatagramSendDropped() {
+        datagramSendDrops.increment();
+    }
+
+    void onFlush(int queueDepth) {
+        outboundQueueDepth.record(queueDepth);
+    }
+
+    @Override
+    public long getSelectWakeups() {
+        return selectWakeups.sum();
+    }
+
+    @Override
+    public long getReadyKeys() {
+        return readyKeys.sum();
+    }
+
+    @Override
+    public double getReadyKeysPerSelect() {
+        long wakeups = selectWakeups.sum();
+        return wakeups == 0 ? 0 : (double) readyKeys.sum() / wakeups;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getReadCalls() {
+        return readCalls.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public double getSyscallsPerMessage() {
+        long count = messages.sum();
+        return count == 0 ? 0 : (double) (readCalls.sum() + writeCalls.sum()) / count;
+    }
+
+    @Override
+    public long getTimeoutCloses() {
+        return timeoutCloses.sum();
+    }
+
+    @Override
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return tlsResumedHandshakes.sum();
+    }
+
+    @Override
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    @Override
+    public long getDatagramBatches() {
+        return datagramBatches.sum();
+    }
+
+    @Override
+    public double getDatagramsPerBatch() {
+        long batches = datagramBatches.sum();
+        return batches == 0 ? 0 : (double) datagrams.sum() / batches;
+    }
+
+    @Override
+    public long getTruncatedDatagrams() {
+        return truncatedDatagrams.sum();
+    }
+
+    @Override
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.sum();
+    }
+
+    @Override
+    public long getDatagramSendDrops() {
+        return datagramSendDrops.sum();
+    }
+
+    @Override
+    public int getChannelCount() {
+        return reactor.channelCount();
+    }
+
+    @Override
+    public long getSelectorRebuilds() {
+        return reactor.selectorRebuilds();
+    }
+
+    @Override
+    public long getHandlerNanosP50() {
+        return snapshot(handlerNanos).percentile(50);
+    }
+
+    @Override
+    public long getHandlerNanosP99() {
+        return snapshot(handlerNanos).percentile(99);
+    }
+
+    @Override
+    public long getHandlerNanosMax() {
+        return snapshot(handlerNanos).max();
+    }
+
+    @Override
+    public long getOutboundQueueDepthP99() {
+        return snapshot(outboundQueueDepth).percentile(99);
+    }
+
+    @Override
+    public long getOutboundQueueDepthMax() {
+        return snapshot(outboundQueueDepth).max();
+    }
+
+    @Override
+    public void resetHistograms() {
+        onReactor(() -> {
+            handlerNanos.reset();
+            outboundQueueDepth.reset();
+            return null;
+        });
+    }
+
+    @Override
+    public void writeMetrics(StringBuilder out) {
+        String labels = "{reactor=\"" + reactor.name() + "\"}";
+        append(out, "nio_reactor_select_wakeups_total", labels, getSelectWakeups());
+        append(out, "nio_reactor_ready_keys_total", labels, getReadyKeys());
+        append(out, "nio_reactor_bytes_read_total", labels, getBytesRead());
+        append(out, "nio_reactor_bytes_written_total", labels, getBytesWritten());
+        append(out, "nio_reactor_read_calls_total", labels, getReadCalls());
+        append(out, "nio_reactor_write_calls_total", labels, getWriteCalls());
+        append(out, "nio_reactor_messages_total", labels, getMessages());
+        append(out, "nio_reactor_timeout_closes_total", labels, getTimeoutCloses());
+        append(out, "nio_reactor_throttles_total", labels, getThrottles());
+        append(out, "nio_reactor_rejected_connections_total", labels, getRejectedConnections());
+        append(out, "nio_reactor_tls_handshakes_total", labels, getTlsHandshakes());
+        append(out, "nio_reactor_tls_resumed_handshakes_total", labels, getTlsResumedHandshakes());
+        append(out, "nio_reactor_datagrams_total", labels, getDatagrams());
+        append(out, "nio_reactor_datagram_batches_total", labels, getDatagramBatches());
+        append(out, "nio_reactor_truncated_datagrams_total", labels, getTruncatedDatagrams());
+        append(out, "nio_reactor_dropped_datagrams_total", labels, getDroppedDatagrams());
+        append(out, "nio_reactor_datagram_send_drops_total", labels, getDatagramSendDrops());
+        append(out, "nio_reactor_channels", labels, getChannelCount());
+        append(out, "nio_reactor_selector_rebuilds_total", labels, getSelectorRebuilds());
+        Histogram[] histograms = onReactor(() -> new Histogram[]{handlerNanos.copy(), outboundQueueDepth.copy()});
+        appendHistogram(out, "nio_reactor_handler_nanos", reactor.name(), histograms[0]);
+        appendHistogram(out, "nio_reactor_outbound_queue_depth", reactor.name(), histograms[1]);
+    }
+
+    private static void append(StringBuilder out, String name, String labels, Object value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String reactorName, Histogram histogram) {
+        for (int i = 0; i < QUANTILES.length; i++) {
+            append(out, name, "{reactor=\"" + reactorName + "\",quantile=\"" + QUANTILE_LABELS[i] + "\"}",
+                    histogram.percentile(QUANTILES[i]));
+        }
+        append(out, name + "_max", "{reactor=\"" + reactorName + "\"}", histogram.max());
+        append(out, name + "_count", "{reactor=\"" + reactorName + "\"}", histogram.totalCount());
+    }
+
+    private Histogram snapshot(Histogram histogram) {
+        return onReactor(histogram::copy);
+    }
+
+    /**
+     * 在Reactor线程上执行，直方图只能在Reactor线程上读写
+     */
+    private <T> T onReactor(Supplier<T> action) {
+        if (reactor.inEventLoop() || !reactor.isRunning()) {
+            return action.get();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        reactor.execute(() -> future.complete(action.get()));
+        try {
+            return future.get(SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.warn("{} snapshot metrics timeout, read directly", reactor.name());
+            return action.get();
+        }
+    }
+}
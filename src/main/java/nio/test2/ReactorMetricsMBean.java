@@ -0,0 +1,81 @@
+package nio.test2;
+
+/**
+ * 单个Reactor的JMX指标，ObjectName为nio.test2:type=Reactor,port=端口,name=Reactor名称
+ */
+public interface ReactorMetricsMBean {
+    //select返回的次数
+    long getSelectWakeups();
+
+    //所有select返回的就绪key总数
+    long getReadyKeys();
+
+    double getReadyKeysPerSelect();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    //read系统调用次数
+    long getReadCalls();
+
+    //write/writev/transferTo系统调用次数
+    long getWriteCalls();
+
+    //处理的帧个数
+    long getMessages();
+
+    //每个帧平均的读写系统调用次数
+    double getSyscallsPerMessage();
+
+    //因读空闲、写停滞、存活时间或请求超时而关闭的连接数
+    long getTimeoutCloses();
+
+    //因超过读取限速而暂停读取的次数
+    long getThrottles();
+
+    //超过连接数限制在accept后直接关闭的连接数，只有主Reactor有
+    long getRejectedConnections();
+
+    //完成的TLS握手次数，包括复用会话的
+    long getTlsHandshakes();
+
+    //复用之前的会话完成的TLS握手次数
+    long getTlsResumedHandshakes();
+
+    //UDP服务端收到并交给处理器的数据报个数
+    long getDatagrams();
+
+    //数据报分批交给处理器的次数
+    long getDatagramBatches();
+
+    //平均每批的数据报个数，越大每个数据报分摊的事件循环和处理器调用开销越小
+    double getDatagramsPerBatch();
+
+    //超过maxDatagramSize被截断而丢弃的数据报个数
+    long getTruncatedDatagrams();
+
+    //处理器抛出异常时整批丢弃的数据报个数，内核因接收缓冲区满丢弃的见nio_datagram_kernel_drops_total
+    long getDroppedDatagrams();
+
+    //发送缓冲区满而没有发出的回复数据报个数
+    long getDatagramSendDrops();
+
+    int getChannelCount();
+
+    //因select空转重建Selector的次数
+    long getSelectorRebuilds();
+
+    long getHandlerNanosP50();
+
+    long getHandlerNanosP99();
+
+    long getHandlerNanosMax();
+
+    long getOutboundQueueDepthP99();
+
+    long getOutboundQueueDepthMax();
+
+    //清空直方图，计数器不清空
+    void resetHistograms();
+}
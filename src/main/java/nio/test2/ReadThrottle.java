@@ -0,0 +1,54 @@
+package nio.test2;
+
+import limit.TokenBucket;
+
+/**
+ * 单个连接的读取限速，按配置的每秒消息数和字节数各用一个{@link TokenBucket}。
+ * 读到的字节和解出的帧先记账，令牌透支时由连接暂停读取（NIO取消OP_READ，epoll关闭autoRead），
+ * 等令牌补回后再恢复：数据留在socket接收缓冲区里，对端被TCP流控减速，不丢弃任何数据。
+ * 只在连接所在的IO线程上使用
+ */
+final class ReadThrottle {
+    //为null时不限制
+    private final TokenBucket messages;
+
+    private final TokenBucket bytes;
+
+    private ReadThrottle(TokenBucket messages, TokenBucket bytes) {
+        this.messages = messages;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return 没有配置任何限速时返回null
+     */
+    static ReadThrottle create(NioServerConfig config) {
+        long maxMessages = config.getMaxMessagesPerSecond();
+        long maxBytes = config.getMaxBytesPerSecond();
+        if (maxMessages <= 0 && maxBytes <= 0) {
+            return null;
+        }
+        return new ReadThrottle(maxMessages > 0 ? new TokenBucket(maxMessages, maxMessages) : null,
+                maxBytes > 0 ? new TokenBucket(maxBytes, maxBytes) : null);
+    }
+
+    void onBytes(int count, long now) {
+        if (bytes != null && count > 0) {
+            bytes.consume(count, now);
+        }
+    }
+
+    void onMessage(long now) {
+        if (messages != null) {
+            messages.consume(1, now);
+        }
+    }
+
+    /**
+     * 需要暂停读取的纳秒数，没有超过限速时返回0
+     */
+    long pauseNanos(long now) {
+        long pause = messages == null ? 0 : messages.delayNanos(now);
+        return bytes == null ? pause : Math.max(pause, bytes.delayNanos(now));
+    }
+}
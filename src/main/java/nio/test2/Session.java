@@ -0,0 +1,64 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * 处理器链所在的连接。JDK Selector传输层的{@link NioSession}和native epoll传输层的{@link EpollSession}都实现了它，
+ * 处理器只通过它写出数据和关闭连接，同一套处理器可以在两种传输层上运行。
+ * 写出和flush分开：写出只放入发送队列，flush才真正写到socket，一次flush把队列中的多个响应合并成一次系统调用。
+ * 所有方法只能在连接所属的IO线程上调用
+ */
+public interface Session {
+
+    SocketAddress remoteAddress();
+
+    /**
+     * 编码用的buffer从这里申请
+     */
+    ByteBufferPool bufferPool();
+
+    FrameCodec frameCodec();
+
+    Pipeline pipeline();
+
+    /**
+     * 编码消息并放入发送队列，不经过处理器链
+     *
+     * @param payload 消息内容，组件转移到帧中，发送完成或者连接关闭时释放
+     */
+    void writeFrame(CompositeBuffer payload);
+
+    /**
+     * 编码消息并放入发送队列，不经过处理器链
+     *
+     * @param payload 处于读模式的消息内容，直接引用不复制，发送完成前不能修改
+     */
+    default void write(ByteBuffer payload) {
+        writeFrame(CompositeBuffer.wrap(payload));
+    }
+
+    /**
+     * 把已经编码好的数据原样放入发送队列，不经过帧编码器
+     *
+     * @param msg {@link CompositeBuffer}、{@link buffer.PooledByteBuffer}、处于读模式的{@link ByteBuffer}或者{@link FileRegion}，
+     *            除ByteBuffer外都在发送完成或者连接关闭时释放
+     */
+    void enqueue(Object msg);
+
+    /**
+     * 把发送队列中的数据写到socket。
+     * 处理请求期间调用时推迟到本次读事件结束，由传输层统一flush，同一次读事件产生的全部响应仍然合并成一次写；
+     * 在定时任务或者投递到IO线程的任务中写出数据后必须调用，否则数据留在发送队列中
+     */
+    void flush() throws IOException;
+
+    /**
+     * 关闭连接，处理器链会收到channelInactive
+     */
+    void close();
+}
@@ -0,0 +1,47 @@
+package nio.test2;
+
+import buffer.CompositeBuffer;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 字符串编解码器：入站把帧内容解码为String，出站把String编码为buffer，其他类型的消息原样传递。
+ * 一般配合{@link LineFrameCodec}实现按行的文本协议；无状态，可以被所有连接共享
+ */
+public class StringCodec implements InboundHandler, OutboundHandler {
+    private final Charset charset;
+
+    public StringCodec() {
+        this(StandardCharsets.UTF_8);
+    }
+
+    public StringCodec(Charset charset) {
+        this.charset = charset;
+    }
+
+    @Override
+    public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof CompositeBuffer) {
+            CompositeBuffer frame = (CompositeBuffer) msg;
+            String text;
+            try {
+                text = frame.toString(charset);
+            } finally {
+                frame.release();
+            }
+            ctx.fireChannelRead(text);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(HandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof CharSequence) {
+            ctx.write(CompositeBuffer.wrap(msg.toString().getBytes(charset)));
+            return;
+        }
+        ctx.write(msg);
+    }
+}
@@ -0,0 +1,408 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NioSession}的TLS层，包装一个{@link SSLEngine}，只在连接所在的Reactor线程上使用。
+ * <p>
+ * 读：密文读到netIn，unwrap出的明文作为组件追加到连接的累积buffer，之后和明文连接一样解帧；
+ * 写：作为连接的{@link GatheringByteChannel}，发送队列中的多个响应一次wrap成尽量少的TLS记录，密文攒在netOut里一次写出，
+ * 文件区间也通过它发送（先读到临时buffer再加密，不能用sendfile）。
+ * 握手和正常读写走同一条路径，在Selector循环中非阻塞地推进：需要wrap时由flush写出握手消息，
+ * 需要执行的委托任务（证书校验、密钥交换等耗CPU的计算）交给任务线程池，期间连接暂停读取，完成后投递回Reactor线程继续。
+ * netIn、netOut和明文buffer都从{@link ByteBufferPool}申请，大小按SSLSession的包长度，用完即归还，空闲连接不占用buffer
+ */
+final class TlsConnection implements GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+
+    private final SocketChannel socketChannel;
+
+    private final ByteBufferPool bufferPool;
+
+    private final Executor taskExecutor;
+
+    //委托任务执行完后调用，由连接投递回Reactor线程
+    private final Runnable onTaskDone;
+
+    private final ReactorMetrics metrics;
+
+    //收到的密文，处于写模式；没有数据时为null
+    private PooledByteBuffer netIn;
+
+    //待写出的密文，处于写模式；没有数据时为null
+    private PooledByteBuffer netOut;
+
+    //unwrap出的明文写到这里，累积buffer持有已写部分的引用；没有半包数据时归还
+    private PooledByteBuffer appChunk;
+
+    private boolean lastReadFilled;
+
+    //委托任务正在任务线程池中执行
+    private boolean taskPending;
+
+    private boolean handshakeDone;
+
+    //握手开始的时间，毫秒，和SSLSession的创建时间比较判断是否复用了会话
+    private long handshakeStartMillis;
+
+    TlsConnection(SSLEngine engine, SocketChannel socketChannel, ByteBufferPool bufferPool, Executor taskExecutor,
+                  ReactorMetrics metrics, Runnable onTaskDone) {
+        this.engine = engine;
+        this.socketChannel = socketChannel;
+        this.bufferPool = bufferPool;
+        this.taskExecutor = taskExecutor != null ? taskExecutor : TaskExecutorHolder.INSTANCE;
+        this.metrics = metrics;
+        this.onTaskDone = onTaskDone;
+    }
+
+    /**
+     * 开始握手，客户端模式下ClientHello由下一次flush写出
+     */
+    void beginHandshake() throws SSLException {
+        handshakeStartMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+    }
+
+    boolean isTaskPending() {
+        return taskPending;
+    }
+
+    boolean lastReadFilled() {
+        return lastReadFilled;
+    }
+
+    /**
+     * 还有没写出的密文，需要等socket可写
+     */
+    boolean hasPendingOutput() {
+        return netOut != null && netOut.buffer().position() > 0;
+    }
+
+    /**
+     * 从socket读取密文
+     *
+     * @return 本次读取的字节数，-1表示对端已关闭
+     */
+    int read() throws IOException {
+        if (netIn == null) {
+            netIn = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+        }
+        ByteBuffer buffer = netIn.buffer();
+        int attempted = buffer.remaining();
+        int count = attempted == 0 ? 0 : socketChannel.read(buffer);
+        lastReadFilled = count > 0 && count == attempted;
+        return count;
+    }
+
+    /**
+     * 推进握手并把netIn中的全部完整记录解密到累积buffer，委托任务执行期间什么都不做
+     *
+     * @return 对端是否发送了close_notify
+     */
+    boolean unwrap(CompositeBuffer cumulation) throws IOException {
+        for (; ; ) {
+            if (taskPending) {
+                return false;
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return false;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                //握手消息放入netOut，由flush写出
+                if (!wrapHandshake()) {
+                    return false;
+                }
+                continue;
+            }
+            if (netIn == null || netIn.buffer().position() == 0) {
+                return false;
+            }
+            if (appChunk == null) {
+                appChunk = bufferPool.acquire(engine.getSession().getApplicationBufferSize());
+            }
+            ByteBuffer src = netIn.buffer();
+            ByteBuffer dst = appChunk.buffer();
+            int start = dst.position();
+            SSLEngineResult result;
+            src.flip();
+            try {
+                result = engine.unwrap(src, dst);
+            } finally {
+                src.compact();
+            }
+            if (result.bytesProduced() > 0) {
+                ByteBuffer view = dst.duplicate();
+                view.limit(start + result.bytesProduced());
+                view.position(start);
+                //累积buffer持有明文buffer的一个引用
+                cumulation.addComponent(view, appChunk.retain());
+            }
+            if (src.position() == 0) {
+                netIn.release();
+                netIn = null;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                handshakeFinished();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    //记录不完整，等下一次读；SSLSession协商后包长度变大时换一个更大的netIn
+                    if (netIn != null && netIn.buffer().capacity() < engine.getSession().getPacketBufferSize()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case BUFFER_OVERFLOW:
+                    //明文buffer剩余空间不够一条记录，换一个新的
+                    appChunk.release();
+                    appChunk = bufferPool.acquire(engine.getSession().getApplicationBufferSize());
+                    continue;
+                case CLOSED:
+                    return true;
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP
+                            && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        return false;
+                    }
+            }
+        }
+    }
+
+    /**
+     * 累积buffer中没有半包数据时调用，归还明文buffer，已解出的帧各自持有引用
+     */
+    void releaseAppChunk() {
+        if (appChunk != null) {
+            appChunk.release();
+            appChunk = null;
+        }
+    }
+
+    /**
+     * 把需要发送的握手消息wrap到netOut，和之前没写完的密文一起写出
+     *
+     * @return 是否全部写出；socket发送缓冲区满时返回false
+     */
+    boolean flushOutput() throws IOException {
+        for (; ; ) {
+            //一次握手往往连续产生多条消息，全部wrap之后一次写出，避免小包被Nagle算法延迟
+            while (!taskPending && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    && wrapHandshake()) {
+            }
+            if (!hasPendingOutput()) {
+                break;
+            }
+            ByteBuffer buffer = netOut.buffer();
+            buffer.flip();
+            try {
+                socketChannel.write(buffer);
+            } finally {
+                buffer.compact();
+            }
+            if (buffer.position() > 0) {
+                return false;
+            }
+            if (taskPending || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+        }
+        if (netOut != null && netOut.buffer().position() == 0) {
+            netOut.release();
+            netOut = null;
+        }
+        return true;
+    }
+
+    /**
+     * 把握手消息（或者close_notify）wrap到netOut，不写socket
+     *
+     * @return 是否wrap出了数据
+     */
+    private boolean wrapHandshake() throws IOException {
+        ensureNetOut();
+        SSLEngineResult result = engine.wrap(EMPTY, netOut.buffer());
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshakeFinished();
+        } else if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+        return result.bytesProduced() > 0;
+    }
+
+    /**
+     * 把明文加密后写到socket，握手没有完成或者socket写不下时只处理一部分
+     *
+     * @return 被加密的明文字节数
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += srcs[i].remaining();
+        }
+        long consumed = 0;
+        while (flushOutput() && remaining > 0 && !taskPending && isHandshakeIdle()) {
+            ensureNetOut();
+            ByteBuffer dst = netOut.buffer();
+            //每条记录最多16KB明文，netOut放得下时连续wrap，多条记录一次写出
+            while (remaining > 0 && dst.remaining() >= engine.getSession().getPacketBufferSize()) {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, dst);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("SSLEngine closed");
+                }
+                consumed += result.bytesConsumed();
+                remaining -= result.bytesConsumed();
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    break;
+                }
+                if (result.bytesConsumed() == 0) {
+                    break;
+                }
+            }
+            if (dst.position() == 0) {
+                //握手状态变化，没有wrap出任何数据
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     * 没有在握手，或者握手只需要wrap（由flushOutput完成）
+     */
+    private boolean isHandshakeIdle() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    private void ensureNetOut() {
+        if (netOut == null) {
+            //至少能放下两条最大的记录
+            netOut = bufferPool.acquire(engine.getSession().getPacketBufferSize() * 2);
+        } else if (netOut.buffer().remaining() < engine.getSession().getPacketBufferSize()) {
+            netOut = grow(netOut, netOut.buffer().position() + engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    /**
+     * 换一个更大的buffer，复制已有的数据
+     */
+    private PooledByteBuffer grow(PooledByteBuffer old, int capacity) {
+        PooledByteBuffer buffer = bufferPool.acquire(capacity);
+        ByteBuffer src = old.buffer();
+        src.flip();
+        buffer.buffer().put(src);
+        old.release();
+        return buffer;
+    }
+
+    /**
+     * 在任务线程池中执行全部委托任务，完成后投递回Reactor线程继续握手
+     */
+    private void runDelegatedTasks() {
+        taskPending = true;
+        Runnable tasks = () -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            onTaskDone.run();
+        };
+        try {
+            taskExecutor.execute(tasks);
+        } catch (RejectedExecutionException e) {
+            //任务线程池已关闭，在当前线程执行，完成后同样投递回Reactor线程
+            tasks.run();
+        }
+    }
+
+    /**
+     * 委托任务执行完，在Reactor线程上调用，之后继续unwrap和flush
+     */
+    void taskDone() {
+        taskPending = false;
+    }
+
+    private void handshakeFinished() {
+        if (handshakeDone) {
+            return;
+        }
+        handshakeDone = true;
+        //复用的会话是之前的握手创建的
+        metrics.onTlsHandshake(engine.getSession().getCreationTime() < handshakeStartMillis);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socketChannel.isOpen();
+    }
+
+    /**
+     * 连接关闭时尽量发送close_notify，不等待对端的回应，然后归还全部buffer
+     */
+    @Override
+    public void close() {
+        try {
+            if (socketChannel.isOpen() && !taskPending) {
+                engine.closeOutbound();
+                flushOutput();
+            }
+        } catch (IOException ignored) {
+            //对端已经断开，close_notify发不出去不影响关闭
+        }
+        if (netIn != null) {
+            netIn.release();
+            netIn = null;
+        }
+        if (netOut != null) {
+            netOut.release();
+            netOut = null;
+        }
+        releaseAppChunk();
+    }
+
+    /**
+     * 没有配置任务线程池时使用的共享线程池，第一次握手时才创建
+     */
+    private static final class TaskExecutorHolder {
+        private static final AtomicInteger threadIndex = new AtomicInteger();
+
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread thread = new Thread(r, "tls-task-" + threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
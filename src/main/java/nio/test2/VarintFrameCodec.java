@@ -0,0 +1,65 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import buffer.PooledByteBuffer;
+
+import java.io.IOException;
+
+/**
+ * varint长度前缀帧编解码器，和protobuf的writeDelimitedTo/parseDelimitedFrom格式相同：
+ * 帧头是消息长度的base 128 varint编码（每字节低7位为数据、最高位表示后面还有字节，小端在前），最多5字节，后面是消息内容。
+ * 小消息只需要1字节帧头
+ */
+public class VarintFrameCodec implements FrameCodec {
+    private static final int MAX_VARINT32_LENGTH = 5;
+
+    private final int maxFrameLength;
+
+    public VarintFrameCodec(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public CompositeBuffer decode(CompositeBuffer in) throws IOException {
+        int readable = in.readableBytes();
+        int length = 0;
+        int headerLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (headerLength == readable) {
+                //帧头还没收完整
+                return null;
+            }
+            if (headerLength == MAX_VARINT32_LENGTH) {
+                throw new IOException("malformed varint32 frame length");
+            }
+            byte b = in.getByte(headerLength++);
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("frame length " + length + " exceeds max frame length " + maxFrameLength);
+        }
+        if (readable < headerLength + length) {
+            return null;
+        }
+        in.skipBytes(headerLength);
+        return in.readSlice(length);
+    }
+
+    @Override
+    public void encode(CompositeBuffer payload, CompositeBuffer out, ByteBufferPool pool) {
+        int length = payload.readableBytes();
+        PooledByteBuffer header = pool.acquire(MAX_VARINT32_LENGTH);
+        while ((length & ~0x7f) != 0) {
+            header.buffer().put((byte) (length & 0x7f | 0x80));
+            length >>>= 7;
+        }
+        header.buffer().put((byte) length);
+        header.buffer().flip();
+        out.addComponent(header.buffer(), header);
+        out.addComponents(payload);
+    }
+}
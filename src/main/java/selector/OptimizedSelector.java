@@ -0,0 +1,263 @@
+package selector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 事件循环用的Selector包装，解决直接使用JDK Selector的两个问题：
+ * <ul>
+ * <li>就绪key保存在HashSet中，每次select都要创建迭代器、逐个remove。打开时通过反射把Selector内部的
+ * selectedKeys和publicSelectedKeys替换成数组实现的{@link SelectedKeySet}，不允许反射时退回到原来的迭代方式，
+ * 两种方式都通过{@link #processSelectedKeys(Consumer)}遍历</li>
+ * <li>Linux上JDK的epoll实现在某些情况下（例如对端异常断开）select(timeout)会在没有就绪key、没有被唤醒、
+ * 也没有到超时时间时立即返回，事件循环空转占满一个核。连续出现{@link #DEFAULT_REBUILD_THRESHOLD}次这样的返回时
+ * 认为发生了空转，新建一个Selector，把全部key连同关注的事件和attachment迁移过去，再关闭旧的Selector</li>
+ * </ul>
+ * 同时合并跨线程的唤醒：{@link #wakeup()}在一轮select中只调用一次Selector.wakeup()。
+ * 除了wakeup()以外只能在事件循环线程上调用；重建后key会变化，持有SelectionKey的一方需要通过迁移回调更新
+ */
+public final class OptimizedSelector implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(OptimizedSelector.class);
+
+    //-Dnio.selector.optimize=false 时不替换内部的HashSet
+    private static final boolean OPTIMIZE_KEY_SET =
+            Boolean.parseBoolean(System.getProperty("nio.selector.optimize", "true"));
+
+    //连续多少次提前返回的空select判定为空转，为0时不检查
+    public static final int DEFAULT_REBUILD_THRESHOLD = Integer.getInteger("nio.selector.rebuildThreshold", 512);
+
+    private final String name;
+
+    //重建时每迁移一个key回调一次：(旧key, 新key)，迁移失败时新key为null、channel已经关闭
+    private final BiConsumer<SelectionKey, SelectionKey> migrationListener;
+
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+
+    private final int rebuildThreshold;
+
+    private volatile Selector selector;
+
+    //替换失败时为null
+    private SelectedKeySet selectedKeys;
+
+    //连续提前返回的空select次数
+    private int emptySelects;
+
+    private volatile long rebuildCount;
+
+    /**
+     * @param name              用于日志
+     * @param migrationListener 重建Selector时的key迁移回调，可以为null
+     */
+    public OptimizedSelector(String name, BiConsumer<SelectionKey, SelectionKey> migrationListener) throws IOException {
+        this(name, migrationListener, DEFAULT_REBUILD_THRESHOLD);
+    }
+
+    public OptimizedSelector(String name, BiConsumer<SelectionKey, SelectionKey> migrationListener,
+                             int rebuildThreshold) throws IOException {
+        this.name = name;
+        this.migrationListener = migrationListener;
+        this.rebuildThreshold = rebuildThreshold;
+        openSelector();
+    }
+
+    private void openSelector() throws IOException {
+        Selector newSelector = Selector.open();
+        SelectedKeySet keySet = OPTIMIZE_KEY_SET ? replaceKeySet(newSelector) : null;
+        this.selectedKeys = keySet;
+        this.selector = newSelector;
+    }
+
+    /**
+     * 把sun.nio.ch.SelectorImpl中的两个集合字段换成同一个数组实现的集合。
+     * JDK 9+默认不允许对java.base中的类setAccessible，所以用Unsafe按字段偏移量写入（和Netty的做法一样），
+     * 任何一步失败都保留原来的HashSet
+     */
+    private SelectedKeySet replaceKeySet(Selector selector) {
+        try {
+            Class<?> selectorImpl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if (!selectorImpl.isAssignableFrom(selector.getClass())) {
+                return null;
+            }
+            Field selectedKeysField = selectorImpl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeysField = selectorImpl.getDeclaredField("publicSelectedKeys");
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+            Method putObject = unsafeClass.getMethod("putObject", Object.class, long.class, Object.class);
+            SelectedKeySet keySet = new SelectedKeySet();
+            putObject.invoke(unsafe, selector, objectFieldOffset.invoke(unsafe, selectedKeysField), keySet);
+            putObject.invoke(unsafe, selector, objectFieldOffset.invoke(unsafe, publicSelectedKeysField), keySet);
+            return keySet;
+        } catch (Throwable t) {
+            logger.debug("{} replace selected key set fail, fall back to HashSet:", name, t);
+            return null;
+        }
+    }
+
+    /**
+     * 当前的JDK Selector，重建后会变化，不能缓存
+     */
+    public Selector unwrap() {
+        return selector;
+    }
+
+    /**
+     * 是否使用了数组实现的就绪key集合
+     */
+    public boolean isKeySetOptimized() {
+        return selectedKeys != null;
+    }
+
+    public long rebuildCount() {
+        return rebuildCount;
+    }
+
+    public SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws IOException {
+        return channel.register(selector, ops, attachment);
+    }
+
+    /**
+     * 清除唤醒标记，事件循环每轮在检查任务队列之前调用，之后投递的任务一定会唤醒selector
+     */
+    public void resetWakeup() {
+        wakenUp.set(false);
+    }
+
+    /**
+     * 唤醒阻塞在select上的事件循环，可以在任意线程调用，一轮select中多次调用只唤醒一次
+     */
+    public void wakeup() {
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    public int selectNow() throws IOException {
+        emptySelects = 0;
+        return selector.selectNow();
+    }
+
+    /**
+     * 阻塞到有就绪key、被唤醒或者超时，同时检查空转，发现空转时重建Selector
+     *
+     * @param timeoutMillis 为0时一直阻塞
+     */
+    public int select(long timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        int selected = selector.select(timeoutMillis);
+        if (selected > 0 || wakenUp.get() || rebuildThreshold <= 0) {
+            emptySelects = 0;
+            return selected;
+        }
+        if (Thread.interrupted()) {
+            //线程被中断时select会立即返回，这不是空转，清除中断状态避免一直返回
+            logger.warn("{} selector thread interrupted, clear the interrupt status", name);
+            emptySelects = 0;
+            return selected;
+        }
+        if (timeoutMillis > 0 && System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            //正常超时
+            emptySelects = 0;
+            return selected;
+        }
+        if (++emptySelects >= rebuildThreshold) {
+            logger.warn("{} select returned prematurely {} times in a row, rebuild selector", name, emptySelects);
+            rebuild();
+            return selector.selectNow();
+        }
+        return selected;
+    }
+
+    /**
+     * 遍历本次select就绪的key并清空，handler中抛出的异常会中断遍历，剩余的key也被丢弃
+     */
+    public void processSelectedKeys(Consumer<SelectionKey> handler) {
+        SelectedKeySet keySet = selectedKeys;
+        if (keySet != null) {
+            try {
+                SelectionKey[] keys = keySet.keys;
+                for (int i = 0; i < keySet.size; i++) {
+                    handler.accept(keys[i]);
+                }
+            } finally {
+                keySet.reset();
+            }
+            return;
+        }
+        Set<SelectionKey> keys = selector.selectedKeys();
+        if (keys.isEmpty()) {
+            return;
+        }
+        Iterator<SelectionKey> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            handler.accept(key);
+        }
+    }
+
+    /**
+     * 新建Selector，把旧Selector上全部有效的key迁移过去后关闭旧的Selector
+     */
+    public void rebuild() throws IOException {
+        Selector oldSelector = selector;
+        SelectedKeySet oldKeySet = selectedKeys;
+        openSelector();
+        if (oldKeySet != null) {
+            oldKeySet.reset();
+        }
+        int migrated = 0;
+        for (SelectionKey key : oldSelector.keys()) {
+            if (!key.isValid() || key.channel().keyFor(selector) != null) {
+                continue;
+            }
+            int interestOps = key.interestOps();
+            Object attachment = key.attachment();
+            key.cancel();
+            SelectionKey newKey = null;
+            try {
+                newKey = key.channel().register(selector, interestOps, attachment);
+                migrated++;
+            } catch (Exception e) {
+                logger.error("{} migrate channel:{} to new selector fail:", name, key.channel(), e);
+                try {
+                    key.channel().close();
+                } catch (IOException e1) {
+                    logger.error("close channel fail:", e1);
+                }
+            }
+            if (migrationListener != null) {
+                migrationListener.accept(key, newKey);
+            }
+        }
+        try {
+            oldSelector.close();
+        } catch (IOException e) {
+            logger.error("close old selector of {} fail:", name, e);
+        }
+        rebuildCount++;
+        logger.info("{} rebuilt selector, migrated {} channels", name, migrated);
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+}
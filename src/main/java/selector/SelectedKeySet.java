@@ -0,0 +1,79 @@
+package selector;
+
+import java.nio.channels.SelectionKey;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 用数组代替Selector内部的HashSet保存就绪的key：select时只追加到数组末尾，不计算哈希、不分配Entry，
+ * 事件循环按下标遍历后整体清空，也不需要每次select都创建迭代器。
+ * <p>
+ * 只给{@link OptimizedSelector}替换JDK Selector的内部字段用，不是通用的Set：
+ * contains总是返回false、remove不生效（同一次select中一个key只会就绪一次，取消的key由事件循环检查isValid跳过），
+ * 只能由Selector所在的线程访问
+ */
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+    SelectionKey[] keys = new SelectionKey[1024];
+
+    int size;
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null) {
+            return false;
+        }
+        if (size == keys.length) {
+            SelectionKey[] newKeys = new SelectionKey[keys.length << 1];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+        }
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys[index++];
+            }
+        };
+    }
+
+    /**
+     * 清空，同时去掉对key的引用，避免已关闭的连接迟迟不能回收
+     */
+    void reset() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+        }
+        size = 0;
+    }
+}
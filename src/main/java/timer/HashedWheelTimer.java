@@ -0,0 +1,223 @@
+package timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程的时间轮定时器，由所属的事件循环线程调度、取消和检查到期，不需要任何同步。
+ * <p>
+ * 时间轮有wheelSize个槽，每个槽代表一个tick，定时任务按到期的tick挂到对应槽的双向链表上，
+ * 超过一圈的任务在经过的槽中跳过，调度和取消都是O(1)；事件循环每轮结束时调用{@link #expireTimeouts(long)}
+ * 批量推进时间轮并执行到期任务，精度为一个tick。
+ * 同一个{@link Timeout}可以反复{@link #schedule(Timeout, long, TimeUnit)}，每个连接只需要一个对象，
+ * 不会像ScheduledExecutorService那样每次重新调度都创建一个ScheduledFuture
+ */
+public final class HashedWheelTimer {
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    private final Bucket[] wheel;
+
+    //时间轮起点，tick从0开始计数
+    private final long startTime;
+
+    //下一个要处理的tick
+    private long tick;
+
+    private int pendingTimeouts;
+
+    //是否正在执行到期任务，期间新调度的任务至少放到下一个tick，避免在本轮中被重复执行
+    private boolean expiring;
+
+    /**
+     * @param tickDuration 每个槽代表的时长，也是定时精度
+     * @param wheelSize    槽的个数，向上取整到2的幂
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickDuration and wheelSize must be positive");
+        }
+        int size = Integer.highestOneBit(wheelSize - 1 == 0 ? 1 : wheelSize - 1) << 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * 创建一个定时任务并调度
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task);
+        schedule(timeout, delay, unit);
+        return timeout;
+    }
+
+    /**
+     * 调度一个已有的定时任务，已经在等待中的先取消
+     */
+    public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        if (timeout.timer != this) {
+            throw new IllegalArgumentException("timeout belongs to another timer");
+        }
+        cancel(timeout);
+        long deadline = System.nanoTime() + Math.max(0, unit.toNanos(delay));
+        timeout.deadline = deadline;
+        //到期时间所在的tick，已经过去的按下一个要处理的tick算
+        long expireTick = Math.max(expiring ? tick + 1 : tick, (deadline - startTime + tickNanos - 1) / tickNanos);
+        timeout.expireTick = expireTick;
+        wheel[(int) (expireTick & mask)].add(timeout);
+        pendingTimeouts++;
+    }
+
+    public int pendingTimeouts() {
+        return pendingTimeouts;
+    }
+
+    /**
+     * 距离下一个tick的毫秒数，有等待中的任务时事件循环的select最多阻塞这么久
+     */
+    public long millisUntilNextTick(long now) {
+        long nextTickTime = startTime + tick * tickNanos;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(nextTickTime - now + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * 推进时间轮到now，执行全部到期任务
+     *
+     * @param now System.nanoTime()
+     */
+    public void expireTimeouts(long now) {
+        expiring = true;
+        try {
+            while (pendingTimeouts > 0 && startTime + tick * tickNanos <= now) {
+                Bucket bucket = wheel[(int) (tick & mask)];
+                Timeout timeout = bucket.head;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    //同一个槽中还有后面几圈才到期的任务
+                    if (timeout.expireTick <= tick) {
+                        bucket.remove(timeout);
+                        pendingTimeouts--;
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable t) {
+                            logger.error("run timeout task fail:", t);
+                        }
+                        //任务中可能取消了同一个槽中的下一个任务，这时从头重新遍历，已执行的任务都已移出
+                        if (next != null && next.bucket != bucket) {
+                            next = bucket.head;
+                        }
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+        } finally {
+            expiring = false;
+        }
+        //没有等待中的任务时直接把tick追到当前时间，下次调度从当前时间算起
+        if (pendingTimeouts == 0) {
+            long current = (now - startTime) / tickNanos;
+            if (current > tick) {
+                tick = current;
+            }
+        }
+    }
+
+    void cancel(Timeout timeout) {
+        if (timeout.bucket != null) {
+            timeout.bucket.remove(timeout);
+            pendingTimeouts--;
+        }
+    }
+
+    /**
+     * 时间轮的一个槽，双向链表
+     */
+    private static final class Bucket {
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (tail == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * 定时任务，只能在所属时间轮的线程上使用
+     */
+    public static final class Timeout {
+        private final HashedWheelTimer timer;
+
+        private final Runnable task;
+
+        private long deadline;
+
+        //到期的tick，对槽数取模即所在的槽
+        private long expireTick;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        //所在的槽，没有在等待时为null
+        private Bucket bucket;
+
+        private Timeout(HashedWheelTimer timer, Runnable task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        public HashedWheelTimer timer() {
+            return timer;
+        }
+
+        public boolean isPending() {
+            return bucket != null;
+        }
+
+        /**
+         * 到期时间，System.nanoTime()
+         */
+        public long deadline() {
+            return deadline;
+        }
+
+        public void cancel() {
+            timer.cancel(this);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package tls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 创建服务端和客户端的SSLContext，以及离线生成自签名的测试证书。
+ * <p>
+ * 自签名证书用JDK自带的keytool生成PKCS12 keystore（EC P-256，SAN包含localhost和127.0.0.1），不依赖网络和第三方库；
+ * 同一个文件既是服务端的keystore，也是客户端的truststore
+ */
+public final class SslContexts {
+    private static final Logger logger = LoggerFactory.getLogger(SslContexts.class);
+
+    //keytool最长运行时间
+    private static final long KEYTOOL_TIMEOUT_SECONDS = 60;
+
+    /**
+     * 测试用自签名keystore的默认位置和密码，本机的服务端和客户端共用
+     */
+    public static final Path TEST_KEY_STORE = Paths.get(System.getProperty("java.io.tmpdir"), "nio-test-tls.p12");
+
+    public static final String TEST_PASSWORD = "changeit";
+
+    private SslContexts() {
+    }
+
+    /**
+     * 用keystore中的私钥和证书创建服务端的SSLContext
+     *
+     * @param keyStore PKCS12格式的keystore
+     */
+    public static SSLContext forServer(Path keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(load(keyStore, password), password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * 创建只信任trustStore中证书的客户端SSLContext，同一个SSLContext的连接之间复用会话
+     *
+     * @param trustStore PKCS12格式，可以直接使用服务端的keystore
+     */
+    public static SSLContext forClient(Path trustStore, char[] password) throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(load(trustStore, password));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+
+    /**
+     * 文件不存在时用keytool生成自签名证书，已存在时直接返回
+     *
+     * @param file     PKCS12 keystore的路径
+     * @param password keystore和私钥的密码，至少6个字符
+     */
+    public static Path selfSigned(Path file, char[] password) throws IOException {
+        if (Files.exists(file)) {
+            return file;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        //先生成到临时文件，多个进程同时生成时不会读到写了一半的keystore
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        Files.delete(tmp);
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        String storePassword = new String(password);
+        List<String> command = Arrays.asList(keytool, "-genkeypair", "-alias", "server",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-sigalg", "SHA256withECDSA", "-validity", "3650",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", tmp.toString(),
+                "-storepass", storePassword, "-keypass", storePassword, "-noprompt");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+            if (!process.waitFor(KEYTOOL_TIMEOUT_SECONDS, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                process.destroyForcibly();
+                throw new IOException("keytool fail: " + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new IOException("interrupted while running keytool", e);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //其他进程已经生成了，用它的
+            Files.deleteIfExists(tmp);
+            if (!Files.exists(file)) {
+                throw e;
+            }
+        }
+        logger.info("generate self-signed keystore {}", file);
+        return file;
+    }
+}
@@ -0,0 +1,82 @@
+package kv;
+
+import buffer.ByteBufferPool;
+import buffer.PooledByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class OffHeapStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        OffHeapStore store = new OffHeapStore(1024 * 1024, 8);
+        int entries = 2000;
+        for (int i = 0; i < entries; i++) {
+            store.put(key(i), value(i));
+        }
+        //删除的key不进快照
+        store.remove(key(0));
+        Path file = folder.getRoot().toPath().resolve("kv.snapshot");
+        assertEquals(entries - 1, store.snapshot(file));
+        assertFalse(Files.exists(file.resolveSibling("kv.snapshot.tmp")));
+
+        //分段个数和写快照时不同也能加载
+        OffHeapStore loaded = new OffHeapStore(1024 * 1024, 2);
+        assertEquals(entries - 1, loaded.load(file));
+        assertEquals(entries - 1, loaded.size());
+        assertNull(loaded.get(key(0), ByteBufferPool.HEAP));
+        for (int i = 1; i < entries; i++) {
+            PooledByteBuffer value = loaded.get(key(i), ByteBufferPool.HEAP);
+            assertEquals(value(i), value.buffer());
+            value.release();
+        }
+    }
+
+    @Test
+    public void emptyStoreSnapshot() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("empty.snapshot");
+        assertEquals(0, new OffHeapStore(64 * 1024, 4).snapshot(file));
+        OffHeapStore loaded = new OffHeapStore(64 * 1024, 4);
+        assertEquals(0, loaded.load(file));
+        assertEquals(0, loaded.size());
+    }
+
+    @Test
+    public void missingSnapshotLoadsNothing() throws IOException {
+        OffHeapStore store = new OffHeapStore(64 * 1024, 4);
+        assertEquals(0, store.load(folder.getRoot().toPath().resolve("missing.snapshot")));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFile() throws IOException {
+        Path file = folder.newFile("foreign.snapshot").toPath();
+        Files.write(file, new byte[64]);
+        new OffHeapStore(64 * 1024, 4).load(file);
+    }
+
+    private static ByteBuffer key(int i) {
+        return ByteBuffer.wrap(("key-" + i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    //长度随key变化，覆盖不同的对齐情况
+    private static ByteBuffer value(int i) {
+        byte[] value = new byte[i % 200 + 1];
+        for (int j = 0; j < value.length; j++) {
+            value[j] = (byte) (i * 31 + j);
+        }
+        return ByteBuffer.wrap(value);
+    }
+}
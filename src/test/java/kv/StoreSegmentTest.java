@@ -0,0 +1,133 @@
+package kv;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StoreSegmentTest {
+    //16字节头 + 4字节key + 44字节value，正好64字节，1024字节的分段放16个
+    private static final int VALUE_LENGTH = 44;
+
+    @Test
+    public void evictsOldestUnreferencedEntry() {
+        StoreSegment segment = new StoreSegment(1024);
+        for (int i = 0; i < 16; i++) {
+            put(segment, i, VALUE_LENGTH);
+        }
+        assertEquals(1024, segment.usedBytes());
+        //k0最老但被读过，写满后再写入时得到第二次机会，淘汰的是没被读过的k1
+        assertEquals(VALUE_LENGTH, get(segment, 0));
+        put(segment, 16, VALUE_LENGTH);
+        assertEquals(VALUE_LENGTH, get(segment, 0));
+        assertEquals(-1, get(segment, 1));
+        assertEquals(VALUE_LENGTH, get(segment, 16));
+        assertEquals(1, segment.evictions());
+        assertEquals(16, segment.count());
+    }
+
+    @Test
+    public void secondChanceClearsReferenceBit() {
+        StoreSegment segment = new StoreSegment(1024);
+        for (int i = 0; i < 16; i++) {
+            put(segment, i, VALUE_LENGTH);
+        }
+        get(segment, 0);
+        //k0搬到head时访问位被清除，转一圈之后没有再读就会被淘汰
+        for (int i = 16; i < 32; i++) {
+            put(segment, i, VALUE_LENGTH);
+        }
+        assertEquals(-1, get(segment, 0));
+        for (int i = 16; i < 32; i++) {
+            assertEquals(VALUE_LENGTH, get(segment, i));
+        }
+    }
+
+    @Test
+    public void overwrittenEntryIsSkippedWithoutEviction() {
+        StoreSegment segment = new StoreSegment(1024);
+        for (int i = 0; i < 16; i++) {
+            put(segment, i, VALUE_LENGTH);
+        }
+        //覆盖k5要先淘汰k0腾出空间，旧的k5成为垃圾
+        put(segment, 5, VALUE_LENGTH);
+        assertEquals(1, segment.evictions());
+        //k16到k19依次淘汰k1到k4，k20写入时tail经过旧的k5，直接跳过，不淘汰k6
+        for (int i = 16; i <= 20; i++) {
+            put(segment, i, VALUE_LENGTH);
+        }
+        assertEquals(5, segment.evictions());
+        assertEquals(16, segment.count());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(-1, get(segment, i));
+        }
+        for (int i = 5; i <= 20; i++) {
+            assertEquals(VALUE_LENGTH, get(segment, i));
+        }
+    }
+
+    @Test
+    public void wrapsAroundWithPadding() {
+        //96字节的entry，1024字节放不下整数个，数据区末尾要写填充块
+        StoreSegment segment = new StoreSegment(1024);
+        int valueLength = 96 - StoreSegment.HEADER_LENGTH - 4;
+        int puts = 100;
+        for (int i = 0; i < puts; i++) {
+            put(segment, i, valueLength);
+            assertTrue(segment.usedBytes() <= segment.capacity());
+        }
+        assertEquals(puts, segment.count() + segment.evictions());
+        //最近写入的entry都在，内容在绕回之后没有被覆盖
+        for (int i = puts - segment.count(); i < puts; i++) {
+            ByteBuffer dst = ByteBuffer.allocate(valueLength);
+            assertEquals(valueLength, segment.get(key(i), hash(i), dst));
+            dst.flip();
+            assertEquals(value(i, valueLength), dst);
+        }
+        for (int i = 0; i < puts - segment.count(); i++) {
+            assertEquals(-1, get(segment, i));
+        }
+    }
+
+    @Test
+    public void removeKeepsCollidingKeysReachable() {
+        StoreSegment segment = new StoreSegment(1024);
+        //同一个hash的三个key落在连续的槽位上，删除中间的一个后另外两个仍然能查到
+        for (int i = 0; i < 3; i++) {
+            segment.put(key(i), 7, value(i, VALUE_LENGTH));
+        }
+        assertTrue(segment.remove(key(1), 7));
+        assertEquals(VALUE_LENGTH, segment.get(key(0), 7, null));
+        assertEquals(-1, segment.get(key(1), 7, null));
+        assertEquals(VALUE_LENGTH, segment.get(key(2), 7, null));
+        assertEquals(2, segment.count());
+    }
+
+    private static void put(StoreSegment segment, int i, int valueLength) {
+        segment.put(key(i), hash(i), value(i, valueLength));
+    }
+
+    private static int get(StoreSegment segment, int i) {
+        return segment.get(key(i), hash(i), null);
+    }
+
+    private static ByteBuffer key(int i) {
+        return ByteBuffer.wrap(String.format("k%03d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int hash(int i) {
+        return i * 0x9e3779b9;
+    }
+
+    private static ByteBuffer value(int i, int length) {
+        ByteBuffer value = ByteBuffer.allocate(length);
+        while (value.hasRemaining()) {
+            value.put((byte) (i + value.position()));
+        }
+        value.flip();
+        return value;
+    }
+}
@@ -0,0 +1,91 @@
+package nio.test2;
+
+import buffer.ByteBufferPool;
+import buffer.CompositeBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class FrameCodecTest {
+    @Test
+    public void delimiterSplitAcrossReads() throws IOException {
+        FrameCodec codec = new DelimiterFrameCodec("||".getBytes(StandardCharsets.US_ASCII), 1024).forConnection();
+        CompositeBuffer in = new CompositeBuffer();
+        //分隔符的两个字节分在两次读中
+        in.addComponent(ascii("hello|"));
+        assertNull(codec.decode(in));
+        in.addComponent(ascii("|wor"));
+        assertEquals("hello", decodeString(codec, in));
+        assertNull(codec.decode(in));
+        in.addComponent(ascii("ld||x"));
+        assertEquals("world", decodeString(codec, in));
+        assertNull(codec.decode(in));
+        assertEquals(1, in.readableBytes());
+        in.release();
+    }
+
+    @Test
+    public void lineTrickledByteByByte() throws IOException {
+        FrameCodec shared = new LineFrameCodec(1024);
+        FrameCodec codec = shared.forConnection();
+        assertNotSame(shared, codec);
+        CompositeBuffer in = new CompositeBuffer();
+        for (byte b : "first\r\nsecond\n".getBytes(StandardCharsets.US_ASCII)) {
+            in.addComponent(ByteBuffer.wrap(new byte[]{b}));
+            if (b == '\n') {
+                break;
+            }
+            assertNull(codec.decode(in));
+        }
+        assertEquals("first", decodeString(codec, in));
+        in.addComponent(ascii("second\n"));
+        assertEquals("second", decodeString(codec, in));
+        in.release();
+    }
+
+    @Test(expected = IOException.class)
+    public void lineWithoutDelimiterExceedsMax() throws IOException {
+        FrameCodec codec = new LineFrameCodec(16).forConnection();
+        CompositeBuffer in = new CompositeBuffer();
+        for (int i = 0; i < 20; i++) {
+            in.addComponent(ascii("x"));
+            codec.decode(in);
+        }
+    }
+
+    @Test
+    public void lengthHeadersShareSlab() throws IOException {
+        LengthFieldFrameCodec codec = new LengthFieldFrameCodec(1024);
+        CompositeBuffer out = new CompositeBuffer();
+        //超过一块slab能切出的帧头个数
+        int frames = 3000;
+        for (int i = 0; i < frames; i++) {
+            codec.encode(CompositeBuffer.wrap(("m" + i).getBytes(StandardCharsets.US_ASCII)), out,
+                    ByteBufferPool.HEAP);
+        }
+        for (int i = 0; i < frames; i++) {
+            assertEquals("m" + i, decodeString(codec, out));
+        }
+        assertEquals(0, out.readableBytes());
+        out.release();
+    }
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String decodeString(FrameCodec codec, CompositeBuffer in) throws IOException {
+        CompositeBuffer frame = codec.decode(in);
+        try {
+            return frame.toString(StandardCharsets.US_ASCII);
+        } finally {
+            frame.release();
+        }
+    }
+}
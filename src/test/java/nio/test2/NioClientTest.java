@@ -0,0 +1,53 @@
+package nio.test2;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioClientTest {
+    //超过读buffer初始的64KB，不超过帧长度上限
+    private static final int RESPONSE_LENGTH = 300 * 1024;
+
+    @Test(timeout = 30000)
+    public void responsesLargerThanReadBuffer() throws Exception {
+        int requests = 4;
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CompletableFuture<Void> served = CompletableFuture.runAsync(() -> serve(serverSocket, requests));
+            NioClient client = new NioClient("127.0.0.1", serverSocket.getLocalPort());
+            client.setPipelineDepth(2);
+            assertTrue(client.run(requests) > 0);
+            served.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 阻塞式的服务端，每个请求回复一个RESPONSE_LENGTH字节的帧
+     */
+    private static void serve(ServerSocket serverSocket, int requests) {
+        try (Socket socket = serverSocket.accept()) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] response = new byte[RESPONSE_LENGTH];
+            for (int i = 0; i < requests; i++) {
+                byte[] request = new byte[in.readInt()];
+                in.readFully(request);
+                out.writeInt(response.length);
+                out.write(response);
+                out.flush();
+            }
+            assertEquals(-1, in.read());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
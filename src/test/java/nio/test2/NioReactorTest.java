@@ -0,0 +1,79 @@
+package nio.test2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioReactorTest {
+    private NioServer server;
+
+    private InetSocketAddress address;
+
+    private final CountDownLatch inactive = new CountDownLatch(1);
+
+    private final AtomicInteger inactiveCount = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        address = new InetSocketAddress("127.0.0.1", port);
+        NioServerConfig config = new NioServerConfig(port);
+        config.setSubReactorCount(1);
+        //第一个处理器已经加入处理器链后初始化失败
+        config.setPipelineInitializer(pipeline -> {
+            pipeline.addLast("inactive", new InboundHandler() {
+                @Override
+                public void channelRead(HandlerContext ctx, Object msg) throws Exception {
+                    ctx.fireChannelRead(msg);
+                }
+
+                @Override
+                public void channelInactive(HandlerContext ctx) {
+                    inactiveCount.incrementAndGet();
+                    inactive.countDown();
+                }
+            });
+            throw new IllegalStateException("init pipeline fail");
+        });
+        server = new NioServer(config);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.stop(0, TimeUnit.MILLISECONDS);
+        server.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void initPipelineFailureClosesSession() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(10000);
+            socket.connect(address);
+            InputStream in = socket.getInputStream();
+            assertEquals(-1, in.read());
+        }
+        assertTrue(inactive.await(5, TimeUnit.SECONDS));
+        assertEquals(1, inactiveCount.get());
+        //连接计数在socket关闭之后才减少
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.subReactors()[0].channelCount() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, server.subReactors()[0].channelCount());
+    }
+}
@@ -0,0 +1,107 @@
+package nio.test2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tls.SslContexts;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * TLS回显：服务端是带SSLContext的NioServer，客户端分别是NioClientPool（两端都是TlsConnection）和JDK的SSLSocket
+ */
+public class TlsEchoTest {
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static final char[] PASSWORD = SslContexts.TEST_PASSWORD.toCharArray();
+
+    private NioServer server;
+
+    private InetSocketAddress address;
+
+    private Path keyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        keyStore = SslContexts.selfSigned(folder.getRoot().toPath().resolve("server.p12"), PASSWORD);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        address = new InetSocketAddress("127.0.0.1", port);
+        NioServerConfig config = new NioServerConfig(port);
+        config.setSubReactorCount(1);
+        config.setSslContext(SslContexts.forServer(keyStore, PASSWORD));
+        //NioClientPool按请求ID对应响应
+        config.setPipelineInitializer(pipeline -> pipeline
+                .addLast("correlationId", new CorrelationIdCodec())
+                .addLast("echo", new EchoHandler()));
+        server = new NioServer(config);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.stop(0, TimeUnit.MILLISECONDS);
+        server.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void echoThroughNioClientPool() throws Exception {
+        NioClientConfig config = new NioClientConfig();
+        config.setIoThreads(1);
+        config.setConnectionsPerAddress(1);
+        config.setSslContext(SslContexts.forClient(keyStore, PASSWORD));
+        try (NioClientPool pool = new NioClientPool(config)) {
+            for (int i = 0; i < 3; i++) {
+                byte[] response = pool.call(address, ("hello-" + i).getBytes(StandardCharsets.UTF_8))
+                        .get(10, TimeUnit.SECONDS);
+                assertEquals("hello-" + i + ":nio server response", new String(response, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void echoThroughSslSocket() throws Exception {
+        SSLContext context = SslContexts.forClient(keyStore, PASSWORD);
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(address.getAddress(),
+                address.getPort())) {
+            socket.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            //4字节请求ID + 内容，外面再套4字节长度字段
+            byte[] content = "hello".getBytes(StandardCharsets.UTF_8);
+            out.writeInt(4 + content.length);
+            out.writeInt(42);
+            out.write(content);
+            out.flush();
+            assertEquals(42, readFrame(in, "hello:nio server response"));
+        }
+    }
+
+    /**
+     * 读一个响应帧，校验内容并返回请求ID
+     */
+    private static int readFrame(DataInputStream in, String expected) throws IOException {
+        int length = in.readInt();
+        int correlationId = in.readInt();
+        byte[] content = new byte[length - 4];
+        in.readFully(content);
+        assertEquals(expected, new String(content, StandardCharsets.UTF_8));
+        return correlationId;
+    }
+}